@@ -30,14 +30,26 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
 import com.he5ed.lib.cloudprovider.apis.BaseApi;
 import com.he5ed.lib.cloudprovider.apis.BoxApi;
 import com.he5ed.lib.cloudprovider.apis.CloudDriveApi;
 import com.he5ed.lib.cloudprovider.apis.DropboxApi;
 import com.he5ed.lib.cloudprovider.apis.OneDriveApi;
+import com.he5ed.lib.cloudprovider.apis.SegmentedDownload;
+import com.he5ed.lib.cloudprovider.apis.StreamTransfer;
 import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.models.CloudAccount;
 import com.he5ed.lib.cloudprovider.models.User;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
+import com.he5ed.lib.cloudprovider.transfers.TransferManager;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
 
 import java.io.File;
 import java.io.IOException;
@@ -45,8 +57,13 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main class that controls the entire operations of this library. This is a
@@ -80,6 +97,159 @@ public class CloudProvider {
      */
     public static File CACHE_DIR;
 
+    /**
+     * Maximum number of idle connections kept alive in the HTTP connection pool shared by
+     * all the cloud API instances. Must be assigned before the first call to
+     * {@link #getInstance(Context)}.
+     */
+    public static int MAX_IDLE_CONNECTIONS = 8;
+
+    /**
+     * Time in milliseconds that an idle pooled connection is kept alive before eviction
+     */
+    public static long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    /**
+     * Maximum number of requests executed concurrently by the shared dispatcher
+     */
+    public static int MAX_REQUESTS = 64;
+
+    /**
+     * Maximum number of requests executed concurrently for each host by the shared dispatcher
+     */
+    public static int MAX_REQUESTS_PER_HOST = 8;
+
+    /**
+     * Negotiate HTTP/2 (and SPDY) where the server supports it so that concurrent requests
+     * to the same host are multiplexed over a single connection
+     */
+    public static boolean ENABLE_HTTP2 = true;
+
+    /**
+     * Number of background threads shared by the cloud API instances for look ahead and
+     * parallel requests. Must be assigned before the first call to {@link #getExecutor()}.
+     */
+    public static int MAX_BACKGROUND_THREADS = 4;
+
+    /**
+     * Maximum number of folder, file and listing metadata entries cached in memory per account
+     */
+    public static int METADATA_CACHE_SIZE = 200;
+
+    /**
+     * Time in milliseconds cached metadata is served without asking the cloud server,
+     * use 0 to disable the metadata cache
+     */
+    public static long METADATA_CACHE_TTL = 30 * 1000;
+
+    /**
+     * Time in milliseconds expired metadata can still be served while a fresh copy is loaded
+     * in the background, use a value not greater than {@link #METADATA_CACHE_TTL} to always
+     * wait for the fresh copy
+     */
+    public static long METADATA_CACHE_STALE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Maximum size in bytes of the decoded thumbnails kept in memory, use 0 to disable
+     */
+    public static long THUMBNAIL_MEMORY_CACHE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Maximum size in bytes of the thumbnail files kept in {@link #CACHE_DIR}, use 0 to disable
+     */
+    public static long THUMBNAIL_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+    /**
+     * Number of thumbnails requested at the same time by a batch, over HTTP/2 they share a
+     * single connection
+     */
+    public static int THUMBNAIL_BATCH_CONCURRENCY = 8;
+
+    /**
+     * Number of requests made at the same time by a batch of items where the cloud service
+     * has no batch endpoint
+     */
+    public static int BATCH_CONCURRENCY = 8;
+
+    /**
+     * Time in milliseconds before checking a batch job run in the background by the cloud
+     * service, doubled after every check still in progress up to
+     * {@link #BATCH_POLL_MAX_INTERVAL}
+     */
+    public static long BATCH_POLL_INTERVAL = 500;
+
+    /**
+     * Maximum time in milliseconds between checks of a batch job
+     */
+    public static long BATCH_POLL_MAX_INTERVAL = 8000;
+
+    /**
+     * Files larger than this size in bytes are uploaded in chunks through a resumable upload
+     * session where the cloud service supports it
+     */
+    public static long CHUNKED_UPLOAD_THRESHOLD = 20 * 1024 * 1024;
+
+    /**
+     * Chunk size in bytes of a resumable upload, must be a multiple of 320 KiB for OneDrive.
+     * Cloud services that dictate the chunk size, e.g. Box, ignore this value.
+     */
+    public static int UPLOAD_CHUNK_SIZE = 32 * 320 * 1024;
+
+    /**
+     * Number of times a failed upload request is retried before giving up
+     */
+    public static int UPLOAD_RETRY_COUNT = 3;
+
+    /**
+     * Time in milliseconds a saved upload session is kept for resume, older sessions have
+     * expired on the cloud service and are pruned
+     */
+    public static long UPLOAD_SESSION_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Size in bytes of the range requested at a time by a segmented download
+     */
+    public static long DOWNLOAD_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Number of ranges of a single file downloaded concurrently, 1 to download one range at
+     * a time. Capped by {@link #MAX_BACKGROUND_THREADS} helper threads plus the calling thread.
+     */
+    public static int DOWNLOAD_CONCURRENCY = 4;
+
+    /**
+     * Number of times a failed download segment is retried before giving up, the partial
+     * download is kept so it can be resumed later
+     */
+    public static int DOWNLOAD_RETRY_COUNT = 3;
+
+    /**
+     * Size in bytes of the in-memory buffer between the download and the upload of a copy
+     * from one cloud storage to another, see {@link StreamTransfer}
+     */
+    public static int TRANSFER_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Maximum number of transfers run at the same time by the {@link TransferManager}
+     */
+    public static int MAX_TRANSFERS = 4;
+
+    /**
+     * Maximum number of transfers of a single account run at the same time
+     */
+    public static int MAX_TRANSFERS_PER_ACCOUNT = 2;
+
+    /**
+     * Maximum number of transfers of a single cloud API run at the same time, unless set for
+     * the cloud API with {@link TransferManager#setProviderLimit(Class, int)}
+     */
+    public static int MAX_TRANSFERS_PER_PROVIDER = 3;
+
+    /**
+     * Minimum time in milliseconds between two progress callbacks of a transfer
+     */
+    public static long TRANSFER_PROGRESS_INTERVAL = 500;
+
     /**
      * At the moment only full access authentication type available for all the cloud APIs
      */
@@ -103,6 +273,13 @@ public class CloudProvider {
     private AccountManager mAccountManager;
     private OnAccountChangeListener mListener;
     private List<Class<?>> mApiList;
+    private OkHttpClient mHttpClient;
+    private Map<String, HostConfig> mHostConfigs;
+    private Map<String, OkHttpClient> mHostClients;
+    private ExecutorService mExecutor;
+    private Map<String, MetadataCache> mMetadataCaches;
+    private ThumbnailCache mThumbnailCache;
+    private TransferManager mTransferManager;
 
     /**
      * Get the singleton instance of CloudProvider
@@ -132,6 +309,43 @@ public class CloudProvider {
         // add API implementation classes to the provider
         mApiList = new ArrayList<>();
         addDefaultApis();
+
+        // setup the HTTP transport shared by all cloud API instances
+        mHttpClient = createHttpClient();
+        mHostConfigs = new HashMap<>();
+        mHostClients = new HashMap<>();
+    }
+
+    /**
+     * Create the HTTP client that owns the connection pool, dispatcher and TLS session
+     * cache shared across all accounts
+     *
+     * @return OkHttpClient
+     */
+    private OkHttpClient createHttpClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        OkHttpClient client = new OkHttpClient();
+        client.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION));
+        client.setDispatcher(dispatcher);
+        client.setProtocols(getProtocols(ENABLE_HTTP2));
+        return client;
+    }
+
+    /**
+     * Get the protocols to be negotiated with the server
+     *
+     * @param http2 whether to allow HTTP/2 and SPDY multiplexing
+     * @return list of protocols, always include HTTP/1.1
+     */
+    private List<Protocol> getProtocols(boolean http2) {
+        if (http2) {
+            return Arrays.asList(Protocol.HTTP_2, Protocol.SPDY_3, Protocol.HTTP_1_1);
+        } else {
+            return Arrays.asList(Protocol.HTTP_1_1);
+        }
     }
 
     /**
@@ -300,6 +514,17 @@ public class CloudProvider {
         return mAccountManager.getUserData(account, key);
     }
 
+    /**
+     * Set the account user data, use null value to remove the data
+     *
+     * @param account to be updated
+     * @param key of the user data
+     * @param value of the user data
+     */
+    public void setUserData(Account account, String key, String value) {
+        mAccountManager.setUserData(account, key, value);
+    }
+
     /**
      * Update the account auth token and user data
      *
@@ -336,7 +561,11 @@ public class CloudProvider {
                 public void run(AccountManagerFuture<Boolean> future) {
                     if (future.isDone()) {
                         try {
-                            if (future.getResult()) mListener.onAccountRemoved(oldAccount);
+                            if (future.getResult()) {
+                                MetadataIndex.clear(mContext, account.name);
+                                removeMetadataCache(account.name);
+                                mListener.onAccountRemoved(oldAccount);
+                            }
                         } catch (OperationCanceledException e) {
                             e.printStackTrace();
                         } catch (IOException e) {
@@ -362,7 +591,11 @@ public class CloudProvider {
             public void run(AccountManagerFuture<Boolean> future) {
                 if (future.isDone()) {
                     try {
-                        if (future.getResult()) mListener.onAccountRemoved(oldAccount);
+                        if (future.getResult()) {
+                            MetadataIndex.clear(mContext, account.name);
+                            removeMetadataCache(account.name);
+                            mListener.onAccountRemoved(oldAccount);
+                        }
                     } catch (OperationCanceledException e) {
                         e.printStackTrace();
                     } catch (IOException e) {
@@ -404,6 +637,153 @@ public class CloudProvider {
         return null;
     }
 
+    /**
+     * Get the HTTP client shared by all cloud API instances
+     *
+     * @return OkHttpClient
+     */
+    public OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * Get the HTTP client to be used for a host. The returned client share the TLS session
+     * cache of {@link #getHttpClient()} and the settings from the {@link HostConfig} of the
+     * host are applied on top, see {@link HostConfig} for the settings that can be overridden.
+     *
+     * @param host name of the server, e.g. api.box.com
+     * @return OkHttpClient
+     */
+    public synchronized OkHttpClient getHttpClient(String host) {
+        HostConfig config = mHostConfigs.get(host);
+        // no custom settings use the shared client as it is
+        if (config == null) return mHttpClient;
+
+        OkHttpClient client = mHostClients.get(host);
+        if (client == null) {
+            // clone share the connection pool and dispatcher of the original client
+            client = mHttpClient.clone();
+            if (config.connectTimeout >= 0)
+                client.setConnectTimeout(config.connectTimeout, TimeUnit.MILLISECONDS);
+            if (config.readTimeout >= 0)
+                client.setReadTimeout(config.readTimeout, TimeUnit.MILLISECONDS);
+            if (config.writeTimeout >= 0)
+                client.setWriteTimeout(config.writeTimeout, TimeUnit.MILLISECONDS);
+            client.setProtocols(getProtocols(config.http2));
+            if (config.maxIdleConnections >= 0 || config.keepAliveDuration >= 0) {
+                int maxIdle = config.maxIdleConnections >= 0 ?
+                        config.maxIdleConnections : MAX_IDLE_CONNECTIONS;
+                long keepAlive = config.keepAliveDuration >= 0 ?
+                        config.keepAliveDuration : KEEP_ALIVE_DURATION;
+                client.setConnectionPool(new ConnectionPool(maxIdle, keepAlive));
+            }
+            if (config.maxRequests >= 0) {
+                // all the requests of this client go to the host
+                Dispatcher dispatcher = new Dispatcher();
+                dispatcher.setMaxRequests(config.maxRequests);
+                dispatcher.setMaxRequestsPerHost(config.maxRequests);
+                client.setDispatcher(dispatcher);
+            }
+            mHostClients.put(host, client);
+        }
+        return client;
+    }
+
+    /**
+     * Get the HTTP client for the host the request is sent to, e.g. the API, upload or
+     * content server of a cloud service
+     *
+     * @param request to be executed
+     * @return OkHttpClient
+     */
+    public OkHttpClient clientFor(Request request) {
+        return getHttpClient(request.httpUrl().host());
+    }
+
+    /**
+     * Get the executor shared by all cloud API instances to run background requests
+     *
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(MAX_BACKGROUND_THREADS);
+        }
+        return mExecutor;
+    }
+
+    /**
+     * Get the in-memory metadata cache of the account, shared by all the cloud API instances
+     * built for the account.
+     *
+     * @param accountName of the account
+     * @return MetadataCache
+     */
+    public synchronized MetadataCache getMetadataCache(String accountName) {
+        if (mMetadataCaches == null) mMetadataCaches = new HashMap<>();
+
+        MetadataCache cache = mMetadataCaches.get(accountName);
+        if (cache == null) {
+            // revalidation may list a folder with parallel page requests on the shared executor,
+            // it must not hold a thread of that executor while waiting for them
+            cache = new MetadataCache(METADATA_CACHE_SIZE, METADATA_CACHE_TTL,
+                    METADATA_CACHE_STALE_TTL, ApiTask.getDefaultExecutor());
+            mMetadataCaches.put(accountName, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Get the thumbnail cache shared by all accounts
+     *
+     * @return ThumbnailCache
+     */
+    public synchronized ThumbnailCache getThumbnailCache() {
+        if (mThumbnailCache == null) {
+            mThumbnailCache = new ThumbnailCache(new File(CACHE_DIR, "thumbnails"),
+                    THUMBNAIL_MEMORY_CACHE_SIZE, THUMBNAIL_DISK_CACHE_SIZE);
+        }
+        return mThumbnailCache;
+    }
+
+    /**
+     * Get the transfer manager that queue the uploads and downloads of all accounts
+     *
+     * @return TransferManager
+     */
+    public synchronized TransferManager getTransferManager() {
+        if (mTransferManager == null) {
+            mTransferManager = new TransferManager();
+        }
+        return mTransferManager;
+    }
+
+    /**
+     * Drop the in-memory metadata cache of the account
+     *
+     * @param accountName of the account
+     */
+    private synchronized void removeMetadataCache(String accountName) {
+        if (mMetadataCaches != null) mMetadataCaches.remove(accountName);
+    }
+
+    /**
+     * Customize the HTTP transport for a host, e.g. the API, upload, content or CDN server of a
+     * cloud service. Takes effect for the requests made after the call, cloud API instances
+     * already built included.
+     *
+     * @param host name of the server, e.g. api.box.com
+     * @param config settings for the host, use null to restore the shared settings
+     */
+    public synchronized void setHostConfig(String host, HostConfig config) {
+        if (config != null) {
+            mHostConfigs.put(host, config);
+        } else {
+            mHostConfigs.remove(host);
+        }
+        mHostClients.remove(host);
+    }
+
     /**
      * Get the human readable name of the cloud API
      *
@@ -424,6 +804,54 @@ public class CloudProvider {
         return null;
     }
 
+    /**
+     * HTTP transport settings for a single host. Negative values mean the shared settings of
+     * {@link #getHttpClient()} are used.
+     * <p>
+     * Timeouts and HTTP/2 apply to the requests sent to the host. Connection pool settings give
+     * the host a pool of its own, the request limit a dispatcher of its own, which only limits
+     * asynchronous calls. A redirect is followed with the settings of the host first
+     * requested, except for the later segments of a {@link SegmentedDownload} that go straight
+     * to the redirected host.
+     */
+    public static class HostConfig {
+
+        /**
+         * Connect timeout in milliseconds, 0 for no timeout
+         */
+        public long connectTimeout = -1;
+
+        /**
+         * Read timeout in milliseconds, 0 for no timeout
+         */
+        public long readTimeout = -1;
+
+        /**
+         * Write timeout in milliseconds, 0 for no timeout
+         */
+        public long writeTimeout = -1;
+
+        /**
+         * Whether to negotiate HTTP/2 with the host
+         */
+        public boolean http2 = ENABLE_HTTP2;
+
+        /**
+         * Maximum number of idle connections kept alive for the host
+         */
+        public int maxIdleConnections = -1;
+
+        /**
+         * Time in milliseconds that an idle connection to the host is kept alive
+         */
+        public long keepAliveDuration = -1;
+
+        /**
+         * Maximum number of asynchronous requests executed concurrently for the host
+         */
+        public int maxRequests = -1;
+    }
+
     /**
      * Interface for listener to listen to the account changes
      */
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.squareup.okhttp.Call;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of a cloud API operation running in the background. Cancelling the task cancels the
+ * HTTP calls it has in flight, so an abandoned operation stops using its connection at once.
+ * <p>
+ * Calls are attached to the task running on the current thread with {@link #track(Call)},
+ * helper threads of the operation take part with {@link #inherit(Callable)}. Bytes moved by the
+ * operation are reported the same way with {@link #reportProgress(long)}.
+ *
+ * @param <T> type of the result
+ */
+public class ApiTask<T> implements Future<T>, Runnable {
+
+    private static final ThreadLocal<ApiTask<?>> CURRENT = new ThreadLocal<>();
+
+    private static ExecutorService sDefaultExecutor;
+    private static Executor sMainThreadExecutor;
+
+    private final Callable<T> mCallable;
+    private final Executor mExecutor;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Call> mCalls = new ArrayList<>();
+    private final List<Runnable> mListeners = new ArrayList<>();
+    private ApiTask<?> mParent;
+    private OnProgressListener mProgressListener;
+    private Thread mThread;
+    private volatile boolean mCancelled;
+    private T mResult;
+    private Throwable mError;
+
+    private ApiTask(Callable<T> callable, Executor executor) {
+        mCallable = callable;
+        mExecutor = executor;
+    }
+
+    /**
+     * Run the operation in the background
+     *
+     * @param executor to run the operation on
+     * @param callable the operation
+     * @return ApiTask
+     */
+    public static <T> ApiTask<T> submit(@NonNull Executor executor, @NonNull Callable<T> callable) {
+        ApiTask<T> task = new ApiTask<>(callable, executor);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Create the operation without running it, the caller runs it with {@link #run()} on a
+     * thread it manages and gets the result once it returns
+     *
+     * @param callable the operation
+     * @param listener to receive the bytes moved by the operation, may be null
+     * @return ApiTask
+     */
+    public static <T> ApiTask<T> create(@NonNull Callable<T> callable,
+                                        @Nullable OnProgressListener listener) {
+        ApiTask<T> task = new ApiTask<>(callable, getDefaultExecutor());
+        task.mProgressListener = listener;
+        return task;
+    }
+
+    /**
+     * Executor used when the cloud API has none set, threads are created as needed
+     *
+     * @return ExecutorService
+     */
+    public static synchronized ExecutorService getDefaultExecutor() {
+        if (sDefaultExecutor == null) sDefaultExecutor = Executors.newCachedThreadPool();
+        return sDefaultExecutor;
+    }
+
+    private static synchronized Executor getMainThreadExecutor() {
+        if (sMainThreadExecutor == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThreadExecutor = new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return sMainThreadExecutor;
+    }
+
+    /**
+     * Attach the HTTP call to the task running on the current thread, if any, so that it is
+     * cancelled along with the task
+     *
+     * @param call to be executed
+     * @return the same call
+     */
+    public static Call track(Call call) {
+        ApiTask<?> task = CURRENT.get();
+        if (task != null) task.attach(call);
+        return call;
+    }
+
+    /**
+     * Let the callable run on another thread take part in the task running on the current
+     * thread, if any
+     *
+     * @param callable to be run on a helper thread
+     * @return Callable
+     */
+    public static <V> Callable<V> inherit(final Callable<V> callable) {
+        final ApiTask<?> task = CURRENT.get();
+        if (task == null) return callable;
+
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                ApiTask<?> previous = CURRENT.get();
+                CURRENT.set(task);
+                try {
+                    return callable.call();
+                } finally {
+                    if (previous != null) {
+                        CURRENT.set(previous);
+                    } else {
+                        CURRENT.remove();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Report bytes moved by the task running on the current thread, if any, e.g. a segment
+     * written or a chunk committed. Helper threads report to the task they inherited.
+     *
+     * @param bytes moved since the last report, negative when moved bytes are discarded
+     */
+    public static void reportProgress(long bytes) {
+        ApiTask<?> task = CURRENT.get();
+        if (task == null || bytes == 0) return;
+
+        OnProgressListener listener = task.mProgressListener;
+        if (listener != null) listener.onProgress(bytes);
+    }
+
+    private synchronized void attach(Call call) {
+        if (mCancelled) {
+            call.cancel();
+        } else {
+            mCalls.add(call);
+        }
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (isDone()) return;
+            mThread = Thread.currentThread();
+        }
+
+        CURRENT.set(this);
+        try {
+            complete(mCallable.call(), null);
+        } catch (Throwable e) {
+            complete(null, e);
+        } finally {
+            CURRENT.remove();
+            synchronized (this) {
+                mThread = null;
+                // do not leave the interrupt of a cancelled task to the next task of the thread
+                if (mCancelled) Thread.interrupted();
+            }
+        }
+    }
+
+    private void complete(T result, Throwable error) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (isDone()) return;
+
+            mResult = result;
+            mError = error;
+            mDone.countDown();
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            // calls of a completed task are no longer needed
+            mCalls.clear();
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Cancel the task and the HTTP calls it has in flight. Callbacks are not made for a
+     * cancelled task, a task composed with {@link #then(Function)} cancels its source as well.
+     *
+     * @param mayInterruptIfRunning whether the thread running the task is interrupted too
+     * @return false if the task had already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Call> calls;
+        ApiTask<?> parent;
+        synchronized (this) {
+            if (isDone()) return false;
+
+            mCancelled = true;
+            calls = new ArrayList<>(mCalls);
+            parent = mParent;
+            if (mayInterruptIfRunning && mThread != null) mThread.interrupt();
+        }
+
+        for (Call call : calls) {
+            call.cancel();
+        }
+        if (parent != null) parent.cancel(mayInterruptIfRunning);
+
+        complete(null, new CancellationException("Task cancelled"));
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) throw new TimeoutException();
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (mCancelled) throw new CancellationException("Task cancelled");
+        if (mError != null) throw new ExecutionException(mError);
+        return mResult;
+    }
+
+    /**
+     * Run the listener once the task has completed, right away if it already has
+     */
+    private void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Get the result of the task on the main thread
+     *
+     * @param callback to be called once the task has completed
+     * @return this task
+     */
+    public ApiTask<T> addCallback(@NonNull Callback<T> callback) {
+        return addCallback(callback, getMainThreadExecutor());
+    }
+
+    /**
+     * Get the result of the task
+     *
+     * @param callback to be called once the task has completed
+     * @param executor to make the callback on
+     * @return this task
+     */
+    public ApiTask<T> addCallback(@NonNull final Callback<T> callback,
+                                  @NonNull final Executor executor) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // also checked on the callback thread, the task may have been
+                        // cancelled in between
+                        if (mCancelled) return;
+
+                        if (mError == null) {
+                            callback.onSuccess(mResult);
+                        } else if (mError instanceof Exception) {
+                            callback.onFailure((Exception) mError);
+                        } else {
+                            callback.onFailure(new ExecutionException(mError));
+                        }
+                    }
+                });
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Run another operation with the result of this task, on the same executor. Failure or
+     * cancellation of this task is passed on to the returned task.
+     *
+     * @param function the operation to run with the result
+     * @return ApiTask of the operation
+     */
+    public <R> ApiTask<R> then(@NonNull final Function<? super T, R> function) {
+        final ApiTask<R> next = new ApiTask<>(new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                return function.apply(mResult);
+            }
+        }, mExecutor);
+        synchronized (next) {
+            next.mParent = this;
+        }
+
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    next.cancel(false);
+                } else if (mError != null) {
+                    next.complete(null, mError);
+                } else {
+                    mExecutor.execute(next);
+                }
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Receives the result of a task
+     *
+     * @param <T> type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Task completed successfully
+         *
+         * @param result of the operation
+         */
+        void onSuccess(T result);
+
+        /**
+         * Task failed
+         *
+         * @param e exception details, mostly RequestFailException
+         */
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Receives the bytes moved by a task, called on the thread that moved them
+     */
+    public interface OnProgressListener {
+        /**
+         * Bytes moved forward
+         *
+         * @param bytes moved since the last call, negative when moved bytes are discarded
+         */
+        void onProgress(long bytes);
+    }
+
+    /**
+     * Operation run with the result of a task
+     *
+     * @param <T> type of the input
+     * @param <R> type of the result
+     */
+    public interface Function<T, R> {
+        R apply(T input) throws Exception;
+    }
+
+}
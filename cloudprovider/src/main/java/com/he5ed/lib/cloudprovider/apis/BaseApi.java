@@ -16,16 +16,44 @@
 
 package com.he5ed.lib.cloudprovider.apis;
 
+import android.accounts.Account;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
+import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
 import com.squareup.okhttp.Callback;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okio.Okio;
 
 /**
  * Base class for implementing cloud API functionality. All cloud API that
@@ -79,6 +107,21 @@ import java.util.List;
  */
 public abstract class BaseApi {
 
+    /**
+     * Listing extra for the preview image url of the files, see {@link CFile#getThumbnailUrl()}
+     */
+    public static final int EXTRA_THUMBNAIL_URL = 1;
+
+    /**
+     * Listing extra for the content hash of the files, see {@link CFile#getHash()}
+     */
+    public static final int EXTRA_HASH = 1 << 1;
+
+    private static final Map<String, Object> sSyncLocks = new HashMap<>();
+
+    private volatile Executor mAsyncExecutor;
+    private volatile int mListingExtras;
+
     /**
      * Prepare API
      *
@@ -86,6 +129,29 @@ public abstract class BaseApi {
      */
     public abstract void prepareApi(OnPrepareListener prepareListener);
 
+    /**
+     * Get the account the API is built for
+     * <p>
+     * The default implementation returns null, cloud API should override this method.
+     *
+     * @return Account
+     */
+    public Account getAccount() {
+        return null;
+    }
+
+    /**
+     * Get the context the API is built with, to reach the metadata cache and index of the
+     * account
+     * <p>
+     * The default implementation returns null, cloud API should override this method.
+     *
+     * @return Context
+     */
+    protected Context getContext() {
+        return null;
+    }
+
     /**
      * Logout user and revoke all access token
      */
@@ -116,6 +182,117 @@ public abstract class BaseApi {
      */
     public abstract List<Object> exploreFolder(@NonNull CFolder folder, int offset) throws RequestFailException;
 
+    /**
+     * Get folder items page by page. Nothing is requested until {@link PageCursor#next()} is
+     * called, each call fetch a single page from the cloud server.
+     * <p>
+     * The default implementation returns the whole folder as a single page, cloud API that
+     * support pagination should override this method.
+     *
+     * @param folder to explore
+     * @return PageCursor over the pages of CFile and CFolder
+     */
+    public PageCursor exploreFolderPages(@NonNull final CFolder folder) {
+        return exploreFolderAsPage(folder);
+    }
+
+    /**
+     * Get folder items page by page like {@link #exploreFolderPages(CFolder)}, for browsing. A
+     * listing in the metadata cache is returned as a single page without waiting for any
+     * request. A listing read to the end is put in the metadata cache and index, so that it is
+     * served from there when the folder is explored again.
+     *
+     * @param folder to explore
+     * @return PageCursor over the pages of CFile and CFolder
+     */
+    public PageCursor exploreFolderPagesCached(@NonNull final CFolder folder) {
+        final Context context = getContext();
+        final Account account = getAccount();
+        if (context == null || account == null) return exploreFolderPages(folder);
+
+        final MetadataCache cache = CloudProvider.getInstance(context)
+                .getMetadataCache(account.name);
+        String key = MetadataCache.listKey(folder.getId());
+        if (cache.contains(key)) return exploreFolderAsPage(folder);
+
+        final PageCursor pages = exploreFolderPages(folder);
+        final MetadataCache.Load load = cache.startLoad(key);
+        return new PageCursor() {
+
+            private final List<Object> mItems = new ArrayList<>();
+
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                ItemPage page = pages.next();
+                mItems.addAll(page.items);
+                if (!page.hasMore()) {
+                    // same as the listing cached by exploreFolder
+                    List<Object> list = mItems.isEmpty() ? null : mItems;
+                    cache.putLoaded(load, list,
+                            MetadataIndex.folderItemsStore(context, account.name, folder));
+                    cache.endLoad(load);
+                }
+                return page;
+            }
+
+            @Override
+            public PageCursor prefetch(@Nullable ExecutorService executor) {
+                pages.prefetch(executor);
+                return this;
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                pages.close();
+                cache.endLoad(load);
+            }
+        };
+    }
+
+    /**
+     * Get the whole folder from {@link #exploreFolder(CFolder, int)} as a single page
+     *
+     * @param folder to explore
+     * @return PageCursor over a single page
+     */
+    private PageCursor exploreFolderAsPage(final CFolder folder) {
+        return new PageCursor() {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                ItemPage page = new ItemPage();
+                List<Object> items = exploreFolder(folder, 0);
+                if (items != null) page.items.addAll(items);
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Request extra information of the files with the folder listing, in the same response.
+     * Cloud API that cannot return an extra with the listing ignore it.
+     *
+     * @param extras combination of {@link #EXTRA_THUMBNAIL_URL} and {@link #EXTRA_HASH}, 0 for
+     *               none
+     */
+    public void setListingExtras(int extras) {
+        mListingExtras = extras;
+    }
+
+    public int getListingExtras() {
+        return mListingExtras;
+    }
+
+    /**
+     * Whether the extra is requested with the folder listing
+     *
+     * @param extra one of the listing extras
+     * @return boolean
+     */
+    protected boolean hasListingExtra(int extra) {
+        return (mListingExtras & extra) != 0;
+    }
+
     /**
      * Create folder
      *
@@ -160,6 +337,62 @@ public abstract class BaseApi {
      */
     public abstract CFile getFileInfo(@NonNull String fileId) throws RequestFailException;
 
+    /**
+     * Get the information of many files, each file is passed to the listener as soon as it
+     * arrives. The listener is called from background threads, possibly at the same time.
+     * <p>
+     * The default implementation requests the files one by one, up to
+     * {@link CloudProvider#BATCH_CONCURRENCY} at a time. Cloud API with a batch endpoint should
+     * override this method.
+     *
+     * @param fileIds to retrieve the file details, or paths where the cloud service accepts them
+     *                in place of ids
+     * @param listener to receive the files
+     * @throws RequestFailException if the batch is interrupted
+     */
+    public void getFilesInfo(@NonNull Collection<String> fileIds,
+                             @NonNull final OnInfoListener<CFile> listener)
+            throws RequestFailException {
+        runConcurrently(fileIds, CloudProvider.BATCH_CONCURRENCY, new Action<String>() {
+            @Override
+            public void run(String fileId) {
+                try {
+                    listener.onInfo(fileId, getFileInfo(fileId));
+                } catch (RequestFailException e) {
+                    listener.onInfoFail(fileId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the information of many folders, each folder is passed to the listener as soon as it
+     * arrives. The listener is called from background threads, possibly at the same time.
+     * <p>
+     * The default implementation requests the folders one by one, up to
+     * {@link CloudProvider#BATCH_CONCURRENCY} at a time. Cloud API with a batch endpoint should
+     * override this method.
+     *
+     * @param folderIds to retrieve the folder details, or paths where the cloud service accepts
+     *                  them in place of ids
+     * @param listener to receive the folders
+     * @throws RequestFailException if the batch is interrupted
+     */
+    public void getFoldersInfo(@NonNull Collection<String> folderIds,
+                               @NonNull final OnInfoListener<CFolder> listener)
+            throws RequestFailException {
+        runConcurrently(folderIds, CloudProvider.BATCH_CONCURRENCY, new Action<String>() {
+            @Override
+            public void run(String folderId) {
+                try {
+                    listener.onInfo(folderId, getFolderInfo(folderId));
+                } catch (RequestFailException e) {
+                    listener.onInfoFail(folderId, e);
+                }
+            }
+        });
+    }
+
     /**
      * Upload file
      * If file with the same filename already exist an exception will be thrown
@@ -180,6 +413,86 @@ public abstract class BaseApi {
      */
     public abstract CFile updateFile(@NonNull CFile file, File content) throws RequestFailException;
 
+    /**
+     * Upload the content of a stream, e.g. from a content Uri opened by a ContentResolver
+     * If file with the same filename already exist an exception will be thrown
+     * <p>
+     * The default implementation copies the stream into the temp folder and upload the copy,
+     * cloud API that can upload a stream directly should override this method.
+     *
+     * @param content to upload, the stream is not closed
+     * @param length of the content in bytes, -1 if unknown
+     * @param name of the new file
+     * @param parent folder that the uploaded file will reside, use null for root
+     * @return CFile
+     * @throws RequestFailException
+     */
+    public CFile uploadFile(@NonNull InputStream content, long length, @NonNull String name,
+                            @Nullable CFolder parent) throws RequestFailException {
+        File file = stageContent(content, name);
+        try {
+            return uploadFile(file, parent);
+        } finally {
+            deleteStagedContent(file);
+        }
+    }
+
+    /**
+     * Update file with the content of a stream
+     * <p>
+     * The default implementation copies the stream into the temp folder and upload the copy,
+     * cloud API that can upload a stream directly should override this method.
+     *
+     * @param file to be updated
+     * @param content to upload, the stream is not closed
+     * @param length of the content in bytes, -1 if unknown
+     * @return CFile
+     * @throws RequestFailException
+     */
+    public CFile updateFile(@NonNull CFile file, @NonNull InputStream content, long length)
+            throws RequestFailException {
+        File staged = stageContent(content, file.getName());
+        try {
+            return updateFile(file, staged);
+        } finally {
+            deleteStagedContent(staged);
+        }
+    }
+
+    /**
+     * Copy the content of a stream into the temp folder, for upload that need a file
+     *
+     * @param content to copy, the stream is not closed
+     * @param name of the copy
+     * @return File in a folder of its own
+     * @throws RequestFailException
+     */
+    protected File stageContent(@NonNull InputStream content, @NonNull String name)
+            throws RequestFailException {
+        // the copy keeps the name as it is uploaded with its filename
+        File dir = new File(CloudProvider.CACHE_DIR, "upload-" + UUID.randomUUID().toString());
+        File file = new File(dir, name);
+        try {
+            if (!dir.mkdirs()) throw new IOException("Unable to create " + dir.getPath());
+            FilesUtils.writeToFile(Okio.buffer(Okio.source(content)), file);
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteStagedContent(file);
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the copy made by {@link #stageContent(InputStream, String)}
+     *
+     * @param file copy to delete
+     */
+    protected void deleteStagedContent(@NonNull File file) {
+        file.delete();
+        file.getParentFile().delete();
+    }
+
     /**
      * Rename file
      *
@@ -211,6 +524,34 @@ public abstract class BaseApi {
      */
     public abstract File downloadFile(@NonNull CFile file, @Nullable String filename) throws RequestFailException;
 
+    /**
+     * Delete the partial content kept by a failed or stopped
+     * {@link #downloadFile(CFile, String)}, e.g. once the download is abandoned. The next
+     * download of the file then starts over.
+     * <p>
+     * The default implementation keeps no partial content.
+     *
+     * @param file that was being downloaded
+     * @param filename given to the download, null for original filename
+     */
+    public void discardDownload(@NonNull CFile file, @Nullable String filename) {
+    }
+
+    /**
+     * Open the file content as a stream read directly from the network, nothing is written
+     * to the temp folder. Caller must close the stream to release the connection.
+     * <p>
+     * The default implementation is not supported, cloud API that can serve the file content
+     * directly should override this method.
+     *
+     * @param file to be read
+     * @return InputStream of the file content
+     * @throws RequestFailException
+     */
+    public InputStream openStream(@NonNull CFile file) throws RequestFailException {
+        throw new RequestFailException("Streaming download not supported");
+    }
+
     /**
      * Delete file
      *
@@ -219,6 +560,76 @@ public abstract class BaseApi {
      */
     public abstract void deleteFile(@NonNull CFile file) throws RequestFailException;
 
+    /**
+     * Delete many files and folders, the result of each item is passed to the listener as soon
+     * as it is known. The listener is called from background threads, possibly at the same time.
+     * <p>
+     * The default implementation deletes the items one by one, up to
+     * {@link CloudProvider#BATCH_CONCURRENCY} at a time. Cloud API with a batch endpoint should
+     * override this method.
+     *
+     * @param items CFile or CFolder to be deleted
+     * @param listener to receive the result of each item
+     * @throws RequestFailException if the batch is interrupted or failed as a whole
+     */
+    public void deleteItems(@NonNull Collection<?> items, @NonNull final OnBatchListener listener)
+            throws RequestFailException {
+        runConcurrently(items, CloudProvider.BATCH_CONCURRENCY, new Action<Object>() {
+            @Override
+            public void run(Object item) {
+                try {
+                    if (item instanceof CFile) {
+                        deleteFile((CFile) item);
+                    } else if (item instanceof CFolder) {
+                        deleteFolder((CFolder) item);
+                    } else {
+                        throw new RequestFailException("Unknown item type");
+                    }
+                    listener.onItemDone(item, null);
+                } catch (RequestFailException e) {
+                    listener.onItemFail(item, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Move many files and folders into a folder, the result of each item is passed to the
+     * listener as soon as it is known. The listener is called from background threads, possibly
+     * at the same time.
+     * <p>
+     * The default implementation moves the items one by one, up to
+     * {@link CloudProvider#BATCH_CONCURRENCY} at a time. Cloud API with a batch endpoint should
+     * override this method.
+     *
+     * @param items CFile or CFolder to be moved
+     * @param parent folder to move the items into, null for the root folder
+     * @param listener to receive the moved item of each item
+     * @throws RequestFailException if the batch is interrupted or failed as a whole
+     */
+    public void moveItems(@NonNull Collection<?> items, @Nullable final CFolder parent,
+                          @NonNull final OnBatchListener listener)
+            throws RequestFailException {
+        runConcurrently(items, CloudProvider.BATCH_CONCURRENCY, new Action<Object>() {
+            @Override
+            public void run(Object item) {
+                try {
+                    Object moved;
+                    if (item instanceof CFile) {
+                        moved = moveFile((CFile) item, parent);
+                    } else if (item instanceof CFolder) {
+                        moved = moveFolder((CFolder) item, parent);
+                    } else {
+                        throw new RequestFailException("Unknown item type");
+                    }
+                    listener.onItemDone(item, moved);
+                } catch (RequestFailException e) {
+                    listener.onItemFail(item, e);
+                }
+            }
+        });
+    }
+
     /**
      * Search the cloud for files
      *
@@ -259,6 +670,665 @@ public abstract class BaseApi {
      */
     public abstract File getThumbnail(@NonNull CFile file) throws RequestFailException;
 
+    /**
+     * Get decoded file thumbnail
+     * <p>
+     * The default implementation decodes the file from {@link #getThumbnail(CFile)} every time,
+     * cloud API should override this method to serve the thumbnail from memory.
+     *
+     * @param file to retrieve the thumbnail
+     * @return Bitmap, null if not available
+     * @throws RequestFailException
+     */
+    public Bitmap getThumbnailBitmap(@NonNull CFile file) throws RequestFailException {
+        File thumbnail = getThumbnail(file);
+        return thumbnail != null ? BitmapFactory.decodeFile(thumbnail.getPath()) : null;
+    }
+
+    /**
+     * Get the thumbnails of several files, e.g. all the images of a folder
+     * <p>
+     * The default implementation requests the thumbnails concurrently, up to
+     * {@link CloudProvider#THUMBNAIL_BATCH_CONCURRENCY} at a time. Cloud API with a batch
+     * endpoint should override this method.
+     *
+     * @param files to retrieve the thumbnails
+     * @return Map of file id to thumbnail File, files without thumbnail are left out
+     * @throws RequestFailException if none of the thumbnails could be retrieved
+     */
+    public Map<String, File> getThumbnails(@NonNull List<CFile> files) throws RequestFailException {
+        final Map<String, File> thumbnails = new ConcurrentHashMap<>();
+        final AtomicReference<RequestFailException> failure = new AtomicReference<>();
+        runConcurrently(files, CloudProvider.THUMBNAIL_BATCH_CONCURRENCY, new Action<CFile>() {
+            @Override
+            public void run(CFile file) {
+                try {
+                    File thumbnail = getThumbnail(file);
+                    if (thumbnail != null) thumbnails.put(file.getId(), thumbnail);
+                } catch (RequestFailException e) {
+                    // a single thumbnail does not fail the batch
+                    e.printStackTrace();
+                    failure.compareAndSet(null, e);
+                }
+            }
+        });
+
+        if (thumbnails.isEmpty() && failure.get() != null) throw failure.get();
+        return new HashMap<>(thumbnails);
+    }
+
+    /**
+     * Run the action for every item, up to the given number at a time. The calling thread takes
+     * part and helpers run on the async executor, cancelling the running task stops them all.
+     *
+     * @param items to run the action for
+     * @param concurrency maximum number of items handled at the same time
+     * @param action to run for each item, expected to handle its own RequestFailException
+     * @throws RequestFailException if interrupted or the action failed unexpectedly
+     */
+    private <T> void runConcurrently(Collection<? extends T> items, int concurrency,
+                                     final Action<T> action)
+            throws RequestFailException {
+        final Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+        final CountDownLatch done = new CountDownLatch(items.size());
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                T item;
+                while ((item = queue.poll()) != null) {
+                    try {
+                        action.run(item);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+                return null;
+            }
+        };
+
+        List<ApiTask<Void>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(concurrency, items.size()); i++) {
+            helpers.add(ApiTask.submit(getAsyncExecutor(), ApiTask.inherit(worker)));
+        }
+
+        try {
+            worker.call();
+            // wait for the items still running rather than for the helpers, a helper that has
+            // not started yet would find nothing left to do
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestFailException(e.getMessage(), e);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage(), e);
+        } finally {
+            // release the helpers not started yet and stop the others if the batch is abandoned
+            for (ApiTask<Void> helper : helpers) {
+                helper.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Get the items added, modified or deleted anywhere in the cloud storage since the cursor
+     * was obtained. Use null cursor to obtain the latest cursor, subsequent calls with the
+     * returned cursor only return what changed in between.
+     * <p>
+     * The default implementation is not supported, cloud API with a change feed should
+     * override this method.
+     *
+     * @param cursor from the previous ChangeSet, null to start from now
+     * @return ChangeSet
+     * @throws RequestFailException
+     */
+    public ChangeSet getChanges(@Nullable String cursor) throws RequestFailException {
+        throw new RequestFailException("Change feed not supported");
+    }
+
+    /**
+     * Get the items changed since the previous sync of this account. The cursor is persisted
+     * with the account so that only the changes are requested every time. The first sync only
+     * records the starting point and returns an empty ChangeSet.
+     * <p>
+     * The changes are applied to the metadata index and the metadata cache of the account is
+     * cleared, cloud API need to implement {@link #getChanges(String)}, {@link #getAccount()}
+     * and {@link #getContext()}.
+     *
+     * @return ChangeSet
+     * @throws RequestFailException
+     */
+    public ChangeSet syncChanges() throws RequestFailException {
+        Context context = getContext();
+        Account account = getAccount();
+        if (context == null || account == null)
+            throw new RequestFailException("Change feed not supported");
+
+        CloudProvider cloudProvider = CloudProvider.getInstance(context);
+        // cursor is read and written back, concurrent syncs would apply the same changes
+        synchronized (getSyncLock(account.name)) {
+            String cursor = cloudProvider.getUserData(account, Authenticator.KEY_CHANGE_CURSOR);
+            ChangeSet changes = getChanges(cursor);
+            // listings loading meanwhile must not be indexed over the changes
+            if (changes.isReset() || !changes.isEmpty())
+                cloudProvider.getMetadataCache(account.name).clear();
+            MetadataIndex.applyChanges(context, account.name, changes);
+            // expired cursor start over from now after the full sync
+            cloudProvider.setUserData(account, Authenticator.KEY_CHANGE_CURSOR,
+                    changes.isReset() ? null : changes.getCursor());
+            return changes;
+        }
+    }
+
+    /**
+     * Get the lock shared by all the cloud API instances of the account to sync changes
+     *
+     * @param accountName of the account
+     * @return lock object
+     */
+    private static Object getSyncLock(String accountName) {
+        synchronized (sSyncLocks) {
+            Object lock = sSyncLocks.get(accountName);
+            if (lock == null) {
+                lock = new Object();
+                sSyncLocks.put(accountName, lock);
+            }
+            return lock;
+        }
+    }
+
+    /**
+     * Set the executor that runs the background operations of this API
+     *
+     * @param executor to run the operations on, null for the shared default executor
+     */
+    public void setAsyncExecutor(@Nullable Executor executor) {
+        mAsyncExecutor = executor;
+    }
+
+    /**
+     * Run an operation of this API in the background. Cancelling the returned task cancels the
+     * HTTP calls made by the operation.
+     *
+     * @param callable the operation
+     * @return ApiTask
+     */
+    public <T> ApiTask<T> async(@NonNull Callable<T> callable) {
+        return ApiTask.submit(getAsyncExecutor(), callable);
+    }
+
+    private Executor getAsyncExecutor() {
+        Executor executor = mAsyncExecutor;
+        return executor != null ? executor : ApiTask.getDefaultExecutor();
+    }
+
+    /**
+     * Get folder information in the background, see {@link #getFolderInfo(String)}
+     *
+     * @param folderId to retrieve the folder details
+     * @return ApiTask of CFolder
+     */
+    public ApiTask<CFolder> getFolderInfoAsync(@NonNull final String folderId) {
+        return async(new Callable<CFolder>() {
+            @Override
+            public CFolder call() throws Exception {
+                return getFolderInfo(folderId);
+            }
+        });
+    }
+
+    /**
+     * Get folder items in the background, see {@link #exploreFolder(CFolder, int)}
+     *
+     * @param folder to operate on
+     * @param offset of the first item
+     * @return ApiTask of List<Object>
+     */
+    public ApiTask<List<Object>> exploreFolderAsync(@NonNull final CFolder folder,
+                                                    final int offset) {
+        return async(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws Exception {
+                return exploreFolder(folder, offset);
+            }
+        });
+    }
+
+    /**
+     * Create folder in the background, see {@link #createFolder(String, CFolder)}
+     *
+     * @param name of the item
+     * @param parent folder, use null for root folder
+     * @return ApiTask of CFolder
+     */
+    public ApiTask<CFolder> createFolderAsync(@NonNull final String name,
+                                              @Nullable final CFolder parent) {
+        return async(new Callable<CFolder>() {
+            @Override
+            public CFolder call() throws Exception {
+                return createFolder(name, parent);
+            }
+        });
+    }
+
+    /**
+     * Rename folder in the background, see {@link #renameFolder(CFolder, String)}
+     *
+     * @param folder to operate on
+     * @param name of the item
+     * @return ApiTask of CFolder
+     */
+    public ApiTask<CFolder> renameFolderAsync(@NonNull final CFolder folder, final String name) {
+        return async(new Callable<CFolder>() {
+            @Override
+            public CFolder call() throws Exception {
+                return renameFolder(folder, name);
+            }
+        });
+    }
+
+    /**
+     * Move folder in the background, see {@link #moveFolder(CFolder, CFolder)}
+     *
+     * @param folder to operate on
+     * @param parent to move into, use null for root folder
+     * @return ApiTask of CFolder
+     */
+    public ApiTask<CFolder> moveFolderAsync(@NonNull final CFolder folder,
+                                            @Nullable final CFolder parent) {
+        return async(new Callable<CFolder>() {
+            @Override
+            public CFolder call() throws Exception {
+                return moveFolder(folder, parent);
+            }
+        });
+    }
+
+    /**
+     * Delete folder in the background, see {@link #deleteFolder(CFolder)}
+     *
+     * @param folder to operate on
+     * @return ApiTask of Void
+     */
+    public ApiTask<Void> deleteFolderAsync(@NonNull final CFolder folder) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                deleteFolder(folder);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get file information in the background, see {@link #getFileInfo(String)}
+     *
+     * @param fileId to retrieve the file details
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> getFileInfoAsync(@NonNull final String fileId) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return getFileInfo(fileId);
+            }
+        });
+    }
+
+    /**
+     * Get the information of many files in the background, see
+     * {@link #getFilesInfo(Collection, OnInfoListener)}
+     *
+     * @param fileIds to retrieve the file details
+     * @param listener to receive the files
+     * @return ApiTask completed once all the files have been passed to the listener
+     */
+    public ApiTask<Void> getFilesInfoAsync(@NonNull final Collection<String> fileIds,
+                                           @NonNull final OnInfoListener<CFile> listener) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                getFilesInfo(fileIds, listener);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Get the information of many folders in the background, see
+     * {@link #getFoldersInfo(Collection, OnInfoListener)}
+     *
+     * @param folderIds to retrieve the folder details
+     * @param listener to receive the folders
+     * @return ApiTask completed once all the folders have been passed to the listener
+     */
+    public ApiTask<Void> getFoldersInfoAsync(@NonNull final Collection<String> folderIds,
+                                             @NonNull final OnInfoListener<CFolder> listener) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                getFoldersInfo(folderIds, listener);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Upload file in the background, see {@link #uploadFile(File, CFolder)}
+     *
+     * @param file to operate on
+     * @param parent folder, use null for root folder
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> uploadFileAsync(@NonNull final File file,
+                                          @Nullable final CFolder parent) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return uploadFile(file, parent);
+            }
+        });
+    }
+
+    /**
+     * Upload content in the background, see {@link #uploadFile(InputStream, long, String, CFolder)}
+     *
+     * @param content of the file
+     * @param length of the content in bytes, -1 if unknown
+     * @param name of the item
+     * @param parent folder, use null for root folder
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> uploadFileAsync(@NonNull final InputStream content, final long length,
+                                          @NonNull final String name,
+                                          @Nullable final CFolder parent) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return uploadFile(content, length, name, parent);
+            }
+        });
+    }
+
+    /**
+     * Update file content in the background, see {@link #updateFile(CFile, File)}
+     *
+     * @param file to operate on
+     * @param content of the file
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> updateFileAsync(@NonNull final CFile file, final File content) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return updateFile(file, content);
+            }
+        });
+    }
+
+    /**
+     * Update file content in the background, see {@link #updateFile(CFile, InputStream, long)}
+     *
+     * @param file to operate on
+     * @param content of the file
+     * @param length of the content in bytes, -1 if unknown
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> updateFileAsync(@NonNull final CFile file,
+                                          @NonNull final InputStream content, final long length) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return updateFile(file, content, length);
+            }
+        });
+    }
+
+    /**
+     * Rename file in the background, see {@link #renameFile(CFile, String)}
+     *
+     * @param file to operate on
+     * @param name of the item
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> renameFileAsync(@NonNull final CFile file, final String name) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return renameFile(file, name);
+            }
+        });
+    }
+
+    /**
+     * Move file in the background, see {@link #moveFile(CFile, CFolder)}
+     *
+     * @param file to operate on
+     * @param folder to move into, use null for root folder
+     * @return ApiTask of CFile
+     */
+    public ApiTask<CFile> moveFileAsync(@NonNull final CFile file, @Nullable final CFolder folder) {
+        return async(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return moveFile(file, folder);
+            }
+        });
+    }
+
+    /**
+     * Download file in the background, see {@link #downloadFile(CFile, String)}
+     *
+     * @param file to operate on
+     * @param filename of the downloaded file, use null for the cloud file name
+     * @return ApiTask of File
+     */
+    public ApiTask<File> downloadFileAsync(@NonNull final CFile file,
+                                           @Nullable final String filename) {
+        return async(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return downloadFile(file, filename);
+            }
+        });
+    }
+
+    /**
+     * Open the content of a file in the background, see {@link #openStream(CFile)}.
+     * Cancelling the task after it has completed does not close the stream.
+     *
+     * @param file to operate on
+     * @return ApiTask of InputStream
+     */
+    public ApiTask<InputStream> openStreamAsync(@NonNull final CFile file) {
+        return async(new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return openStream(file);
+            }
+        });
+    }
+
+    /**
+     * Delete file in the background, see {@link #deleteFile(CFile)}
+     *
+     * @param file to operate on
+     * @return ApiTask of Void
+     */
+    public ApiTask<Void> deleteFileAsync(@NonNull final CFile file) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                deleteFile(file);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Delete many files and folders in the background, see
+     * {@link #deleteItems(Collection, OnBatchListener)}
+     *
+     * @param items CFile or CFolder to be deleted
+     * @param listener to receive the result of each item
+     * @return ApiTask completed once all the items have been passed to the listener
+     */
+    public ApiTask<Void> deleteItemsAsync(@NonNull final Collection<?> items,
+                                          @NonNull final OnBatchListener listener) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                deleteItems(items, listener);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Move many files and folders in the background, see
+     * {@link #moveItems(Collection, CFolder, OnBatchListener)}
+     *
+     * @param items CFile or CFolder to be moved
+     * @param parent folder to move the items into, null for the root folder
+     * @param listener to receive the moved item of each item
+     * @return ApiTask completed once all the items have been passed to the listener
+     */
+    public ApiTask<Void> moveItemsAsync(@NonNull final Collection<?> items,
+                                        @Nullable final CFolder parent,
+                                        @NonNull final OnBatchListener listener) {
+        return async(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                moveItems(items, parent, listener);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Search files in the background, see {@link #searchFile(String, CFolder)}
+     *
+     * @param keyword to search for
+     * @param folder to search in, use null for all
+     * @return ApiTask of List<CFile>
+     */
+    public ApiTask<List<CFile>> searchFileAsync(@NonNull final String keyword,
+                                                final CFolder folder) {
+        return async(new Callable<List<CFile>>() {
+            @Override
+            public List<CFile> call() throws Exception {
+                return searchFile(keyword, folder);
+            }
+        });
+    }
+
+    /**
+     * Search folders in the background, see {@link #searchFolder(String, CFolder)}
+     *
+     * @param keyword to search for
+     * @param folder to search in, use null for all
+     * @return ApiTask of List<CFolder>
+     */
+    public ApiTask<List<CFolder>> searchFolderAsync(@NonNull final String keyword,
+                                                    final CFolder folder) {
+        return async(new Callable<List<CFolder>>() {
+            @Override
+            public List<CFolder> call() throws Exception {
+                return searchFolder(keyword, folder);
+            }
+        });
+    }
+
+    /**
+     * Search files and folders in the background, see {@link #search(String, CFolder)}
+     *
+     * @param keyword to search for
+     * @param folder to search in, use null for all
+     * @return ApiTask of List<Object>
+     */
+    public ApiTask<List<Object>> searchAsync(@NonNull final String keyword, final CFolder folder) {
+        return async(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws Exception {
+                return search(keyword, folder);
+            }
+        });
+    }
+
+    /**
+     * Get file thumbnail in the background, see {@link #getThumbnail(CFile)}
+     *
+     * @param file to operate on
+     * @return ApiTask of File
+     */
+    public ApiTask<File> getThumbnailAsync(@NonNull final CFile file) {
+        return async(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return getThumbnail(file);
+            }
+        });
+    }
+
+    /**
+     * Get decoded file thumbnail in the background, see {@link #getThumbnailBitmap(CFile)}
+     *
+     * @param file to operate on
+     * @return ApiTask of Bitmap
+     */
+    public ApiTask<Bitmap> getThumbnailBitmapAsync(@NonNull final CFile file) {
+        return async(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return getThumbnailBitmap(file);
+            }
+        });
+    }
+
+    /**
+     * Get the thumbnails of several files in the background, see {@link #getThumbnails(List)}
+     *
+     * @param files to retrieve the thumbnails
+     * @return ApiTask of Map of file id to thumbnail File
+     */
+    public ApiTask<Map<String, File>> getThumbnailsAsync(@NonNull final List<CFile> files) {
+        return async(new Callable<Map<String, File>>() {
+            @Override
+            public Map<String, File> call() throws Exception {
+                return getThumbnails(files);
+            }
+        });
+    }
+
+    /**
+     * Get changes in the background, see {@link #getChanges(String)}
+     *
+     * @param cursor from the previous ChangeSet, null to start from now
+     * @return ApiTask of ChangeSet
+     */
+    public ApiTask<ChangeSet> getChangesAsync(@Nullable final String cursor) {
+        return async(new Callable<ChangeSet>() {
+            @Override
+            public ChangeSet call() throws Exception {
+                return getChanges(cursor);
+            }
+        });
+    }
+
+    /**
+     * Sync changes in the background, see {@link #syncChanges()}
+     *
+     * @return ApiTask of ChangeSet
+     */
+    public ApiTask<ChangeSet> syncChangesAsync() {
+        return async(new Callable<ChangeSet>() {
+            @Override
+            public ChangeSet call() throws Exception {
+                return syncChanges();
+            }
+        });
+    }
+
     /**
      * Listen to the API preparation event
      */
@@ -275,4 +1345,55 @@ public abstract class BaseApi {
          */
         void onPrepareFail(Exception e);
     }
+
+    /**
+     * Listen to the items of a batch lookup
+     *
+     * @param <T> CFile or CFolder
+     */
+    public interface OnInfoListener<T> {
+        /**
+         * Item has been retrieved
+         *
+         * @param id of the item as requested
+         * @param item details
+         */
+        void onInfo(String id, T item);
+
+        /**
+         * Failed to retrieve the item
+         *
+         * @param id of the item as requested
+         * @param e exception details, mostly RequestFailException
+         */
+        void onInfoFail(String id, Exception e);
+    }
+
+    /**
+     * Listen to the items of a batch operation
+     */
+    public interface OnBatchListener {
+        /**
+         * Operation on the item succeeded
+         *
+         * @param item CFile or CFolder as given to the batch
+         * @param result CFile or CFolder after the operation, null when deleted
+         */
+        void onItemDone(Object item, @Nullable Object result);
+
+        /**
+         * Operation on the item failed, the other items of the batch are not affected
+         *
+         * @param item CFile or CFolder as given to the batch
+         * @param e exception details, mostly RequestFailException
+         */
+        void onItemFail(Object item, Exception e);
+    }
+
+    /**
+     * Action run for each item of a batch
+     */
+    private interface Action<T> {
+        void run(T item);
+    }
 }
@@ -24,27 +24,35 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
 import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
 import com.he5ed.lib.cloudprovider.models.User;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
 import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.he5ed.lib.cloudprovider.utils.JsonUtils;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
 import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.FormEncodingBuilder;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.MultipartBuilder;
-import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -54,12 +62,19 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import okio.BufferedSink;
 
@@ -95,6 +110,18 @@ public class BoxApi extends BaseApi {
     public static final int ICON_RESOURCE = R.drawable.ic_box_color_24dp;
     public static final String TAG = "BoxApi";
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    public static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    // number of items per folder listing page
+    private static final int PAGE_LIMIT = 500;
+    // Box only accept upload session for file of at least 20MB
+    private static final long MIN_SESSION_SIZE = 20 * 1000 * 1000;
+    // number of parts per upload session parts page
+    private static final int PARTS_LIMIT = 1000;
+    // fields of the listing items read into CFile and CFolder
+    private static final String ITEM_FIELDS = "type,id,name,etag,size,created_at,modified_at";
+    // representation of the thumbnail url listing extra
+    private static final String THUMBNAIL_REP_HINTS = "[jpg?dimensions=320x320]";
 
     /**
      * Build authorization url base on type of cloud service
@@ -216,6 +243,8 @@ public class BoxApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("created_at"));
             if (jsonObject.has("modified_at"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("modified_at"));
+            if (!jsonObject.isNull("etag"))
+                map.put(CFolder.ETAG, jsonObject.getString("etag"));
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -240,6 +269,25 @@ public class BoxApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("created_at"));
             if (jsonObject.has("modified_at"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("modified_at"));
+            if (!jsonObject.isNull("etag"))
+                map.put(CFolder.ETAG, jsonObject.getString("etag"));
+            if (jsonObject.has("size"))
+                map.put(CFile.SIZE, jsonObject.getLong("size"));
+            // listing extras
+            if (jsonObject.has("sha1") && !jsonObject.isNull("sha1"))
+                map.put(CFile.HASH, jsonObject.getString("sha1"));
+            JSONObject representations = jsonObject.optJSONObject("representations");
+            JSONArray entries = representations != null
+                    ? representations.optJSONArray("entries") : null;
+            if (entries != null && entries.length() > 0) {
+                JSONObject entry = entries.getJSONObject(0);
+                JSONObject status = entry.optJSONObject("status");
+                // representation not generated yet cannot be loaded
+                if (status != null && "success".equals(status.optString("state"))) {
+                    String template = entry.getJSONObject("content").getString("url_template");
+                    map.put(CFile.THUMBNAIL_URL, template.replace("{+asset_path}", ""));
+                }
+            }
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -251,9 +299,12 @@ public class BoxApi extends BaseApi {
     private Context mContext;
     private CloudProvider mCloudProvider;
     private Account mAccount;
-    private OnPrepareListener mPrepareListener;
-    private OkHttpClient mHttpClient;
-    private String mAccessToken;
+    private MetadataCache mCache;
+    private ThumbnailCache mThumbnails;
+    private volatile OnPrepareListener mPrepareListener;
+    private volatile String mAccessToken;
+    private volatile int mListingConcurrency = 1;
+    private volatile int mUploadConcurrency = 1;
 
     /**
      * Constructor for Box API
@@ -264,11 +315,22 @@ public class BoxApi extends BaseApi {
         mContext = context;
         mAccount = account;
         mCloudProvider = CloudProvider.getInstance(mContext);
-        mHttpClient = new OkHttpClient();
+        mCache = mCloudProvider.getMetadataCache(mAccount.name);
+        mThumbnails = mCloudProvider.getThumbnailCache();
+    }
+
+    @Override
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    @Override
+    protected Context getContext() {
+        return mContext;
     }
 
     @Override
-    public synchronized void prepareApi(OnPrepareListener prepareListener) {
+    public void prepareApi(OnPrepareListener prepareListener) {
         mPrepareListener = prepareListener;
 
         AccountManager.get(mContext).getAuthToken(mAccount, CloudProvider.AUTH_TYPE, false,
@@ -307,7 +369,7 @@ public class BoxApi extends BaseApi {
     private void validateAccessToken() {
         Request request = getUserInfoRequest(mAccessToken);
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Request request, IOException e) {
                 e.printStackTrace();
@@ -347,7 +409,7 @@ public class BoxApi extends BaseApi {
                     .post(getRefreshTokenBody(refreshToken))
                     .build();
 
-            mHttpClient.newCall(request).enqueue(new Callback() {
+            mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
                 @Override
                 public void onFailure(Request request, IOException e) {
                     e.printStackTrace();
@@ -404,7 +466,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized void logout(@NonNull Callback callback) {
+    public void logout(@NonNull Callback callback) {
         RequestBody body = new FormEncodingBuilder()
                 .add("client_id", CLIENT_ID)
                 .add("client_secret", CLIENT_SECRET)
@@ -416,46 +478,198 @@ public class BoxApi extends BaseApi {
                 .post(body)
                 .build();
 
-        mHttpClient.newCall(request).enqueue(callback);
+        mCloudProvider.clientFor(request).newCall(request).enqueue(callback);
     }
 
     @Override
-    public synchronized List<Object> exploreFolder(@NonNull CFolder folder, int offset) throws RequestFailException {
+    public List<Object> exploreFolder(@NonNull final CFolder folder, int offset) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // only a complete listing can be cached and replace the indexed folder contents
+        if (offset > 0) return exploreFolderPages(folder, offset).readAll();
+
+        return mCache.get(MetadataCache.listKey(folder.getId()), new MetadataCache.Loader<List<Object>>() {
+            @Override
+            public List<Object> load() throws RequestFailException {
+                return exploreFolderPages(folder, 0).readAll();
+            }
+        }, MetadataIndex.folderItemsStore(mContext, mAccount.name, folder));
+    }
+
+    @Override
+    public PageCursor exploreFolderPages(@NonNull CFolder folder) {
+        return exploreFolderPages(folder, 0);
+    }
+
+    /**
+     * Set the number of folder listing pages to be requested concurrently. Box returns the
+     * total count on the first page so the rest of the pages can be requested in parallel.
+     *
+     * @param concurrency number of pages in flight, 1 to fetch the pages one at a time
+     */
+    public void setListingConcurrency(int concurrency) {
+        mListingConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Set the number of upload session parts to be uploaded concurrently. Box accepts the parts
+     * of an upload session in any order, the part size is dictated by the server.
+     *
+     * @param concurrency number of parts in flight, 1 to upload the parts one at a time
+     */
+    public void setUploadConcurrency(int concurrency) {
+        mUploadConcurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Get folder items page by page starting from the offset
+     *
+     * @param folder to explore
+     * @param offset of the first item to fetch
+     * @return PageCursor over the pages of CFile and CFolder
+     */
+    private PageCursor exploreFolderPages(@NonNull final CFolder folder, int offset) {
+        if (mListingConcurrency > 1)
+            return exploreFolderPagesParallel(folder, offset, mListingConcurrency);
+
+        return new PageCursor(String.valueOf(offset)) {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return getFolderItems(folder, token != null ? Integer.parseInt(token) : 0);
+            }
+        };
+    }
+
+    /**
+     * Get folder items page by page, once the first page is received the following pages are
+     * requested concurrently on the shared executor and returned in order. A page no helper
+     * has started yet is fetched by the calling thread, so the listing still progresses while
+     * the shared executor is busy, e.g. with downloads.
+     *
+     * @param folder to explore
+     * @param offset of the first item to fetch
+     * @param concurrency maximum number of pages in flight
+     * @return PageCursor over the pages of CFile and CFolder
+     */
+    private PageCursor exploreFolderPagesParallel(@NonNull final CFolder folder, int offset,
+                                                  final int concurrency) {
+        final ExecutorService executor = mCloudProvider.getExecutor();
+
+        return new PageCursor(String.valueOf(offset)) {
+
+            // pages in flight and their offsets in ascending order
+            private final LinkedList<FutureTask<ItemPage>> mPending = new LinkedList<>();
+            private final LinkedList<Integer> mPendingOffsets = new LinkedList<>();
+            private int mNextOffset = -1;
+            private int mTotal;
+
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                ItemPage page;
+                if (mNextOffset < 0) {
+                    // first page tells the total count
+                    int start = token != null ? Integer.parseInt(token) : 0;
+                    page = getFolderItems(folder, start);
+                    mTotal = page.total;
+                    mNextOffset = start + PAGE_LIMIT;
+                } else {
+                    mPendingOffsets.removeFirst();
+                    page = getPage(mPending.removeFirst());
+                }
+
+                // keep the window of concurrent requests full
+                while (mPending.size() < concurrency && mNextOffset < mTotal) {
+                    final int pageOffset = mNextOffset;
+                    FutureTask<ItemPage> task = new FutureTask<>(ApiTask.inherit(
+                            new Callable<ItemPage>() {
+                                @Override
+                                public ItemPage call() throws Exception {
+                                    return getFolderItems(folder, pageOffset);
+                                }
+                            }));
+                    executor.execute(task);
+                    mPending.add(task);
+                    mPendingOffsets.add(pageOffset);
+                    mNextOffset += PAGE_LIMIT;
+                }
+
+                page.nextToken = mPendingOffsets.isEmpty() ? null : String.valueOf(mPendingOffsets.getFirst());
+                return page;
+            }
+
+            @Override
+            public PageCursor prefetch(@Nullable ExecutorService executor) {
+                // pages are already requested ahead
+                return this;
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                for (Future<ItemPage> future : mPending) {
+                    future.cancel(true);
+                }
+                mPending.clear();
+                mPendingOffsets.clear();
+            }
+
+            private ItemPage getPage(FutureTask<ItemPage> task) throws RequestFailException {
+                try {
+                    // no-op if a helper has already started the page
+                    task.run();
+                    return task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new RequestFailException(e.getMessage(), e);
+                } catch (ExecutionException e) {
+                    close();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RequestFailException)
+                        throw (RequestFailException) cause;
+                    throw new RequestFailException(cause.getMessage(), cause);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get a single page of folder items
+     *
+     * @param folder to explore
+     * @param offset of the first item in the page
+     * @return ItemPage with the offset of the following page as next token
+     * @throws RequestFailException that content various error types
+     */
+    private ItemPage getFolderItems(@NonNull CFolder folder, int offset) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
         String folderId = folder.getId();
         Uri uri = Uri.parse(API_BASE_URL);
-        String url = uri.buildUpon()
+        Uri.Builder uriBuilder = uri.buildUpon()
                 .appendEncodedPath("folders/" + folderId + "/items")
-                .appendQueryParameter("limit", "500")
-                .appendQueryParameter("offset", String.valueOf(offset))
-                .build()
-                .toString();
+                .appendQueryParameter("limit", String.valueOf(PAGE_LIMIT))
+                .appendQueryParameter("offset", String.valueOf(offset));
+        // only the fields read into CFile and CFolder
+        uriBuilder.appendQueryParameter("fields", getItemFields());
+        String url = uriBuilder.build().toString();
 
-        Request request = new Request.Builder()
+        Request.Builder builder = new Request.Builder()
                 .url(url)
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+                .get();
+        if (hasListingExtra(EXTRA_THUMBNAIL_URL))
+            builder.header("X-Rep-Hints", THUMBNAIL_REP_HINTS);
+        Request request = builder.build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                int total = jsonObject.getInt("total_count");
-                // return null if no item found
-                if (total == 0) return null;
-
-                JSONArray entries = jsonObject.getJSONArray("entries");
-                list.addAll(createFilteredItemsList(entries, folder));
-                // suspect search result over 500 items
-                if (total > 500 && total - list.size() > 0) {
-                    list.addAll(exploreFolder(folder, 500));
-                }
-                return list;
+                return readItemPage(response, folder, offset);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -468,6 +682,18 @@ public class BoxApi extends BaseApi {
         }
     }
 
+    /**
+     * Get the fields of the items read into CFile and CFolder, listing extras included
+     *
+     * @return comma separated fields
+     */
+    private String getItemFields() {
+        String fields = ITEM_FIELDS;
+        if (hasListingExtra(EXTRA_THUMBNAIL_URL)) fields += ",representations";
+        if (hasListingExtra(EXTRA_HASH)) fields += ",sha1";
+        return fields;
+    }
+
     @Override
     public CFolder getRoot() {
         // create root folder manually
@@ -479,25 +705,52 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFolder getFolderInfo(@NonNull String folderId) throws RequestFailException {
+    public CFolder getFolderInfo(@NonNull final String folderId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
         if (TextUtils.isEmpty(folderId)) return null;
 
-        Request request = new Request.Builder()
-                .url(API_BASE_URL + "/folders/" + folderId)
+        return mCache.get(MetadataCache.folderKey(folderId), new MetadataCache.Loader<CFolder>() {
+            @Override
+            public CFolder load() throws RequestFailException {
+                return fetchFolderInfo(folderId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the folder metadata from the cloud server bypassing the metadata cache
+     *
+     * @param folderId of the folder
+     * @return CFolder
+     * @throws RequestFailException
+     */
+    private CFolder fetchFolderInfo(String folderId) throws RequestFailException {
+        // revalidate the cached copy if any
+        CFolder cached = (CFolder) mCache.peek(MetadataCache.folderKey(folderId));
+        Request.Builder builder = new Request.Builder()
+                .url(API_BASE_URL + "/folders/" + folderId + "?fields=" + getItemFields())
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+                .get();
+        if (hasListingExtra(EXTRA_THUMBNAIL_URL))
+            builder.header("X-Rep-Hints", THUMBNAIL_REP_HINTS);
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -511,7 +764,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFolder createFolder(@NonNull String name, @Nullable CFolder parent) throws RequestFailException {
+    public CFolder createFolder(@NonNull String name, @Nullable CFolder parent) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -545,10 +798,13 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful() && response.code() == 201) {
                 // new folder created
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -562,7 +818,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFolder renameFolder(@NonNull CFolder folder, String name) throws RequestFailException {
+    public CFolder renameFolder(@NonNull CFolder folder, String name) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -598,10 +854,13 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -615,7 +874,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFolder moveFolder(@NonNull CFolder folder, @Nullable CFolder parent) throws RequestFailException {
+    public CFolder moveFolder(@NonNull CFolder folder, @Nullable CFolder parent) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -652,10 +911,13 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -669,7 +931,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized void deleteFolder(@NonNull CFolder folder) throws RequestFailException {
+    public void deleteFolder(@NonNull CFolder folder) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -689,9 +951,11 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "CFolder with the id: " + folderId + " deleted");
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, folder.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -702,25 +966,52 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFile getFileInfo(@NonNull String fileId) throws RequestFailException {
+    public CFile getFileInfo(@NonNull final String fileId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
         if (TextUtils.isEmpty(fileId)) return null;
 
-        Request request = new Request.Builder()
-                .url(API_BASE_URL + "/files/" + fileId)
+        return mCache.get(MetadataCache.fileKey(fileId), new MetadataCache.Loader<CFile>() {
+            @Override
+            public CFile load() throws RequestFailException {
+                return fetchFileInfo(fileId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the file metadata from the cloud server bypassing the metadata cache
+     *
+     * @param fileId of the file
+     * @return CFile
+     * @throws RequestFailException
+     */
+    private CFile fetchFileInfo(String fileId) throws RequestFailException {
+        // revalidate the cached copy if any
+        CFile cached = (CFile) mCache.peek(MetadataCache.fileKey(fileId));
+        Request.Builder builder = new Request.Builder()
+                .url(API_BASE_URL + "/files/" + fileId + "?fields=" + getItemFields())
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+                .get();
+        if (hasListingExtra(EXTRA_THUMBNAIL_URL))
+            builder.header("X-Rep-Hints", THUMBNAIL_REP_HINTS);
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -734,7 +1025,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized File downloadFile(@NonNull CFile file, @Nullable String filename) throws RequestFailException {
+    public File downloadFile(@NonNull CFile file, @Nullable String filename) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -750,8 +1041,10 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
+                // content is requested again from the final location
+                response.body().close();
                 switch (response.code()) {
                     case 200:
                         // redirect to url
@@ -774,6 +1067,41 @@ public class BoxApi extends BaseApi {
         return null;
     }
 
+    @Override
+    public void discardDownload(@NonNull CFile file, @Nullable String filename) {
+        SegmentedDownload.discard(new File(CloudProvider.CACHE_DIR,
+                TextUtils.isEmpty(filename) ? file.getName() : filename));
+    }
+
+    @Override
+    public InputStream openStream(@NonNull CFile file) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // redirect to the download url is followed by the http client
+        Request request = new Request.Builder()
+                .url(API_BASE_URL + "/files/" + file.getId() + "/content")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .get()
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful() && response.code() != 202) {
+                // body is handed over to the caller who is responsible to close it
+                return response.body().byteStream();
+            } else {
+                // 202 means the file just uploaded is not ready to be read yet
+                response.body().close();
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
     /**
      * Retry download operation due to file just uploaded
      *
@@ -804,21 +1132,128 @@ public class BoxApi extends BaseApi {
      * @throws RequestFailException
      */
     private File downloadFile(@NonNull Request request, @NonNull String filename) throws RequestFailException {
+        File file = new File(CloudProvider.CACHE_DIR, filename);
+        return new SegmentedDownload(mCloudProvider, request, file)
+                .parallel(mCloudProvider.getExecutor(), CloudProvider.DOWNLOAD_CONCURRENCY)
+                .download();
+    }
+
+    @Override
+    public CFile uploadFile(@NonNull File file, @Nullable CFolder parent) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            params.put("name", file.getName());
+            params.put("parent",
+                    new JSONObject().put("id", parent != null ? parent.getId() : getRoot().getId()));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        // large file go through a resumable upload session
+        if (file.length() > Math.max(CloudProvider.CHUNKED_UPLOAD_THRESHOLD, MIN_SESSION_SIZE)) {
+            final JSONObject sessionParams = new JSONObject();
+            try {
+                sessionParams.put("folder_id", parent != null ? parent.getId() : getRoot().getId());
+                sessionParams.put("file_name", file.getName());
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+
+            CFile newFile = newUploadSession("/files/upload_sessions", sessionParams).upload(file);
+            mCache.invalidateItem(null);
+            MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+            return newFile;
+        }
+
+        // create multipart body
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(file));
+        RequestBody multipart = new MultipartBuilder()
+                .type(MultipartBuilder.FORM)
+                .addFormDataPart("attributes", params.toString())
+                .addFormDataPart("file", file.getName(),
+                        RequestBody.create(fileType, file))
+                .build();
+
+        Request request = new Request.Builder()
+                .url(API_UPLOAD_URL + "/files/content")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(multipart)
+                .build();
+
         try {
-            File file = new File(CloudProvider.CACHE_DIR, filename);
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                // new file created
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                JSONArray entries = jsonObject.getJSONArray("entries");
+                CFile newFile = buildFile(entries.getJSONObject(0));
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public CFile updateFile(@NonNull CFile file, File content) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // large file go through a resumable upload session
+        if (content.length() > Math.max(CloudProvider.CHUNKED_UPLOAD_THRESHOLD, MIN_SESSION_SIZE)) {
+            CFile newFile = newUploadSession("/files/" + file.getId() + "/upload_sessions",
+                    new JSONObject()).upload(content);
+            mCache.invalidateItem(file.getId());
+            MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+            return newFile;
+        }
 
-            Response response = mHttpClient.newCall(request).execute();
+        // create multipart body
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(content));
+        RequestBody multipart = new MultipartBuilder()
+                .type(MultipartBuilder.FORM)
+                .addFormDataPart("file", content.getName(),
+                        RequestBody.create(fileType, content))
+                .build();
+
+        Request request = new Request.Builder()
+                .url(API_UPLOAD_URL + "/files/" + file.getId() + "/content")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(multipart)
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                if (FilesUtils.getInternalAvailableBytes() < response.body().contentLength()) {
-                    // insufficient storage space throw exception
-                    throw new RequestFailException("Insufficient storage");
-                } else {
-                    FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(file));
-                }
+                // new file created
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                JSONArray entries = jsonObject.getJSONArray("entries");
+                CFile newFile = buildFile(entries.getJSONObject(0));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
-            return file;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
             throw new RequestFailException(e.getMessage());
@@ -826,15 +1261,38 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFile uploadFile(@NonNull File file, @Nullable CFolder parent) throws RequestFailException {
+    public CFile uploadFile(@NonNull InputStream content, long length,
+                                         @NonNull String name, @Nullable CFolder parent)
+            throws RequestFailException {
+        // upload session need the size in advance
+        if (length < 0) return super.uploadFile(content, length, name, parent);
+
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        // large content go through an upload session
+        if (length > Math.max(CloudProvider.CHUNKED_UPLOAD_THRESHOLD, MIN_SESSION_SIZE)) {
+            final JSONObject sessionParams = new JSONObject();
+            try {
+                sessionParams.put("folder_id", parent != null ? parent.getId() : getRoot().getId());
+                sessionParams.put("file_name", name);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+
+            CFile newFile = newUploadSession("/files/upload_sessions", sessionParams)
+                    .upload(content, length);
+            mCache.invalidateItem(null);
+            MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+            return newFile;
+        }
+
         // create parameter as json
         final JSONObject params= new JSONObject();
         try {
-            params.put("name", file.getName());
+            params.put("name", name);
             params.put("parent",
                     new JSONObject().put("id", parent != null ? parent.getId() : getRoot().getId()));
         } catch (JSONException e) {
@@ -843,12 +1301,12 @@ public class BoxApi extends BaseApi {
         }
 
         // create multipart body
-        MediaType fileType = MediaType.parse(FilesUtils.getFileType(file));
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(name));
         RequestBody multipart = new MultipartBuilder()
                 .type(MultipartBuilder.FORM)
                 .addFormDataPart("attributes", params.toString())
-                .addFormDataPart("file", file.getName(),
-                        RequestBody.create(fileType, file))
+                .addFormDataPart("file", name,
+                        new StreamRequestBody(fileType, content, length))
                 .build();
 
         Request request = new Request.Builder()
@@ -858,12 +1316,15 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 JSONArray entries = jsonObject.getJSONArray("entries");
-                return buildFile(entries.getJSONObject(0));
+                CFile newFile = buildFile(entries.getJSONObject(0));
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -877,17 +1338,30 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFile updateFile(@NonNull CFile file, File content) throws RequestFailException {
+    public CFile updateFile(@NonNull CFile file, @NonNull InputStream content,
+                                         long length) throws RequestFailException {
+        // upload session need the size in advance
+        if (length < 0) return super.updateFile(file, content, length);
+
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        // large content go through an upload session
+        if (length > Math.max(CloudProvider.CHUNKED_UPLOAD_THRESHOLD, MIN_SESSION_SIZE)) {
+            CFile newFile = newUploadSession("/files/" + file.getId() + "/upload_sessions",
+                    new JSONObject()).upload(content, length);
+            mCache.invalidateItem(file.getId());
+            MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+            return newFile;
+        }
+
         // create multipart body
-        MediaType fileType = MediaType.parse(FilesUtils.getFileType(content));
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(file.getName()));
         RequestBody multipart = new MultipartBuilder()
                 .type(MultipartBuilder.FORM)
-                .addFormDataPart("file", content.getName(),
-                        RequestBody.create(fileType, content))
+                .addFormDataPart("file", file.getName(),
+                        new StreamRequestBody(fileType, content, length))
                 .build();
 
         Request request = new Request.Builder()
@@ -897,15 +1371,312 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 JSONArray entries = jsonObject.getJSONArray("entries");
-                return buildFile(entries.getJSONObject(0));
+                CFile newFile = buildFile(entries.getJSONObject(0));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Create upload of large content in chunks through an upload session
+     *
+     * @param sessionPath endpoint to create the session for a new file or a new version
+     * @param params of the session as json, i.e. parent folder id and file name for a new file
+     * @return ChunkedUpload
+     */
+    private ChunkedUpload newUploadSession(final String sessionPath, final JSONObject params) {
+        String target = sessionPath + "|" + params.toString();
+        return new ChunkedUpload(mContext, mAccount.name, target) {
+            // whole file digest for the commit, only complete if read from the start
+            private MessageDigest mDigest = FilesUtils.newSha1Digest();
+            private long mDigestOffset;
+
+            @Override
+            protected void onChunkRead(long offset, byte[] data, int length) {
+                if (offset != mDigestOffset) return;
+
+                mDigest.update(data, 0, length);
+                mDigestOffset += length;
+            }
+
+            @Override
+            protected String startSession(long total) throws RequestFailException {
+                try {
+                    params.put("file_size", total);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+
+                RequestBody body = new RequestBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return JSON;
+                    }
+
+                    @Override
+                    public void writeTo(BufferedSink sink) throws IOException {
+                        sink.writeUtf8(params.toString());
+                    }
+                };
+
+                Request request = new Request.Builder()
+                        .url(API_UPLOAD_URL + sessionPath)
+                        .header("Authorization", String.format("Bearer %s", mAccessToken))
+                        .post(body)
+                        .build();
+
+                try {
+                    Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                    if (response.isSuccessful()) {
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        // part size is dictated by the server
+                        setChunkSize(jsonObject.getInt("part_size"));
+                        return jsonObject.getString("id");
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected long resumeSession(String sessionId, long offset) throws RequestFailException {
+                JSONArray parts = getSessionParts(sessionId);
+                if (parts == null) return SESSION_LOST;
+
+                return getCommittedOffset(parts);
+            }
+
+            @Override
+            protected long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                       long total) throws RequestFailException {
+                int code = uploadPart(sessionId, offset, data, length, total);
+                if (code == 404) {
+                    return SESSION_LOST;
+                } else if (code == 416) {
+                    // part overlap what the server has, ask where to continue
+                    return resumeSession(sessionId, offset);
+                }
+                return offset + length;
+            }
+
+            @Override
+            protected CFile finishSession(String sessionId, long total) throws RequestFailException {
+                JSONArray parts = getSessionParts(sessionId);
+                if (parts == null) throw new RequestFailException("Upload session not found", 404);
+
+                String digest;
+                if (mDigestOffset == total) {
+                    digest = Base64.encodeToString(mDigest.digest(), Base64.NO_WRAP);
+                } else if (getFile() == null) {
+                    throw new RequestFailException("Upload digest incomplete");
+                } else {
+                    // resumed upload did not read the whole file
+                    try {
+                        digest = FilesUtils.getSha1Digest(getFile());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        throw new RequestFailException(e.getMessage());
+                    }
+                }
+                return commitSession(sessionId, digest, parts);
+            }
+        }.parallel(mCloudProvider.getExecutor(), mUploadConcurrency);
+    }
+
+    /**
+     * Upload a part of an upload session
+     *
+     * @param sessionId of the upload session
+     * @param offset of the part in the file
+     * @param data buffer that hold the part
+     * @param length of the part
+     * @param total size of the file in bytes
+     * @return response code when the session is gone (404) or the range is rejected (416),
+     * otherwise the successful response code
+     * @throws RequestFailException that content various error types
+     */
+    private int uploadPart(String sessionId, long offset, byte[] data, int length, long total)
+            throws RequestFailException {
+        Request request = new Request.Builder()
+                .url(API_UPLOAD_URL + "/files/upload_sessions/" + sessionId)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .header("Digest", "sha=" + FilesUtils.getSha1Digest(data, 0, length))
+                .header("Content-Range", String.format("bytes %d-%d/%d",
+                        offset, offset + length - 1, total))
+                .put(RequestBody.create(OCTET_STREAM, data, 0, length))
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            response.body().close();
+            if (response.isSuccessful() || response.code() == 404 || response.code() == 416) {
+                return response.code();
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get all the parts the server has received for an upload session
+     *
+     * @param sessionId of the upload session
+     * @return JSONArray of parts, null if the session is gone
+     * @throws RequestFailException that content various error types
+     */
+    private JSONArray getSessionParts(String sessionId) throws RequestFailException {
+        JSONArray parts = new JSONArray();
+        int offset = 0;
+        while (true) {
+            Uri uri = Uri.parse(API_UPLOAD_URL);
+            String url = uri.buildUpon()
+                    .appendEncodedPath("files/upload_sessions/" + sessionId + "/parts")
+                    .appendQueryParameter("offset", String.valueOf(offset))
+                    .appendQueryParameter("limit", String.valueOf(PARTS_LIMIT))
+                    .build()
+                    .toString();
+
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", String.format("Bearer %s", mAccessToken))
+                    .get()
+                    .build();
+
+            try {
+                Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                if (response.isSuccessful()) {
+                    JSONObject jsonObject = new JSONObject(response.body().string());
+                    JSONArray entries = jsonObject.getJSONArray("entries");
+                    for (int i = 0; i < entries.length(); i++) {
+                        parts.put(entries.getJSONObject(i));
+                    }
+                    offset += entries.length();
+                    if (entries.length() == 0 || offset >= jsonObject.optInt("total_count", offset))
+                        return parts;
+                } else if (response.code() == 404) {
+                    return null;
+                } else {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Find the end of the contiguous range of parts from the start of the file
+     *
+     * @param parts received by the server
+     * @return offset to continue uploading from
+     * @throws RequestFailException if the parts can not be read
+     */
+    private static long getCommittedOffset(JSONArray parts) throws RequestFailException {
+        try {
+            // parts may be listed in any order
+            Map<Long, Long> sizes = new HashMap<>();
+            for (int i = 0; i < parts.length(); i++) {
+                JSONObject part = parts.getJSONObject(i);
+                sizes.put(part.getLong("offset"), part.getLong("size"));
+            }
+            long offset = 0;
+            while (sizes.containsKey(offset)) {
+                offset += sizes.get(offset);
+            }
+            return offset;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Commit an upload session once all parts are received
+     *
+     * @param sessionId of the upload session
+     * @param digest Base64 encoded SHA-1 digest of the whole file
+     * @param parts received by the server
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    private CFile commitSession(String sessionId, String digest, JSONArray parts)
+            throws RequestFailException {
+        final JSONObject params = new JSONObject();
+        try {
+            params.put("parts", parts);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
+        Request request = new Request.Builder()
+                .url(API_UPLOAD_URL + "/files/upload_sessions/" + sessionId + "/commit")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .header("Digest", "sha=" + digest)
+                .post(body)
+                .build();
+
+        try {
+            for (int retry = 0; ; retry++) {
+                Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                if (response.code() == 202 && retry < CloudProvider.UPLOAD_RETRY_COUNT) {
+                    // parts still being processed, try again later
+                    response.body().close();
+                    String retryAfter = response.header("Retry-After");
+                    Thread.sleep(TextUtils.isEmpty(retryAfter) ? 1000 : Long.parseLong(retryAfter) * 1000);
+                } else if (response.code() == 201) {
+                    // new file created
+                    JSONObject jsonObject = new JSONObject(response.body().string());
+                    JSONArray entries = jsonObject.getJSONArray("entries");
+                    return buildFile(entries.getJSONObject(0));
+                } else {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestFailException(e.getMessage(), e);
         } catch (JSONException e) {
             e.printStackTrace();
             throw new RequestFailException(e.getMessage());
@@ -916,7 +1687,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFile renameFile(@NonNull CFile file, String name) throws RequestFailException {
+    public CFile renameFile(@NonNull CFile file, String name) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -952,10 +1723,13 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -969,7 +1743,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized CFile moveFile(@NonNull CFile file, @Nullable CFolder folder) throws RequestFailException {
+    public CFile moveFile(@NonNull CFile file, @Nullable CFolder folder) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -1003,10 +1777,13 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, folder != null ? folder : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1020,7 +1797,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized void deleteFile(@NonNull CFile file) throws RequestFailException {
+    public void deleteFile(@NonNull CFile file) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -1033,9 +1810,11 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "File with the id: " + fileId + " deleted");
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, file.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1046,7 +1825,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized List<CFile> searchFile(@NonNull String keyword, CFolder folder)
+    public List<CFile> searchFile(@NonNull String keyword, CFolder folder)
             throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
@@ -1067,7 +1846,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized List<CFolder> searchFolder(@NonNull String keyword, CFolder folder)
+    public List<CFolder> searchFolder(@NonNull String keyword, CFolder folder)
             throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
@@ -1088,7 +1867,7 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized List<Object> search(@NonNull String keyword, CFolder folder)
+    public List<Object> search(@NonNull String keyword, CFolder folder)
             throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
@@ -1108,7 +1887,7 @@ public class BoxApi extends BaseApi {
      * @return  list of files and folders that match search criteria
      * @throws RequestFailException
      */
-    public synchronized List<Object> search(@NonNull Map<String, Object> params, CFolder parent) throws RequestFailException {
+    public List<Object> search(@NonNull Map<String, Object> params, CFolder parent) throws RequestFailException {
         List<Object> list = new ArrayList<>();
 
         Uri uri = Uri.parse(API_BASE_URL);
@@ -1118,6 +1897,9 @@ public class BoxApi extends BaseApi {
         urlBuilder.appendQueryParameter("scope", "user_content");
         // add the rest of the user defined parameters
         params.put("ancestor_folder_ids", parent.getId());
+        // parent is needed to filter the results
+        if (!params.containsKey("fields")) params.put("fields", getItemFields() + ",parent");
+        int offset = params.containsKey("offset") ? Integer.parseInt((String) params.get("offset")) : 0;
         for (Map.Entry<String, Object> param : params.entrySet()) {
             urlBuilder.appendQueryParameter(param.getKey(), (String) param.getValue());
         }
@@ -1129,19 +1911,18 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                int total = jsonObject.getInt("total_count");
+                ItemPage page = readItemPage(response, parent, offset);
                 // return null if no item found
-                if (total == 0) return null;
-
-                JSONArray entries = jsonObject.getJSONArray("entries");
-                list.addAll(createFilteredItemsList(entries, parent));
-                // suspect search result over 100 items
-                if (total > 100 && total - list.size() > 0) {
-                    params.put("offset", "100");
-                    list.addAll(search(params, parent));
+                if (page.total == 0) return null;
+
+                list.addAll(page.items);
+                // search result over a single page
+                if (page.hasMore()) {
+                    params.put("offset", page.nextToken);
+                    List<Object> more = search(params, parent);
+                    if (more != null) list.addAll(more);
                 }
                 return list;
             } else {
@@ -1157,11 +1938,52 @@ public class BoxApi extends BaseApi {
     }
 
     @Override
-    public synchronized File getThumbnail(@NonNull CFile file) throws RequestFailException {
+    public File getThumbnail(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getFile(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return fetchThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Bitmap getThumbnailBitmap(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getBitmap(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return getThumbnail(file);
+            }
+        });
+    }
+
+    /**
+     * Download the thumbnail from the cloud server
+     *
+     * @param file to retrieve the thumbnail
+     * @return File in binary format, null if not available
+     * @throws RequestFailException
+     */
+    private File fetchThumbnail(@NonNull CFile file) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        // representation url from the listing
+        if (!TextUtils.isEmpty(file.getThumbnailUrl())) {
+            Request request = new Request.Builder()
+                    .url(file.getThumbnailUrl())
+                    .header("Authorization", String.format("Bearer %s", mAccessToken))
+                    .get()
+                    .build();
+            try {
+                return downloadFile(request, file.getId() + ".jpg");
+            } catch (RequestFailException e) {
+                // fall back to the thumbnail endpoint
+                Log.w(TAG, "Representation url failed: " + e.getMessage());
+            }
+        }
+
         Uri uri = Uri.parse(API_BASE_URL);
         String url = uri.buildUpon()
                 .appendEncodedPath("files/" + file.getId() + "/thumbnail.png")
@@ -1179,8 +2001,10 @@ public class BoxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
+                // content is requested again from the final location
+                response.body().close();
                 switch (response.code()) {
                     case 200:
                         // redirect to url
@@ -1203,47 +2027,207 @@ public class BoxApi extends BaseApi {
         return null;
     }
 
+    @Override
+    public ChangeSet getChanges(@Nullable String cursor) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        ChangeSet changes = new ChangeSet();
+        // start from now
+        String position = cursor != null ? cursor : "now";
+        boolean hasMore = true;
+
+        while (hasMore) {
+            Uri uri = Uri.parse(API_BASE_URL);
+            String url = uri.buildUpon()
+                    .appendEncodedPath("events")
+                    .appendQueryParameter("stream_type", "changes")
+                    .appendQueryParameter("stream_position", position)
+                    .appendQueryParameter("limit", String.valueOf(PAGE_LIMIT))
+                    .build()
+                    .toString();
+
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", String.format("Bearer %s", mAccessToken))
+                    .get()
+                    .build();
+
+            try {
+                Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                if (response.isSuccessful()) {
+                    int chunkSize = readChanges(response, changes);
+                    position = changes.getCursor();
+                    // position "now" only returns the current stream position
+                    hasMore = cursor != null && chunkSize > 0;
+                } else {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+
+        return changes;
+    }
+
     /**
-     * Create files or folders from the JSONArray search result
+     * Read a page of items from the response body one entry at a time, only the entry being
+     * converted is held in memory
      *
-     * @param jsonArray that contain files and folders information
+     * @param response of the folder items or search request
      * @param parent folder that contain the items returned
-     * @return list that contains CFile and CFolder that belong to the parent folder
-     * @throws RequestFailException
+     * @param offset of the page requested
+     * @return ItemPage with the offset of the following page as next token
+     * @throws IOException
+     * @throws JSONException
      */
-    private List<Object> createFilteredItemsList(JSONArray jsonArray, CFolder parent) throws RequestFailException {
-        if (jsonArray == null || jsonArray.length() == 0) return null;
+    private ItemPage readItemPage(Response response, CFolder parent, int offset)
+            throws IOException, JSONException {
+        ItemPage page = new ItemPage();
+        int count = 0;
 
-        List<Object> list = new ArrayList<>();
-
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject jsonObject = jsonArray.getJSONObject(i);
-                // filter parent
-                if (parent != null && jsonObject.has("parent") &&
-                        !jsonObject.getJSONObject("parent").getString("id").equals(parent.getId()))
-                    continue;
-
-                String type = jsonObject.getString("type");
-                switch (type) {
-                    case "file":
-                        list.add(buildFile(jsonObject));
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "total_count":
+                        page.total = reader.nextInt();
                         break;
-                    case "folder":
-                        list.add(buildFolder(jsonObject));
+                    case "entries":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Object item = createFilteredItem(JsonUtils.readObject(reader), parent);
+                            if (item != null) page.items.add(item);
+                            count++;
+                        }
+                        reader.endArray();
                         break;
                     default:
-                        Log.e(TAG, "Unknown type found");
+                        reader.skipValue();
                         break;
                 }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
 
-            } catch (JSONException e) {
-                e.printStackTrace();
-                throw new RequestFailException(e.getMessage());
+        // offset of the following page, server may return less than the limit requested
+        if (count > 0 && offset + count < page.total)
+            page.nextToken = String.valueOf(offset + count);
+
+        return page;
+    }
+
+    /**
+     * Read a chunk of events from the response body one entry at a time
+     *
+     * @param response of the events request
+     * @param changes to add the changed and deleted items into
+     * @return number of events in the chunk
+     * @throws IOException
+     * @throws JSONException
+     */
+    private int readChanges(Response response, ChangeSet changes) throws IOException, JSONException {
+        int chunkSize = 0;
+
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "chunk_size":
+                        chunkSize = reader.nextInt();
+                        break;
+                    case "next_stream_position":
+                        changes.setCursor(reader.nextString());
+                        break;
+                    case "entries":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            addEvent(JsonUtils.readObject(reader), changes);
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
             }
+            reader.endObject();
+        } finally {
+            reader.close();
         }
 
-        return list;
+        return chunkSize;
+    }
+
+    /**
+     * Add the item affected by the event into the change set
+     *
+     * @param event that contain the event type and the source item
+     * @param changes to add the changed or deleted item into
+     * @throws JSONException
+     */
+    private void addEvent(JSONObject event, ChangeSet changes) throws JSONException {
+        JSONObject source = event.optJSONObject("source");
+        if (source == null || !source.has("type")) return;
+
+        String type = source.getString("type");
+        if (!type.equals("file") && !type.equals("folder")) return;
+
+        String id = source.getString("id");
+        switch (event.getString("event_type")) {
+            case "ITEM_TRASH":
+                changes.putDeleted(id);
+                break;
+            case "ITEM_CREATE":
+            case "ITEM_UPLOAD":
+            case "ITEM_COPY":
+            case "ITEM_MOVE":
+            case "ITEM_RENAME":
+            case "ITEM_UNDELETE_VIA_TRASH":
+                Object item = type.equals("file") ? buildFile(source) : buildFolder(source);
+                JSONObject parent = source.optJSONObject("parent");
+                if (item != null)
+                    changes.putChanged(id, item, parent != null ? parent.getString("id") : null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Create file or folder from the JSONObject entry
+     *
+     * @param jsonObject that contain file or folder information
+     * @param parent folder that contain the item returned
+     * @return CFile or CFolder, null if the item does not belong to the parent folder
+     * @throws JSONException
+     */
+    private Object createFilteredItem(JSONObject jsonObject, CFolder parent) throws JSONException {
+        // filter parent
+        if (parent != null && jsonObject.has("parent") &&
+                !jsonObject.getJSONObject("parent").getString("id").equals(parent.getId()))
+            return null;
+
+        String type = jsonObject.getString("type");
+        switch (type) {
+            case "file":
+                return buildFile(jsonObject);
+            case "folder":
+                return buildFolder(jsonObject);
+            default:
+                Log.e(TAG, "Unknown type found");
+                return null;
+        }
     }
 
 }
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Upload of a large file in chunks through an upload session of the cloud server. The session
+ * id and the committed offset are persisted after every chunk, so a failed upload of the same
+ * file to the same target resumes from the last committed chunk, even after the process has
+ * been restarted. Sessions saved longer than {@link CloudProvider#UPLOAD_SESSION_MAX_AGE} ago
+ * are pruned as abandoned.
+ * <p>
+ * The upload is driven by {@link #upload(File)} on the calling thread. Cloud servers that accept
+ * chunks in any order can have several chunks uploaded at a time, see
+ * {@link #parallel(ExecutorService, int)}.
+ * <p>
+ * Content that is not a file is uploaded from a stream with {@link #upload(InputStream, long)}.
+ * The stream can only be read once, so its chunks are uploaded one at a time and the session
+ * is not saved.
+ * <p>
+ * Bytes committed by the cloud server are reported to the running {@link ApiTask}, a resumed
+ * upload reports the part committed before at once.
+ */
+public abstract class ChunkedUpload {
+
+    /**
+     * Returned by {@link #resumeSession(String, long)} and
+     * {@link #uploadChunk(String, long, byte[], int, long)} when the session is no longer
+     * available on the cloud server, the upload then starts over with a new session
+     */
+    protected static final long SESSION_LOST = -1;
+
+    private static final String PREFS_NAME = "cloudprovider_uploads";
+    private static final String KEY_SESSION = "session";
+    private static final String KEY_OFFSET = "offset";
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+    private static final String KEY_SAVED = "saved";
+
+    private static final String TAG = "ChunkedUpload";
+
+    private final SharedPreferences mPrefs;
+    private final String mTarget;
+    private String mKey;
+    private File mFile;
+    private String mSessionId;
+    private long mOffset;
+    // committed bytes reported to the running task
+    private long mProgress;
+    private int mChunkSize;
+    private int mRetry;
+    private ExecutorService mExecutor;
+    private int mConcurrency = 1;
+
+    /**
+     * Create upload
+     *
+     * @param context to persist the session state
+     * @param accountName of the account to upload to
+     * @param target that identify the destination, e.g. parent id and file name
+     */
+    public ChunkedUpload(Context context, String accountName, String target) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mTarget = accountName + "|" + target;
+        mChunkSize = CloudProvider.UPLOAD_CHUNK_SIZE;
+    }
+
+    /**
+     * Start a new upload session on the cloud server
+     *
+     * @param total size of the file in bytes, -1 if a stream of unknown length is uploaded
+     * @return session id or upload url
+     * @throws RequestFailException that content various error types
+     */
+    protected abstract String startSession(long total) throws RequestFailException;
+
+    /**
+     * Find out how much of the file the cloud server has committed for a saved session
+     *
+     * @param sessionId of the saved session
+     * @param offset committed according to the saved state
+     * @return offset to continue from or {@link #SESSION_LOST}
+     * @throws RequestFailException that content various error types
+     */
+    protected abstract long resumeSession(String sessionId, long offset) throws RequestFailException;
+
+    /**
+     * Upload a chunk of the file
+     *
+     * @param sessionId of the session
+     * @param offset of the chunk in the file
+     * @param data buffer that hold the chunk
+     * @param length of the chunk
+     * @param total size of the file in bytes, -1 if unknown
+     * @return offset committed by the cloud server or {@link #SESSION_LOST}
+     * @throws RequestFailException that content various error types
+     */
+    protected abstract long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                        long total) throws RequestFailException;
+
+    /**
+     * Commit the upload after all chunks are committed
+     *
+     * @param sessionId of the session
+     * @param total size of the file in bytes
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    protected abstract CFile finishSession(String sessionId, long total) throws RequestFailException;
+
+    /**
+     * Chunk size required by the cloud server, to be set in {@link #startSession(long)}
+     *
+     * @param chunkSize in bytes
+     */
+    protected void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Upload several chunks at a time. Only for cloud servers that accept chunks in any order
+     * within a session, a stream is always uploaded one chunk at a time.
+     *
+     * @param executor to upload the chunks on
+     * @param concurrency number of chunks in flight, 1 to upload one chunk at a time
+     * @return this upload
+     */
+    public ChunkedUpload parallel(ExecutorService executor, int concurrency) {
+        mExecutor = executor;
+        mConcurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    /**
+     * File being uploaded
+     *
+     * @return File or null if a stream is uploaded
+     */
+    protected File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Called in file order for every chunk read from the file, e.g. to digest the whole file
+     * while uploading. Chunks before the resumed offset are not read.
+     *
+     * @param offset of the chunk in the file
+     * @param data buffer that hold the chunk
+     * @param length of the chunk
+     */
+    protected void onChunkRead(long offset, byte[] data, int length) {
+    }
+
+    /**
+     * Upload the file, resuming the saved session if any
+     *
+     * @param file to upload
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    public CFile upload(File file) throws RequestFailException {
+        mFile = file;
+        // any change to the local file invalidates the saved session
+        mKey = mTarget + "|" + file.getAbsolutePath() + "|" + file.length() + "|"
+                + file.lastModified();
+        long total = file.length();
+        mProgress = 0;
+        prune();
+        restore();
+
+        if (mSessionId != null) {
+            mOffset = resumeSession(mSessionId, mOffset);
+            if (mOffset == SESSION_LOST) {
+                mSessionId = null;
+            } else {
+                reportProgress();
+            }
+        }
+
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(mFile, "r");
+            boolean restarted = false;
+            mRetry = 0;
+            while (true) {
+                if (mSessionId == null) {
+                    mOffset = 0;
+                    mSessionId = startSession(total);
+                    save();
+                }
+
+                long offset;
+                try {
+                    offset = mExecutor != null && mConcurrency > 1
+                            ? uploadParallel(input, total) : uploadSequential(input, total);
+                } catch (RequestFailException e) {
+                    // connection dropped, continue from what the server has committed
+                    if (++mRetry > CloudProvider.UPLOAD_RETRY_COUNT) throw e;
+                    Log.w(TAG, "Chunk upload failed, resuming: " + e.getMessage());
+                    offset = resumeSession(mSessionId, mOffset);
+                    if (offset != SESSION_LOST) {
+                        mOffset = offset;
+                        reportProgress();
+                        continue;
+                    }
+                }
+
+                if (offset != SESSION_LOST) break;
+                // start over only once to avoid looping on a broken session
+                if (restarted) throw new RequestFailException("Upload session lost");
+                restarted = true;
+                mSessionId = null;
+            }
+
+            CFile cFile = finishSession(mSessionId, total);
+            clear();
+            return cFile;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Upload the content of a stream. A failed chunk is sent again from memory, but the upload
+     * can not be resumed once it has failed for good.
+     *
+     * @param input to upload, the stream is not closed
+     * @param length of the stream in bytes, -1 if unknown
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    public CFile upload(InputStream input, long length) throws RequestFailException {
+        mFile = null;
+        mKey = null;
+        mSessionId = startSession(length);
+        // chunk size may have been set by the session
+        byte[] buffer = new byte[mChunkSize];
+        long offset = 0;
+        try {
+            while (length < 0 || offset < length) {
+                int chunk = length < 0 ? mChunkSize : (int) Math.min(mChunkSize, length - offset);
+                int read = readChunk(input, buffer, chunk);
+                // short read means the end of the stream
+                boolean end = read < chunk;
+                if (end && length >= 0)
+                    throw new RequestFailException("Stream ended before the expected length");
+                if (read == 0) break;
+                onChunkRead(offset, buffer, read);
+
+                int retry = 0;
+                while (read > 0) {
+                    long next;
+                    try {
+                        next = uploadChunk(mSessionId, offset, buffer, read, length);
+                    } catch (RequestFailException e) {
+                        if (retry >= CloudProvider.UPLOAD_RETRY_COUNT) throw e;
+                        Log.w(TAG, "Chunk upload failed, retrying: " + e.getMessage());
+                        next = resumeSession(mSessionId, offset);
+                    }
+                    if (next == SESSION_LOST) throw new RequestFailException("Upload session lost");
+                    if (next < offset || next > offset + read)
+                        throw new RequestFailException("Upload session out of sync");
+                    if (next == offset) {
+                        if (++retry > CloudProvider.UPLOAD_RETRY_COUNT)
+                            throw new RequestFailException("Upload session made no progress");
+                        continue;
+                    }
+
+                    // keep the part of the chunk the server has not committed yet
+                    int committed = (int) (next - offset);
+                    ApiTask.reportProgress(committed);
+                    System.arraycopy(buffer, committed, buffer, 0, read - committed);
+                    read -= committed;
+                    offset = next;
+                    retry = 0;
+                }
+                if (end) break;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+        return finishSession(mSessionId, offset);
+    }
+
+    /**
+     * Read from the stream until the buffer hold the requested length or the stream ended
+     *
+     * @return number of bytes read
+     */
+    private static int readChunk(InputStream input, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = input.read(buffer, read, length - read);
+            if (count == -1) break;
+            read += count;
+        }
+        return read;
+    }
+
+    /**
+     * Upload the remaining chunks one after another
+     *
+     * @return total or {@link #SESSION_LOST}
+     */
+    private long uploadSequential(RandomAccessFile input, long total)
+            throws RequestFailException, IOException {
+        byte[] buffer = new byte[mChunkSize];
+        long offset = mOffset;
+        while (offset < total) {
+            int length = (int) Math.min(mChunkSize, total - offset);
+            input.seek(offset);
+            input.readFully(buffer, 0, length);
+            onChunkRead(offset, buffer, length);
+            long next = uploadChunk(mSessionId, offset, buffer, length, total);
+            if (next == SESSION_LOST) return SESSION_LOST;
+            if (next == offset) throw new RequestFailException("Upload session made no progress");
+
+            offset = next;
+            mOffset = offset;
+            save();
+            mRetry = 0;
+        }
+        return offset;
+    }
+
+    /**
+     * Upload the remaining chunks with a window of concurrent requests. The chunks are read in
+     * file order and the committed offset only advances over chunks that all completed. The
+     * oldest chunk is uploaded by the calling thread if no helper has started it yet, so the
+     * upload still progresses while the executor is busy.
+     *
+     * @return total or {@link #SESSION_LOST}
+     */
+    private long uploadParallel(RandomAccessFile input, final long total)
+            throws RequestFailException, IOException {
+        final String sessionId = mSessionId;
+        LinkedList<FutureTask<Long>> window = new LinkedList<>();
+        LinkedList<Long> starts = new LinkedList<>();
+        LinkedList<Long> ends = new LinkedList<>();
+        long offset = mOffset;
+        try {
+            while (offset < total || !window.isEmpty()) {
+                if (offset < total && window.size() < mConcurrency) {
+                    // each chunk in flight hold its own buffer
+                    final int length = (int) Math.min(mChunkSize, total - offset);
+                    final byte[] data = new byte[length];
+                    input.seek(offset);
+                    input.readFully(data, 0, length);
+                    onChunkRead(offset, data, length);
+
+                    final long chunkOffset = offset;
+                    FutureTask<Long> task = new FutureTask<>(ApiTask.inherit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return uploadChunk(sessionId, chunkOffset, data, length, total);
+                        }
+                    }));
+                    mExecutor.execute(task);
+                    window.add(task);
+                    starts.add(offset);
+                    offset += length;
+                    ends.add(offset);
+                    continue;
+                }
+
+                // wait for the oldest chunk so the committed offset stay contiguous, running
+                // it here is a no-op if a helper has already started it
+                FutureTask<Long> oldest = window.removeFirst();
+                oldest.run();
+                long result = oldest.get();
+                long start = starts.removeFirst();
+                long end = ends.removeFirst();
+                if (result != SESSION_LOST && result < end)
+                    result = resendChunk(input, start, end, total);
+                if (result == SESSION_LOST) return SESSION_LOST;
+
+                mOffset = end;
+                save();
+                mRetry = 0;
+            }
+            return offset;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestFailException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RequestFailException)
+                throw (RequestFailException) cause;
+            throw new RequestFailException(cause.getMessage(), cause);
+        } finally {
+            for (Future<Long> future : window) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Make sure a chunk the server did not report as committed is. The committed offset
+     * returned while earlier chunks were still in flight may stop short of the chunk, it is
+     * asked again now that they completed and the chunk is sent again if still missing.
+     *
+     * @return offset committed by the cloud server or {@link #SESSION_LOST}
+     */
+    private long resendChunk(RandomAccessFile input, long start, long end, long total)
+            throws RequestFailException, IOException {
+        long offset = resumeSession(mSessionId, mOffset);
+        if (offset == SESSION_LOST || offset >= end) return offset;
+
+        Log.w(TAG, "Chunk not committed, sending again from " + start);
+        int length = (int) (end - start);
+        byte[] data = new byte[length];
+        input.seek(start);
+        input.readFully(data, 0, length);
+        offset = uploadChunk(mSessionId, start, data, length, total);
+        // resumed from the committed offset by the caller
+        if (offset != SESSION_LOST && offset < end)
+            throw new RequestFailException("Upload session out of sync");
+        return offset;
+    }
+
+    /**
+     * Discard the saved session, e.g. after the upload is abandoned
+     */
+    public void clear() {
+        if (mKey != null) mPrefs.edit().remove(mKey).apply();
+        mSessionId = null;
+        mOffset = 0;
+    }
+
+    /**
+     * Remove the sessions saved too long ago, e.g. of uploads that were never resumed
+     */
+    private void prune() {
+        long oldest = now() - CloudProvider.UPLOAD_SESSION_MAX_AGE;
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            long saved = 0;
+            try {
+                saved = new JSONObject(String.valueOf(entry.getValue())).optLong(KEY_SAVED);
+            } catch (JSONException e) {
+                // unreadable state is pruned too
+            }
+            if (saved >= oldest) continue;
+
+            if (editor == null) editor = mPrefs.edit();
+            editor.remove(entry.getKey());
+        }
+        if (editor != null) editor.apply();
+    }
+
+    /**
+     * Current time in milliseconds
+     *
+     * @return long
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void reportProgress() {
+        ApiTask.reportProgress(mOffset - mProgress);
+        mProgress = mOffset;
+    }
+
+    private void restore() {
+        if (mKey == null) return;
+        String state = mPrefs.getString(mKey, null);
+        if (state == null) return;
+
+        try {
+            JSONObject jsonObject = new JSONObject(state);
+            mSessionId = jsonObject.getString(KEY_SESSION);
+            mOffset = jsonObject.getLong(KEY_OFFSET);
+            mChunkSize = jsonObject.getInt(KEY_CHUNK_SIZE);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            clear();
+        }
+    }
+
+    /**
+     * Save the session state and report the change of the committed offset
+     */
+    private void save() {
+        reportProgress();
+        if (mKey == null) return;
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(KEY_SESSION, mSessionId);
+            jsonObject.put(KEY_OFFSET, mOffset);
+            jsonObject.put(KEY_CHUNK_SIZE, mChunkSize);
+            jsonObject.put(KEY_SAVED, now());
+            mPrefs.edit().putString(mKey, jsonObject.toString()).apply();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -24,6 +24,7 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -31,19 +32,27 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
 import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
 import com.he5ed.lib.cloudprovider.models.User;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
 import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.he5ed.lib.cloudprovider.utils.JsonUtils;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
 import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.FormEncodingBuilder;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.MultipartBuilder;
-import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -53,12 +62,15 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import okio.BufferedSink;
 
@@ -93,6 +105,8 @@ public class CloudDriveApi extends BaseApi {
     public static final int ICON_RESOURCE = R.drawable.ic_amazon_color_24dp;
     public static final String TAG = "CloudDriveApi";
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // maximum number of ids in a nodes filter
+    private static final int FILTER_SIZE = 50;
 
     /**
      * Build authorization url base on type of cloud service
@@ -235,6 +249,8 @@ public class CloudDriveApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("created_at"));
             if (jsonObject.has("modified_at"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("modified_at"));
+            if (!jsonObject.isNull("eTagResponse"))
+                map.put(CFolder.ETAG, jsonObject.getString("eTagResponse"));
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -259,6 +275,11 @@ public class CloudDriveApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("created_at"));
             if (jsonObject.has("modified_at"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("modified_at"));
+            if (!jsonObject.isNull("eTagResponse"))
+                map.put(CFolder.ETAG, jsonObject.getString("eTagResponse"));
+            JSONObject content = jsonObject.optJSONObject("contentProperties");
+            if (content != null && content.has("size"))
+                map.put(CFile.SIZE, content.getLong("size"));
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -270,11 +291,12 @@ public class CloudDriveApi extends BaseApi {
     private Context mContext;
     private CloudProvider mCloudProvider;
     private Account mAccount;
-    private BaseApi.OnPrepareListener mPrepareListener;
-    private OkHttpClient mHttpClient;
-    private String mAccessToken;
-    private String mContentUrl;
-    private String mMetadataUrl;
+    private MetadataCache mCache;
+    private ThumbnailCache mThumbnails;
+    private volatile BaseApi.OnPrepareListener mPrepareListener;
+    private volatile String mAccessToken;
+    private volatile String mContentUrl;
+    private volatile String mMetadataUrl;
 
     /**
      * Constructor for Cloud Drive API
@@ -285,11 +307,22 @@ public class CloudDriveApi extends BaseApi {
         mContext = context;
         mAccount = account;
         mCloudProvider = CloudProvider.getInstance(mContext);
-        mHttpClient = new OkHttpClient();
+        mCache = mCloudProvider.getMetadataCache(mAccount.name);
+        mThumbnails = mCloudProvider.getThumbnailCache();
     }
 
     @Override
-    public synchronized void prepareApi(BaseApi.OnPrepareListener prepareListener) {
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    @Override
+    protected Context getContext() {
+        return mContext;
+    }
+
+    @Override
+    public void prepareApi(BaseApi.OnPrepareListener prepareListener) {
         mPrepareListener = prepareListener;
 
         AccountManager.get(mContext).getAuthToken(mAccount, CloudProvider.AUTH_TYPE, false,
@@ -328,7 +361,7 @@ public class CloudDriveApi extends BaseApi {
     private void validateAccessToken() {
         Request request = getEndPointRequest(mAccessToken);
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Request request, IOException e) {
                 e.printStackTrace();
@@ -379,7 +412,7 @@ public class CloudDriveApi extends BaseApi {
                     .post(getRefreshTokenBody(refreshToken))
                     .build();
 
-            mHttpClient.newCall(request).enqueue(new Callback() {
+            mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
                 @Override
                 public void onFailure(Request request, IOException e) {
                     e.printStackTrace();
@@ -448,68 +481,34 @@ public class CloudDriveApi extends BaseApi {
                 .post(body)
                 .build();
 
-        mHttpClient.newCall(request).enqueue(callback);
+        mCloudProvider.clientFor(request).newCall(request).enqueue(callback);
     }
 
     @Override
-    public synchronized List<Object> exploreFolder(@NonNull CFolder folder, int offset) throws RequestFailException {
+    public List<Object> exploreFolder(@NonNull final CFolder folder, int offset) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        // if folder id is empty set it to root id
-        if (TextUtils.isEmpty(folder.getId())) folder.setId(getRootId());
-
-        List<Object> list = new ArrayList<>();
-        String folderId = folder.getId();
-        Uri uri = Uri.parse(mMetadataUrl);
-        String url = uri.buildUpon()
-                .appendEncodedPath("nodes/" + folderId + "/children")
-                .build()
-                .toString();
-
-        Request request = new Request.Builder()
-                .url(url)
-                .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+        return mCache.get(MetadataCache.listKey(folder.getId()), new MetadataCache.Loader<List<Object>>() {
+            @Override
+            public List<Object> load() throws RequestFailException {
+                return exploreFolderPages(folder).readAll();
+            }
+        }, MetadataIndex.folderItemsStore(mContext, mAccount.name, folder));
+    }
 
-        try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                int total = jsonObject.getInt("count");
-                // return null if no item found
-                if (total == 0) return null;
+    @Override
+    public PageCursor exploreFolderPages(@NonNull final CFolder folder) {
+        return new PageCursor() {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                // if folder id is empty set it to root id
+                if (TextUtils.isEmpty(folder.getId())) folder.setId(getRootId());
 
-                JSONArray entries = jsonObject.getJSONArray("data");
-                list.addAll(createItemList(entries));
-                // pagination available
-                if (jsonObject.has("nextToken")) {
-                    list.addAll(exploreFolderContinue(folderId, jsonObject.getString("nextToken")));
-                }
-                return list;
-            } else {
-                switch (response.code()) {
-                    case 404:
-                        // no item found
-                        throw new RequestFailException("No item found");
-                    case 401:
-                        // unauthorized
-                        throw new RequestFailException("Unauthorized request");
-                    default:
-                        break;
-                }
+                return getChildren(folder.getId(), token);
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            throw new RequestFailException(e.getMessage());
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RequestFailException(e.getMessage());
-        }
-
-        return null;
+        };
     }
 
     /**
@@ -520,44 +519,59 @@ public class CloudDriveApi extends BaseApi {
      * @return List that contains CFile and CFolder
      * @throws RequestFailException that content various error types
      */
-    public synchronized List<Object> exploreFolderContinue(String folderId, String startToken) throws RequestFailException {
+    public List<Object> exploreFolderContinue(final String folderId, String startToken) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
+        return new PageCursor(startToken) {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return getChildren(folderId, token);
+            }
+        }.readAll();
+    }
+
+    /**
+     * Get a single page of folder items
+     *
+     * @param folderId of the folder to explore
+     * @param startToken nextToken from previous request, null for the first page
+     * @return ItemPage with the nextToken as next token if more items available
+     * @throws RequestFailException that content various error types
+     */
+    private ItemPage getChildren(String folderId, @Nullable String startToken) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
 
         Uri uri = Uri.parse(mMetadataUrl);
-        String url = uri.buildUpon()
-                .appendEncodedPath("nodes/" + folderId + "/children")
-                .appendQueryParameter("startToken", startToken)
-                .build()
-                .toString();
+        Uri.Builder urlBuilder = uri.buildUpon()
+                .appendEncodedPath("nodes/" + folderId + "/children");
+        if (startToken != null)
+            urlBuilder.appendQueryParameter("startToken", startToken);
 
         Request request = new Request.Builder()
-                .url(url)
+                .url(urlBuilder.build().toString())
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
                 .get()
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("data");
-                if (entries.length() > 0) {
-                    list.addAll(createItemList(entries));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
-                // pagination available
-                if (jsonObject.has("nextToken")) {
-                    list.addAll(exploreFolderContinue(folderId, jsonObject.getString("nextToken")));
-                }
-                return list;
+                return readItemPage(response);
             } else {
-                throw new RequestFailException(response.message(), response.code());
+                switch (response.code()) {
+                    case 404:
+                        // no item found
+                        throw new RequestFailException("No item found");
+                    case 401:
+                        // unauthorized
+                        throw new RequestFailException("Unauthorized request");
+                    default:
+                        throw new RequestFailException(response.message(), response.code());
+                }
             }
         } catch (JSONException e) {
             e.printStackTrace();
@@ -579,28 +593,53 @@ public class CloudDriveApi extends BaseApi {
     }
 
     @Override
-    public CFolder getFolderInfo(@NonNull String folderId) throws RequestFailException {
+    public CFolder getFolderInfo(@NonNull final String folderId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        return mCache.get(MetadataCache.folderKey(folderId), new MetadataCache.Loader<CFolder>() {
+            @Override
+            public CFolder load() throws RequestFailException {
+                return fetchFolderInfo(folderId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the folder metadata from the cloud server bypassing the metadata cache
+     *
+     * @param folderId of the folder
+     * @return CFolder
+     * @throws RequestFailException
+     */
+    private CFolder fetchFolderInfo(String folderId) throws RequestFailException {
         Uri uri = Uri.parse(mMetadataUrl);
         String url = uri.buildUpon()
                 .appendEncodedPath("nodes/" + folderId)
                 .build()
                 .toString();
 
-        Request request = new Request.Builder()
+        // revalidate the cached copy if any
+        CFolder cached = (CFolder) mCache.peek(MetadataCache.folderKey(folderId));
+        Request.Builder builder = new Request.Builder()
                 .url(url)
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+                .get();
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -657,10 +696,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -716,10 +758,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -777,10 +822,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -833,9 +881,11 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "CFolder with the id: " + folder.getName() + " deleted");
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, folder.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -846,28 +896,183 @@ public class CloudDriveApi extends BaseApi {
     }
 
     @Override
-    public CFile getFileInfo(@NonNull String fileId) throws RequestFailException {
+    public CFile getFileInfo(@NonNull final String fileId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        return mCache.get(MetadataCache.fileKey(fileId), new MetadataCache.Loader<CFile>() {
+            @Override
+            public CFile load() throws RequestFailException {
+                return fetchFileInfo(fileId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the file metadata from the cloud server bypassing the metadata cache
+     *
+     * @param fileId of the file
+     * @return CFile
+     * @throws RequestFailException
+     */
+    private CFile fetchFileInfo(String fileId) throws RequestFailException {
         Uri uri = Uri.parse(mMetadataUrl);
         String url = uri.buildUpon()
                 .appendEncodedPath("nodes/" + fileId)
                 .build()
                 .toString();
 
-        Request request = new Request.Builder()
+        // revalidate the cached copy if any
+        CFile cached = (CFile) mCache.peek(MetadataCache.fileKey(fileId));
+        Request.Builder builder = new Request.Builder()
                 .url(url)
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .get();
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void getFilesInfo(@NonNull Collection<String> fileIds,
+                             @NonNull OnInfoListener<CFile> listener)
+            throws RequestFailException {
+        getNodes(fileIds, CFile.class, listener);
+    }
+
+    @Override
+    public void getFoldersInfo(@NonNull Collection<String> folderIds,
+                               @NonNull OnInfoListener<CFolder> listener)
+            throws RequestFailException {
+        getNodes(folderIds, CFolder.class, listener);
+    }
+
+    /**
+     * Get the metadata of many nodes, {@link #FILTER_SIZE} ids per filtered nodes request. The
+     * filtered request is served from a search index that may lag behind the latest changes,
+     * the nodes it leaves out are requested one by one.
+     *
+     * @param ids of the nodes
+     * @param type of the nodes, CFile or CFolder
+     * @param listener to receive the nodes
+     * @throws RequestFailException if a nodes request failed as a whole
+     */
+    private <T> void getNodes(Collection<String> ids, Class<T> type, OnInfoListener<T> listener)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        List<String> items = new ArrayList<>(ids);
+        for (int start = 0; start < items.size(); start += FILTER_SIZE) {
+            Set<String> pending = new LinkedHashSet<>(
+                    items.subList(start, Math.min(start + FILTER_SIZE, items.size())));
+            StringBuilder filters = new StringBuilder();
+            for (String id : pending) {
+                if (filters.length() > 0) filters.append(" OR ");
+                filters.append("id:").append(quoteFilter(id));
+            }
+
+            String startToken = null;
+            do {
+                HttpUrl.Builder urlBuilder = HttpUrl.parse(mMetadataUrl).newBuilder()
+                        .addPathSegment("nodes")
+                        .addQueryParameter("filters", filters.toString());
+                if (startToken != null)
+                    urlBuilder.addQueryParameter("startToken", startToken);
+
+                Request request = new Request.Builder()
+                        .url(urlBuilder.build().toString())
+                        .header("Authorization", String.format("Bearer %s", mAccessToken))
+                        .get()
+                        .build();
+
+                ItemPage page;
+                try {
+                    Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                    if (response.isSuccessful()) {
+                        page = readItemPage(response);
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+
+                for (Object item : page.items) {
+                    String id = item instanceof CFile ?
+                            ((CFile) item).getId() : ((CFolder) item).getId();
+                    // a file asked as a folder or the other way round is not found
+                    if (!type.isInstance(item) || !pending.remove(id)) continue;
+                    putNode(id, item);
+                    listener.onInfo(id, type.cast(item));
+                }
+                startToken = page.hasMore() ? page.nextToken : null;
+            } while (startToken != null);
+
+            for (String id : pending) {
+                try {
+                    Object item = fetchNode(id);
+                    if (type.isInstance(item)) {
+                        putNode(id, item);
+                        listener.onInfo(id, type.cast(item));
+                    } else {
+                        listener.onInfoFail(id, new RequestFailException("No item found", 404));
+                    }
+                } catch (RequestFailException e) {
+                    listener.onInfoFail(id, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a single node from the cloud server bypassing the search index
+     *
+     * @param id of the node
+     * @return CFile or CFolder, null if the kind is unknown
+     * @throws RequestFailException with the 404 code if the node does not exist
+     */
+    private Object fetchNode(String id) throws RequestFailException {
+        Request request = new Request.Builder()
+                .url(HttpUrl.parse(mMetadataUrl).newBuilder()
+                        .addPathSegment("nodes")
+                        .addPathSegment(id)
+                        .build())
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
                 .get()
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                return createItem(new JSONObject(response.body().string()));
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -880,6 +1085,28 @@ public class CloudDriveApi extends BaseApi {
         }
     }
 
+    /**
+     * Keep a node fetched by id in the metadata cache and index
+     *
+     * @param id of the node
+     * @param item CFile or CFolder
+     */
+    private void putNode(String id, Object item) {
+        mCache.put(item instanceof CFile ?
+                MetadataCache.fileKey(id) : MetadataCache.folderKey(id), item);
+        MetadataIndex.putItem(mContext, mAccount.name, null, item);
+    }
+
+    /**
+     * Quote a value of a nodes filter, ids may contain characters of the filter syntax
+     *
+     * @param value to be matched as is
+     * @return quoted value
+     */
+    private static String quoteFilter(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
     @Override
     public CFile uploadFile(@NonNull File file, @Nullable CFolder parent) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
@@ -921,10 +1148,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = executeUpload(request);
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -964,10 +1194,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = executeUpload(request);
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -980,6 +1213,134 @@ public class CloudDriveApi extends BaseApi {
         }
     }
 
+    @Override
+    public CFile uploadFile(@NonNull InputStream content, long length, @NonNull String name,
+                            @Nullable CFolder parent) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        Uri uri = Uri.parse(mContentUrl);
+        String url = uri.buildUpon()
+                .appendEncodedPath("nodes")
+                .build()
+                .toString();
+
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            params.put("name", name);
+            params.put("kind", "FILE");
+            ArrayList<String> parentList = new ArrayList<>();
+            parentList.add(parent != null ? parent.getId() : getRoot().getId());
+            params.put("parents", new JSONArray(parentList));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        // content of unknown length is sent with chunked transfer encoding
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(name));
+        RequestBody multipart = new MultipartBuilder()
+                .type(MultipartBuilder.FORM)
+                .addFormDataPart("metadata", params.toString())
+                .addFormDataPart("content", name,
+                        new StreamRequestBody(fileType, content, length))
+                .build();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(multipart)
+                .build();
+
+        try {
+            // stream can not be read again, so the upload is not retried
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public CFile updateFile(@NonNull CFile file, @NonNull InputStream content, long length)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        Uri uri = Uri.parse(mContentUrl);
+        String url = uri.buildUpon()
+                .appendEncodedPath("nodes/" + file.getId() + "/content")
+                .build()
+                .toString();
+
+        // content of unknown length is sent with chunked transfer encoding
+        MediaType fileType = MediaType.parse(FilesUtils.getFileType(file.getName()));
+        RequestBody multipart = new MultipartBuilder()
+                .type(MultipartBuilder.FORM)
+                .addFormDataPart("content", file.getName(),
+                        new StreamRequestBody(fileType, content, length))
+                .build();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .put(multipart)
+                .build();
+
+        try {
+            // stream can not be read again, so the upload is not retried
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Cloud Drive has no resumable upload, retry the whole upload on connection failure
+     *
+     * @param request of the upload
+     * @return Response
+     * @throws IOException if all the attempts failed
+     */
+    private Response executeUpload(Request request) throws IOException {
+        for (int retry = 0; ; retry++) {
+            try {
+                return ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            } catch (IOException e) {
+                if (retry >= CloudProvider.UPLOAD_RETRY_COUNT) throw e;
+                Log.w(TAG, "Upload failed, retrying: " + e.getMessage());
+            }
+        }
+    }
+
     @Override
     public CFile renameFile(@NonNull CFile file, String name) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
@@ -1023,10 +1384,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1081,10 +1445,13 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, folder != null ? folder : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1115,17 +1482,46 @@ public class CloudDriveApi extends BaseApi {
                 .get()
                 .build();
 
-        try {
-            File localFile = new File(mContext.getFilesDir(),
-                    TextUtils.isEmpty(filename) ? file.getName() : filename);
+        File localFile = new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? file.getName() : filename);
+        return new SegmentedDownload(mCloudProvider, request, localFile)
+                .parallel(mCloudProvider.getExecutor(), CloudProvider.DOWNLOAD_CONCURRENCY)
+                .download();
+    }
+
+    @Override
+    public void discardDownload(@NonNull CFile file, @Nullable String filename) {
+        SegmentedDownload.discard(new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? file.getName() : filename));
+    }
+
+    @Override
+    public InputStream openStream(@NonNull CFile file) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        Uri uri = Uri.parse(mContentUrl);
+        String url = uri.buildUpon()
+                .appendEncodedPath("nodes/" + file.getId() + "/content")
+                .build()
+                .toString();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .get()
+                .build();
 
-            Response response = mHttpClient.newCall(request).execute();
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(localFile));
+                // body is handed over to the caller who is responsible to close it
+                return response.body().byteStream();
             } else {
+                response.body().close();
                 throw new RequestFailException(response.message(), response.code());
             }
-            return localFile;
         } catch (IOException e) {
             e.printStackTrace();
             throw new RequestFailException(e.getMessage());
@@ -1172,9 +1568,11 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "File with the id: " + file.getName() + " deleted");
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, file.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1239,7 +1637,33 @@ public class CloudDriveApi extends BaseApi {
     }
 
     @Override
-    public File getThumbnail(@NonNull CFile file) throws RequestFailException {
+    public File getThumbnail(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getFile(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return fetchThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Bitmap getThumbnailBitmap(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getBitmap(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return getThumbnail(file);
+            }
+        });
+    }
+
+    /**
+     * Download the thumbnail from the cloud server
+     *
+     * @param file to retrieve the thumbnail
+     * @return File in binary format, null if not available
+     * @throws RequestFailException
+     */
+    private File fetchThumbnail(@NonNull CFile file) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -1259,7 +1683,7 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 if (jsonObject.has("assets")) {
@@ -1304,9 +1728,9 @@ public class CloudDriveApi extends BaseApi {
         try {
             File localFile = new File(mContext.getFilesDir(), filename);
 
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(localFile));
+                FilesUtils.writeToFile(response.body().source(), localFile);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1317,41 +1741,187 @@ public class CloudDriveApi extends BaseApi {
         }
     }
 
+    @Override
+    public ChangeSet getChanges(@Nullable String cursor) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            if (cursor != null)
+                params.put("checkpoint", cursor);
+            params.put("includePurged", "true");
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
+        Uri uri = Uri.parse(mMetadataUrl);
+        String url = uri.buildUpon()
+                .appendEncodedPath("changes")
+                .build()
+                .toString();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(body)
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                ChangeSet changes = new ChangeSet();
+                // without checkpoint the whole drive is returned, only keep the checkpoint
+                readChanges(response, changes, cursor != null);
+                return changes;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
     /**
-     * Create files or folders from the JSONArray search result
+     * Read the changes stream from the response body. The body is a sequence of JSON objects
+     * each contains a checkpoint and a batch of nodes, the last object only contains the end
+     * flag.
      *
-     * @param jsonArray that contain files and folders information
-     * @return list that contains CFile and CFolder
-     * @throws RequestFailException
+     * @param response of the changes request
+     * @param changes to add the changed and deleted items into
+     * @param collect false to skip the nodes and only keep the checkpoint
+     * @throws IOException
+     * @throws JSONException
      */
-    private List<Object> createItemList(JSONArray jsonArray) throws RequestFailException {
-        if (jsonArray == null || jsonArray.length() == 0) return null;
+    private void readChanges(Response response, ChangeSet changes, boolean collect)
+            throws IOException, JSONException {
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        // multiple top level objects in one body
+        reader.setLenient(true);
+        try {
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "checkpoint":
+                            changes.setCursor(reader.nextString());
+                            break;
+                        case "reset":
+                            if (reader.nextBoolean() && collect) changes.setReset(true);
+                            break;
+                        case "nodes":
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                JSONObject jsonObject = JsonUtils.readObject(reader);
+                                if (!collect) continue;
+
+                                String id = jsonObject.getString("id");
+                                String status = jsonObject.optString("status");
+                                if (status.equals("TRASH") || status.equals("PURGED")) {
+                                    changes.putDeleted(id);
+                                } else {
+                                    Object item = createItem(jsonObject);
+                                    JSONArray parents = jsonObject.optJSONArray("parents");
+                                    String parentId = parents != null && parents.length() > 0 ?
+                                            parents.getString(0) : null;
+                                    if (item != null) changes.putChanged(id, item, parentId);
+                                }
+                            }
+                            reader.endArray();
+                            break;
+                        default:
+                            reader.skipValue();
+                            break;
+                    }
+                }
+                reader.endObject();
+            }
+        } finally {
+            reader.close();
+        }
+    }
 
-        List<Object> list = new ArrayList<>();
+    /**
+     * Read a page of node children from the response body one entry at a time, only the entry
+     * being converted is held in memory
+     *
+     * @param response of the children request
+     * @return ItemPage with the start token of the following page as next token
+     * @throws IOException
+     * @throws JSONException
+     */
+    private ItemPage readItemPage(Response response) throws IOException, JSONException {
+        ItemPage page = new ItemPage();
 
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject jsonObject = jsonArray.getJSONObject(i);
-                String type = jsonObject.getString("kind");
-                switch (type.toLowerCase()) {
-                    case "file":
-                        list.add(buildFile(jsonObject));
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "count":
+                        page.total = reader.nextInt();
+                        break;
+                    case "nextToken":
+                        page.nextToken = reader.nextString();
                         break;
-                    case "folder":
-                        list.add(buildFolder(jsonObject));
+                    case "data":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Object item = createItem(JsonUtils.readObject(reader));
+                            if (item != null) page.items.add(item);
+                        }
+                        reader.endArray();
                         break;
                     default:
-                        Log.e(TAG, "Unknown type found");
+                        reader.skipValue();
                         break;
                 }
-
-            } catch (JSONException e) {
-                e.printStackTrace();
-                throw new RequestFailException(e.getMessage());
             }
+            reader.endObject();
+        } finally {
+            reader.close();
         }
 
-        return list;
+        return page;
+    }
+
+    /**
+     * Create file or folder from the JSONObject node
+     *
+     * @param jsonObject that contain file or folder information
+     * @return CFile or CFolder, null if the kind is unknown
+     * @throws JSONException
+     */
+    private Object createItem(JSONObject jsonObject) throws JSONException {
+        String type = jsonObject.getString("kind");
+        switch (type.toLowerCase()) {
+            case "file":
+                return buildFile(jsonObject);
+            case "folder":
+                return buildFolder(jsonObject);
+            default:
+                Log.e(TAG, "Unknown type found");
+                return null;
+        }
     }
 
     /**
@@ -1374,7 +1944,7 @@ public class CloudDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 JSONArray entries = jsonObject.getJSONArray("data");
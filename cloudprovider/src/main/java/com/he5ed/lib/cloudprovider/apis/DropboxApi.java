@@ -24,6 +24,7 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -31,18 +32,24 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
 import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
 import com.he5ed.lib.cloudprovider.models.User;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
 import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.he5ed.lib.cloudprovider.utils.JsonUtils;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
 import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.FormEncodingBuilder;
 import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -52,15 +59,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
 
 /**
  * Dropbox cloud service API implementation
@@ -94,6 +103,11 @@ public class DropboxApi extends BaseApi {
     public static final int ICON_RESOURCE = R.drawable.ic_dropbox_color_24dp;
     public static final String TAG = "DropboxApi";
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    public static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+    // maximum number of entries of a thumbnail batch
+    private static final int THUMBNAIL_BATCH_SIZE = 25;
+    // maximum number of entries of a delete or move batch
+    private static final int BATCH_SIZE = 1000;
 
     /**
      * Build authorization url base on type of cloud service
@@ -238,6 +252,10 @@ public class DropboxApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("created_at"));
             if (jsonObject.has("client_modified"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("client_modified"));
+            if (!jsonObject.isNull("rev"))
+                map.put(CFolder.ETAG, jsonObject.getString("rev"));
+            if (jsonObject.has("size"))
+                map.put(CFile.SIZE, jsonObject.getLong("size"));
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -249,9 +267,10 @@ public class DropboxApi extends BaseApi {
     private Context mContext;
     private CloudProvider mCloudProvider;
     private Account mAccount;
-    private OnPrepareListener mPrepareListener;
-    private OkHttpClient mHttpClient;
-    private String mAccessToken;
+    private MetadataCache mCache;
+    private ThumbnailCache mThumbnails;
+    private volatile OnPrepareListener mPrepareListener;
+    private volatile String mAccessToken;
 
     /**
      * Constructor for Dropbox API
@@ -262,11 +281,22 @@ public class DropboxApi extends BaseApi {
         mContext = context;
         mAccount = account;
         mCloudProvider = CloudProvider.getInstance(mContext);
-        mHttpClient = new OkHttpClient();
+        mCache = mCloudProvider.getMetadataCache(mAccount.name);
+        mThumbnails = mCloudProvider.getThumbnailCache();
     }
 
     @Override
-    public synchronized void prepareApi(BaseApi.OnPrepareListener prepareListener) {
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    @Override
+    protected Context getContext() {
+        return mContext;
+    }
+
+    @Override
+    public void prepareApi(BaseApi.OnPrepareListener prepareListener) {
         mPrepareListener = prepareListener;
 
         AccountManager.get(mContext).getAuthToken(mAccount, CloudProvider.AUTH_TYPE, false,
@@ -305,7 +335,7 @@ public class DropboxApi extends BaseApi {
     private void validateAccessToken() {
         Request request = getUserInfoRequest(mAccessToken);
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Request request, IOException e) {
                 e.printStackTrace();
@@ -367,16 +397,64 @@ public class DropboxApi extends BaseApi {
                 .post(body)
                 .build();
 
-        mHttpClient.newCall(request).enqueue(callback);
+        mCloudProvider.clientFor(request).newCall(request).enqueue(callback);
     }
 
     @Override
-    public synchronized List<Object> exploreFolder(@NonNull CFolder folder, int offset) throws RequestFailException {
+    public List<Object> exploreFolder(@NonNull final CFolder folder, int offset) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
+        return mCache.get(MetadataCache.listKey(folder.getId()), new MetadataCache.Loader<List<Object>>() {
+            @Override
+            public List<Object> load() throws RequestFailException {
+                return exploreFolderPages(folder).readAll();
+            }
+        }, MetadataIndex.folderItemsStore(mContext, mAccount.name, folder));
+    }
+
+    @Override
+    public PageCursor exploreFolderPages(@NonNull final CFolder folder) {
+        return new PageCursor() {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return token == null ? listFolder(folder) : listFolderContinue(token);
+            }
+        };
+    }
+
+    /**
+     * Get continue folder items
+     *
+     * @param cursor id from the previous request
+     * @return List that contains CFile and CFolder
+     * @throws RequestFailException that content various error types
+     */
+    public List<Object> exploreFolderContinue(String cursor) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        return new PageCursor(cursor) {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return listFolderContinue(token);
+            }
+        }.readAll();
+    }
+
+    /**
+     * Get the first page of folder items
+     *
+     * @param folder to explore
+     * @return ItemPage with the cursor as next token if more items available
+     * @throws RequestFailException that content various error types
+     */
+    private ItemPage listFolder(@NonNull CFolder folder) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
 
         // create parameter as json
         final JSONObject params= new JSONObject();
@@ -409,21 +487,9 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("entries");
-                if (entries.length() > 0) {
-                    list.addAll(createItemList(entries));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
-                // expect more search result
-                if (jsonObject.getBoolean("has_more")) {
-                    list.addAll(exploreFolderContinue(jsonObject.getString("cursor")));
-                }
-                return list;
+                return readItemPage(response);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -437,19 +503,17 @@ public class DropboxApi extends BaseApi {
     }
 
     /**
-     * Get continue folder items
+     * Get the following page of folder items
      *
      * @param cursor id from the previous request
-     * @return List that contains CFile and CFolder
+     * @return ItemPage with the cursor as next token if more items available
      * @throws RequestFailException that content various error types
      */
-    public synchronized List<Object> exploreFolderContinue(String cursor) throws RequestFailException {
+    private ItemPage listFolderContinue(String cursor) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
-
         // create parameter as json
         final JSONObject params= new JSONObject();
         try {
@@ -478,21 +542,9 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("entries");
-                if (entries.length() > 0) {
-                    list.addAll(createItemList(entries));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
-                // expect more search result
-                if (jsonObject.getBoolean("has_more")) {
-                    list.addAll(exploreFolderContinue(jsonObject.getString("cursor")));
-                }
-                return list;
+                return readItemPage(response);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -517,11 +569,27 @@ public class DropboxApi extends BaseApi {
     }
 
     @Override
-    public CFolder getFolderInfo(@NonNull String folderId) throws RequestFailException {
+    public CFolder getFolderInfo(@NonNull final String folderId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        return mCache.get(MetadataCache.folderKey(folderId), new MetadataCache.Loader<CFolder>() {
+            @Override
+            public CFolder load() throws RequestFailException {
+                return fetchFolderInfo(folderId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the folder metadata from the cloud server bypassing the metadata cache
+     *
+     * @param folderId of the folder
+     * @return CFolder
+     * @throws RequestFailException
+     */
+    private CFolder fetchFolderInfo(String folderId) throws RequestFailException {
         // create parameter as json
         final JSONObject params= new JSONObject();
         try {
@@ -551,10 +619,11 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -601,10 +670,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -655,10 +727,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -710,10 +785,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -760,9 +838,11 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "CFolder with the id: " + folder.getName() + " deleted");
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, folder.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -773,11 +853,27 @@ public class DropboxApi extends BaseApi {
     }
 
     @Override
-    public CFile getFileInfo(@NonNull String fileId) throws RequestFailException {
+    public CFile getFileInfo(@NonNull final String fileId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        return mCache.get(MetadataCache.fileKey(fileId), new MetadataCache.Loader<CFile>() {
+            @Override
+            public CFile load() throws RequestFailException {
+                return fetchFileInfo(fileId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the file metadata from the cloud server bypassing the metadata cache
+     *
+     * @param fileId of the file
+     * @return CFile
+     * @throws RequestFailException
+     */
+    private CFile fetchFileInfo(String fileId) throws RequestFailException {
         // create parameter as json
         final JSONObject params= new JSONObject();
         try {
@@ -807,10 +903,11 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -840,18 +937,16 @@ public class DropboxApi extends BaseApi {
             throw new RequestFailException(e.getMessage());
         }
 
-        RequestBody fileBody = new RequestBody() {
-            @Override
-            public MediaType contentType() {
-                return null;
-            }
+        // large file go through a resumable upload session
+        if (file.length() > CloudProvider.CHUNKED_UPLOAD_THRESHOLD) {
+            CFile newFile = newUploadSession(params).upload(file);
+            mCache.invalidateItem(null);
+            MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+            return newFile;
+        }
 
-            @Override
-            public void writeTo(BufferedSink sink) throws IOException {
-                // copy file into RequestBody
-                FilesUtils.copyFile(new FileInputStream(file), sink.outputStream());
-            }
-        };
+        // file is streamed into the request segment by segment
+        RequestBody fileBody = RequestBody.create(null, file);
 
         Request request = new Request.Builder()
                 .url(API_CONTENT_URL + "/files/upload ")
@@ -862,10 +957,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -895,18 +993,16 @@ public class DropboxApi extends BaseApi {
             throw new RequestFailException(e.getMessage());
         }
 
-        RequestBody fileBody = new RequestBody() {
-            @Override
-            public MediaType contentType() {
-                return null;
-            }
+        // large file go through a resumable upload session
+        if (content.length() > CloudProvider.CHUNKED_UPLOAD_THRESHOLD) {
+            CFile newFile = newUploadSession(params).upload(content);
+            mCache.invalidateItem(file.getId());
+            MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+            return newFile;
+        }
 
-            @Override
-            public void writeTo(BufferedSink sink) throws IOException {
-                // copy file into RequestBody
-                FilesUtils.copyFile(new FileInputStream(content), sink.outputStream());
-            }
-        };
+        // file is streamed into the request segment by segment
+        RequestBody fileBody = RequestBody.create(null, content);
 
         Request request = new Request.Builder()
                 .url(API_CONTENT_URL + "/files/upload ")
@@ -917,7 +1013,91 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public CFile uploadFile(@NonNull InputStream content, long length, @NonNull String name,
+                            @Nullable CFolder parent) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            params.put("path", (parent != null ? parent.getPath() : getRoot().getPath()) + "/" + name);
+            params.put("mode", "add");
+            params.put("autorename", false);
+            params.put("mute", false);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        CFile newFile = uploadContent(content, length, params);
+        mCache.invalidateItem(null);
+        MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+        return newFile;
+    }
+
+    @Override
+    public CFile updateFile(@NonNull CFile file, @NonNull InputStream content, long length)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            params.put("path", file.getPath());
+            params.put("mode", "overwrite");
+            params.put("autorename", false);
+            params.put("mute", false);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        CFile newFile = uploadContent(content, length, params);
+        mCache.invalidateItem(file.getId());
+        MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+        return newFile;
+    }
+
+    /**
+     * Upload the content of a stream, content of unknown length or larger than the chunked
+     * upload threshold go through an upload session
+     *
+     * @param content to upload
+     * @param length of the content in bytes, -1 if unknown
+     * @param commit parameters of the upload as json, i.e. path and write mode
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    private CFile uploadContent(InputStream content, long length, JSONObject commit)
+            throws RequestFailException {
+        if (length < 0 || length > CloudProvider.CHUNKED_UPLOAD_THRESHOLD)
+            return newUploadSession(commit).upload(content, length);
+
+        try {
+            Response response = postContent("/files/upload", commit,
+                    new StreamRequestBody(OCTET_STREAM, content, length));
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 return buildFile(jsonObject);
@@ -933,6 +1113,125 @@ public class DropboxApi extends BaseApi {
         }
     }
 
+    /**
+     * Create upload of large content in chunks through an upload session
+     *
+     * @param commit parameters of the upload as json, i.e. path and write mode
+     * @return ChunkedUpload
+     */
+    private ChunkedUpload newUploadSession(final JSONObject commit) {
+        String target = commit.optString("path") + "|" + commit.optString("mode");
+        return new ChunkedUpload(mContext, mAccount.name, target) {
+            @Override
+            protected String startSession(long total) throws RequestFailException {
+                try {
+                    JSONObject params = new JSONObject();
+                    params.put("close", false);
+                    Response response = postContent("/files/upload_session/start", params,
+                            RequestBody.create(OCTET_STREAM, new byte[0]));
+                    if (response.isSuccessful()) {
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        return jsonObject.getString("session_id");
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected long resumeSession(String sessionId, long offset) throws RequestFailException {
+                // session can not be queried, a wrong offset is corrected by the next append
+                return offset;
+            }
+
+            @Override
+            protected long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                       long total) throws RequestFailException {
+                try {
+                    JSONObject params = new JSONObject();
+                    params.put("cursor", new JSONObject()
+                            .put("session_id", sessionId)
+                            .put("offset", offset));
+                    params.put("close", false);
+                    Response response = postContent("/files/upload_session/append_v2", params,
+                            RequestBody.create(OCTET_STREAM, data, 0, length));
+                    if (response.isSuccessful()) {
+                        response.body().close();
+                        return offset + length;
+                    } else if (response.code() == 409) {
+                        JSONObject error = new JSONObject(response.body().string())
+                                .getJSONObject("error");
+                        // server committed a different offset than expected
+                        if (error.getString(".tag").equals("incorrect_offset"))
+                            return error.getLong("correct_offset");
+                        // session expired or closed
+                        return SESSION_LOST;
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected CFile finishSession(String sessionId, long total) throws RequestFailException {
+                try {
+                    JSONObject params = new JSONObject();
+                    params.put("cursor", new JSONObject()
+                            .put("session_id", sessionId)
+                            .put("offset", total));
+                    params.put("commit", commit);
+                    Response response = postContent("/files/upload_session/finish", params,
+                            RequestBody.create(OCTET_STREAM, new byte[0]));
+                    if (response.isSuccessful()) {
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        return buildFile(jsonObject);
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Send request to the content endpoint with the parameters in the Dropbox-API-Arg header
+     *
+     * @param endpoint path of the endpoint
+     * @param params of the request as json
+     * @param body of the request
+     * @return Response
+     * @throws IOException
+     */
+    private Response postContent(String endpoint, JSONObject params, RequestBody body)
+            throws IOException {
+        Request request = new Request.Builder()
+                .url(API_CONTENT_URL + endpoint)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .header("Dropbox-API-Arg", params.toString())
+                .post(body)
+                .build();
+
+        return ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+    }
+
     @Override
     public CFile renameFile(@NonNull CFile file, String name) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
@@ -971,10 +1270,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1022,10 +1324,13 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, folder != null ? folder : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1072,17 +1377,63 @@ public class DropboxApi extends BaseApi {
                 .post(body)
                 .build();
 
+        File localFile = new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? file.getName() : filename);
+        return new SegmentedDownload(mCloudProvider, request, localFile)
+                .parallel(mCloudProvider.getExecutor(), CloudProvider.DOWNLOAD_CONCURRENCY)
+                .download();
+    }
+
+    @Override
+    public void discardDownload(@NonNull CFile file, @Nullable String filename) {
+        SegmentedDownload.discard(new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? file.getName() : filename));
+    }
+
+    @Override
+    public InputStream openStream(@NonNull CFile file) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // create parameter as json
+        final JSONObject params= new JSONObject();
         try {
-            File localFile = new File(mContext.getFilesDir(),
-                    TextUtils.isEmpty(filename) ? file.getName() : filename);
+            params.put("path", file.getId());
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        // need to create blank body to use post method
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+
+            }
+        };
+
+        Request request = new Request.Builder()
+                .url(API_CONTENT_URL + "/files/download")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .header("Dropbox-API-Arg", params.toString())
+                .post(body)
+                .build();
 
-            Response response = mHttpClient.newCall(request).execute();
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(localFile));
+                // body is handed over to the caller who is responsible to close it
+                return response.body().byteStream();
             } else {
+                response.body().close();
                 throw new RequestFailException(response.message(), response.code());
             }
-            return localFile;
         } catch (IOException e) {
             e.printStackTrace();
             throw new RequestFailException(e.getMessage());
@@ -1123,9 +1474,11 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "File with the id: " + file.getName() + " deleted");
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, file.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1136,35 +1489,267 @@ public class DropboxApi extends BaseApi {
     }
 
     @Override
-    public List<CFile> searchFile(@NonNull String keyword, CFolder folder) throws RequestFailException {
-        // check cast for search result
-        List<CFile> output = new ArrayList<>();
-        for (Object item : search(keyword, folder)) {
-            if (CFile.class.isAssignableFrom(item.getClass()))
-                output.add(CFile.class.cast(item));
+    public void deleteItems(@NonNull Collection<?> items, @NonNull OnBatchListener listener)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
         }
-        return output;
-    }
 
-    @Override
-    public List<CFolder> searchFolder(@NonNull String keyword, CFolder folder) throws RequestFailException {
-        // check cast for search result
-        List<CFolder> output = new ArrayList<>();
-        for (Object item : search(keyword, folder)) {
-            if (CFolder.class.isAssignableFrom(item.getClass()))
-                output.add(CFolder.class.cast(item));
+        List<Object> pending = new ArrayList<>();
+        for (Object item : items) {
+            if (getItemPath(item) != null) {
+                pending.add(item);
+            } else {
+                listener.onItemFail(item, new RequestFailException("Unknown item type"));
+            }
+        }
+
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Object> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            try {
+                JSONArray entries = new JSONArray();
+                for (Object item : batch) {
+                    entries.put(new JSONObject().put("path", getItemPath(item)));
+                }
+
+                // results are returned in the order of the entries
+                JSONArray results = runBatchJob("/files/delete_batch", "/files/delete_batch/check",
+                        new JSONObject().put("entries", entries));
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    JSONObject result = results.optJSONObject(i);
+                    if (result == null || !"success".equals(result.optString(".tag"))) {
+                        listener.onItemFail(item, getBatchFailure(result));
+                        continue;
+                    }
+
+                    String id = getItemId(item);
+                    mCache.invalidateItem(id);
+                    MetadataIndex.deleteItem(mContext, mAccount.name, id);
+                    listener.onItemDone(item, null);
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
         }
-        return output;
     }
 
     @Override
-    public List<Object> search(@NonNull String keyword, CFolder folder) throws RequestFailException {
+    public void moveItems(@NonNull Collection<?> items, @Nullable CFolder parent,
+                          @NonNull OnBatchListener listener)
+            throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        Map<String, Object> params = new HashMap<>();
-        params.put("path", folder.getPath());
+        List<Object> pending = new ArrayList<>();
+        for (Object item : items) {
+            if (getItemPath(item) != null) {
+                pending.add(item);
+            } else {
+                listener.onItemFail(item, new RequestFailException("Unknown item type"));
+            }
+        }
+
+        CFolder folder = parent != null ? parent : getRoot();
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Object> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            try {
+                JSONArray entries = new JSONArray();
+                for (Object item : batch) {
+                    String name = item instanceof CFile ?
+                            ((CFile) item).getName() : ((CFolder) item).getName();
+                    entries.put(new JSONObject()
+                            .put("from_path", getItemPath(item))
+                            .put("to_path", folder.getPath() + "/" + name));
+                }
+
+                // results are returned in the order of the entries
+                JSONArray results = runBatchJob("/files/move_batch_v2", "/files/move_batch/check_v2",
+                        new JSONObject().put("entries", entries).put("autorename", false));
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    JSONObject result = results.optJSONObject(i);
+                    if (result == null || !"success".equals(result.optString(".tag"))) {
+                        listener.onItemFail(item, getBatchFailure(result));
+                        continue;
+                    }
+
+                    Object moved = createItem(result.getJSONObject("success"));
+                    mCache.invalidateItem(getItemId(item));
+                    MetadataIndex.putItem(mContext, mAccount.name, folder, moved);
+                    listener.onItemDone(item, moved);
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start a batch job and wait for its completion, the job is checked less and less often
+     * from {@link CloudProvider#BATCH_POLL_INTERVAL} up to
+     * {@link CloudProvider#BATCH_POLL_MAX_INTERVAL}
+     *
+     * @param endpoint starting the batch job
+     * @param checkEndpoint returning the status of the batch job
+     * @param params of the batch job
+     * @return results of the entries of the batch job
+     * @throws RequestFailException if the batch job failed as a whole or is interrupted
+     */
+    private JSONArray runBatchJob(String endpoint, String checkEndpoint, JSONObject params)
+            throws RequestFailException {
+        try {
+            // small jobs may complete at once, others are run in the background
+            JSONObject status = postJson(endpoint, params);
+            String jobId = status.optString("async_job_id");
+            long interval = CloudProvider.BATCH_POLL_INTERVAL;
+            while ("async_job_id".equals(status.optString(".tag"))
+                    || "in_progress".equals(status.optString(".tag"))) {
+                Thread.sleep(interval);
+                interval = Math.min(interval * 2, CloudProvider.BATCH_POLL_MAX_INTERVAL);
+                status = postJson(checkEndpoint, new JSONObject().put("async_job_id", jobId));
+            }
+
+            if ("complete".equals(status.optString(".tag"))) {
+                return status.getJSONArray("entries");
+            } else {
+                JSONObject failed = status.optJSONObject("failed");
+                throw new RequestFailException("Batch job failed" +
+                        (failed != null ? ": " + failed.optString(".tag") : ""));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestFailException(e.getMessage(), e);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Send json parameters to an endpoint of the api and read the json result
+     *
+     * @param endpoint path of the endpoint
+     * @param params of the request as json
+     * @return result as json
+     * @throws RequestFailException
+     */
+    private JSONObject postJson(String endpoint, final JSONObject params)
+            throws RequestFailException {
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
+        Request request = new Request.Builder()
+                .url(API_BASE_URL + endpoint)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(body)
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                return new JSONObject(response.body().string());
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Get the failure of an entry of a batch job, e.g. path_lookup/not_found
+     *
+     * @param jsonObject of the entry result, null if the entry got no result
+     * @return RequestFailException
+     */
+    private static RequestFailException getBatchFailure(@Nullable JSONObject jsonObject) {
+        if (jsonObject == null) return new RequestFailException("No result");
+
+        // the reason is nested in objects named after their tag
+        StringBuilder reason = new StringBuilder();
+        JSONObject failure = jsonObject.optJSONObject("failure");
+        while (failure != null && failure.has(".tag")) {
+            String tag = failure.optString(".tag");
+            if (reason.length() > 0) reason.append('/');
+            reason.append(tag);
+            failure = failure.optJSONObject(tag);
+        }
+        // dropbox endpoint errors come with the 409 status
+        return new RequestFailException(
+                reason.length() > 0 ? reason.toString() : "Request failed", 409);
+    }
+
+    /**
+     * Get the path of a CFile or CFolder
+     *
+     * @param item CFile or CFolder
+     * @return path, null if the item is neither
+     */
+    private static String getItemPath(Object item) {
+        if (item instanceof CFile) return ((CFile) item).getPath();
+        if (item instanceof CFolder) return ((CFolder) item).getPath();
+        return null;
+    }
+
+    /**
+     * Get the id of a CFile or CFolder
+     *
+     * @param item CFile or CFolder
+     * @return id, null if the item is neither
+     */
+    private static String getItemId(Object item) {
+        if (item instanceof CFile) return ((CFile) item).getId();
+        if (item instanceof CFolder) return ((CFolder) item).getId();
+        return null;
+    }
+
+    @Override
+    public List<CFile> searchFile(@NonNull String keyword, CFolder folder) throws RequestFailException {
+        // check cast for search result
+        List<CFile> output = new ArrayList<>();
+        for (Object item : search(keyword, folder)) {
+            if (CFile.class.isAssignableFrom(item.getClass()))
+                output.add(CFile.class.cast(item));
+        }
+        return output;
+    }
+
+    @Override
+    public List<CFolder> searchFolder(@NonNull String keyword, CFolder folder) throws RequestFailException {
+        // check cast for search result
+        List<CFolder> output = new ArrayList<>();
+        for (Object item : search(keyword, folder)) {
+            if (CFolder.class.isAssignableFrom(item.getClass()))
+                output.add(CFolder.class.cast(item));
+        }
+        return output;
+    }
+
+    @Override
+    public List<Object> search(@NonNull String keyword, CFolder folder) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("path", folder.getPath());
         params.put("query", keyword);
 
         return search(params);
@@ -1213,27 +1798,20 @@ public class DropboxApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("matches");
-                JSONArray filterEntries = new JSONArray();
-                for (int i = 0; i < entries.length(); i++) {
-                    filterEntries.put(entries.getJSONObject(i).getJSONObject("metadata"));
-                }
-                if (filterEntries.length() > 0) {
-                    list.addAll(createItemList(filterEntries));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
+                ItemPage page = readItemPage(response);
+                // return null if no item found
+                if (page.items.isEmpty() && !page.hasMore()) return null;
+
+                list.addAll(page.items);
                 // expect more search result
-                if (jsonObject.getBoolean("more")) {
-                    int start = jsonObject.getInt("start");
-                    params.put("start", start);
-                    list.addAll(search(params));
+                if (page.hasMore()) {
+                    params.put("start", Integer.parseInt(page.nextToken));
+                    List<Object> more = search(params);
+                    if (more != null) list.addAll(more);
                 }
-                return list;
+                return list.isEmpty() ? null : list;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1247,7 +1825,146 @@ public class DropboxApi extends BaseApi {
     }
 
     @Override
-    public File getThumbnail(@NonNull CFile file) throws RequestFailException {
+    public File getThumbnail(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getFile(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return fetchThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Bitmap getThumbnailBitmap(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getBitmap(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return getThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, File> getThumbnails(@NonNull List<CFile> files) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        Map<String, File> thumbnails = new HashMap<>();
+        List<CFile> missing = new ArrayList<>();
+        for (CFile file : files) {
+            File thumbnail = mThumbnails.getCachedFile(ThumbnailCache.key(mAccount, file));
+            if (thumbnail != null) {
+                thumbnails.put(file.getId(), thumbnail);
+            } else {
+                missing.add(file);
+            }
+        }
+
+        RequestFailException failure = null;
+        for (int i = 0; i < missing.size(); i += THUMBNAIL_BATCH_SIZE) {
+            int end = Math.min(i + THUMBNAIL_BATCH_SIZE, missing.size());
+            try {
+                fetchThumbnails(missing.subList(i, end), thumbnails);
+            } catch (RequestFailException e) {
+                // a single batch does not fail the others
+                e.printStackTrace();
+                if (failure == null) failure = e;
+            }
+        }
+
+        if (thumbnails.isEmpty() && failure != null) throw failure;
+        return thumbnails;
+    }
+
+    /**
+     * Download the thumbnails of a batch of files in a single request
+     *
+     * @param files of the batch
+     * @param thumbnails to add the thumbnail files to, keyed by file id
+     * @throws RequestFailException
+     */
+    private void fetchThumbnails(List<CFile> files, Map<String, File> thumbnails)
+            throws RequestFailException {
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            JSONArray entries = new JSONArray();
+            for (CFile file : files) {
+                JSONObject entry = new JSONObject();
+                entry.put("path", file.getId());
+                entry.put("format", "jpeg");
+                entry.put("size", "w128h128");
+                entries.put(entry);
+            }
+            params.put("entries", entries);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
+        Request request = new Request.Builder()
+                .url(API_CONTENT_URL + "/files/get_thumbnail_batch")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(body)
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (!response.isSuccessful()) {
+                throw new RequestFailException(response.message(), response.code());
+            }
+
+            // entries are returned in the order of the request
+            JSONArray entries = new JSONObject(response.body().string()).getJSONArray("entries");
+            for (int i = 0; i < entries.length() && i < files.size(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                // failure means the file has no thumbnail, e.g. not an image
+                if (!"success".equals(entry.optString(".tag"))) continue;
+
+                ByteString data = ByteString.decodeBase64(entry.getString("thumbnail"));
+                if (data == null) continue;
+
+                CFile file = files.get(i);
+                File localFile = new File(mContext.getFilesDir(), file.getId() + ".jpg");
+                BufferedSink sink = Okio.buffer(Okio.sink(localFile));
+                try {
+                    sink.write(data);
+                } finally {
+                    sink.close();
+                }
+                thumbnails.put(file.getId(),
+                        mThumbnails.putFile(ThumbnailCache.key(mAccount, file), localFile));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Download the thumbnail from the cloud server
+     *
+     * @param file to retrieve the thumbnail
+     * @return File in binary format, null if not available
+     * @throws RequestFailException
+     */
+    private File fetchThumbnail(@NonNull CFile file) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -1286,9 +2003,9 @@ public class DropboxApi extends BaseApi {
         try {
             File localFile = new File(mContext.getFilesDir(), file.getId() + ".jpg");
 
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(localFile));
+                FilesUtils.writeToFile(response.body().source(), localFile);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1299,41 +2016,282 @@ public class DropboxApi extends BaseApi {
         }
     }
 
+    @Override
+    public ChangeSet getChanges(@Nullable String cursor) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        ChangeSet changes = new ChangeSet();
+        // start from now
+        if (cursor == null) {
+            changes.setCursor(getLatestCursor());
+            return changes;
+        }
+
+        String nextCursor = cursor;
+        while (nextCursor != null) {
+            // create parameter as json
+            final JSONObject params= new JSONObject();
+            try {
+                params.put("cursor", nextCursor);
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+
+            RequestBody body = new RequestBody() {
+                @Override
+                public MediaType contentType() {
+                    return JSON;
+                }
+
+                @Override
+                public void writeTo(BufferedSink sink) throws IOException {
+                    sink.writeUtf8(params.toString());
+                }
+            };
+
+            Request request = new Request.Builder()
+                    .url(API_BASE_URL + "/files/list_folder/continue")
+                    .header("Authorization", String.format("Bearer %s", mAccessToken))
+                    .post(body)
+                    .build();
+
+            try {
+                Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                if (response.isSuccessful()) {
+                    nextCursor = readChanges(response, changes);
+                } else if (response.code() == 409 && isCursorReset(response.body().string())) {
+                    // cursor expired, full sync required
+                    changes.setReset(true);
+                    changes.setCursor(null);
+                    return changes;
+                } else {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+
+        return changes;
+    }
+
     /**
-     * Create files or folders from the JSONArray search result
+     * Whether the error of a list folder continue request is the expired cursor error
      *
-     * @param jsonArray that contain files and folders information
-     * @return list that contains CFile and CFolder
+     * @param body of the error response
+     * @return boolean
+     */
+    private static boolean isCursorReset(String body) {
+        try {
+            JSONObject error = new JSONObject(body).optJSONObject("error");
+            return error != null && "reset".equals(error.optString(".tag"));
+        } catch (JSONException e) {
+            // not a json error body
+            return false;
+        }
+    }
+
+    /**
+     * Get the cursor that represents the latest state of the whole Dropbox
+     *
+     * @return cursor string
      * @throws RequestFailException
      */
-    private List<Object> createItemList(JSONArray jsonArray) throws RequestFailException {
-        if (jsonArray == null || jsonArray.length() == 0) return null;
+    private String getLatestCursor() throws RequestFailException {
+        // create parameter as json
+        final JSONObject params= new JSONObject();
+        try {
+            params.put("path", "");
+            params.put("recursive", true);
+            params.put("include_media_info", false);
+            params.put("include_deleted", true);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
 
-        List<Object> list = new ArrayList<>();
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
 
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject jsonObject = jsonArray.getJSONObject(i);
-                String type = jsonObject.getString(".tag");
-                switch (type) {
-                    case "file":
-                        list.add(buildFile(jsonObject));
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
+        Request request = new Request.Builder()
+                .url(API_BASE_URL + "/files/list_folder/get_latest_cursor")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .post(body)
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
+                return new JSONObject(response.body().string()).getString("cursor");
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    /**
+     * Read a page of list_folder or search result from the response body one entry at a time,
+     * only the entry being converted is held in memory
+     *
+     * @param response of the list folder or search request
+     * @return ItemPage with the cursor or search start index as next token
+     * @throws IOException
+     * @throws JSONException
+     */
+    private ItemPage readItemPage(Response response) throws IOException, JSONException {
+        ItemPage page = new ItemPage();
+        String token = null;
+        boolean hasMore = false;
+
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "entries":
+                        // list folder metadata entries
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Object item = createItem(JsonUtils.readObject(reader));
+                            if (item != null) page.items.add(item);
+                        }
+                        reader.endArray();
                         break;
-                    case "folder":
-                        list.add(buildFolder(jsonObject));
+                    case "matches":
+                        // search matches wrap the metadata
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            reader.beginObject();
+                            while (reader.hasNext()) {
+                                if (reader.nextName().equals("metadata")) {
+                                    Object item = createItem(JsonUtils.readObject(reader));
+                                    if (item != null) page.items.add(item);
+                                } else {
+                                    reader.skipValue();
+                                }
+                            }
+                            reader.endObject();
+                        }
+                        reader.endArray();
+                        break;
+                    case "cursor":
+                    case "start":
+                        token = reader.nextString();
+                        break;
+                    case "has_more":
+                    case "more":
+                        hasMore = reader.nextBoolean();
                         break;
                     default:
-                        Log.e(TAG, "Unknown type found");
+                        reader.skipValue();
                         break;
                 }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
 
-            } catch (JSONException e) {
-                e.printStackTrace();
-                throw new RequestFailException(e.getMessage());
+        if (hasMore) page.nextToken = token;
+
+        return page;
+    }
+
+    /**
+     * Create file or folder from the JSONObject metadata
+     *
+     * @param jsonObject that contain file or folder information
+     * @return CFile or CFolder, null if the type is unknown
+     * @throws JSONException
+     */
+    private Object createItem(JSONObject jsonObject) throws JSONException {
+        String type = jsonObject.getString(".tag");
+        switch (type) {
+            case "file":
+                return buildFile(jsonObject);
+            case "folder":
+                return buildFolder(jsonObject);
+            default:
+                Log.e(TAG, "Unknown type found");
+                return null;
+        }
+    }
+
+    /**
+     * Read a page of list_folder changes from the response body one entry at a time
+     *
+     * @param response of the list folder continue request
+     * @param changes to add the changed and deleted items into
+     * @return cursor of the following page, null if this is the last page
+     * @throws IOException
+     * @throws JSONException
+     */
+    private String readChanges(Response response, ChangeSet changes) throws IOException, JSONException {
+        String cursor = null;
+        boolean hasMore = false;
+
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "entries":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            JSONObject jsonObject = JsonUtils.readObject(reader);
+                            // deleted entries only carry the path
+                            String path = jsonObject.getString("path_lower");
+                            if (jsonObject.getString(".tag").equals("deleted")) {
+                                changes.putDeleted(path);
+                            } else {
+                                Object item = createItem(jsonObject);
+                                // parent path of a root item is empty same as the root path
+                                String parentPath = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+                                if (item != null) changes.putChanged(path, item, parentPath);
+                            }
+                        }
+                        reader.endArray();
+                        break;
+                    case "cursor":
+                        cursor = reader.nextString();
+                        break;
+                    case "has_more":
+                        hasMore = reader.nextBoolean();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
             }
+            reader.endObject();
+        } finally {
+            reader.close();
         }
 
-        return list;
+        changes.setCursor(cursor);
+        return hasMore ? cursor : null;
     }
 
     /**
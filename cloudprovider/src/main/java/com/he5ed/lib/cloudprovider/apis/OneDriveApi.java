@@ -24,6 +24,7 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -31,18 +32,24 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
 import com.he5ed.lib.cloudprovider.auth.Authenticator;
 import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
 import com.he5ed.lib.cloudprovider.models.User;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
 import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.he5ed.lib.cloudprovider.utils.JsonUtils;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
 import com.squareup.okhttp.Callback;
 import com.squareup.okhttp.FormEncodingBuilder;
 import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
@@ -52,10 +59,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -95,6 +102,11 @@ public class OneDriveApi extends BaseApi {
     public static final int ICON_RESOURCE = R.drawable.ic_onedrive_color_24dp;
     public static final String TAG = "OneDriveApi";
     public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    // properties of the items read into CFile and CFolder, file and folder tell the type apart
+    private static final String ITEM_FIELDS =
+            "id,name,eTag,size,createdDateTime,lastModifiedDateTime,file,folder,parentReference";
+    // maximum number of requests in a json batch
+    private static final int BATCH_SIZE = 20;
 
     /**
      * Build authorization url base on type of cloud service
@@ -216,6 +228,8 @@ public class OneDriveApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("createdDateTime"));
             if (jsonObject.has("lastModifiedDateTime"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("lastModifiedDateTime"));
+            if (!jsonObject.isNull("eTag"))
+                map.put(CFolder.ETAG, jsonObject.getString("eTag"));
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -240,6 +254,23 @@ public class OneDriveApi extends BaseApi {
                 map.put(CFolder.CREATED, jsonObject.getString("createdDateTime"));
             if (jsonObject.has("lastModifiedDateTime"))
                 map.put(CFolder.MODIFIED, jsonObject.getString("lastModifiedDateTime"));
+            if (!jsonObject.isNull("eTag"))
+                map.put(CFolder.ETAG, jsonObject.getString("eTag"));
+            if (jsonObject.has("size"))
+                map.put(CFile.SIZE, jsonObject.getLong("size"));
+            // listing extras
+            JSONArray thumbnails = jsonObject.optJSONArray("thumbnails");
+            if (thumbnails != null && thumbnails.length() > 0) {
+                JSONObject medium = thumbnails.getJSONObject(0).optJSONObject("medium");
+                if (medium != null) map.put(CFile.THUMBNAIL_URL, medium.getString("url"));
+            }
+            JSONObject file = jsonObject.optJSONObject("file");
+            JSONObject hashes = file != null ? file.optJSONObject("hashes") : null;
+            if (hashes != null) {
+                // personal drive provides sha1, business drive quickXor only
+                String hash = hashes.optString("sha1Hash", hashes.optString("quickXorHash", null));
+                if (hash != null) map.put(CFile.HASH, hash);
+            }
         } catch (JSONException e) {
             e.printStackTrace();
             return null;
@@ -251,9 +282,11 @@ public class OneDriveApi extends BaseApi {
     private Context mContext;
     private CloudProvider mCloudProvider;
     private Account mAccount;
-    private BaseApi.OnPrepareListener mPrepareListener;
-    private OkHttpClient mHttpClient;
-    private String mAccessToken;
+    private MetadataCache mCache;
+    private ThumbnailCache mThumbnails;
+    private volatile BaseApi.OnPrepareListener mPrepareListener;
+    private volatile String mAccessToken;
+    private volatile String mRootItemId;
 
     /**
      * Constructor for OneDrive API
@@ -264,11 +297,22 @@ public class OneDriveApi extends BaseApi {
         mContext = context;
         mAccount = account;
         mCloudProvider = CloudProvider.getInstance(mContext);
-        mHttpClient = new OkHttpClient();
+        mCache = mCloudProvider.getMetadataCache(mAccount.name);
+        mThumbnails = mCloudProvider.getThumbnailCache();
+    }
+
+    @Override
+    public Account getAccount() {
+        return mAccount;
+    }
+
+    @Override
+    protected Context getContext() {
+        return mContext;
     }
 
     @Override
-    public synchronized void prepareApi(BaseApi.OnPrepareListener prepareListener) {
+    public void prepareApi(BaseApi.OnPrepareListener prepareListener) {
         mPrepareListener = prepareListener;
 
         AccountManager.get(mContext).getAuthToken(mAccount, CloudProvider.AUTH_TYPE, false,
@@ -307,7 +351,7 @@ public class OneDriveApi extends BaseApi {
     private void validateAccessToken() {
         Request request = getUserInfoRequest(mAccessToken);
 
-        mHttpClient.newCall(request).enqueue(new Callback() {
+        mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
             @Override
             public void onFailure(Request request, IOException e) {
                 e.printStackTrace();
@@ -347,7 +391,7 @@ public class OneDriveApi extends BaseApi {
                     .post(getRefreshTokenBody(refreshToken))
                     .build();
 
-            mHttpClient.newCall(request).enqueue(new Callback() {
+            mCloudProvider.clientFor(request).newCall(request).enqueue(new Callback() {
                 @Override
                 public void onFailure(Request request, IOException e) {
                     e.printStackTrace();
@@ -416,49 +460,38 @@ public class OneDriveApi extends BaseApi {
                 .post(body)
                 .build();
 
-        mHttpClient.newCall(request).enqueue(callback);
+        mCloudProvider.clientFor(request).newCall(request).enqueue(callback);
     }
 
     @Override
-    public synchronized List<Object> exploreFolder(@NonNull CFolder folder, int offset) throws RequestFailException {
+    public List<Object> exploreFolder(@NonNull final CFolder folder, int offset) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
+        return mCache.get(MetadataCache.listKey(folder.getId()), new MetadataCache.Loader<List<Object>>() {
+            @Override
+            public List<Object> load() throws RequestFailException {
+                return exploreFolderPages(folder).readAll();
+            }
+        }, MetadataIndex.folderItemsStore(mContext, mAccount.name, folder));
+    }
 
-        Request request = new Request.Builder()
-                .url(API_BASE_URL + "/drive/items/" + folder.getId() + "/children")
-                .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+    @Override
+    public PageCursor exploreFolderPages(@NonNull CFolder folder) {
+        // the next links keep the query
+        String url = selectItemFields(Uri.parse(API_BASE_URL).buildUpon()
+                .appendEncodedPath("drive/items/" + folder.getId() + "/children"))
+                .build()
+                .toString();
 
-        try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("value");
-                if (entries.length() > 0) {
-                    list.addAll(createFilteredItemsList(entries, null));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
-                // pagination available
-                if (jsonObject.has("@odata.nextLink")) {
-                    list.addAll(exploreFolderContinue(jsonObject.getString("@odata.nextLink")));
-                }
-                return list;
-            } else {
-                throw new RequestFailException(response.message(), response.code());
+        // first page url is used as the start token
+        return new PageCursor(url) {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return getChildren(token);
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            throw new RequestFailException(e.getMessage());
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RequestFailException(e.getMessage());
-        }
+        };
     }
 
     /**
@@ -468,12 +501,30 @@ public class OneDriveApi extends BaseApi {
      * @return List that contains CFile and CFolder
      * @throws RequestFailException that content various error types
      */
-    public synchronized List<Object> exploreFolderContinue(String url) throws RequestFailException {
+    public List<Object> exploreFolderContinue(String url) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
-        List<Object> list = new ArrayList<>();
+        return new PageCursor(url) {
+            @Override
+            protected ItemPage fetchPage(@Nullable String token) throws RequestFailException {
+                return getChildren(token);
+            }
+        }.readAll();
+    }
+
+    /**
+     * Get a single page of folder items
+     *
+     * @param url of the children page
+     * @return ItemPage with the next link as next token if more items available
+     * @throws RequestFailException that content various error types
+     */
+    private ItemPage getChildren(String url) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
 
         Request request = new Request.Builder()
                 .url(url)
@@ -482,21 +533,9 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("data");
-                if (entries.length() > 0) {
-                    list.addAll(createFilteredItemsList(entries, null));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
-                // pagination available
-                if (jsonObject.has("@odata.nextLink")) {
-                    list.addAll(exploreFolderContinue(jsonObject.getString("@odata.nextLink")));
-                }
-                return list;
+                return readItemPage(response, null);
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -509,6 +548,22 @@ public class OneDriveApi extends BaseApi {
         }
     }
 
+    /**
+     * Request only the item properties read into CFile and CFolder, listing extras included
+     *
+     * @param builder of the request url
+     * @return the same builder
+     */
+    private Uri.Builder selectItemFields(Uri.Builder builder) {
+        String fields = ITEM_FIELDS;
+        if (hasListingExtra(EXTRA_THUMBNAIL_URL)) {
+            fields += ",thumbnails";
+            builder.appendQueryParameter("$expand", "thumbnails");
+        }
+        // hashes come with the file facet
+        return builder.appendQueryParameter("$select", fields);
+    }
+
     @Override
     public CFolder getRoot() {
         // create root folder manually
@@ -521,25 +576,54 @@ public class OneDriveApi extends BaseApi {
     }
 
     @Override
-    public CFolder getFolderInfo(@NonNull String folderId) throws RequestFailException {
+    public CFolder getFolderInfo(@NonNull final String folderId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
         if (TextUtils.isEmpty(folderId)) return null;
 
-        Request request = new Request.Builder()
-                .url(API_BASE_URL + "/drive/items/" + folderId)
+        return mCache.get(MetadataCache.folderKey(folderId), new MetadataCache.Loader<CFolder>() {
+            @Override
+            public CFolder load() throws RequestFailException {
+                return fetchFolderInfo(folderId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the folder metadata from the cloud server bypassing the metadata cache
+     *
+     * @param folderId of the folder
+     * @return CFolder
+     * @throws RequestFailException
+     */
+    private CFolder fetchFolderInfo(String folderId) throws RequestFailException {
+        // revalidate the cached copy if any
+        CFolder cached = (CFolder) mCache.peek(MetadataCache.folderKey(folderId));
+        String url = selectItemFields(Uri.parse(API_BASE_URL).buildUpon()
+                .appendEncodedPath("drive/items/" + folderId))
+                .build()
+                .toString();
+        Request.Builder builder = new Request.Builder()
+                .url(url)
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
-                .build();
+                .get();
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
-            if (response.isSuccessful()) {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -589,10 +673,13 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFolder(jsonObject);
+                CFolder newFolder = buildFolder(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -643,10 +730,13 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -697,10 +787,13 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return folder object
-                return buildFolder(new JSONObject(response.body().string()));
+                CFolder newFolder = buildFolder(new JSONObject(response.body().string()));
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFolder);
+                return newFolder;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -726,9 +819,11 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "CFolder with the id: " + folder.getName() + " deleted");
+                mCache.invalidateItem(folder.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, folder.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -739,25 +834,227 @@ public class OneDriveApi extends BaseApi {
     }
 
     @Override
-    public CFile getFileInfo(@NonNull String fileId) throws RequestFailException {
+    public CFile getFileInfo(@NonNull final String fileId) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
         if (TextUtils.isEmpty(fileId)) return null;
 
+        return mCache.get(MetadataCache.fileKey(fileId), new MetadataCache.Loader<CFile>() {
+            @Override
+            public CFile load() throws RequestFailException {
+                return fetchFileInfo(fileId);
+            }
+        }, MetadataIndex.itemStore(mContext, mAccount.name));
+    }
+
+    /**
+     * Get the file metadata from the cloud server bypassing the metadata cache
+     *
+     * @param fileId of the file
+     * @return CFile
+     * @throws RequestFailException
+     */
+    private CFile fetchFileInfo(String fileId) throws RequestFailException {
+        // revalidate the cached copy if any
+        CFile cached = (CFile) mCache.peek(MetadataCache.fileKey(fileId));
+        String url = selectItemFields(Uri.parse(API_BASE_URL).buildUpon()
+                .appendEncodedPath("drive/items/" + fileId))
+                .build()
+                .toString();
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .get();
+        if (cached != null && !TextUtils.isEmpty(cached.getEtag()))
+            builder.header("If-None-Match", cached.getEtag());
+        Request request = builder.build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.code() == 304 && cached != null) {
+                // not modified since the cached copy was fetched
+                response.body().close();
+                return cached;
+            } else if (response.isSuccessful()) {
+                // new file created
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void getFilesInfo(@NonNull Collection<String> fileIds,
+                             @NonNull final OnInfoListener<CFile> listener)
+            throws RequestFailException {
+        getItemsInfo(fileIds, new OnInfoListener<JSONObject>() {
+            @Override
+            public void onInfo(String id, JSONObject jsonObject) {
+                CFile file = buildFile(jsonObject);
+                mCache.put(MetadataCache.fileKey(file.getId()), file);
+                MetadataIndex.putItem(mContext, mAccount.name, null, file);
+                listener.onInfo(id, file);
+            }
+
+            @Override
+            public void onInfoFail(String id, Exception e) {
+                listener.onInfoFail(id, e);
+            }
+        });
+    }
+
+    @Override
+    public void getFoldersInfo(@NonNull Collection<String> folderIds,
+                               @NonNull final OnInfoListener<CFolder> listener)
+            throws RequestFailException {
+        getItemsInfo(folderIds, new OnInfoListener<JSONObject>() {
+            @Override
+            public void onInfo(String id, JSONObject jsonObject) {
+                CFolder folder = buildFolder(jsonObject);
+                mCache.put(MetadataCache.folderKey(folder.getId()), folder);
+                MetadataIndex.putItem(mContext, mAccount.name, null, folder);
+                listener.onInfo(id, folder);
+            }
+
+            @Override
+            public void onInfoFail(String id, Exception e) {
+                listener.onInfoFail(id, e);
+            }
+        });
+    }
+
+    /**
+     * Get the metadata of many items, {@link #BATCH_SIZE} items per json batch request
+     *
+     * @param ids of the items, or paths starting with a slash from the root folder
+     * @param listener to receive the json of each item
+     * @throws RequestFailException if a batch request failed as a whole
+     */
+    private void getItemsInfo(Collection<String> ids, OnInfoListener<JSONObject> listener)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        List<String> items = new ArrayList<>(ids);
+        for (int start = 0; start < items.size(); start += BATCH_SIZE) {
+            List<String> batch = items.subList(start, Math.min(start + BATCH_SIZE, items.size()));
+            try {
+                List<JSONObject> requests = new ArrayList<>();
+                for (String id : batch) {
+                    requests.add(new JSONObject()
+                            .put("method", "GET")
+                            .put("url", getBatchItemUrl(id)));
+                }
+
+                JSONObject[] responses = postBatch(requests);
+                for (int i = 0; i < batch.size(); i++) {
+                    RequestFailException failure = getBatchFailure(responses[i]);
+                    if (failure != null) {
+                        listener.onInfoFail(batch.get(i), failure);
+                    } else {
+                        listener.onInfo(batch.get(i), responses[i].getJSONObject("body"));
+                    }
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the url of an item relative to the service root as used in a json batch
+     *
+     * @param id of the item, or path starting with a slash from the root folder
+     * @return relative url
+     */
+    private String getBatchItemUrl(String id) {
+        String path = id.startsWith("/") ? ROOT_PATH + Uri.encode(id, "/") : "/drive/items/" + id;
+        return selectItemFields(new Uri.Builder().encodedPath(path)).build().toString();
+    }
+
+    /**
+     * Get the failure of a response in a json batch
+     *
+     * @param jsonObject of the response, null if the request got no response
+     * @return RequestFailException, null if the request succeeded
+     */
+    private static RequestFailException getBatchFailure(@Nullable JSONObject jsonObject) {
+        if (jsonObject == null) return new RequestFailException("No response");
+
+        int status = jsonObject.optInt("status");
+        if (status >= 200 && status < 300) return null;
+
+        JSONObject body = jsonObject.optJSONObject("body");
+        JSONObject error = body != null ? body.optJSONObject("error") : null;
+        return new RequestFailException(
+                error != null ? error.optString("message") : "Request failed", status);
+    }
+
+    /**
+     * Send up to {@link #BATCH_SIZE} requests at once as a json batch
+     *
+     * @param requests each with method, url and optional headers and body
+     * @return responses in the order of the requests, null where a request got no response
+     * @throws RequestFailException if the batch request failed as a whole
+     */
+    private JSONObject[] postBatch(List<JSONObject> requests) throws RequestFailException {
+        // create parameter as json, the position in the batch is the request id
+        final JSONObject params = new JSONObject();
+        try {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < requests.size(); i++) {
+                array.put(requests.get(i).put("id", String.valueOf(i)));
+            }
+            params.put("requests", array);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+
+        RequestBody body = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeUtf8(params.toString());
+            }
+        };
+
         Request request = new Request.Builder()
-                .url(API_BASE_URL + "/drive/items/" + fileId)
+                .url(API_BASE_URL + "/$batch")
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
-                .get()
+                .post(body)
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                // new file created
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                // responses come in any order
+                JSONObject[] results = new JSONObject[requests.size()];
+                JSONArray array = new JSONObject(response.body().string())
+                        .getJSONArray("responses");
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject jsonObject = array.getJSONObject(i);
+                    int index = jsonObject.optInt("id", -1);
+                    if (index >= 0 && index < results.length) results[index] = jsonObject;
+                }
+                return results;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -770,12 +1067,34 @@ public class OneDriveApi extends BaseApi {
         }
     }
 
+    /**
+     * Get the id of a CFile or CFolder
+     *
+     * @param item CFile or CFolder
+     * @return id, null if the item is neither
+     */
+    private static String getItemId(Object item) {
+        if (item instanceof CFile) return ((CFile) item).getId();
+        if (item instanceof CFolder) return ((CFolder) item).getId();
+        return null;
+    }
+
     @Override
     public CFile uploadFile(@NonNull final File file, @Nullable CFolder parent) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        // large file go through a resumable upload session
+        if (file.length() > CloudProvider.CHUNKED_UPLOAD_THRESHOLD) {
+            String itemPath = "drive/items/" + (parent != null ? parent.getId() : getRoot().getId())
+                    + ":/" + Uri.encode(file.getName()) + ":";
+            CFile newFile = newUploadSession(itemPath, "fail").upload(file);
+            mCache.invalidateItem(null);
+            MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+            return newFile;
+        }
+
         Uri uri = Uri.parse(API_BASE_URL);
         String url = uri.buildUpon()
                 .appendEncodedPath("drive/items/" +
@@ -785,18 +1104,8 @@ public class OneDriveApi extends BaseApi {
                 .build()
                 .toString();
 
-        RequestBody fileBody = new RequestBody() {
-            @Override
-            public MediaType contentType() {
-                return null;
-            }
-
-            @Override
-            public void writeTo(BufferedSink sink) throws IOException {
-                // copy file into RequestBody
-                FilesUtils.copyFile(new FileInputStream(file), sink.outputStream());
-            }
-        };
+        // file is streamed into the request segment by segment
+        RequestBody fileBody = RequestBody.create(null, file);
 
         Request request = new Request.Builder()
                 .url(url)
@@ -805,11 +1114,14 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // new file created
                 JSONObject jsonObject = new JSONObject(response.body().string());
-                return buildFile(jsonObject);
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(null);
+                MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -828,6 +1140,14 @@ public class OneDriveApi extends BaseApi {
             throw new RequestFailException("Access token not available");
         }
 
+        // large file go through a resumable upload session
+        if (content.length() > CloudProvider.CHUNKED_UPLOAD_THRESHOLD) {
+            CFile newFile = newUploadSession("drive/items/" + file.getId(), "replace").upload(content);
+            mCache.invalidateItem(file.getId());
+            MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+            return newFile;
+        }
+
         Uri uri = Uri.parse(API_BASE_URL);
         String url = uri.buildUpon()
                 .appendEncodedPath("drive/items/" + file.getId() + "/content")
@@ -835,18 +1155,8 @@ public class OneDriveApi extends BaseApi {
                 .build()
                 .toString();
 
-        RequestBody fileBody = new RequestBody() {
-            @Override
-            public MediaType contentType() {
-                return null;
-            }
-
-            @Override
-            public void writeTo(BufferedSink sink) throws IOException {
-                // copy file into RequestBody
-                FilesUtils.copyFile(new FileInputStream(content), sink.outputStream());
-            }
-        };
+        // file is streamed into the request segment by segment
+        RequestBody fileBody = RequestBody.create(null, content);
 
         Request request = new Request.Builder()
                 .url(url)
@@ -855,9 +1165,92 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // new file created
+                JSONObject jsonObject = new JSONObject(response.body().string());
+                CFile newFile = buildFile(jsonObject);
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
+            } else {
+                throw new RequestFailException(response.message(), response.code());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+    }
+
+    @Override
+    public CFile uploadFile(@NonNull InputStream content, long length, @NonNull String name,
+                            @Nullable CFolder parent) throws RequestFailException {
+        // upload session need the size in advance
+        if (length < 0) return super.uploadFile(content, length, name, parent);
+
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        String itemPath = "drive/items/" + (parent != null ? parent.getId() : getRoot().getId())
+                + ":/" + Uri.encode(name) + ":";
+        CFile newFile = uploadContent(content, length, itemPath, "fail");
+        mCache.invalidateItem(null);
+        MetadataIndex.putItem(mContext, mAccount.name, parent != null ? parent : getRoot(), newFile);
+        return newFile;
+    }
+
+    @Override
+    public CFile updateFile(@NonNull CFile file, @NonNull InputStream content, long length)
+            throws RequestFailException {
+        // upload session need the size in advance
+        if (length < 0) return super.updateFile(file, content, length);
+
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        CFile newFile = uploadContent(content, length, "drive/items/" + file.getId(), "replace");
+        mCache.invalidateItem(file.getId());
+        MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+        return newFile;
+    }
+
+    /**
+     * Upload the content of a stream, content larger than the chunked upload threshold go
+     * through an upload session
+     *
+     * @param content to upload
+     * @param length of the content in bytes
+     * @param itemPath path of the item to create or replace relative to the API base url
+     * @param conflictBehavior of the upload, i.e. fail or replace
+     * @return CFile
+     * @throws RequestFailException that content various error types
+     */
+    private CFile uploadContent(InputStream content, long length, String itemPath,
+                                String conflictBehavior) throws RequestFailException {
+        if (length > CloudProvider.CHUNKED_UPLOAD_THRESHOLD)
+            return newUploadSession(itemPath, conflictBehavior).upload(content, length);
+
+        Uri uri = Uri.parse(API_BASE_URL);
+        String url = uri.buildUpon()
+                .appendEncodedPath(itemPath + "/content")
+                .appendQueryParameter("@name.conflictBehavior", conflictBehavior)
+                .build()
+                .toString();
+
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .put(new StreamRequestBody(null, content, length))
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+            if (response.isSuccessful()) {
                 JSONObject jsonObject = new JSONObject(response.body().string());
                 return buildFile(jsonObject);
             } else {
@@ -872,6 +1265,162 @@ public class OneDriveApi extends BaseApi {
         }
     }
 
+    /**
+     * Create upload of large content in chunks through an upload session
+     *
+     * @param itemPath path of the item to create or replace relative to the API base url
+     * @param conflictBehavior of the upload, i.e. fail or replace
+     * @return ChunkedUpload
+     */
+    private ChunkedUpload newUploadSession(final String itemPath, final String conflictBehavior) {
+        return new ChunkedUpload(mContext, mAccount.name, itemPath + "|" + conflictBehavior) {
+            private JSONObject mItem;
+
+            @Override
+            protected String startSession(long total) throws RequestFailException {
+                Uri uri = Uri.parse(API_BASE_URL);
+                String url = uri.buildUpon()
+                        .appendEncodedPath(itemPath + "/upload.createSession")
+                        .build()
+                        .toString();
+
+                // create parameter as json
+                final JSONObject params= new JSONObject();
+                try {
+                    params.put("item", new JSONObject()
+                            .put("@name.conflictBehavior", conflictBehavior));
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+
+                RequestBody body = new RequestBody() {
+                    @Override
+                    public MediaType contentType() {
+                        return JSON;
+                    }
+
+                    @Override
+                    public void writeTo(BufferedSink sink) throws IOException {
+                        sink.writeUtf8(params.toString());
+                    }
+                };
+
+                Request request = new Request.Builder()
+                        .url(url)
+                        .header("Authorization", String.format("Bearer %s", mAccessToken))
+                        .post(body)
+                        .build();
+
+                try {
+                    Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                    if (response.isSuccessful()) {
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        return jsonObject.getString("uploadUrl");
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected long resumeSession(String sessionId, long offset) throws RequestFailException {
+                // upload url is pre-authenticated
+                Request request = new Request.Builder()
+                        .url(sessionId)
+                        .get()
+                        .build();
+
+                try {
+                    Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                    if (response.isSuccessful()) {
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        long next = getNextExpectedOffset(jsonObject);
+                        return next >= 0 ? next : offset;
+                    } else if (response.code() == 404) {
+                        return SESSION_LOST;
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                       long total) throws RequestFailException {
+                // upload url is pre-authenticated
+                Request request = new Request.Builder()
+                        .url(sessionId)
+                        .header("Content-Range", String.format("bytes %d-%d/%d",
+                                offset, offset + length - 1, total))
+                        .put(RequestBody.create(null, data, 0, length))
+                        .build();
+
+                try {
+                    Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                    if (response.code() == 202) {
+                        // chunk accepted, more expected
+                        JSONObject jsonObject = new JSONObject(response.body().string());
+                        long next = getNextExpectedOffset(jsonObject);
+                        return next >= 0 ? next : offset + length;
+                    } else if (response.isSuccessful()) {
+                        // last chunk received, item created
+                        mItem = new JSONObject(response.body().string());
+                        return offset + length;
+                    } else if (response.code() == 404) {
+                        return SESSION_LOST;
+                    } else if (response.code() == 416) {
+                        // chunk already received, ask where to continue
+                        response.body().close();
+                        return resumeSession(sessionId, offset + length);
+                    } else {
+                        throw new RequestFailException(response.message(), response.code());
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            @Override
+            protected CFile finishSession(String sessionId, long total) throws RequestFailException {
+                // the item is committed with the last chunk
+                if (mItem == null) throw new RequestFailException("Upload session not completed");
+                return buildFile(mItem);
+            }
+        };
+    }
+
+    /**
+     * Extract the start of the first range the upload session still expects
+     *
+     * @param jsonObject upload session status
+     * @return offset, -1 if no range expected
+     * @throws JSONException
+     */
+    private static long getNextExpectedOffset(JSONObject jsonObject) throws JSONException {
+        JSONArray ranges = jsonObject.optJSONArray("nextExpectedRanges");
+        if (ranges == null || ranges.length() == 0) return -1;
+
+        String range = ranges.getString(0);
+        return Long.parseLong(range.substring(0, range.indexOf('-')));
+    }
+
     @Override
     public CFile renameFile(@NonNull CFile file, String name) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
@@ -909,10 +1458,13 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, null, newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -960,10 +1512,13 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 // return file object
-                return buildFile(new JSONObject(response.body().string()));
+                CFile newFile = buildFile(new JSONObject(response.body().string()));
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.putItem(mContext, mAccount.name, folder != null ? folder : getRoot(), newFile);
+                return newFile;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -992,8 +1547,10 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
+                // content is requested again from the final location
+                response.body().close();
                 switch (response.code()) {
                     case 200:
                         // redirect to url
@@ -1019,18 +1576,42 @@ public class OneDriveApi extends BaseApi {
      * @return File
      * @throws RequestFailException
      */
-    public synchronized File downloadFile(@NonNull Request request, String filename) throws RequestFailException {
-        try {
-            File file = new File(mContext.getFilesDir(),
-                    TextUtils.isEmpty(filename) ? "Untitled" : filename);
+    public File downloadFile(@NonNull Request request, String filename) throws RequestFailException {
+        File file = new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? "Untitled" : filename);
+        return new SegmentedDownload(mCloudProvider, request, file)
+                .parallel(mCloudProvider.getExecutor(), CloudProvider.DOWNLOAD_CONCURRENCY)
+                .download();
+    }
+
+    @Override
+    public void discardDownload(@NonNull CFile file, @Nullable String filename) {
+        SegmentedDownload.discard(new File(mContext.getFilesDir(),
+                TextUtils.isEmpty(filename) ? file.getName() : filename));
+    }
 
-            Response response = mHttpClient.newCall(request).execute();
+    @Override
+    public InputStream openStream(@NonNull CFile file) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // redirect to the download url is followed by the http client
+        Request request = new Request.Builder()
+                .url(API_BASE_URL + "/drive/items/" + file.getId() + "/content")
+                .header("Authorization", String.format("Bearer %s", mAccessToken))
+                .get()
+                .build();
+
+        try {
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                FilesUtils.copyFile(response.body().byteStream(), new FileOutputStream(file));
+                // body is handed over to the caller who is responsible to close it
+                return response.body().byteStream();
             } else {
+                response.body().close();
                 throw new RequestFailException(response.message(), response.code());
             }
-            return file;
         } catch (IOException e) {
             e.printStackTrace();
             throw new RequestFailException(e.getMessage());
@@ -1050,9 +1631,11 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
                 Log.d(TAG, "File with the id: " + file.getName() + " deleted");
+                mCache.invalidateItem(file.getId());
+                MetadataIndex.deleteItem(mContext, mAccount.name, file.getId());
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1062,6 +1645,106 @@ public class OneDriveApi extends BaseApi {
         }
     }
 
+    @Override
+    public void deleteItems(@NonNull Collection<?> items, @NonNull OnBatchListener listener)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        List<Object> pending = new ArrayList<>();
+        for (Object item : items) {
+            if (getItemId(item) != null) {
+                pending.add(item);
+            } else {
+                listener.onItemFail(item, new RequestFailException("Unknown item type"));
+            }
+        }
+
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Object> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            List<JSONObject> requests = new ArrayList<>();
+            try {
+                for (Object item : batch) {
+                    requests.add(new JSONObject()
+                            .put("method", "DELETE")
+                            .put("url", "/drive/items/" + getItemId(item)));
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+
+            JSONObject[] responses = postBatch(requests);
+            for (int i = 0; i < batch.size(); i++) {
+                Object item = batch.get(i);
+                RequestFailException failure = getBatchFailure(responses[i]);
+                if (failure != null) {
+                    listener.onItemFail(item, failure);
+                    continue;
+                }
+
+                String id = getItemId(item);
+                mCache.invalidateItem(id);
+                MetadataIndex.deleteItem(mContext, mAccount.name, id);
+                listener.onItemDone(item, null);
+            }
+        }
+    }
+
+    @Override
+    public void moveItems(@NonNull Collection<?> items, @Nullable CFolder parent,
+                          @NonNull OnBatchListener listener)
+            throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        List<Object> pending = new ArrayList<>();
+        for (Object item : items) {
+            if (getItemId(item) != null) {
+                pending.add(item);
+            } else {
+                listener.onItemFail(item, new RequestFailException("Unknown item type"));
+            }
+        }
+
+        CFolder folder = parent != null ? parent : getRoot();
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            List<Object> batch = pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+            try {
+                List<JSONObject> requests = new ArrayList<>();
+                for (Object item : batch) {
+                    requests.add(new JSONObject()
+                            .put("method", "PATCH")
+                            .put("url", "/drive/items/" + getItemId(item))
+                            .put("headers", new JSONObject().put("Content-Type", "application/json"))
+                            .put("body", new JSONObject().put("parentReference",
+                                    new JSONObject().put("id", folder.getId()))));
+                }
+
+                JSONObject[] responses = postBatch(requests);
+                for (int i = 0; i < batch.size(); i++) {
+                    Object item = batch.get(i);
+                    RequestFailException failure = getBatchFailure(responses[i]);
+                    if (failure != null) {
+                        listener.onItemFail(item, failure);
+                        continue;
+                    }
+
+                    JSONObject jsonObject = responses[i].getJSONObject("body");
+                    Object moved = item instanceof CFile ? buildFile(jsonObject) : buildFolder(jsonObject);
+                    mCache.invalidateItem(getItemId(item));
+                    MetadataIndex.putItem(mContext, mAccount.name, folder, moved);
+                    listener.onItemDone(item, moved);
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+    }
+
     @Override
     public List<CFile> searchFile(@NonNull String keyword, CFolder folder) throws RequestFailException {
         // check cast for search result
@@ -1093,9 +1776,9 @@ public class OneDriveApi extends BaseApi {
         List<Object> list = new ArrayList<>();
 
         Uri uri = Uri.parse(API_BASE_URL);
-        String url = uri.buildUpon()
+        String url = selectItemFields(uri.buildUpon()
                 .appendEncodedPath("drive/items/" + folder.getId() + "/view.search")
-                .appendQueryParameter("q", keyword)
+                .appendQueryParameter("q", keyword))
                 .build()
                 .toString();
 
@@ -1106,21 +1789,19 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("value");
-                if (entries.length() > 0) {
-                    list.addAll(createFilteredItemsList(entries, folder));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
+                ItemPage page = readItemPage(response, folder);
+                // return null if no item found
+                if (page.items.isEmpty() && !page.hasMore()) return null;
+
+                list.addAll(page.items);
                 // pagination available
-                if (jsonObject.has("@odata.nextLink")) {
-                    list.addAll(searchContinue(jsonObject.getString("@odata.nextLink"), folder));
+                if (page.hasMore()) {
+                    List<Object> more = searchContinue(page.nextToken, folder);
+                    if (more != null) list.addAll(more);
                 }
-                return list;
+                return list.isEmpty() ? null : list;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1141,7 +1822,7 @@ public class OneDriveApi extends BaseApi {
      * @return List that contains CFile and CFolder
      * @throws RequestFailException that content various error types
      */
-    public synchronized List<Object> searchContinue(String url, CFolder folder) throws RequestFailException {
+    public List<Object> searchContinue(String url, CFolder folder) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
@@ -1155,21 +1836,19 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
-                JSONObject jsonObject = new JSONObject(response.body().string());
-                JSONArray entries = jsonObject.getJSONArray("data");
-                if (entries.length() > 0) {
-                    list.addAll(createFilteredItemsList(entries, folder));
-                } else {
-                    // return null if no item found
-                    return null;
-                }
+                ItemPage page = readItemPage(response, folder);
+                // return null if no item found
+                if (page.items.isEmpty() && !page.hasMore()) return null;
+
+                list.addAll(page.items);
                 // pagination available
-                if (jsonObject.has("@odata.nextLink")) {
-                    list.addAll(searchContinue(jsonObject.getString("@odata.nextLink"), folder));
+                if (page.hasMore()) {
+                    List<Object> more = searchContinue(page.nextToken, folder);
+                    if (more != null) list.addAll(more);
                 }
-                return list;
+                return list.isEmpty() ? null : list;
             } else {
                 throw new RequestFailException(response.message(), response.code());
             }
@@ -1183,11 +1862,134 @@ public class OneDriveApi extends BaseApi {
     }
 
     @Override
-    public File getThumbnail(@NonNull CFile file) throws RequestFailException {
+    public File getThumbnail(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getFile(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return fetchThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Bitmap getThumbnailBitmap(@NonNull final CFile file) throws RequestFailException {
+        return mThumbnails.getBitmap(ThumbnailCache.key(mAccount, file), new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return getThumbnail(file);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, File> getThumbnails(@NonNull List<CFile> files) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
+
+        // thumbnail urls missing from the listing are looked up in json batches
+        List<CFile> ready = new ArrayList<>();
+        List<CFile> missing = new ArrayList<>();
+        for (CFile file : files) {
+            if (file.getThumbnailUrl() != null
+                    || mThumbnails.getCachedFile(ThumbnailCache.key(mAccount, file)) != null) {
+                ready.add(file);
+            } else {
+                missing.add(file);
+            }
+        }
+
+        RequestFailException failure = null;
+        for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+            List<CFile> batch = missing.subList(i, Math.min(i + BATCH_SIZE, missing.size()));
+            try {
+                ready.addAll(fetchThumbnailUrls(batch));
+            } catch (RequestFailException e) {
+                // a single batch does not fail the others
+                e.printStackTrace();
+                if (failure == null) failure = e;
+            }
+        }
+
+        // the pre-authenticated urls are downloaded concurrently
+        Map<String, File> thumbnails = new HashMap<>();
+        try {
+            if (!ready.isEmpty()) thumbnails = super.getThumbnails(ready);
+        } catch (RequestFailException e) {
+            if (failure == null) failure = e;
+        }
+
+        if (thumbnails.isEmpty() && failure != null) throw failure;
+        return thumbnails;
+    }
+
+    /**
+     * Look up the thumbnail url of a batch of files in a single json batch request
+     *
+     * @param files of the batch, the thumbnail url is set on each file found
+     * @return files with a thumbnail, files without thumbnail or failed are left out
+     * @throws RequestFailException if the batch request failed as a whole
+     */
+    private List<CFile> fetchThumbnailUrls(List<CFile> files) throws RequestFailException {
+        List<CFile> found = new ArrayList<>();
+        try {
+            List<JSONObject> requests = new ArrayList<>();
+            for (CFile file : files) {
+                requests.add(new JSONObject()
+                        .put("method", "GET")
+                        .put("url", "/drive/items/" + file.getId() + "/thumbnails?$select=medium"));
+            }
+
+            JSONObject[] responses = postBatch(requests);
+            for (int i = 0; i < files.size(); i++) {
+                RequestFailException failure = getBatchFailure(responses[i]);
+                if (failure != null) {
+                    Log.w(TAG, "Thumbnail url failed: " + failure.getMessage());
+                    continue;
+                }
+
+                // no thumbnail set means the file has no thumbnail, e.g. not an image
+                JSONArray sets = responses[i].getJSONObject("body").optJSONArray("value");
+                JSONObject medium = sets != null && sets.length() > 0 ?
+                        sets.getJSONObject(0).optJSONObject("medium") : null;
+                if (medium == null) continue;
+
+                files.get(i).setThumbnailUrl(medium.getString("url"));
+                found.add(files.get(i));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+        return found;
+    }
+
+    /**
+     * Download the thumbnail from the cloud server
+     *
+     * @param file to retrieve the thumbnail
+     * @return File in binary format, null if not available
+     * @throws RequestFailException
+     */
+    private File fetchThumbnail(@NonNull CFile file) throws RequestFailException {
         if (TextUtils.isEmpty(mAccessToken)) {
             throw new RequestFailException("Access token not available");
         }
 
+        // thumbnail url from the listing is pre-authenticated
+        if (!TextUtils.isEmpty(file.getThumbnailUrl())) {
+            Request request = new Request.Builder()
+                    .url(file.getThumbnailUrl())
+                    .get()
+                    .build();
+            try {
+                return downloadFile(request, file.getId() + ".jpg");
+            } catch (RequestFailException e) {
+                // url expires after a while, ask for the thumbnail again
+                Log.w(TAG, "Thumbnail url failed: " + e.getMessage());
+            }
+        }
+
         Request request = new Request.Builder()
                 .url(API_BASE_URL + "/drive/items/" + file.getId() + "/thumbnails/0/medium/content")
                 .header("Authorization", String.format("Bearer %s", mAccessToken))
@@ -1195,8 +1997,10 @@ public class OneDriveApi extends BaseApi {
                 .build();
 
         try {
-            Response response = mHttpClient.newCall(request).execute();
+            Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
             if (response.isSuccessful()) {
+                // content is requested again from the final location
+                response.body().close();
                 switch (response.code()) {
                     case 200:
                         // redirect to url
@@ -1215,42 +2019,190 @@ public class OneDriveApi extends BaseApi {
         return null;
     }
 
-    /**
-     * Create files or folders from the JSONArray search result
-     *
-     * @param jsonArray that contain files and folders information
-     * @param parent folder that contain the items returned
-     * @return list that contains CFile and CFolder that belong to the parent folder
-     * @throws RequestFailException
-     */
-    private List<Object> createFilteredItemsList(JSONArray jsonArray, CFolder parent) throws RequestFailException {
-        if (jsonArray == null || jsonArray.length() == 0) return null;
+    @Override
+    public ChangeSet getChanges(@Nullable String cursor) throws RequestFailException {
+        if (TextUtils.isEmpty(mAccessToken)) {
+            throw new RequestFailException("Access token not available");
+        }
 
-        List<Object> list = new ArrayList<>();
+        ChangeSet changes = new ChangeSet();
+        // latest token start from now without enumerating the drive
+        Uri uri = Uri.parse(API_BASE_URL);
+        String url = uri.buildUpon()
+                .appendEncodedPath("drive/root/view.delta")
+                .appendQueryParameter("token", cursor != null ? cursor : "latest")
+                .build()
+                .toString();
 
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject jsonObject = jsonArray.getJSONObject(i);
-                // filter parent
-                JSONObject parentReference = jsonObject.getJSONObject("parentReference");
-                if (parent != null &&
-                        !parentReference.getString("id").equals(parent.getId()) &&
-                        !parentReference.getString("path").equals(parent.getPath()))
-                    continue;
+        while (url != null) {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", String.format("Bearer %s", mAccessToken))
+                    .get()
+                    .build();
 
-                if (jsonObject.has("file")) {
-                    list.add(buildFile(jsonObject));
-                } else if (jsonObject.has("folder")) {
-                    list.add(buildFolder(jsonObject));
+            try {
+                Response response = ApiTask.track(mCloudProvider.clientFor(request).newCall(request)).execute();
+                if (response.isSuccessful()) {
+                    url = readChanges(response, changes);
+                } else if (response.code() == 410) {
+                    // delta token expired, full sync required
+                    changes.setReset(true);
+                    changes.setCursor(null);
+                    return changes;
                 } else {
-                    Log.e(TAG, "Unknown type found");
+                    throw new RequestFailException(response.message(), response.code());
                 }
             } catch (JSONException e) {
                 e.printStackTrace();
                 throw new RequestFailException(e.getMessage());
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RequestFailException(e.getMessage());
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Read a page of delta changes from the response body one entry at a time
+     *
+     * @param response of the view delta request
+     * @param changes to add the changed and deleted items into
+     * @return url of the following page, null if this is the last page
+     * @throws IOException
+     * @throws JSONException
+     */
+    private String readChanges(Response response, ChangeSet changes) throws IOException, JSONException {
+        String nextLink = null;
+
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "value":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            JSONObject jsonObject = JsonUtils.readObject(reader);
+                            String id = jsonObject.getString("id");
+                            if (jsonObject.has("deleted")) {
+                                changes.putDeleted(id);
+                            } else if (jsonObject.has("root")) {
+                                // root itself is not a listing item, only its real id is needed
+                                mRootItemId = id;
+                                continue;
+                            } else {
+                                Object item = createFilteredItem(jsonObject, null);
+                                if (item != null) changes.putChanged(id, item, getParentId(jsonObject));
+                            }
+                        }
+                        reader.endArray();
+                        break;
+                    case "@odata.nextLink":
+                        nextLink = reader.nextString();
+                        break;
+                    case "@delta.token":
+                        changes.setCursor(reader.nextString());
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        return nextLink;
+    }
+
+    /**
+     * Read a page of items from the response body one entry at a time, only the entry being
+     * converted is held in memory
+     *
+     * @param response of the children or search request
+     * @param parent folder that contain the items returned, null to skip filtering
+     * @return ItemPage with the next link as next token
+     * @throws IOException
+     * @throws JSONException
+     */
+    private ItemPage readItemPage(Response response, CFolder parent) throws IOException, JSONException {
+        ItemPage page = new ItemPage();
+
+        JsonReader reader = JsonUtils.newReader(response.body().source());
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "value":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Object item = createFilteredItem(JsonUtils.readObject(reader), parent);
+                            if (item != null) page.items.add(item);
+                        }
+                        reader.endArray();
+                        break;
+                    case "@odata.nextLink":
+                        page.nextToken = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
             }
+            reader.endObject();
+        } finally {
+            reader.close();
         }
 
-        return list;
+        return page;
+    }
+
+    /**
+     * Get the id of the folder that contain the item. Items directly under the root folder
+     * use {@link #ROOT_ID} the same as the root folder returned by {@link #getRoot()}, they are
+     * recognised by the root path or by the root item id seen earlier in the delta.
+     *
+     * @param jsonObject that contain file or folder information
+     * @return parent folder id, null if not reported
+     * @throws JSONException
+     */
+    private String getParentId(JSONObject jsonObject) throws JSONException {
+        JSONObject parentReference = jsonObject.optJSONObject("parentReference");
+        if (parentReference == null || !parentReference.has("id")) return null;
+
+        String parentId = parentReference.getString("id");
+        if (ROOT_PATH.equals(parentReference.optString("path")) || parentId.equals(mRootItemId))
+            return ROOT_ID;
+        return parentId;
+    }
+
+    /**
+     * Create file or folder from the JSONObject item
+     *
+     * @param jsonObject that contain file or folder information
+     * @param parent folder that contain the item returned, null to skip filtering
+     * @return CFile or CFolder, null if the item does not belong to the parent folder
+     * @throws JSONException
+     */
+    private Object createFilteredItem(JSONObject jsonObject, CFolder parent) throws JSONException {
+        // filter parent
+        JSONObject parentReference = jsonObject.getJSONObject("parentReference");
+        if (parent != null &&
+                !parentReference.getString("id").equals(parent.getId()) &&
+                !parentReference.getString("path").equals(parent.getPath()))
+            return null;
+
+        if (jsonObject.has("file")) {
+            return buildFile(jsonObject);
+        } else if (jsonObject.has("folder")) {
+            return buildFolder(jsonObject);
+        } else {
+            Log.e(TAG, "Unknown type found");
+            return null;
+        }
     }
 }
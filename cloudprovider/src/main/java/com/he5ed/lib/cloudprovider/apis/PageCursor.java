@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import android.support.annotation.Nullable;
+
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.ItemPage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lazy cursor over the pages of a folder listing. Each call to {@link #next()} fetches a
+ * single page from the cloud server, so the first page can be displayed or processed before
+ * the rest of a large folder is loaded.
+ * <p>
+ * Optionally the cursor can fetch the following page in the background while the current
+ * page is being consumed, see {@link #prefetch(ExecutorService)}.
+ * <p>
+ * A cursor is meant to be consumed by a single thread.
+ */
+public abstract class PageCursor {
+
+    private String mNextToken;
+    private boolean mStarted;
+    private boolean mClosed;
+    private ExecutorService mExecutor;
+    private Future<ItemPage> mPrefetch;
+
+    /**
+     * Create cursor that start from the first page
+     */
+    public PageCursor() {
+        this(null);
+    }
+
+    /**
+     * Create cursor that start from the page of the token
+     *
+     * @param startToken of the first page to fetch, null for the first page
+     */
+    public PageCursor(@Nullable String startToken) {
+        mNextToken = startToken;
+    }
+
+    /**
+     * Fetch the page identified by the token from the cloud server
+     *
+     * @param token of the page, null for the first page
+     * @return ItemPage
+     * @throws RequestFailException that content various error types
+     */
+    protected abstract ItemPage fetchPage(@Nullable String token) throws RequestFailException;
+
+    /**
+     * Fetch the following page in the background as soon as the current page is returned
+     *
+     * @param executor to run the background request on
+     * @return this cursor
+     */
+    public PageCursor prefetch(@Nullable ExecutorService executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Whether there are more pages to fetch
+     *
+     * @return boolean
+     */
+    public boolean hasNext() {
+        return !mClosed && (!mStarted || mNextToken != null);
+    }
+
+    /**
+     * Get the next page
+     *
+     * @return ItemPage
+     * @throws RequestFailException that content various error types
+     * @throws NoSuchElementException if there is no more page
+     */
+    public ItemPage next() throws RequestFailException {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        ItemPage page;
+        if (mPrefetch != null) {
+            page = getPrefetched();
+        } else {
+            page = fetchPage(mNextToken);
+        }
+        mStarted = true;
+        mNextToken = page.nextToken;
+
+        // request the following page while this page is being consumed
+        if (mExecutor != null && mNextToken != null) {
+            final String token = mNextToken;
+            mPrefetch = mExecutor.submit(ApiTask.inherit(new Callable<ItemPage>() {
+                @Override
+                public ItemPage call() throws Exception {
+                    return fetchPage(token);
+                }
+            }));
+        }
+
+        return page;
+    }
+
+    /**
+     * Fetch all the remaining pages
+     *
+     * @return List that contains CFile and CFolder, null if no item found
+     * @throws RequestFailException that content various error types
+     */
+    public List<Object> readAll() throws RequestFailException {
+        List<Object> list = new ArrayList<>();
+        while (hasNext()) {
+            list.addAll(next().items);
+        }
+        return list.isEmpty() ? null : list;
+    }
+
+    /**
+     * Stop fetching pages and cancel the background request if any
+     */
+    public void close() {
+        mClosed = true;
+        if (mPrefetch != null) {
+            mPrefetch.cancel(true);
+            mPrefetch = null;
+        }
+    }
+
+    private ItemPage getPrefetched() throws RequestFailException {
+        try {
+            return mPrefetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestFailException(e.getMessage(), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RequestFailException)
+                throw (RequestFailException) cause;
+            throw new RequestFailException(cause.getMessage(), cause);
+        } finally {
+            mPrefetch = null;
+        }
+    }
+
+}
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Download of a file in segments with concurrent HTTP range requests. The first missing
+ * segment is requested on the calling thread to learn the file size, then the file is
+ * preallocated and the remaining segments are written in place through positional
+ * {@link FileChannel} writes.
+ * <p>
+ * The content goes to a partial file next to the destination together with a small sidecar
+ * that records the validator, the size and the completed segments. A download that failed,
+ * even in a previous process, resumes the missing segments with Range and If-Range requests
+ * as long as the file has not changed on the server. The partial file replaces the
+ * destination once complete.
+ * <p>
+ * Servers that do not support range requests get the whole file over a single stream.
+ * <p>
+ * Progress is reported to the running {@link ApiTask} as segments complete, segments kept from
+ * a partial download count as soon as the download resumes.
+ */
+public class SegmentedDownload {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part.state";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_SEGMENT_SIZE = "segmentSize";
+    private static final String KEY_DONE = "done";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String TAG = "SegmentedDownload";
+
+    private final OkHttpClient mHttpClient;
+    private final CloudProvider mCloudProvider;
+    private final Request mRequest;
+    private final File mFile;
+    private final File mPartFile;
+    private final File mStateFile;
+    private long mSegmentSize;
+    private ExecutorService mExecutor;
+    private int mConcurrency = 1;
+    private String mValidator;
+    private long mTotal = -1;
+    private BitSet mDone = new BitSet();
+    private volatile boolean mChanged;
+
+    /**
+     * Create download
+     *
+     * @param httpClient to execute the requests
+     * @param request of the file content, redirects are followed
+     * @param file to write the content to
+     */
+    public SegmentedDownload(OkHttpClient httpClient, Request request, File file) {
+        this(httpClient, null, request, file);
+    }
+
+    /**
+     * Create download that sends every request with the HTTP client of its host, the segments
+     * following a redirect included
+     *
+     * @param cloudProvider to get the HTTP client of the host from
+     * @param request of the file content, redirects are followed
+     * @param file to write the content to
+     */
+    public SegmentedDownload(CloudProvider cloudProvider, Request request, File file) {
+        this(null, cloudProvider, request, file);
+    }
+
+    private SegmentedDownload(OkHttpClient httpClient, CloudProvider cloudProvider,
+                              Request request, File file) {
+        mHttpClient = httpClient;
+        mCloudProvider = cloudProvider;
+        mRequest = request;
+        mFile = file;
+        mPartFile = new File(file.getPath() + PART_SUFFIX);
+        mStateFile = new File(file.getPath() + STATE_SUFFIX);
+        mSegmentSize = CloudProvider.DOWNLOAD_SEGMENT_SIZE;
+    }
+
+    private Call newCall(Request request) {
+        OkHttpClient client = mCloudProvider != null ? mCloudProvider.clientFor(request) : mHttpClient;
+        return client.newCall(request);
+    }
+
+    /**
+     * Delete the partial download of the file, e.g. once the download is abandoned
+     *
+     * @param file destination of the download
+     */
+    public static void discard(File file) {
+        new File(file.getPath() + PART_SUFFIX).delete();
+        new File(file.getPath() + STATE_SUFFIX).delete();
+    }
+
+    /**
+     * Download several segments at a time
+     *
+     * @param executor to download the segments on
+     * @param concurrency number of segments in flight, 1 to download one segment at a time
+     * @return this download
+     */
+    public SegmentedDownload parallel(@Nullable ExecutorService executor, int concurrency) {
+        mExecutor = executor;
+        mConcurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    /**
+     * Size of the range requested at a time, a resumed download keeps its original size
+     *
+     * @param segmentSize in bytes
+     * @return this download
+     */
+    public SegmentedDownload segmentSize(long segmentSize) {
+        mSegmentSize = Math.max(BUFFER_SIZE, segmentSize);
+        return this;
+    }
+
+    /**
+     * Download the file, resuming the partial download if any
+     *
+     * @return File
+     * @throws RequestFailException that content various error types
+     */
+    public File download() throws RequestFailException {
+        restoreState();
+
+        RandomAccessFile output = null;
+        try {
+            int first = mDone.nextClearBit(0);
+            Request.Builder builder = mRequest.newBuilder()
+                    .header("Range", "bytes=" + first * mSegmentSize + "-"
+                            + ((first + 1) * mSegmentSize - 1));
+            if (mValidator != null) builder.header("If-Range", mValidator);
+
+            Response response = ApiTask.track(newCall(builder.build())).execute();
+            // later segments go straight to the redirected location
+            Request request = response.request();
+            try {
+                long total = response.code() == 206 ? getTotalLength(response) : -1;
+                if (response.code() == 206 && total < 0) {
+                    // unknown size, start over with a single stream
+                    response.body().close();
+                    return downloadWhole();
+                } else if (response.code() == 416 && first > 0) {
+                    // file shrank since the partial download, start over
+                    response.body().close();
+                    discardState();
+                    return download();
+                } else if (response.code() != 206 && response.code() != 200
+                        && response.code() != 416) {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+
+                if (total < 0 || total != mTotal) {
+                    // nothing to resume, the file changed or range is not supported
+                    discardState();
+                } else {
+                    ApiTask.reportProgress(getDoneLength());
+                }
+                output = new RandomAccessFile(mPartFile, "rw");
+                if (total < 0) {
+                    // take the whole body of this response, empty file can not satisfy any
+                    // range (416)
+                    checkStorage(response.body().contentLength());
+                    output.setLength(0);
+                    if (response.code() == 200)
+                        writeBody(response.body().source(), output.getChannel(), 0, true);
+                    return complete(output);
+                }
+
+                if (mTotal < 0) {
+                    checkStorage(total);
+                    output.setLength(total);
+                    mTotal = total;
+                    // segments must come from the same version of the file
+                    mValidator = getValidator(response);
+                    saveState();
+                }
+                try {
+                    writeBody(response.body().source(), output.getChannel(), first * mSegmentSize,
+                            false);
+                    markDone(first);
+                } catch (IOException e) {
+                    // connection dropped, the segment is retried with the others
+                    Log.w(TAG, "Segment download failed: " + e.getMessage());
+                }
+            } finally {
+                response.body().close();
+            }
+
+            downloadSegments(request, output.getChannel());
+            return complete(output);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } finally {
+            close(output);
+            // partial content of an older version is useless
+            if (mChanged) discardState();
+        }
+    }
+
+    /**
+     * Download the whole file over a single stream
+     *
+     * @return File
+     * @throws RequestFailException that content various error types
+     */
+    private File downloadWhole() throws RequestFailException {
+        discardState();
+
+        RandomAccessFile output = null;
+        try {
+            Response response = ApiTask.track(newCall(mRequest)).execute();
+            try {
+                if (!response.isSuccessful())
+                    throw new RequestFailException(response.message(), response.code());
+
+                checkStorage(response.body().contentLength());
+                output = new RandomAccessFile(mPartFile, "rw");
+                output.setLength(0);
+                writeBody(response.body().source(), output.getChannel(), 0, true);
+            } finally {
+                response.body().close();
+            }
+            return complete(output);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } finally {
+            close(output);
+        }
+    }
+
+    /**
+     * Download the missing segments. The calling thread take part so the download always
+     * progress even when the executor is busy.
+     */
+    private void downloadSegments(final Request request, final FileChannel channel)
+            throws RequestFailException {
+        int count = (int) ((mTotal + mSegmentSize - 1) / mSegmentSize);
+        final List<Integer> missing = new ArrayList<>();
+        synchronized (this) {
+            for (int i = mDone.nextClearBit(0); i < count; i = mDone.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) return;
+
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    int index;
+                    while (!failed.get() && (index = next.getAndIncrement()) < missing.size()) {
+                        downloadSegment(request, channel, missing.get(index));
+                    }
+                    return null;
+                } catch (Exception e) {
+                    // stop the other workers
+                    failed.set(true);
+                    throw e;
+                }
+            }
+        };
+
+        List<Future<Void>> helpers = new ArrayList<>();
+        if (mExecutor != null) {
+            for (int i = 1; i < Math.min(mConcurrency, missing.size()); i++) {
+                helpers.add(mExecutor.submit(ApiTask.inherit(worker)));
+            }
+        }
+
+        Throwable failure = null;
+        try {
+            worker.call();
+        } catch (Exception e) {
+            failure = e;
+        }
+
+        for (Future<Void> helper : helpers) {
+            // helper not started yet has nothing left to do
+            if (helper.cancel(false)) continue;
+            try {
+                helper.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) failure = e;
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+            }
+        }
+
+        if (failure instanceof RequestFailException) throw (RequestFailException) failure;
+        if (failure != null) throw new RequestFailException(failure.getMessage(), failure);
+    }
+
+    /**
+     * Download a segment into the file, retrying on connection failure
+     */
+    private void downloadSegment(Request request, FileChannel channel, int index)
+            throws RequestFailException, IOException {
+        long start = index * mSegmentSize;
+        long end = Math.min(start + mSegmentSize, mTotal);
+        Request.Builder builder = request.newBuilder()
+                .header("Range", "bytes=" + start + "-" + (end - 1));
+        if (mValidator != null) builder.header("If-Range", mValidator);
+
+        for (int retry = 0; ; retry++) {
+            Response response = null;
+            try {
+                response = ApiTask.track(newCall(builder.build())).execute();
+                if (response.code() == 200) {
+                    // the whole file is returned when the validator no longer match
+                    mChanged = true;
+                    throw new RequestFailException("File changed during download", response.code());
+                } else if (response.code() != 206) {
+                    throw new RequestFailException(response.message(), response.code());
+                }
+                if (writeBody(response.body().source(), channel, start, false) != end)
+                    throw new IOException("Unexpected end of segment");
+                markDone(index);
+                return;
+            } catch (IOException e) {
+                if (retry >= CloudProvider.DOWNLOAD_RETRY_COUNT) throw e;
+                Log.w(TAG, "Segment download failed, retrying: " + e.getMessage());
+            } finally {
+                if (response != null) response.body().close();
+            }
+        }
+    }
+
+    /**
+     * Replace the destination with the complete partial file
+     */
+    private File complete(RandomAccessFile output) throws IOException {
+        output.close();
+        if (mFile.exists() && !mFile.delete())
+            throw new IOException("Fail to replace " + mFile.getName());
+        if (!mPartFile.renameTo(mFile))
+            throw new IOException("Fail to rename " + mPartFile.getName());
+
+        mStateFile.delete();
+        return mFile;
+    }
+
+    private void markDone(int index) {
+        synchronized (this) {
+            mDone.set(index);
+            saveState();
+        }
+        ApiTask.reportProgress(getSegmentLength(index));
+    }
+
+    private long getSegmentLength(int index) {
+        return Math.min(mSegmentSize, mTotal - index * mSegmentSize);
+    }
+
+    /**
+     * Get the number of bytes in the completed segments
+     */
+    private synchronized long getDoneLength() {
+        long length = 0;
+        for (int i = mDone.nextSetBit(0); i >= 0; i = mDone.nextSetBit(i + 1)) {
+            length += getSegmentLength(i);
+        }
+        return length;
+    }
+
+    /**
+     * Load the state of the partial download, only usable with a strong validator
+     */
+    private void restoreState() {
+        if (!mStateFile.exists()) return;
+
+        BufferedSource source = null;
+        try {
+            source = Okio.buffer(Okio.source(mStateFile));
+            JSONObject jsonObject = new JSONObject(source.readUtf8());
+            long total = jsonObject.getLong(KEY_TOTAL);
+            if (!mPartFile.exists() || mPartFile.length() != total) {
+                discardState();
+                return;
+            }
+
+            mValidator = jsonObject.getString(KEY_VALIDATOR);
+            mTotal = total;
+            mSegmentSize = jsonObject.getLong(KEY_SEGMENT_SIZE);
+            JSONArray done = jsonObject.getJSONArray(KEY_DONE);
+            for (int i = 0; i < done.length(); i++) {
+                mDone.set(done.getInt(i));
+            }
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+            discardState();
+        } finally {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Save the state of the partial download, it can not be resumed without a validator
+     */
+    private synchronized void saveState() {
+        if (mValidator == null) return;
+
+        try {
+            JSONArray done = new JSONArray();
+            for (int i = mDone.nextSetBit(0); i >= 0; i = mDone.nextSetBit(i + 1)) {
+                done.put(i);
+            }
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(KEY_VALIDATOR, mValidator);
+            jsonObject.put(KEY_TOTAL, mTotal);
+            jsonObject.put(KEY_SEGMENT_SIZE, mSegmentSize);
+            jsonObject.put(KEY_DONE, done);
+
+            // replace atomically so a crash never leave a corrupted state
+            File tmp = new File(mStateFile.getPath() + ".tmp");
+            FilesUtils.writeFileContent(new FileOutputStream(tmp), jsonObject.toString());
+            if (!tmp.renameTo(mStateFile)) tmp.delete();
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drop the partial download, its content can not be resumed
+     */
+    private synchronized void discardState() {
+        discard(mFile);
+        mValidator = null;
+        mTotal = -1;
+        mDone.clear();
+    }
+
+    /**
+     * Write the body to the file channel from the position onward
+     *
+     * @param progress whether every write is reported, segments are reported once complete
+     * @return position after the last byte written
+     */
+    private static long writeBody(BufferedSource source, FileChannel channel, long position,
+                                  boolean progress) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = source.read(buffer)) != -1) {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+            if (progress) ApiTask.reportProgress(length);
+        }
+        return position;
+    }
+
+    /**
+     * Extract the complete length from the Content-Range header, e.g. bytes 0-1023/4096
+     *
+     * @return length, -1 if unknown
+     */
+    private static long getTotalLength(Response response) {
+        String range = response.header("Content-Range");
+        if (TextUtils.isEmpty(range) || range.indexOf('/') < 0) return -1;
+
+        try {
+            return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            // unknown length, i.e. *
+            return -1;
+        }
+    }
+
+    /**
+     * Strong validator usable in If-Range, weak entity tag can not be used
+     *
+     * @return entity tag or last modified date, null if none
+     */
+    private static String getValidator(Response response) {
+        String etag = response.header("ETag");
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) return etag;
+
+        return response.header("Last-Modified");
+    }
+
+    private void checkStorage(long length) throws RequestFailException {
+        File dir = mFile.getAbsoluteFile().getParentFile();
+        if (dir != null && length > 0 && dir.getUsableSpace() < length)
+            throw new RequestFailException("Insufficient storage");
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file == null) return;
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
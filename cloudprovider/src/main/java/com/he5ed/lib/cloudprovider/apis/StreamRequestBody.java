@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.RequestBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Request body that stream the content of an InputStream into the request. Content of
+ * unknown length is sent with chunked transfer encoding. The stream can only be read once,
+ * so a request with this body can not be retried.
+ */
+public class StreamRequestBody extends RequestBody {
+
+    private final MediaType mContentType;
+    private final InputStream mInput;
+    private final long mLength;
+
+    /**
+     * Create request body
+     *
+     * @param contentType of the content, null if not known
+     * @param input to read the content from, the stream is not closed
+     * @param length of the content in bytes, -1 if unknown
+     */
+    public StreamRequestBody(MediaType contentType, InputStream input, long length) {
+        mContentType = contentType;
+        mInput = input;
+        mLength = length;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mContentType;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return mLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Source source = Okio.source(mInput);
+        if (mLength < 0) {
+            sink.writeAll(source);
+        } else {
+            // fail if the stream is shorter than announced
+            sink.write(source, mLength);
+        }
+    }
+
+}
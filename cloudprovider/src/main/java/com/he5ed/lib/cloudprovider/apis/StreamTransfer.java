@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.apis;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Copy of a file from one cloud storage to another without writing it to the device. The
+ * download stream of the source is uploaded to the destination as it arrives, large files go
+ * through the upload session of the destination.
+ * <p>
+ * The download is read on a thread of its own into a bounded in-memory buffer, so it goes on
+ * while the upload is sending a chunk. The download waits whenever the buffer is full, hence
+ * the copy runs at the speed of the slower link.
+ */
+public class StreamTransfer {
+
+    private static final String TAG = "StreamTransfer";
+
+    private final BaseApi mSource;
+    private final BaseApi mDestination;
+    private int mBufferSize;
+
+    /**
+     * Create transfer
+     *
+     * @param source cloud API to download from
+     * @param destination cloud API to upload to
+     */
+    public StreamTransfer(BaseApi source, BaseApi destination) {
+        mSource = source;
+        mDestination = destination;
+        mBufferSize = CloudProvider.TRANSFER_BUFFER_SIZE;
+    }
+
+    /**
+     * Size of the in-memory buffer between the download and the upload
+     *
+     * @param bufferSize in bytes, 0 to let the upload read the download stream directly
+     * @return this transfer
+     */
+    public StreamTransfer buffer(int bufferSize) {
+        mBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * Copy file into a folder of the destination
+     *
+     * @param file to be copied from the source
+     * @param folder of the destination, use null for root
+     * @return CFile created in the destination
+     * @throws RequestFailException that content various error types
+     */
+    public CFile copy(@NonNull CFile file, @Nullable CFolder folder) throws RequestFailException {
+        return transfer(file, null, folder);
+    }
+
+    /**
+     * Copy file over an existing file of the destination
+     *
+     * @param file to be copied from the source
+     * @param target file of the destination to be updated
+     * @return CFile updated in the destination
+     * @throws RequestFailException that content various error types
+     */
+    public CFile replace(@NonNull CFile file, @NonNull CFile target) throws RequestFailException {
+        return transfer(file, target, null);
+    }
+
+    private CFile transfer(CFile file, CFile target, CFolder folder) throws RequestFailException {
+        // size missing from the metadata is treated as unknown
+        long length = file.getSize() > 0 ? file.getSize() : -1;
+        InputStream download = mSource.openStream(file);
+        InputStream input = download;
+        try {
+            if (mBufferSize > 0) {
+                Pump pump = new Pump(download, mBufferSize);
+                input = pump.getInput();
+                pump.start();
+            }
+
+            return target != null
+                    ? mDestination.updateFile(target, input, length)
+                    : mDestination.uploadFile(input, length, file.getName(), folder);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        } finally {
+            // the pump closes the download once the pipe is closed
+            close(input);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Thread that read the download into the pipe. A failed download is reported to the reading
+     * side as an error rather than an early end of the stream, which would be taken as the end
+     * of a stream of unknown length.
+     */
+    private static class Pump extends Thread {
+
+        private final InputStream mDownload;
+        private final PipedInputStream mInput;
+        private final PipedOutputStream mOutput;
+        private volatile IOException mError;
+
+        Pump(InputStream download, int bufferSize) throws IOException {
+            super(TAG);
+            mDownload = download;
+            mInput = new PipedInputStream(bufferSize) {
+                @Override
+                public synchronized int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) checkError();
+                    return b;
+                }
+
+                @Override
+                public synchronized int read(byte[] b, int off, int len) throws IOException {
+                    int count = super.read(b, off, len);
+                    if (count == -1) checkError();
+                    return count;
+                }
+            };
+            mOutput = new PipedOutputStream(mInput);
+        }
+
+        InputStream getInput() {
+            return mInput;
+        }
+
+        private void checkError() throws IOException {
+            if (mError != null) throw new IOException("Download failed", mError);
+        }
+
+        @Override
+        public void run() {
+            try {
+                // block while the buffer is full
+                BufferedSink sink = Okio.buffer(Okio.sink(mOutput));
+                sink.writeAll(Okio.source(mDownload));
+                sink.flush();
+            } catch (IOException e) {
+                // failed download or the upload closed the pipe
+                mError = e;
+            } finally {
+                close(mOutput);
+                close(mDownload);
+            }
+        }
+
+    }
+
+}
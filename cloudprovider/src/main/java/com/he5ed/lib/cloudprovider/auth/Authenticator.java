@@ -43,6 +43,7 @@ public class Authenticator extends AbstractAccountAuthenticator {
     public static final String KEY_ACCESS_TOKEN = "accessToken";
     public static final String KEY_REFRESH_TOKEN = "refreshToken";
     public static final String KEY_EXPIRY = "expiry";
+    public static final String KEY_CHANGE_CURSOR = "changeCursor";
 
     private Context mContext;
 
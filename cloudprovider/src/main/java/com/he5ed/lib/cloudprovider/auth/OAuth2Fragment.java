@@ -79,7 +79,7 @@ public class OAuth2Fragment extends Fragment implements OAuthWebView.OnAuthEndLi
             // end activity
             getActivity().finish();
         }
-        mHttpClient = new OkHttpClient();
+        mHttpClient = CloudProvider.getInstance(getActivity()).getHttpClient();
     }
 
     @Override
@@ -64,12 +64,39 @@ public class CFile implements Parcelable, Comparable {
      */
     public static final String MODIFIED = "modified";
 
+    /**
+     * Map key for the entity tag or revision of this cloud file. It changes whenever the cloud
+     * file changes and is used to make conditional requests. Some cloud service may not provide
+     * this information
+     */
+    public static final String ETAG = "etag";
+
+    /**
+     * Map key for the url of a preview image of this cloud file, only available when requested
+     * with the folder listing. Some cloud service require the access token to load it.
+     */
+    public static final String THUMBNAIL_URL = "thumbnailUrl";
+
+    /**
+     * Map key for the content hash of this cloud file in the format of the cloud service, only
+     * available when requested with the folder listing
+     */
+    public static final String HASH = "hash";
+
+    /**
+     * Map key for the size in bytes of this cloud file as a Long
+     */
+    public static final String SIZE = "size";
+
     private String mId;
     private String mName;
     private String mPath;
     private String mType;
     private Date mCreated;
     private Date mModified;
+    private String mEtag;
+    private String mThumbnailUrl;
+    private String mHash;
     private boolean mOffline;
     private boolean mNew;
     private long mSize;
@@ -88,6 +115,11 @@ public class CFile implements Parcelable, Comparable {
             mId = (String) map.get(ID);
             mName = (String) map.get(NAME);
             mPath = (String) map.get(PATH);
+            mEtag = (String) map.get(ETAG);
+            mThumbnailUrl = (String) map.get(THUMBNAIL_URL);
+            mHash = (String) map.get(HASH);
+            if (map.get(SIZE) != null)
+                mSize = ((Number) map.get(SIZE)).longValue();
             // format date
             SimpleDateFormat df = new SimpleDateFormat((String) map.get(DATE_FORMAT));
             String created = (String) map.get(CREATED);
@@ -150,6 +182,30 @@ public class CFile implements Parcelable, Comparable {
         mModified = modified;
     }
 
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public void setEtag(String etag) {
+        mEtag = etag;
+    }
+
+    public String getThumbnailUrl() {
+        return mThumbnailUrl;
+    }
+
+    public void setThumbnailUrl(String thumbnailUrl) {
+        mThumbnailUrl = thumbnailUrl;
+    }
+
+    public String getHash() {
+        return mHash;
+    }
+
+    public void setHash(String hash) {
+        mHash = hash;
+    }
+
     public long getSize() {
         return mSize;
     }
@@ -177,8 +233,12 @@ public class CFile implements Parcelable, Comparable {
         dest.writeString(mType);
         dest.writeLong(mCreated != null ? mCreated.getTime() : -1);
         dest.writeLong(mModified != null ? mModified.getTime() : -1);
+        dest.writeString(mEtag);
         dest.writeByte(mOffline ? (byte) 1 : (byte) 0);
         dest.writeByte(mNew ? (byte) 1 : (byte) 0);
+        dest.writeString(mThumbnailUrl);
+        dest.writeString(mHash);
+        dest.writeLong(mSize);
     }
 
     /**
@@ -193,8 +253,12 @@ public class CFile implements Parcelable, Comparable {
         mCreated = tmpMCreated == -1 ? null : new Date(tmpMCreated);
         long tmpMModified = in.readLong();
         mModified = tmpMModified == -1 ? null : new Date(tmpMModified);
+        mEtag = in.readString();
         mOffline = in.readByte() != 0;
         mNew = in.readByte() != 0;
+        mThumbnailUrl = in.readString();
+        mHash = in.readString();
+        mSize = in.readLong();
     }
 
     /**
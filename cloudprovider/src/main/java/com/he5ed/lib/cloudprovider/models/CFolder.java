@@ -64,11 +64,19 @@ public class CFolder implements Parcelable, Comparable {
      */
     public static final String MODIFIED = "modified";
 
+    /**
+     * Map key for the entity tag or revision of this cloud folder. It changes whenever the cloud
+     * folder changes and is used to make conditional requests. Some cloud service may not provide
+     * this information
+     */
+    public static final String ETAG = "etag";
+
     private String mId;
     private String mName;
     private String mPath;
     private Date mCreated;
     private Date mModified;
+    private String mEtag;
     private boolean mOffline;
     private boolean mNew;
     private boolean mIsRoot;
@@ -88,6 +96,7 @@ public class CFolder implements Parcelable, Comparable {
             mId = (String) map.get(ID);
             mName = (String) map.get(NAME);
             mPath = (String) map.get(PATH);
+            mEtag = (String) map.get(ETAG);
             // format date
             SimpleDateFormat df = new SimpleDateFormat((String) map.get(DATE_FORMAT));
             String created = (String) map.get(CREATED);
@@ -142,6 +151,14 @@ public class CFolder implements Parcelable, Comparable {
         mModified = modified;
     }
 
+    public String getEtag() {
+        return mEtag;
+    }
+
+    public void setEtag(String etag) {
+        mEtag = etag;
+    }
+
     public boolean isOffline() {
         return mOffline;
     }
@@ -192,6 +209,7 @@ public class CFolder implements Parcelable, Comparable {
         dest.writeString(mPath);
         dest.writeLong(mCreated != null ? mCreated.getTime() : -1);
         dest.writeLong(mModified != null ? mModified.getTime() : -1);
+        dest.writeString(mEtag);
         dest.writeByte(mOffline ? (byte) 1 : (byte) 0);
         dest.writeByte(mNew ? (byte) 1 : (byte) 0);
         dest.writeByte(mIsRoot ? (byte) 1 : (byte) 0);
@@ -208,6 +226,7 @@ public class CFolder implements Parcelable, Comparable {
         mCreated = tmpMCreated == -1 ? null : new Date(tmpMCreated);
         long tmpMModified = in.readLong();
         mModified = tmpMModified == -1 ? null : new Date(tmpMModified);
+        mEtag = in.readString();
         mOffline = in.readByte() != 0;
         mNew = in.readByte() != 0;
         mIsRoot = in.readByte() != 0;
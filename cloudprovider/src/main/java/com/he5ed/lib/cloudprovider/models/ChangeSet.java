@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.models;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Value type that represents the changes of a cloud storage since the previous sync. Only
+ * the latest state of each item is kept, an item changed and then deleted within the same
+ * change set is only reported as deleted.
+ */
+public class ChangeSet {
+
+    private Map<String, Object> mChanged;
+    private Map<String, String> mParents;
+    private Set<String> mDeleted;
+    private String mCursor;
+    private boolean mReset;
+
+    public ChangeSet() {
+        mChanged = new LinkedHashMap<>();
+        mParents = new LinkedHashMap<>();
+        mDeleted = new LinkedHashSet<>();
+    }
+
+    /**
+     * Record an item that was added or modified
+     *
+     * @param key that identify the item, id or path depending on the cloud API
+     * @param item CFile or CFolder with the latest information
+     */
+    public void putChanged(String key, Object item) {
+        putChanged(key, item, null);
+    }
+
+    /**
+     * Record an item that was added, modified or moved together with the folder that now
+     * contain it
+     *
+     * @param key that identify the item, id or path depending on the cloud API
+     * @param item CFile or CFolder with the latest information
+     * @param parentKey that identify the parent folder the same way as the key, empty for
+     *                  root folder, null if not reported by the cloud API
+     */
+    public void putChanged(String key, Object item, @Nullable String parentKey) {
+        mDeleted.remove(key);
+        mChanged.put(key, item);
+        mParents.put(key, parentKey);
+    }
+
+    /**
+     * Record an item that was deleted
+     *
+     * @param key that identify the item, id or path depending on the cloud API
+     */
+    public void putDeleted(String key) {
+        mChanged.remove(key);
+        mParents.remove(key);
+        mDeleted.add(key);
+    }
+
+    /**
+     * Get the items added or modified
+     *
+     * @return List that contains CFile and CFolder
+     */
+    public List<Object> getChanged() {
+        return new ArrayList<>(mChanged.values());
+    }
+
+    /**
+     * Get the parent folder keys of the changed items, in the same order as
+     * {@link #getChanged()}. Dropbox reports the lower case path of the parent folder, all
+     * the other cloud APIs use the folder id.
+     *
+     * @return List of id or path, null entry when the parent is not known
+     */
+    public List<String> getParentKeys() {
+        return new ArrayList<>(mParents.values());
+    }
+
+    /**
+     * Get the keys of the items deleted. Dropbox does not report the id of deleted items so
+     * the lower case path is used instead, all the other cloud APIs use the item id.
+     *
+     * @return List of id or path
+     */
+    public List<String> getDeleted() {
+        return new ArrayList<>(mDeleted);
+    }
+
+    /**
+     * Get the cursor to request the following changes
+     *
+     * @return cursor string
+     */
+    public String getCursor() {
+        return mCursor;
+    }
+
+    public void setCursor(String cursor) {
+        mCursor = cursor;
+    }
+
+    /**
+     * Whether the cursor expired and the server requires a full sync. The local copy of the
+     * listing must be discarded and rebuilt via exploreFolder.
+     *
+     * @return boolean
+     */
+    public boolean isReset() {
+        return mReset;
+    }
+
+    public void setReset(boolean reset) {
+        mReset = reset;
+    }
+
+    public boolean isEmpty() {
+        return mChanged.isEmpty() && mDeleted.isEmpty();
+    }
+
+}
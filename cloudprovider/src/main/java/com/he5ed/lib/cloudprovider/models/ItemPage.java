@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Value type that represents one page of a folder listing or search result returned by the
+ * cloud server. The items list contains {@link CFile} and {@link CFolder} objects.
+ *
+ * @hide
+ */
+public class ItemPage {
+
+    /**
+     * Files and folders in this page, in the order returned by the server
+     */
+    public List<Object> items;
+
+    /**
+     * Opaque token to request the next page, null when this is the last page
+     */
+    public String nextToken;
+
+    /**
+     * Total number of items reported by the server, -1 if unknown
+     */
+    public int total = -1;
+
+    public ItemPage() {
+        items = new ArrayList<>();
+    }
+
+    /**
+     * Whether the server has more items after this page
+     *
+     * @return boolean
+     */
+    public boolean hasMore() {
+        return nextToken != null;
+    }
+
+}
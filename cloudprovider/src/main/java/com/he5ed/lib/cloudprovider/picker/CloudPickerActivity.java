@@ -286,6 +286,8 @@ public class CloudPickerActivity extends AppCompatActivity
             Class<?> clazz = Class.forName(account.api);
             Constructor constructor = clazz.getConstructor(Context.class, Account.class);
             mApi = (BaseApi) constructor.newInstance(this, account.getAccount());
+            // previews of the item details are loaded straight from the listed url
+            mApi.setListingExtras(BaseApi.EXTRA_THUMBNAIL_URL);
             mApi.prepareApi(this);
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
@@ -17,9 +17,8 @@
 package com.he5ed.lib.cloudprovider.picker;
 
 
+import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.design.widget.AppBarLayout;
@@ -31,14 +30,15 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
 import com.he5ed.lib.cloudprovider.apis.BaseApi;
-import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
 import com.he5ed.lib.cloudprovider.utils.GraphicUtils;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
 
-import java.io.File;
 import java.text.SimpleDateFormat;
 
 /**
@@ -52,6 +52,7 @@ public class ItemFragment extends Fragment {
 
     private BaseApi mApi;
     private Object mItem;
+    private ApiTask<Bitmap> mThumbnailTask;
 
     public ItemFragment() {
         // Required empty public constructor
@@ -63,6 +64,13 @@ public class ItemFragment extends Fragment {
         setRetainInstance(true);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // thumbnail is no longer needed
+        if (mThumbnailTask != null) mThumbnailTask.cancel(true);
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -130,6 +138,8 @@ public class ItemFragment extends Fragment {
         TextView modified = (TextView) rootView.findViewById(R.id.modified_text_view);
         // setup simple date formatter
         SimpleDateFormat sdf = new SimpleDateFormat("dd/M/yyyy");
+        // thumbnail of the previous item is no longer needed
+        if (mThumbnailTask != null) mThumbnailTask.cancel(true);
         if (mItem instanceof CFile) {
             CFile file = (CFile) mItem;
             title.setText(file.getName());
@@ -137,10 +147,10 @@ public class ItemFragment extends Fragment {
             path.setText(file.getPath());
             if (file.getCreated() != null) created.setText(sdf.format(file.getCreated()));
             if (file.getModified() != null) modified.setText(sdf.format(file.getModified()));
-            new GetThumbnailTask().execute(file);
             headerImage.setImageDrawable(GraphicUtils.setTint(getResources(),
                     R.drawable.ic_insert_drive_file_black_48dp,
                     Color.parseColor("#9E9E9E")));
+            getThumbnail(file, headerImage);
 
         } else if (mItem instanceof CFolder) {
             CFolder folder = (CFolder) mItem;
@@ -160,28 +170,35 @@ public class ItemFragment extends Fragment {
     }
 
     /**
-     * Async task to retrieve thumbnail image for file
+     * Show thumbnail image for file, right away if it is still in memory otherwise retrieve it
+     * in the background
+     *
+     * @param file to retrieve the thumbnail
+     * @param headerImage to show the thumbnail
      */
-    private class GetThumbnailTask extends AsyncTask<Object, Void, File> {
+    private void getThumbnail(CFile file, ImageView headerImage) {
+        ThumbnailCache cache = CloudProvider.getInstance(getContext()).getThumbnailCache();
+        Bitmap bitmap = cache.peekBitmap(ThumbnailCache.key(mApi.getAccount(), file));
+        if (bitmap != null) {
+            headerImage.setImageBitmap(bitmap);
+            return;
+        }
 
-        @Override
-        protected File doInBackground(Object... params) {
-            try {
-                return mApi.getThumbnail((CFile) params[0]);
-            } catch (RequestFailException e) {
-                e.printStackTrace();
+        mThumbnailTask = mApi.getThumbnailBitmapAsync(file);
+        mThumbnailTask.addCallback(new ApiTask.Callback<Bitmap>() {
+            @Override
+            public void onSuccess(Bitmap result) {
+                if (result != null && getView() != null) {
+                    ImageView image = (ImageView) getView().findViewById(R.id.header_image_view);
+                    image.setImageBitmap(result);
+                }
             }
 
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(File file) {
-            if (file != null) {
-                ImageView headerImage = (ImageView) getView().findViewById(R.id.header_image_view);
-                headerImage.setImageDrawable(BitmapDrawable.createFromPath(file.getPath()));
+            @Override
+            public void onFailure(Exception e) {
+                e.printStackTrace();
             }
-        }
+        });
     }
 
 }
@@ -170,6 +170,19 @@ public class PickerAdapter extends RecyclerView.Adapter<PickerAdapter.ViewHolder
         notifyDataSetChanged();
     }
 
+    /**
+     * Add more items to the adapter list usually after getting the following page from API
+     *
+     * @param list with additional data to merge into the current list
+     */
+    public void addItemList(List<Comparable> list) {
+        if (list == null || list.isEmpty()) return;
+
+        mList.addAll(list);
+        Collections.sort(mList);
+        notifyDataSetChanged();
+    }
+
     /**
      * Interface for listeners to listen to ViewHolder items interaction
      */
@@ -21,8 +21,9 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentTransaction;
@@ -41,13 +42,17 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.he5ed.lib.cloudprovider.CloudProvider;
 import com.he5ed.lib.cloudprovider.R;
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
 import com.he5ed.lib.cloudprovider.apis.BaseApi;
-import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.apis.PageCursor;
 import com.he5ed.lib.cloudprovider.models.CFile;
 import com.he5ed.lib.cloudprovider.models.CFolder;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @hide
@@ -71,6 +76,9 @@ public class PickerFragment extends Fragment
     private boolean mSearchViewExpand;
     private String mSearchQuery;
     private SearchView mSearchView;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    private ApiTask<?> mLoadTask;
+    private int mLoadCount;
 
     public PickerFragment() {
         // Required empty public constructor
@@ -86,6 +94,12 @@ public class PickerFragment extends Fragment
                 .getBooleanExtra(CloudPickerActivity.EXTRA_PICK_FOLDER, false);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        cancelLoad();
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -267,38 +281,49 @@ public class PickerFragment extends Fragment
      *
      * @param folder to explore
      */
-    public void exploreFolder(CFolder folder) {
+    public void exploreFolder(final CFolder folder) {
         mFolder = folder;
+        cancelLoad();
+        mAdapter.setItemList(null);
+        final int load = mLoadCount;
+        final ExecutorService executor = CloudProvider.getInstance(getContext()).getExecutor();
         // must run on other thread
-        new AsyncTask<String, Void, List>() {
-
-            String error;
-
+        mLoadTask = mApi.async(new Callable<Void>() {
             @Override
-            protected List doInBackground(String... params) {
+            public Void call() throws Exception {
+                // show each page as soon as it arrives while the next one is loading
+                PageCursor cursor = mApi.exploreFolderPagesCached(folder).prefetch(executor);
                 try {
-                    return mApi.exploreFolder(mFolder, 0);
-                } catch (RequestFailException e) {
-                    e.printStackTrace();
-                    error = e.getMessage();
-                    Log.e(CloudPickerActivity.TAG, e.getMessage());
+                    while (cursor.hasNext()) {
+                        final List items = cursor.next().items;
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // drop pages of a cancelled load
+                                if (load == mLoadCount) mAdapter.addItemList(items);
+                            }
+                        });
+                    }
+                } finally {
+                    cursor.close();
                 }
 
                 return null;
             }
+        }).addCallback(new ApiTask.Callback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                // it is just an empty folder
+                updateEmptyView(CAUSE_EMPTY, null);
+            }
 
             @Override
-            protected void onPostExecute(List list) {
-                mAdapter.setItemList(list);
-                if (error != null) {
-                    // error occur print the error message
-                    updateEmptyView(CAUSE_ERROR, error);
-                } else {
-                    // it is just an empty folder
-                    updateEmptyView(CAUSE_EMPTY, null);
-                }
+            public void onFailure(Exception e) {
+                // error occur print the error message
+                Log.e(CloudPickerActivity.TAG, e.getMessage());
+                updateEmptyView(CAUSE_ERROR, e.getMessage());
             }
-        }.execute();
+        });
     }
 
     /**
@@ -307,36 +332,36 @@ public class PickerFragment extends Fragment
      * @param keyword to search for
      */
     public void search(String keyword) {
+        cancelLoad();
         // must run on other thread
-        new AsyncTask<String, Void, List>() {
-
-            String error;
-
+        ApiTask<List<Object>> task = mApi.searchAsync(keyword, mFolder);
+        mLoadTask = task.addCallback(new ApiTask.Callback<List<Object>>() {
             @Override
-            protected List doInBackground(String... params) {
-                try {
-                    return mApi.search(params[0], mFolder);
-                } catch (RequestFailException e) {
-                    e.printStackTrace();
-                    error = e.getMessage();
-                    Log.e(CloudPickerActivity.TAG, e.getMessage());
-                }
-
-                return null;
+            public void onSuccess(List<Object> result) {
+                mAdapter.setItemList((List) result);
+                // no result found
+                updateEmptyView(CAUSE_SEARCH, null);
             }
 
             @Override
-            protected void onPostExecute(List list) {
-                mAdapter.setItemList(list);
-                if (error != null) {
-                    // error occur print the error message
-                    updateEmptyView(CAUSE_ERROR, error);
-                } else {
-                    // no result found
-                    updateEmptyView(CAUSE_SEARCH, null);
-                }
+            public void onFailure(Exception e) {
+                mAdapter.setItemList(null);
+                // error occur print the error message
+                Log.e(CloudPickerActivity.TAG, e.getMessage());
+                updateEmptyView(CAUSE_ERROR, e.getMessage());
             }
-        }.execute(keyword);
+        });
+    }
+
+    /**
+     * Cancel the folder listing or search in progress, along with its requests
+     */
+    private void cancelLoad() {
+        mLoadCount++;
+        if (mLoadTask != null) {
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
     }
 
     /**
@@ -17,53 +17,311 @@
 package com.he5ed.lib.cloudprovider.providers;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.text.TextUtils;
+
+import com.he5ed.lib.cloudprovider.providers.CloudContract.Items;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 
 /**
+ * Content provider that serve the local metadata index of the cloud accounts, see
+ * {@link CloudContract} for the supported uris and columns.
+ * <ul>
+ *     <li>accounts/{account}/items - all items, insert update existing item
+ *     <li>accounts/{account}/items/{id} - single item, delete also remove its descendants
+ *     <li>accounts/{account}/folders/{id}/children - folder contents, bulk insert replace the
+ *     previous contents of the folder
+ * </ul>
+ * Batch operations are applied in a single transaction.
+ *
  * @hide
  */
 public class CloudContentProvider extends ContentProvider {
+
+    private static final int ITEMS = 100;
+    private static final int ITEM_ID = 101;
+    private static final int CHILDREN = 200;
+
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        String authority = CloudContract.AUTHORITY;
+        sUriMatcher.addURI(authority, "accounts/*/items", ITEMS);
+        sUriMatcher.addURI(authority, "accounts/*/items/*", ITEM_ID);
+        sUriMatcher.addURI(authority, "accounts/*/folders/*/children", CHILDREN);
+    }
+
+    private MetadataDatabase mDatabase;
+    // accounts changed by the batch running on the current thread, null outside of batch
+    private final ThreadLocal<Set<String>> mBatchAccounts = new ThreadLocal<>();
+
     public CloudContentProvider() {
     }
 
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Implement this to handle requests to delete one or more rows.
-        throw new UnsupportedOperationException("Not yet implemented");
+    public boolean onCreate() {
+        mDatabase = new MetadataDatabase(getContext());
+        return true;
     }
 
     @Override
     public String getType(Uri uri) {
-        // TODO: Implement this to handle requests for the MIME type of the data
-        // at the given URI.
-        throw new UnsupportedOperationException("Not yet implemented");
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+            case CHILDREN:
+                return Items.CONTENT_TYPE;
+            case ITEM_ID:
+                return Items.CONTENT_ITEM_TYPE;
+            default:
+                throw new IllegalArgumentException("Unknown uri: " + uri);
+        }
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
-        // TODO: Implement this to handle requests to insert a new row.
-        throw new UnsupportedOperationException("Not yet implemented");
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(Items.TABLE_NAME);
+
+        List<String> segments = uri.getPathSegments();
+        String[] args;
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                builder.appendWhere(Items.ACCOUNT + " = ?");
+                args = new String[] {segments.get(1)};
+                break;
+            case ITEM_ID:
+                builder.appendWhere(Items.ACCOUNT + " = ? AND " + Items.ITEM_ID + " = ?");
+                args = new String[] {segments.get(1), segments.get(3)};
+                break;
+            case CHILDREN:
+                builder.appendWhere(Items.ACCOUNT + " = ? AND " + Items.PARENT_ID + " = ?");
+                args = new String[] {segments.get(1), segments.get(3)};
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown uri: " + uri);
+        }
+
+        if (TextUtils.isEmpty(sortOrder)) sortOrder = Items.DEFAULT_SORT_ORDER;
+
+        Cursor cursor = builder.query(mDatabase.getReadableDatabase(), projection, selection,
+                concat(args, selectionArgs), null, null, sortOrder);
+        // notify when any item of the account changed
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                Items.buildItemsUri(segments.get(1)));
+        return cursor;
     }
 
     @Override
-    public boolean onCreate() {
-        // TODO: Implement this to initialize your content provider on startup.
-        return false;
+    public Uri insert(Uri uri, ContentValues values) {
+        if (sUriMatcher.match(uri) != ITEMS)
+            throw new IllegalArgumentException("Unsupported uri for insert: " + uri);
+
+        String account = uri.getPathSegments().get(1);
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        upsert(db, account, values);
+
+        notifyChange(account);
+        return Items.buildItemUri(account, values.getAsString(Items.ITEM_ID));
     }
 
     @Override
-    public Cursor query(Uri uri, String[] projection, String selection,
-                        String[] selectionArgs, String sortOrder) {
-        // TODO: Implement this to handle query requests from clients.
-        throw new UnsupportedOperationException("Not yet implemented");
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                return super.bulkInsert(uri, values);
+            case CHILDREN:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported uri for bulk insert: " + uri);
+        }
+
+        // replace the whole folder contents
+        String account = uri.getPathSegments().get(1);
+        String parentId = uri.getPathSegments().get(3);
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(Items.TABLE_NAME, Items.ACCOUNT + " = ? AND " + Items.PARENT_ID + " = ?",
+                    new String[] {account, parentId});
+            for (ContentValues value : values) {
+                value.put(Items.ACCOUNT, account);
+                value.put(Items.PARENT_ID, parentId);
+                db.insertWithOnConflict(Items.TABLE_NAME, null, value, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        notifyChange(account);
+        return values.length;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection,
                       String[] selectionArgs) {
-        // TODO: Implement this to handle requests to update one or more rows.
-        throw new UnsupportedOperationException("Not yet implemented");
+        List<String> segments = uri.getPathSegments();
+        String where;
+        String[] args;
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                where = Items.ACCOUNT + " = ?";
+                args = new String[] {segments.get(1)};
+                break;
+            case ITEM_ID:
+                where = Items.ACCOUNT + " = ? AND " + Items.ITEM_ID + " = ?";
+                args = new String[] {segments.get(1), segments.get(3)};
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported uri for update: " + uri);
+        }
+
+        int count = mDatabase.getWritableDatabase().update(Items.TABLE_NAME, values,
+                concatWhere(where, selection), concat(args, selectionArgs));
+        if (count > 0) notifyChange(segments.get(1));
+        return count;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        List<String> segments = uri.getPathSegments();
+        String account = segments.get(1);
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        int count;
+        switch (sUriMatcher.match(uri)) {
+            case ITEMS:
+                count = db.delete(Items.TABLE_NAME, concatWhere(Items.ACCOUNT + " = ?", selection),
+                        concat(new String[] {account}, selectionArgs));
+                break;
+            case ITEM_ID:
+                count = deleteTree(db, account, segments.get(3));
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported uri for delete: " + uri);
+        }
+
+        if (count > 0) notifyChange(account);
+        return count;
+    }
+
+    /**
+     * Apply all the operations in a single transaction, observers are notified once after the
+     * transaction is committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        Set<String> accounts = new HashSet<>();
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        ContentProviderResult[] results;
+        mBatchAccounts.set(accounts);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchAccounts.remove();
+        }
+
+        for (String account : accounts) {
+            notifyChange(account);
+        }
+        return results;
+    }
+
+    /**
+     * Update the item if it is already indexed otherwise insert it. Parent id is kept when
+     * the values do not contain one.
+     *
+     * @param db to write
+     * @param account name of the cloud account
+     * @param values of the item
+     */
+    private void upsert(SQLiteDatabase db, String account, ContentValues values) {
+        values.put(Items.ACCOUNT, account);
+        if (!values.containsKey(Items.PARENT_ID)) {
+            int count = db.update(Items.TABLE_NAME, values,
+                    Items.ACCOUNT + " = ? AND " + Items.ITEM_ID + " = ?",
+                    new String[] {account, values.getAsString(Items.ITEM_ID)});
+            if (count > 0) return;
+        }
+        db.insertWithOnConflict(Items.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Delete the item and all its descendants
+     *
+     * @param db to write
+     * @param account name of the cloud account
+     * @param itemId of the item to delete
+     * @return number of rows deleted
+     */
+    private int deleteTree(SQLiteDatabase db, String account, String itemId) {
+        int count = 0;
+        LinkedList<String> queue = new LinkedList<>();
+        queue.add(itemId);
+
+        db.beginTransaction();
+        try {
+            while (!queue.isEmpty()) {
+                String id = queue.removeFirst();
+                // collect the children before deleting the folder
+                Cursor cursor = db.query(Items.TABLE_NAME, new String[] {Items.ITEM_ID},
+                        Items.ACCOUNT + " = ? AND " + Items.PARENT_ID + " = ?",
+                        new String[] {account, id}, null, null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        queue.add(cursor.getString(0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                count += db.delete(Items.TABLE_NAME, Items.ACCOUNT + " = ? AND " + Items.ITEM_ID + " = ?",
+                        new String[] {account, id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        return count;
+    }
+
+    private void notifyChange(String account) {
+        Set<String> batchAccounts = mBatchAccounts.get();
+        if (batchAccounts != null) {
+            batchAccounts.add(account);
+            return;
+        }
+        getContext().getContentResolver().notifyChange(Items.buildItemsUri(account), null);
+    }
+
+    private static String concatWhere(String where, String selection) {
+        if (TextUtils.isEmpty(selection)) return where;
+        return where + " AND (" + selection + ")";
+    }
+
+    private static String[] concat(String[] args, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) return args;
+
+        List<String> list = new ArrayList<>();
+        for (String arg : args) list.add(arg);
+        for (String arg : selectionArgs) list.add(arg);
+        return list.toArray(new String[list.size()]);
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.providers;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+/**
+ * Contract between the {@link CloudContentProvider} and the apps that read the local metadata
+ * index of the cloud accounts. Each row represents a {@link com.he5ed.lib.cloudprovider.models.CFile}
+ * or {@link com.he5ed.lib.cloudprovider.models.CFolder} of an account, filled by folder listings,
+ * change sync and file operations made through the cloud APIs.
+ */
+public final class CloudContract {
+
+    /**
+     * Authority of the content provider as declared in the manifest
+     */
+    public static final String AUTHORITY = "com.he5ed.lib.cloudprovider.CloudContentProvider";
+
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    static final String PATH_ACCOUNTS = "accounts";
+    static final String PATH_ITEMS = "items";
+    static final String PATH_FOLDERS = "folders";
+    static final String PATH_CHILDREN = "children";
+
+    private CloudContract() {
+    }
+
+    /**
+     * Files and folders of the cloud accounts
+     */
+    public static final class Items implements BaseColumns {
+
+        static final String TABLE_NAME = "items";
+
+        /**
+         * Key used for the root folder when the cloud API does not use an id for it
+         */
+        public static final String ROOT_KEY = "root";
+
+        /**
+         * Account name that own the item, same as {@link com.he5ed.lib.cloudprovider.models.CloudAccount#id}
+         */
+        public static final String ACCOUNT = "account";
+
+        /**
+         * Id of the item in the cloud storage
+         */
+        public static final String ITEM_ID = "item_id";
+
+        /**
+         * Id of the folder that contain the item, null if not known
+         */
+        public static final String PARENT_ID = "parent_id";
+
+        public static final String NAME = "name";
+
+        public static final String PATH = "path";
+
+        /**
+         * Mime type of file, null for folder
+         */
+        public static final String MIME_TYPE = "mime_type";
+
+        /**
+         * 1 for folder, 0 for file
+         */
+        public static final String IS_FOLDER = "is_folder";
+
+        /**
+         * Size in bytes, 0 if not provided by the cloud API
+         */
+        public static final String SIZE = "size";
+
+        /**
+         * Created date in milliseconds since epoch
+         */
+        public static final String CREATED = "created";
+
+        /**
+         * Modified date in milliseconds since epoch
+         */
+        public static final String MODIFIED = "modified";
+
+        /**
+         * Entity tag or revision reported by the cloud service, may be null
+         */
+        public static final String ETAG = "etag";
+
+        /**
+         * Time in milliseconds since epoch when the row was last written
+         */
+        public static final String SYNCED = "synced";
+
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.he5ed.cloudprovider.item";
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.he5ed.cloudprovider.item";
+
+        /**
+         * Folders first then by name
+         */
+        public static final String DEFAULT_SORT_ORDER = IS_FOLDER + " DESC, " + NAME + " COLLATE NOCASE ASC";
+
+        private Items() {
+        }
+
+        /**
+         * Build uri for all the items of an account
+         *
+         * @param account name of the cloud account
+         * @return Uri
+         */
+        public static Uri buildItemsUri(String account) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_ACCOUNTS)
+                    .appendPath(account)
+                    .appendPath(PATH_ITEMS)
+                    .build();
+        }
+
+        /**
+         * Build uri for a single item of an account
+         *
+         * @param account name of the cloud account
+         * @param itemId of the file or folder
+         * @return Uri
+         */
+        public static Uri buildItemUri(String account, String itemId) {
+            return buildItemsUri(account).buildUpon()
+                    .appendPath(toKey(itemId))
+                    .build();
+        }
+
+        /**
+         * Build uri for the items inside a folder of an account
+         *
+         * @param account name of the cloud account
+         * @param folderId of the parent folder
+         * @return Uri
+         */
+        public static Uri buildChildrenUri(String account, String folderId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_ACCOUNTS)
+                    .appendPath(account)
+                    .appendPath(PATH_FOLDERS)
+                    .appendPath(toKey(folderId))
+                    .appendPath(PATH_CHILDREN)
+                    .build();
+        }
+
+        /**
+         * Convert item id to the key stored in the index
+         *
+         * @param itemId of the file or folder
+         * @return itemId or {@link #ROOT_KEY} if empty
+         */
+        public static String toKey(String itemId) {
+            return TextUtils.isEmpty(itemId) ? ROOT_KEY : itemId;
+        }
+    }
+
+}
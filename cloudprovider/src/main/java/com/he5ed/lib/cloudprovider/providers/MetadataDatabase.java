@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.providers;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.he5ed.lib.cloudprovider.providers.CloudContract.Items;
+
+/**
+ * SQLite database that store the metadata index of the cloud accounts
+ *
+ * @hide
+ */
+class MetadataDatabase extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "cloudprovider.db";
+    private static final int DATABASE_VERSION = 1;
+
+    MetadataDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Items.TABLE_NAME + " ("
+                + Items._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + Items.ACCOUNT + " TEXT NOT NULL, "
+                + Items.ITEM_ID + " TEXT NOT NULL, "
+                + Items.PARENT_ID + " TEXT, "
+                + Items.NAME + " TEXT, "
+                + Items.PATH + " TEXT, "
+                + Items.MIME_TYPE + " TEXT, "
+                + Items.IS_FOLDER + " INTEGER NOT NULL DEFAULT 0, "
+                + Items.SIZE + " INTEGER NOT NULL DEFAULT 0, "
+                + Items.CREATED + " INTEGER, "
+                + Items.MODIFIED + " INTEGER, "
+                + Items.ETAG + " TEXT, "
+                + Items.SYNCED + " INTEGER, "
+                + "UNIQUE (" + Items.ACCOUNT + ", " + Items.ITEM_ID + ") ON CONFLICT REPLACE)");
+        // folder contents lookup
+        db.execSQL("CREATE INDEX items_parent ON " + Items.TABLE_NAME + " ("
+                + Items.ACCOUNT + ", " + Items.PARENT_ID + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // index can always be rebuilt from the cloud
+        db.execSQL("DROP TABLE IF EXISTS " + Items.TABLE_NAME);
+        onCreate(db);
+    }
+
+}
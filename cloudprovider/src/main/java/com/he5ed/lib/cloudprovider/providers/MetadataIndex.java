@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.providers;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+import com.he5ed.lib.cloudprovider.providers.CloudContract.Items;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write the results of the cloud API calls into the local metadata index served by
+ * {@link CloudContentProvider}. Failure to write the index is logged and never fails the
+ * cloud API call.
+ *
+ * @hide
+ */
+public class MetadataIndex {
+
+    /**
+     * Keep the local metadata index up to date, set to false to disable all writes
+     */
+    public static boolean ENABLE_INDEX = true;
+
+    private static final String TAG = "MetadataIndex";
+
+    private static final int MAX_QUERY_ARGS = 500;
+
+    /**
+     * Replace the indexed contents of the folder with the complete listing
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @param folder that was explored
+     * @param items that contains CFile and CFolder, null for empty folder
+     */
+    public static void putFolderItems(Context context, String account, CFolder folder,
+                                      @Nullable List<Object> items) {
+        if (!ENABLE_INDEX) return;
+
+        List<ContentValues> values = new ArrayList<>();
+        if (items != null) {
+            for (Object item : items) {
+                ContentValues value = toValues(item);
+                if (value != null) values.add(value);
+            }
+        }
+
+        try {
+            context.getContentResolver().bulkInsert(Items.buildChildrenUri(account, folder.getId()),
+                    values.toArray(new ContentValues[values.size()]));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Store that replaces the indexed contents of the folder with the listing loaded into the
+     * metadata cache, see {@link #putFolderItems(Context, String, CFolder, List)}
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @param folder that is explored
+     * @return MetadataCache.Store
+     */
+    public static MetadataCache.Store<List<Object>> folderItemsStore(final Context context,
+                                                                     final String account,
+                                                                     final CFolder folder) {
+        return new MetadataCache.Store<List<Object>>() {
+            @Override
+            public void store(@Nullable List<Object> items) {
+                putFolderItems(context, account, folder, items);
+            }
+        };
+    }
+
+    /**
+     * Store that adds or updates the item loaded into the metadata cache, see
+     * {@link #putItem(Context, String, CFolder, Object)}
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @return MetadataCache.Store
+     */
+    public static MetadataCache.Store<Object> itemStore(final Context context,
+                                                        final String account) {
+        return new MetadataCache.Store<Object>() {
+            @Override
+            public void store(@Nullable Object item) {
+                if (item != null) putItem(context, account, null, item);
+            }
+        };
+    }
+
+    /**
+     * Add or update a single item
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @param parent folder that contain the item, null to keep the indexed parent
+     * @param item CFile or CFolder
+     */
+    public static void putItem(Context context, String account, @Nullable CFolder parent,
+                               Object item) {
+        if (!ENABLE_INDEX) return;
+
+        ContentValues value = toValues(item);
+        if (value == null) return;
+        if (parent != null) value.put(Items.PARENT_ID, Items.toKey(parent.getId()));
+
+        try {
+            context.getContentResolver().insert(Items.buildItemsUri(account), value);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the item and everything inside it
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @param itemId of the deleted file or folder
+     */
+    public static void deleteItem(Context context, String account, String itemId) {
+        if (!ENABLE_INDEX) return;
+
+        try {
+            context.getContentResolver().delete(Items.buildItemUri(account, itemId), null, null);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Apply the changes from the change feed in a single batch. Changed items are moved under
+     * the parent reported by the feed and deleted folders are removed with their descendants.
+     * Reset change set discard the whole account index as it can no longer be trusted.
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     * @param changes from the cloud API
+     */
+    public static void applyChanges(Context context, String account, ChangeSet changes) {
+        if (!ENABLE_INDEX) return;
+
+        if (changes.isReset()) {
+            clear(context, account);
+            return;
+        }
+
+        ContentResolver resolver = context.getContentResolver();
+        List<Object> changed = changes.getChanged();
+        List<String> parentKeys = changes.getParentKeys();
+        List<String> deleted = changes.getDeleted();
+
+        // Dropbox keys are paths, map them to the item ids used by the index
+        Map<String, String> ids = new HashMap<>();
+        List<String> paths = new ArrayList<>();
+        for (Object item : changed) {
+            String path = getPath(item);
+            if (isPathKey(path)) ids.put(path, getId(item));
+        }
+        for (String key : parentKeys) {
+            if (isPathKey(key) && !ids.containsKey(key)) paths.add(key);
+        }
+        for (String key : deleted) {
+            if (isPathKey(key) && !ids.containsKey(key)) paths.add(key);
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        try {
+            ids.putAll(queryIds(resolver, account, paths));
+
+            Uri itemsUri = Items.buildItemsUri(account);
+            for (int i = 0; i < changed.size(); i++) {
+                ContentValues value = toValues(changed.get(i));
+                if (value == null) continue;
+
+                String parentKey = parentKeys.get(i);
+                if (parentKey != null) {
+                    String parentId = isPathKey(parentKey) ? ids.get(parentKey) : parentKey;
+                    if (parentId != null) {
+                        value.put(Items.PARENT_ID, Items.toKey(parentId));
+                    } else {
+                        // parent folder not indexed yet, the item is no longer in its old folder
+                        value.putNull(Items.PARENT_ID);
+                    }
+                }
+                operations.add(ContentProviderOperation.newInsert(itemsUri)
+                        .withValues(value)
+                        .build());
+            }
+            for (String key : deleted) {
+                String itemId = isPathKey(key) ? ids.get(key) : key;
+                if (itemId == null) continue;
+                operations.add(ContentProviderOperation.newDelete(
+                        Items.buildItemUri(account, itemId)).build());
+            }
+
+            if (!operations.isEmpty()) resolver.applyBatch(CloudContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove all the indexed items of the account
+     *
+     * @param context to access the content resolver
+     * @param account name of the cloud account
+     */
+    public static void clear(Context context, String account) {
+        try {
+            context.getContentResolver().delete(Items.buildItemsUri(account), null, null);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Find the indexed item ids of the paths
+     *
+     * @param resolver to query the index
+     * @param account name of the cloud account
+     * @param paths to look up
+     * @return Map of path to item id, paths not indexed are left out
+     */
+    private static Map<String, String> queryIds(ContentResolver resolver, String account,
+                                                List<String> paths) {
+        Map<String, String> ids = new HashMap<>();
+        // stay below the sqlite limit of host parameters
+        for (int start = 0; start < paths.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = paths.subList(start, Math.min(start + MAX_QUERY_ARGS, paths.size()));
+            StringBuilder selection = new StringBuilder(Items.PATH + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(")");
+
+            Cursor cursor = resolver.query(Items.buildItemsUri(account),
+                    new String[] {Items.ITEM_ID, Items.PATH}, selection.toString(),
+                    chunk.toArray(new String[chunk.size()]), null);
+            if (cursor == null) continue;
+            try {
+                while (cursor.moveToNext()) {
+                    ids.put(cursor.getString(1), cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Whether the change set key is a path rather than an item id. Empty root path is
+     * treated as id as it already map to the root key.
+     *
+     * @param key from the change set
+     * @return true for path
+     */
+    private static boolean isPathKey(String key) {
+        return key != null && key.startsWith("/");
+    }
+
+    private static String getId(Object item) {
+        return item instanceof CFile ? ((CFile) item).getId() : ((CFolder) item).getId();
+    }
+
+    private static String getPath(Object item) {
+        if (item instanceof CFile) return ((CFile) item).getPath();
+        if (item instanceof CFolder) return ((CFolder) item).getPath();
+        return null;
+    }
+
+    /**
+     * Convert CFile or CFolder to the index row values
+     *
+     * @param item CFile or CFolder
+     * @return ContentValues, null if item is neither file nor folder
+     */
+    private static ContentValues toValues(Object item) {
+        ContentValues value = new ContentValues();
+        if (item instanceof CFile) {
+            CFile file = (CFile) item;
+            value.put(Items.ITEM_ID, Items.toKey(file.getId()));
+            value.put(Items.NAME, file.getName());
+            value.put(Items.PATH, file.getPath());
+            value.put(Items.MIME_TYPE, file.getType());
+            value.put(Items.IS_FOLDER, 0);
+            value.put(Items.SIZE, file.getSize());
+            value.put(Items.CREATED, file.getCreated() != null ? file.getCreated().getTime() : null);
+            value.put(Items.MODIFIED, file.getModified() != null ? file.getModified().getTime() : null);
+            value.put(Items.ETAG, file.getEtag());
+        } else if (item instanceof CFolder) {
+            CFolder folder = (CFolder) item;
+            value.put(Items.ITEM_ID, Items.toKey(folder.getId()));
+            value.put(Items.NAME, folder.getName());
+            value.put(Items.PATH, folder.getPath());
+            value.put(Items.IS_FOLDER, 1);
+            value.put(Items.SIZE, folder.getSize());
+            value.put(Items.CREATED, folder.getCreated() != null ? folder.getCreated().getTime() : null);
+            value.put(Items.MODIFIED, folder.getModified() != null ? folder.getModified().getTime() : null);
+            value.put(Items.ETAG, folder.getEtag());
+        } else {
+            return null;
+        }
+        value.put(Items.SYNCED, System.currentTimeMillis());
+        return value;
+    }
+
+}
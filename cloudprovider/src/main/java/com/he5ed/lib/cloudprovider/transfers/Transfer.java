@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.transfers;
+
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+
+import java.io.File;
+
+/**
+ * Upload or download queued in the {@link TransferManager}. The transfer is a handle to follow
+ * the state and progress, and to pause, resume or cancel it.
+ */
+public class Transfer {
+
+    public static final int TYPE_UPLOAD = 0;
+    public static final int TYPE_DOWNLOAD = 1;
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_COMPLETED = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_CANCELLED = 5;
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    final TransferManager mManager;
+    final BaseApi mApi;
+    final String mAccountKey;
+    final String mProviderKey;
+    final int mType;
+    final int mPriority;
+    final File mLocalFile;
+    final CFile mRemoteFile;
+    final CFolder mFolder;
+    long mSequence;
+
+    volatile int mState = STATE_QUEUED;
+    volatile long mBytes;
+    volatile long mTotal = -1;
+    volatile CFile mResult;
+    volatile RequestFailException mError;
+
+    // set by pause or cancel, the running task is cancelled along with its requests
+    volatile boolean mStopRequested;
+    volatile int mStopState;
+    ApiTask<CFile> mTask;
+    private long mLastProgress;
+
+    Transfer(TransferManager manager, BaseApi api, int type, int priority, File localFile,
+             CFile remoteFile, CFolder folder) {
+        mManager = manager;
+        mApi = api;
+        mType = type;
+        mPriority = priority;
+        mLocalFile = localFile;
+        mRemoteFile = remoteFile;
+        mFolder = folder;
+        mProviderKey = api.getClass().getName();
+        // API without account is counted on its own
+        mAccountKey = api.getAccount() != null
+                ? mProviderKey + "|" + api.getAccount().name
+                : mProviderKey + "@" + System.identityHashCode(api);
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Local file to upload or downloaded into
+     *
+     * @return File
+     */
+    public File getLocalFile() {
+        return mLocalFile;
+    }
+
+    /**
+     * Cloud file to download, or the uploaded file once completed
+     *
+     * @return CFile
+     */
+    public CFile getRemoteFile() {
+        return mType == TYPE_UPLOAD ? mResult : mRemoteFile;
+    }
+
+    public long getBytesTransferred() {
+        return mBytes;
+    }
+
+    /**
+     * Size of the transfer
+     *
+     * @return size in bytes, -1 if not known yet
+     */
+    public long getTotalBytes() {
+        return mTotal;
+    }
+
+    /**
+     * Error of a failed transfer
+     *
+     * @return RequestFailException or null if not failed
+     */
+    public RequestFailException getError() {
+        return mError;
+    }
+
+    /**
+     * Pause the transfer, a paused transfer continues from the partial download or the upload
+     * session kept by the cloud API when resumed
+     */
+    public void pause() {
+        mManager.pause(this);
+    }
+
+    /**
+     * Queue a paused or failed transfer again
+     */
+    public void resume() {
+        mManager.resume(this);
+    }
+
+    public void cancel() {
+        mManager.cancel(this);
+    }
+
+    /**
+     * Count the bytes transferred and report the progress at most once per
+     * {@link CloudProvider#TRANSFER_PROGRESS_INTERVAL}
+     *
+     * @param count of bytes transferred since the last call, negative when discarded
+     */
+    synchronized void addBytes(long count) {
+        mBytes += count;
+        long now = System.nanoTime() / 1000000;
+        if (now - mLastProgress >= CloudProvider.TRANSFER_PROGRESS_INTERVAL
+                || mBytes == mTotal) {
+            mLastProgress = now;
+            mManager.notifyProgress(this);
+        }
+    }
+
+    void reset() {
+        mBytes = 0;
+        mResult = null;
+        mError = null;
+        mStopRequested = false;
+        mLastProgress = 0;
+    }
+
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.transfers;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.he5ed.lib.cloudprovider.CloudProvider;
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okio.Okio;
+
+/**
+ * Queue of uploads and downloads of all accounts. Queued transfers are started by priority,
+ * then in the order they were queued, as long as the overall, per account and per cloud API
+ * limits allow it, see {@link CloudProvider#MAX_TRANSFERS},
+ * {@link CloudProvider#MAX_TRANSFERS_PER_ACCOUNT} and
+ * {@link CloudProvider#MAX_TRANSFERS_PER_PROVIDER}.
+ * <p>
+ * The cloud API given to the transfer must have been prepared. Each transfer runs as an
+ * {@link ApiTask}, pausing or cancelling it cancels its HTTP calls at once. Files go through
+ * {@link BaseApi#downloadFile(CFile, String)} and {@link BaseApi#uploadFile(File, CFolder)}, so a
+ * paused transfer resumes from the partial download or the upload session kept by the cloud
+ * API.
+ */
+public class TransferManager {
+
+    private static final String TAG = "TransferManager";
+
+    private final ExecutorService mExecutor;
+    private final List<Transfer> mTransfers = new ArrayList<>();
+    private final List<Transfer> mQueue = new ArrayList<>();
+    private final Map<String, Integer> mRunningPerAccount = new HashMap<>();
+    private final Map<String, Integer> mRunningPerProvider = new HashMap<>();
+    private final Map<String, Integer> mProviderLimits = new HashMap<>();
+    private final List<OnTransferListener> mListeners = new CopyOnWriteArrayList<>();
+    private int mRunning;
+    private long mSequence;
+
+    public TransferManager() {
+        // the number of threads is bounded by the transfer limits
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Queue upload of a file
+     *
+     * @param api prepared cloud API of the account to upload to
+     * @param file to upload
+     * @param parent folder that the uploaded file will reside, use null for root
+     * @param priority of the transfer, e.g. {@link Transfer#PRIORITY_NORMAL}
+     * @return Transfer
+     */
+    public Transfer upload(@NonNull BaseApi api, @NonNull File file, @Nullable CFolder parent,
+                           int priority) {
+        return enqueue(new Transfer(this, api, Transfer.TYPE_UPLOAD, priority, file, null, parent));
+    }
+
+    /**
+     * Queue download of a file
+     *
+     * @param api prepared cloud API of the account to download from
+     * @param file to download
+     * @param destination local file to download into, use null for the temp folder
+     * @param priority of the transfer, e.g. {@link Transfer#PRIORITY_NORMAL}
+     * @return Transfer
+     */
+    public Transfer download(@NonNull BaseApi api, @NonNull CFile file, @Nullable File destination,
+                             int priority) {
+        if (destination == null) destination = new File(CloudProvider.CACHE_DIR, file.getName());
+        return enqueue(new Transfer(this, api, Transfer.TYPE_DOWNLOAD, priority, destination,
+                file, null));
+    }
+
+    /**
+     * Limit the number of transfers of a cloud API run at the same time
+     *
+     * @param api class of the cloud API
+     * @param limit number of transfers
+     */
+    public void setProviderLimit(@NonNull Class<? extends BaseApi> api, int limit) {
+        synchronized (this) {
+            mProviderLimits.put(api.getName(), Math.max(1, limit));
+        }
+        schedule();
+    }
+
+    /**
+     * Get the transfers that have not been cancelled or completed
+     *
+     * @return list of Transfer
+     */
+    public synchronized List<Transfer> getTransfers() {
+        return new ArrayList<>(mTransfers);
+    }
+
+    public void addListener(@NonNull OnTransferListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(@NonNull OnTransferListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private Transfer enqueue(Transfer transfer) {
+        synchronized (this) {
+            transfer.mSequence = mSequence++;
+            mTransfers.add(transfer);
+            mQueue.add(transfer);
+        }
+        notifyState(transfer);
+        schedule();
+        return transfer;
+    }
+
+    void pause(Transfer transfer) {
+        stop(transfer, Transfer.STATE_PAUSED);
+    }
+
+    void cancel(Transfer transfer) {
+        stop(transfer, Transfer.STATE_CANCELLED);
+    }
+
+    private void stop(Transfer transfer, int state) {
+        ApiTask<CFile> task = null;
+        synchronized (this) {
+            switch (transfer.mState) {
+                case Transfer.STATE_RUNNING:
+                    // state is set once the running transfer has stopped
+                    transfer.mStopState = state;
+                    transfer.mStopRequested = true;
+                    task = transfer.mTask;
+                    break;
+                case Transfer.STATE_QUEUED:
+                    mQueue.remove(transfer);
+                    transfer.mState = state;
+                    break;
+                case Transfer.STATE_PAUSED:
+                case Transfer.STATE_FAILED:
+                    if (state == Transfer.STATE_PAUSED) return;
+                    transfer.mState = state;
+                    break;
+                default:
+                    return;
+            }
+            if (task == null && state == Transfer.STATE_CANCELLED) mTransfers.remove(transfer);
+        }
+
+        if (task != null) {
+            // the transfer finishes once the task has stopped
+            task.cancel(true);
+            return;
+        }
+        if (state == Transfer.STATE_CANCELLED) discardPartial(transfer);
+        notifyState(transfer);
+    }
+
+    void resume(Transfer transfer) {
+        synchronized (this) {
+            if (transfer.mState != Transfer.STATE_PAUSED && transfer.mState != Transfer.STATE_FAILED)
+                return;
+
+            transfer.reset();
+            transfer.mState = Transfer.STATE_QUEUED;
+            mQueue.add(transfer);
+        }
+        notifyState(transfer);
+        schedule();
+    }
+
+    /**
+     * Start the queued transfers the limits allow
+     */
+    private void schedule() {
+        List<Transfer> started = new ArrayList<>();
+        synchronized (this) {
+            while (mRunning < CloudProvider.MAX_TRANSFERS) {
+                Transfer next = null;
+                for (Transfer transfer : mQueue) {
+                    if (!isAllowed(transfer)) continue;
+                    if (next == null || transfer.mPriority > next.mPriority
+                            || (transfer.mPriority == next.mPriority
+                            && transfer.mSequence < next.mSequence))
+                        next = transfer;
+                }
+                if (next == null) break;
+
+                mQueue.remove(next);
+                next.mTask = newTask(next);
+                next.mState = Transfer.STATE_RUNNING;
+                mRunning++;
+                increment(mRunningPerAccount, next.mAccountKey, 1);
+                increment(mRunningPerProvider, next.mProviderKey, 1);
+                started.add(next);
+            }
+        }
+
+        for (Transfer transfer : started) {
+            notifyState(transfer);
+            execute(transfer);
+        }
+    }
+
+    private boolean isAllowed(Transfer transfer) {
+        Integer limit = mProviderLimits.get(transfer.mProviderKey);
+        return count(mRunningPerAccount, transfer.mAccountKey) < CloudProvider.MAX_TRANSFERS_PER_ACCOUNT
+                && count(mRunningPerProvider, transfer.mProviderKey)
+                < (limit != null ? limit : CloudProvider.MAX_TRANSFERS_PER_PROVIDER);
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count != null ? count : 0;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key, int delta) {
+        int count = count(counts, key) + delta;
+        if (count > 0) {
+            counts.put(key, count);
+        } else {
+            counts.remove(key);
+        }
+    }
+
+    /**
+     * Create the task of the transfer, before it is running so that it can always be stopped
+     */
+    private ApiTask<CFile> newTask(final Transfer transfer) {
+        return ApiTask.create(new Callable<CFile>() {
+            @Override
+            public CFile call() throws Exception {
+                return transfer.mType == Transfer.TYPE_UPLOAD
+                        ? executeUpload(transfer) : executeDownload(transfer);
+            }
+        }, new ApiTask.OnProgressListener() {
+            @Override
+            public void onProgress(long bytes) {
+                transfer.addBytes(bytes);
+            }
+        });
+    }
+
+    private void execute(final Transfer transfer) {
+        final ApiTask<CFile> task;
+        synchronized (this) {
+            task = transfer.mTask;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // run on this thread so the transfer only finishes once the task has stopped
+                task.run();
+
+                CFile result = null;
+                RequestFailException error = null;
+                try {
+                    result = task.get();
+                } catch (CancellationException e) {
+                    error = new RequestFailException("Transfer stopped");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = new RequestFailException(e.getMessage(), e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RequestFailException) {
+                        error = (RequestFailException) cause;
+                    } else {
+                        cause.printStackTrace();
+                        error = new RequestFailException(cause.getMessage(), cause);
+                    }
+                }
+                // partial content is removed before the transfer shows as cancelled
+                if (error != null && transfer.mStopRequested
+                        && transfer.mStopState == Transfer.STATE_CANCELLED)
+                    discardPartial(transfer);
+                finish(transfer, result, error);
+            }
+        });
+    }
+
+    private void finish(Transfer transfer, CFile result, RequestFailException error) {
+        if (error == null && transfer.mTotal >= 0) {
+            // cloud API that does not report progress complete at once
+            transfer.addBytes(transfer.mTotal - transfer.mBytes);
+        }
+
+        synchronized (this) {
+            mRunning--;
+            increment(mRunningPerAccount, transfer.mAccountKey, -1);
+            increment(mRunningPerProvider, transfer.mProviderKey, -1);
+            transfer.mTask = null;
+
+            if (error == null) {
+                transfer.mResult = result;
+                transfer.mState = Transfer.STATE_COMPLETED;
+            } else if (transfer.mStopRequested) {
+                transfer.mState = transfer.mStopState;
+            } else {
+                transfer.mError = error;
+                transfer.mState = Transfer.STATE_FAILED;
+            }
+            if (transfer.mState == Transfer.STATE_COMPLETED
+                    || transfer.mState == Transfer.STATE_CANCELLED)
+                mTransfers.remove(transfer);
+        }
+
+        notifyState(transfer);
+        schedule();
+    }
+
+    private CFile executeUpload(Transfer transfer) throws RequestFailException {
+        File file = transfer.mLocalFile;
+        transfer.mTotal = file.length();
+        CFile result = transfer.mApi.uploadFile(file, transfer.mFolder);
+        if (result == null) throw new RequestFailException("Upload not completed");
+        return result;
+    }
+
+    private CFile executeDownload(Transfer transfer) throws RequestFailException {
+        CFile file = transfer.mRemoteFile;
+        transfer.mTotal = file.getSize() > 0 ? file.getSize() : -1;
+        File downloaded = transfer.mApi.downloadFile(file, getDownloadName(transfer));
+        // e.g. content not ready yet right after upload
+        if (downloaded == null) throw new RequestFailException("File not available for download");
+
+        try {
+            moveFile(downloaded, transfer.mLocalFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RequestFailException(e.getMessage());
+        }
+        return file;
+    }
+
+    /**
+     * Name the download in the folder of the cloud API, unique to the destination and the
+     * same every time so a resumed transfer finds its partial download
+     */
+    private static String getDownloadName(Transfer transfer) {
+        File destination = transfer.mLocalFile;
+        return Integer.toHexString(destination.getAbsolutePath().hashCode()) + "-"
+                + destination.getName();
+    }
+
+    /**
+     * Delete the partial download left by a cancelled transfer, an abandoned upload session
+     * expires on the cloud server
+     */
+    private static void discardPartial(Transfer transfer) {
+        if (transfer.mType == Transfer.TYPE_DOWNLOAD)
+            transfer.mApi.discardDownload(transfer.mRemoteFile, getDownloadName(transfer));
+    }
+
+    /**
+     * Move the file to the destination, copied when they are not on the same file system
+     */
+    private static void moveFile(File source, File destination) throws IOException {
+        if (source.equals(destination)) return;
+
+        if (destination.exists() && !destination.delete())
+            throw new IOException("Fail to replace " + destination.getName());
+        if (source.renameTo(destination)) return;
+
+        FilesUtils.writeToFile(Okio.buffer(Okio.source(source)), destination);
+        source.delete();
+    }
+
+    private void notifyState(Transfer transfer) {
+        for (OnTransferListener listener : mListeners) {
+            listener.onTransferStateChanged(transfer);
+        }
+    }
+
+    void notifyProgress(Transfer transfer) {
+        for (OnTransferListener listener : mListeners) {
+            listener.onTransferProgress(transfer, transfer.mBytes, transfer.mTotal);
+        }
+    }
+
+    /**
+     * Listens to the transfers, callbacks are made on the thread that changed the state or
+     * moved the transfer forward
+     */
+    public interface OnTransferListener {
+        /**
+         * Transfer has been queued, started, paused, completed, failed or cancelled
+         *
+         * @param transfer that changed, see {@link Transfer#getState()}
+         */
+        void onTransferStateChanged(Transfer transfer);
+
+        /**
+         * Transfer moved forward
+         *
+         * @param transfer that moved forward
+         * @param bytes transferred so far
+         * @param total size in bytes, -1 if not known
+         */
+        void onTransferProgress(Transfer transfer, long bytes, long total);
+    }
+
+}
@@ -20,6 +20,7 @@ import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
@@ -31,9 +32,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+
 /**
  * @hide
  */
@@ -124,7 +132,8 @@ public class FilesUtils {
     }
 
     /**
-     * Copy file from source to dest using file channel (faster)
+     * Copy file from source to dest using file channel (faster). The copy starts at the current
+     * position of both streams and moves them past the copied bytes, like a stream copy does.
      *
      * @param source
      * @param dest
@@ -136,7 +145,17 @@ public class FilesUtils {
         try {
             in = source.getChannel();
             out = dest.getChannel();
-            out.transferFrom(in, 0, in.size());
+            // transfers advance the source but write at the given dest position, a single
+            // transfer may move less than requested, none once the source has ended
+            long start = out.position();
+            long count = in.size() - in.position();
+            long copied = 0;
+            while (copied < count) {
+                long transferred = out.transferFrom(in, start + copied, count - copied);
+                if (transferred <= 0) break;
+                copied += transferred;
+            }
+            out.position(start + copied);
         } catch (IOException e) {
             Log.e(TAG, "Fail to copy file: ", e);
         } finally {
@@ -150,18 +169,22 @@ public class FilesUtils {
     }
 
     /**
-     * Copy file from source to dest
+     * Copy file from source to dest by moving whole Okio segments, file streams are copied
+     * through their file channels
      *
      * @param source
      * @param dest
      */
     public static void copyFile(InputStream source, OutputStream dest){
+        if (source instanceof FileInputStream && dest instanceof FileOutputStream) {
+            copyFile((FileInputStream) source, (FileOutputStream) dest);
+            return;
+        }
+
         try {
-            byte[] buf = new byte[1024];
-            int len;
-            while ((len = source.read(buf)) > 0) {
-                dest.write(buf, 0, len);
-            }
+            BufferedSink sink = Okio.buffer(Okio.sink(dest));
+            sink.writeAll(Okio.source(source));
+            sink.flush();
         } catch (IOException e) {
             Log.e(TAG, "Fail to copy file: ", e);
         } finally {
@@ -175,6 +198,22 @@ public class FilesUtils {
     }
 
 
+    /**
+     * Write the source to file by moving whole Okio segments, the source is not closed
+     *
+     * @param source e.g. the body of a response
+     * @param dest file to write to
+     * @throws IOException
+     */
+    public static void writeToFile(BufferedSource source, File dest) throws IOException {
+        Sink sink = Okio.sink(dest);
+        try {
+            source.readAll(sink);
+        } finally {
+            sink.close();
+        }
+    }
+
     /**
      * Write string content to file
      *
@@ -216,8 +255,17 @@ public class FilesUtils {
      * @return mime type in string
      */
     public static String getFileType(File file) {
-        String fileUrl = file.getPath();
-        String fileExt = MimeTypeMap.getFileExtensionFromUrl(fileUrl);
+        return getFileType(file.getPath());
+    }
+
+    /**
+     * Get file mime type according to the extension of the filename
+     *
+     * @param filename or path of the file
+     * @return mime type in string
+     */
+    public static String getFileType(String filename) {
+        String fileExt = MimeTypeMap.getFileExtensionFromUrl(filename);
         if (!TextUtils.isEmpty(fileExt)) {
             return MimeTypeMap.getSingleton().getMimeTypeFromExtension(fileExt);
         } else {
@@ -225,6 +273,56 @@ public class FilesUtils {
         }
     }
 
+    /**
+     * Get the Base64 encoded SHA-1 digest of the data
+     *
+     * @param data buffer
+     * @param offset of the data in the buffer
+     * @param length of the data
+     * @return digest string
+     */
+    public static String getSha1Digest(byte[] data, int offset, int length) {
+        MessageDigest digest = newSha1Digest();
+        digest.update(data, offset, length);
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    /**
+     * Get the Base64 encoded SHA-1 digest of the file content
+     *
+     * @param file to digest
+     * @return digest string
+     * @throws IOException
+     */
+    public static String getSha1Digest(File file) throws IOException {
+        MessageDigest digest = newSha1Digest();
+        FileInputStream input = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int len;
+            while ((len = input.read(buf)) > 0) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            input.close();
+        }
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+    }
+
+    /**
+     * Create SHA-1 message digest, e.g. to digest a file chunk by chunk
+     *
+     * @return MessageDigest
+     */
+    public static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Get the available free internal storage in bytes
      *
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import okio.BufferedSource;
+
+/**
+ * Helpers to read large JSON responses one entry at a time instead of buffering the whole
+ * body into a String
+ *
+ * @hide
+ */
+public class JsonUtils {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Create a streaming reader on top of the response body source
+     *
+     * @param source of the response body
+     * @return JsonReader
+     */
+    public static JsonReader newReader(BufferedSource source) {
+        return new JsonReader(new InputStreamReader(source.inputStream(), UTF_8));
+    }
+
+    /**
+     * Read the next object from the reader into a JSONObject so that the existing builders
+     * can be reused. Only this object is held in memory, not the whole response.
+     *
+     * @param reader positioned at the start of an object
+     * @return JSONObject
+     * @throws IOException
+     * @throws JSONException
+     */
+    public static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject jsonObject = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            jsonObject.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return jsonObject;
+    }
+
+    /**
+     * Read the next array from the reader into a JSONArray
+     *
+     * @param reader positioned at the start of an array
+     * @return JSONArray
+     * @throws IOException
+     * @throws JSONException
+     */
+    public static JSONArray readArray(JsonReader reader) throws IOException, JSONException {
+        JSONArray jsonArray = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            jsonArray.put(readValue(reader));
+        }
+        reader.endArray();
+        return jsonArray;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                // keep integers as long so that sizes above 2GB survive
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.utils;
+
+import android.support.annotation.Nullable;
+
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * In-memory cache of folder, file and listing metadata of a cloud account. Entries are evicted
+ * in least recently used order once the cache is full.
+ * <p>
+ * An entry younger than the time to live is served without any request. An expired entry that
+ * is still younger than the stale time to live is served immediately while a fresh copy is
+ * loaded in the background, otherwise the caller waits for the fresh copy. A load that
+ * finishes after its entry has been invalidated is not cached, nor handed to its {@link Store},
+ * as it may predate the change.
+ * <p>
+ * Cached items are shared by all callers and must be treated as read-only, folder listings
+ * are returned as copies.
+ *
+ * @hide
+ */
+public class MetadataCache {
+
+    private static final String KEY_FOLDER = "folder:";
+    private static final String KEY_FILE = "file:";
+    private static final String KEY_LIST = "list:";
+
+    /**
+     * Load the fresh value from the cloud server
+     *
+     * @param <T> type of the value
+     */
+    public interface Loader<T> {
+        T load() throws RequestFailException;
+    }
+
+    /**
+     * Keep a loaded value outside the cache as well, e.g. in the metadata index. Called with the
+     * cache locked and only if the entry was not invalidated while loading, the item changes
+     * invalidate the cache before they update the index.
+     *
+     * @param <T> type of the value
+     */
+    public interface Store<T> {
+        void store(@Nullable T value);
+    }
+
+    private static class Entry {
+        final Object value;
+        final long time;
+
+        Entry(Object value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Load in progress, marked stale once its entry is invalidated
+     */
+    public static class Load {
+        private final String key;
+        private boolean stale;
+
+        private Load(String key) {
+            this.key = key;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final List<Load> mLoads;
+    private final Set<String> mRevalidating;
+    private final int mMaxEntries;
+    private final long mTtl;
+    private final long mStaleTtl;
+    private final Executor mExecutor;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Create cache
+     *
+     * @param maxEntries maximum number of entries before eviction
+     * @param ttl time in milliseconds an entry is served without revalidation
+     * @param staleTtl time in milliseconds an expired entry can be served while revalidating,
+     *                 must be greater than ttl to take effect
+     * @param executor to revalidate expired entries, null to always wait for the fresh copy
+     */
+    public MetadataCache(int maxEntries, long ttl, long staleTtl, @Nullable Executor executor) {
+        mMaxEntries = maxEntries;
+        mTtl = ttl;
+        mStaleTtl = staleTtl;
+        mExecutor = executor;
+        mRevalidating = new HashSet<>();
+        mLoads = new ArrayList<>();
+        // access order for least recently used eviction
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    public static String folderKey(String folderId) {
+        return KEY_FOLDER + folderId;
+    }
+
+    public static String fileKey(String fileId) {
+        return KEY_FILE + fileId;
+    }
+
+    public static String listKey(String folderId) {
+        return KEY_LIST + folderId;
+    }
+
+    /**
+     * Get the cached value or load it from the cloud server
+     *
+     * @param key of the entry
+     * @param loader to load the fresh value
+     * @param <T> type of the value
+     * @return cached or fresh value
+     * @throws RequestFailException from the loader
+     */
+    public <T> T get(String key, Loader<T> loader) throws RequestFailException {
+        return get(key, loader, null);
+    }
+
+    /**
+     * Get the cached value or load it from the cloud server and keep it in the store as well
+     *
+     * @param key of the entry
+     * @param loader to load the fresh value
+     * @param store to keep the loaded value, null for none
+     * @param <T> type of the value
+     * @return cached or fresh value
+     * @throws RequestFailException from the loader
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String key, final Loader<T> loader, @Nullable Store<? super T> store)
+            throws RequestFailException {
+        long now = now();
+        Entry entry;
+        Load load;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry != null) {
+                long age = now - entry.time;
+                if (age < mTtl) {
+                    mHitCount++;
+                    return (T) copyOf(entry.value);
+                }
+                if (age < mStaleTtl && mExecutor != null) {
+                    mHitCount++;
+                    revalidate(key, loader, store);
+                    return (T) copyOf(entry.value);
+                }
+            }
+            mMissCount++;
+            load = startLoad(key);
+        }
+
+        try {
+            T value = loader.load();
+            putLoaded(load, value, store);
+            return value;
+        } finally {
+            endLoad(load);
+        }
+    }
+
+    /**
+     * Get the cached value regardless of its age, e.g. to revalidate it with a conditional
+     * request
+     *
+     * @param key of the entry
+     * @return cached value, null if not cached
+     */
+    public synchronized Object peek(String key) {
+        Entry entry = mEntries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Put the value in cache, null value is cached as well
+     *
+     * @param key of the entry
+     * @param value to cache
+     */
+    public synchronized void put(String key, @Nullable Object value) {
+        if (mMaxEntries <= 0 || mTtl <= 0) return;
+
+        mEntries.put(key, new Entry(copyOf(value), now()));
+    }
+
+    /**
+     * Remove the entry
+     *
+     * @param key of the entry
+     */
+    public synchronized void invalidate(String key) {
+        mEntries.remove(key);
+        for (Load load : mLoads) {
+            if (load.key.equals(key)) load.stale = true;
+        }
+    }
+
+    /**
+     * Remove the cached item and all the cached folder listings as they may contain the item
+     *
+     * @param itemId of the item changed, null if only the listings are affected
+     */
+    public synchronized void invalidateItem(@Nullable String itemId) {
+        if (itemId != null) {
+            mEntries.remove(folderKey(itemId));
+            mEntries.remove(fileKey(itemId));
+        }
+
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(KEY_LIST)) iterator.remove();
+        }
+
+        for (Load load : mLoads) {
+            if (load.key.startsWith(KEY_LIST) || (itemId != null
+                    && (load.key.equals(folderKey(itemId)) || load.key.equals(fileKey(itemId)))))
+                load.stale = true;
+        }
+    }
+
+    /**
+     * Remove all entries
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        for (Load load : mLoads) {
+            load.stale = true;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Current time in milliseconds
+     *
+     * @return long
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Load the fresh value in the background, only one load per key at any time
+     */
+    private <T> void revalidate(final String key, final Loader<T> loader,
+                                @Nullable final Store<? super T> store) {
+        if (!mRevalidating.add(key)) return;
+
+        final Load load = startLoad(key);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    putLoaded(load, loader.load(), store);
+                } catch (RequestFailException e) {
+                    // keep serving the stale copy until it is too old
+                    e.printStackTrace();
+                } finally {
+                    endLoad(load);
+                    synchronized (MetadataCache.this) {
+                        mRevalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the entry is served without waiting for a load, fresh or stale while revalidated
+     *
+     * @param key of the entry
+     * @return boolean
+     */
+    public synchronized boolean contains(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) return false;
+
+        long age = now() - entry.time;
+        return age < mTtl || (age < mStaleTtl && mExecutor != null);
+    }
+
+    /**
+     * Start loading the value of an entry outside of {@link #get(String, Loader)}, e.g. page by
+     * page. The load must be ended with {@link #endLoad(Load)} whether it completes or not.
+     *
+     * @param key of the entry
+     * @return Load to cache the value with
+     */
+    public synchronized Load startLoad(String key) {
+        Load load = new Load(key);
+        mLoads.add(load);
+        return load;
+    }
+
+    /**
+     * Cache the loaded value unless the entry was invalidated while loading
+     *
+     * @param load started by {@link #startLoad(String)}
+     * @param value loaded
+     */
+    public synchronized void putLoaded(Load load, @Nullable Object value) {
+        if (!load.stale) put(load.key, value);
+    }
+
+    /**
+     * Cache the loaded value and keep it in the store unless the entry was invalidated while
+     * loading
+     *
+     * @param load started by {@link #startLoad(String)}
+     * @param value loaded
+     * @param store to keep the value, null for none
+     */
+    public synchronized <T> void putLoaded(Load load, @Nullable T value,
+                                           @Nullable Store<? super T> store) {
+        if (load.stale) return;
+
+        put(load.key, value);
+        if (store != null) store.store(value);
+    }
+
+    /**
+     * End the load started by {@link #startLoad(String)}
+     *
+     * @param load to end, ending it again has no effect
+     */
+    public synchronized void endLoad(Load load) {
+        mLoads.remove(load);
+    }
+
+    /**
+     * Copy of a folder listing so that callers cannot modify the cached one
+     */
+    private static Object copyOf(@Nullable Object value) {
+        return value instanceof List ? new ArrayList<>((List<?>) value) : value;
+    }
+
+}
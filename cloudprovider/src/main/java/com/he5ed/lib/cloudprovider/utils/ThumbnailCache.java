@@ -0,0 +1,402 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider.utils;
+
+import android.accounts.Account;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import okio.Okio;
+
+/**
+ * Two level cache of file thumbnails shared by all accounts. Decoded bitmaps are kept in
+ * memory and the thumbnail files on disk, both levels evict in least recently used order once
+ * their size limit is reached.
+ * <p>
+ * Entries are keyed by account, file id and revision, so a file modified since its thumbnail
+ * was cached simply misses and the outdated thumbnail ages out of the cache.
+ *
+ * @hide
+ */
+public class ThumbnailCache {
+
+    private final File mDirectory;
+    private final File mTempDirectory;
+    private final long mMaxMemorySize;
+    private final long mMaxDiskSize;
+    private final LinkedHashMap<String, Bitmap> mBitmaps;
+    private LinkedHashMap<String, Long> mFiles;
+    private long mMemorySize;
+    private long mDiskSize;
+    private int mMemoryHitCount;
+    private int mMemoryMissCount;
+    private int mDiskHitCount;
+    private int mDiskMissCount;
+
+    /**
+     * Create cache
+     *
+     * @param directory to keep the thumbnail files, used by this cache only
+     * @param maxMemorySize maximum size in bytes of the decoded bitmaps, 0 to disable
+     * @param maxDiskSize maximum size in bytes of the thumbnail files, 0 to disable
+     */
+    public ThumbnailCache(@NonNull File directory, long maxMemorySize, long maxDiskSize) {
+        mDirectory = directory;
+        mTempDirectory = new File(directory, "tmp");
+        mMaxMemorySize = maxMemorySize;
+        mMaxDiskSize = maxDiskSize;
+        // access order for least recently used eviction
+        mBitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Build the key of the file thumbnail. The etag identifies the revision where the cloud
+     * service provides one, otherwise the modified time and size.
+     *
+     * @param account the file belongs to, null if not bound to an account
+     * @param file to get the thumbnail
+     * @return key of the entry
+     */
+    public static String key(@Nullable Account account, @NonNull CFile file) {
+        String revision = file.getEtag();
+        if (revision == null || revision.length() == 0) {
+            long modified = file.getModified() != null ? file.getModified().getTime() : 0;
+            revision = modified + ":" + file.getSize();
+        }
+        String accountName = account != null ? account.type + ":" + account.name : "";
+        return accountName + "|" + file.getId() + "|" + revision;
+    }
+
+    /**
+     * Get the cached thumbnail file or load it from the cloud server. The loaded file is moved
+     * into the cache.
+     *
+     * @param key of the entry
+     * @param loader to load the thumbnail file
+     * @return thumbnail file, null if the file has no thumbnail
+     * @throws RequestFailException from the loader
+     */
+    public File getFile(String key, MetadataCache.Loader<File> loader)
+            throws RequestFailException {
+        File file = getCachedFile(key);
+        if (file != null) return file;
+
+        file = loader.load();
+        if (file == null) return null;
+        return putFile(key, file);
+    }
+
+    /**
+     * Get the cached thumbnail file without loading, e.g. to find the thumbnails missing from
+     * a batch
+     *
+     * @param key of the entry
+     * @return thumbnail file, null if not cached
+     */
+    public synchronized File getCachedFile(String key) {
+        String name = fileName(key);
+        loadIndex();
+        File file = new File(mDirectory, name);
+        if (mFiles.get(name) != null) {
+            if (file.exists()) {
+                mDiskHitCount++;
+                // keep the recency across restarts
+                file.setLastModified(now());
+                return file;
+            }
+            // deleted behind the cache
+            remove(name);
+        }
+        mDiskMissCount++;
+        return null;
+    }
+
+    /**
+     * Get the decoded thumbnail from memory, or decode the thumbnail file given by the loader
+     *
+     * @param key of the entry
+     * @param loader to get the thumbnail file, usually through the disk level of this cache
+     * @return Bitmap, null if the file has no thumbnail or it cannot be decoded
+     * @throws RequestFailException from the loader
+     */
+    public Bitmap getBitmap(String key, MetadataCache.Loader<File> loader)
+            throws RequestFailException {
+        synchronized (this) {
+            Bitmap bitmap = mBitmaps.get(key);
+            if (bitmap != null) {
+                mMemoryHitCount++;
+                return bitmap;
+            }
+            mMemoryMissCount++;
+        }
+
+        File file = loader.load();
+        if (file == null) return null;
+
+        Bitmap bitmap = decode(file);
+        if (bitmap != null) putBitmap(key, bitmap);
+        // thumbnail not cached on disk is of no use once decoded
+        if (mTempDirectory.equals(file.getParentFile())) file.delete();
+        return bitmap;
+    }
+
+    /**
+     * Get the decoded thumbnail from memory without loading, e.g. to show it right away on
+     * the main thread
+     *
+     * @param key of the entry
+     * @return Bitmap, null if not in memory
+     */
+    public synchronized Bitmap peekBitmap(String key) {
+        return mBitmaps.get(key);
+    }
+
+    /**
+     * Put the decoded thumbnail in memory
+     *
+     * @param key of the entry
+     * @param bitmap decoded thumbnail
+     */
+    public synchronized void putBitmap(String key, @NonNull Bitmap bitmap) {
+        long size = sizeOf(bitmap);
+        if (size > mMaxMemorySize) return;
+
+        Bitmap previous = mBitmaps.put(key, bitmap);
+        if (previous != null) mMemorySize -= sizeOf(previous);
+        mMemorySize += size;
+
+        Iterator<Bitmap> iterator = mBitmaps.values().iterator();
+        while (mMemorySize > mMaxMemorySize && iterator.hasNext()) {
+            mMemorySize -= sizeOf(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Move the thumbnail file into the cache. A file too large to cache is moved to a
+     * temporary file instead, deleted once decoded by {@link #getBitmap(String,
+     * MetadataCache.Loader)} or at the latest on the next run.
+     *
+     * @param key of the entry
+     * @param file thumbnail file loaded from the cloud server
+     * @return thumbnail file in the cache, or the temporary file if it is too large to cache
+     * @throws RequestFailException if the file cannot be moved
+     */
+    public File putFile(String key, @NonNull File file) throws RequestFailException {
+        String name = fileName(key);
+        long length = file.length();
+
+        // the file is moved under the lock so an eviction cannot delete it before it is indexed
+        synchronized (this) {
+            loadIndex();
+            if (length > mMaxDiskSize) {
+                try {
+                    mTempDirectory.mkdirs();
+                    File temp = File.createTempFile(name, null, mTempDirectory);
+                    move(file, temp);
+                    return temp;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    file.delete();
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+
+            File target = new File(mDirectory, name);
+            move(file, target);
+            target.setLastModified(now());
+
+            Long previous = mFiles.put(name, length);
+            if (previous != null) mDiskSize -= previous;
+            mDiskSize += length;
+
+            // get() of an access ordered map is a modification, iterate the entries instead
+            Iterator<Map.Entry<String, Long>> iterator = mFiles.entrySet().iterator();
+            while (mDiskSize > mMaxDiskSize && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (eldest.getKey().equals(name)) continue;
+                mDiskSize -= eldest.getValue();
+                iterator.remove();
+                new File(mDirectory, eldest.getKey()).delete();
+            }
+            return target;
+        }
+    }
+
+    /**
+     * Move the file, copying it if on a different file system
+     *
+     * @param file to be moved
+     * @param target new location of the file
+     * @throws RequestFailException if the file cannot be moved
+     */
+    private static void move(File file, File target) throws RequestFailException {
+        File directory = target.getParentFile();
+        if (!directory.exists()) directory.mkdirs();
+        if (file.renameTo(target)) return;
+
+        // different file system
+        try {
+            FilesUtils.writeToFile(Okio.buffer(Okio.source(file)), target);
+        } catch (IOException e) {
+            e.printStackTrace();
+            target.delete();
+            throw new RequestFailException(e.getMessage());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Build the index of the thumbnail files left by the previous runs, least recently used
+     * first
+     */
+    private void loadIndex() {
+        if (mFiles != null) return;
+
+        mFiles = new LinkedHashMap<>(16, 0.75f, true);
+        // thumbnails too large to cache left by the previous runs
+        File[] temps = mTempDirectory.listFiles();
+        if (temps != null) {
+            for (File temp : temps) {
+                temp.delete();
+            }
+        }
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (file.isDirectory()) continue;
+            mFiles.put(file.getName(), file.length());
+            mDiskSize += file.length();
+        }
+    }
+
+    private void remove(String name) {
+        Long length = mFiles.remove(name);
+        if (length != null) mDiskSize -= length;
+    }
+
+    /**
+     * Remove all entries and delete the thumbnail files
+     */
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mMemorySize = 0;
+
+        loadIndex();
+        for (String name : mFiles.keySet()) {
+            new File(mDirectory, name).delete();
+        }
+        mFiles.clear();
+        mDiskSize = 0;
+    }
+
+    public synchronized long getMemorySize() {
+        return mMemorySize;
+    }
+
+    public synchronized long getDiskSize() {
+        loadIndex();
+        return mDiskSize;
+    }
+
+    public synchronized int getMemoryHitCount() {
+        return mMemoryHitCount;
+    }
+
+    public synchronized int getMemoryMissCount() {
+        return mMemoryMissCount;
+    }
+
+    public synchronized int getDiskHitCount() {
+        return mDiskHitCount;
+    }
+
+    public synchronized int getDiskMissCount() {
+        return mDiskMissCount;
+    }
+
+    /**
+     * Size of the decoded bitmap in bytes
+     *
+     * @param bitmap decoded thumbnail
+     * @return long
+     */
+    protected long sizeOf(Bitmap bitmap) {
+        // getByteCount is not available before API 12
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Decode the thumbnail file
+     *
+     * @param file thumbnail file
+     * @return Bitmap, null if it cannot be decoded
+     */
+    protected Bitmap decode(File file) {
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    /**
+     * Current time in milliseconds
+     *
+     * @return long
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Name of the thumbnail file, the key may contain characters not allowed in a file name
+     */
+    private static String fileName(String key) {
+        MessageDigest digest = FilesUtils.newSha1Digest();
+        byte[] hash = digest.digest(key.getBytes(Charset.forName("UTF-8")));
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.squareup.okhttp.Call;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ApiTaskTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setup() {
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Test that a composed task runs with the result of its source
+     */
+    @Test
+    public void then_success_resultPassedOn() throws Exception {
+        ApiTask<Integer> task = ApiTask.submit(mExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "folder";
+            }
+        }).then(new ApiTask.Function<String, Integer>() {
+            @Override
+            public Integer apply(String input) throws Exception {
+                return input.length();
+            }
+        });
+
+        assertEquals(6, (int) task.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a failure skips the composed function and reaches the callback
+     */
+    @Test
+    public void then_failure_passedToCallback() throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        ApiTask.submit(DIRECT, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new RequestFailException("Not found", 404);
+            }
+        }).then(new ApiTask.Function<String, Integer>() {
+            @Override
+            public Integer apply(String input) throws Exception {
+                fail("composed function must not run after a failure");
+                return 0;
+            }
+        }).addCallback(new ApiTask.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                fail("task must not succeed");
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure.set(e);
+            }
+        }, DIRECT);
+
+        assertTrue(failure.get() instanceof RequestFailException);
+    }
+
+    /**
+     * Test that cancelling a running task cancels its calls and skips the callbacks
+     */
+    @Test
+    public void cancel_running_callsCancelled() throws Exception {
+        final Call call = mock(Call.class);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Object> callback = new AtomicReference<>();
+        ApiTask<String> task = ApiTask.submit(mExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                ApiTask.track(call);
+                started.countDown();
+                release.await();
+                return "done";
+            }
+        }).addCallback(new ApiTask.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                callback.set(result);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                callback.set(e);
+            }
+        }, DIRECT);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(task.cancel(true));
+        verify(call).cancel();
+        assertTrue(task.isCancelled());
+        assertTrue(task.isDone());
+        assertFalse(task.cancel(true));
+        try {
+            task.get();
+            fail("cancelled task must not return a result");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertNull(callback.get());
+    }
+
+    /**
+     * Test that calls made by a helper thread are cancelled along with the task
+     */
+    @Test
+    public void cancel_helperThread_callsCancelled() throws Exception {
+        final Call call = mock(Call.class);
+        final CountDownLatch tracked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ApiTask<Void> task = ApiTask.submit(mExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mExecutor.submit(ApiTask.inherit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        ApiTask.track(call);
+                        tracked.countDown();
+                        return null;
+                    }
+                }));
+                release.await();
+                return null;
+            }
+        });
+
+        assertTrue(tracked.await(5, TimeUnit.SECONDS));
+        task.cancel(true);
+        verify(call).cancel();
+    }
+
+    /**
+     * Test that cancelling a composed task cancels its source
+     */
+    @Test
+    public void cancel_composedTask_sourceCancelled() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ApiTask<String> source = ApiTask.submit(mExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "file";
+            }
+        });
+        ApiTask<Integer> next = source.then(new ApiTask.Function<String, Integer>() {
+            @Override
+            public Integer apply(String input) throws Exception {
+                return input.length();
+            }
+        });
+
+        next.cancel(true);
+        assertTrue(source.isCancelled());
+        release.countDown();
+        try {
+            next.get(5, TimeUnit.SECONDS);
+            fail("cancelled task must not return a result");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+public class BaseApiTest {
+
+    private BaseApi mApi;
+    private List<CFile> mFiles;
+
+    @Before
+    public void setup() throws Exception {
+        mApi = mock(BaseApi.class, CALLS_REAL_METHODS);
+        mFiles = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            CFile file = new CFile(null);
+            file.setId(String.valueOf(i));
+            mFiles.add(file);
+        }
+    }
+
+    /**
+     * Cloud API which has thumbnails for even file ids only and fails for the ids given
+     */
+    private void thumbnails(final String... failedIds) throws Exception {
+        doAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                String id = ((CFile) invocation.getArguments()[0]).getId();
+                for (String failedId : failedIds) {
+                    if (failedId.equals(id)) throw new RequestFailException("Not found", 404);
+                }
+                return Integer.parseInt(id) % 2 == 0 ? new File(id + ".jpg") : null;
+            }
+        }).when(mApi).getThumbnail(any(CFile.class));
+    }
+
+    /**
+     * Test that the thumbnails are returned by file id even though some of them failed
+     */
+    @Test
+    public void getThumbnails_someFailed_othersReturned() throws Exception {
+        thumbnails("4");
+        Map<String, File> result = mApi.getThumbnails(mFiles);
+
+        assertEquals(9, result.size());
+        assertEquals(new File("0.jpg"), result.get("0"));
+        assertFalse(result.containsKey("1"));
+        assertFalse(result.containsKey("4"));
+    }
+
+    /**
+     * Test that the batch fails when none of the thumbnails could be retrieved
+     */
+    @Test
+    public void getThumbnails_allFailed_thrown() throws Exception {
+        thumbnails("0", "2");
+        try {
+            mApi.getThumbnails(mFiles.subList(0, 4));
+            fail("batch must fail when every thumbnail failed");
+        } catch (RequestFailException e) {
+            assertEquals(404, e.getCode());
+        }
+    }
+
+    /**
+     * Test that an empty batch does not request anything
+     */
+    @Test
+    public void getThumbnails_noFile_empty() throws Exception {
+        thumbnails();
+        assertTrue(mApi.getThumbnails(new ArrayList<CFile>()).isEmpty());
+    }
+
+    /**
+     * Test that every file of a batch lookup is reported, retrieved or failed
+     */
+    @Test
+    public void getFilesInfo_someFailed_eachReported() throws Exception {
+        doAnswer(new Answer<CFile>() {
+            @Override
+            public CFile answer(InvocationOnMock invocation) throws Throwable {
+                String id = (String) invocation.getArguments()[0];
+                if ("4".equals(id)) throw new RequestFailException("Not found", 404);
+                return mFiles.get(Integer.parseInt(id));
+            }
+        }).when(mApi).getFileInfo(anyString());
+        final Map<String, CFile> found = new ConcurrentHashMap<>();
+        final Map<String, Exception> failed = new ConcurrentHashMap<>();
+
+        mApi.getFilesInfo(Arrays.asList("0", "1", "4", "19"), new BaseApi.OnInfoListener<CFile>() {
+            @Override
+            public void onInfo(String id, CFile item) {
+                found.put(id, item);
+            }
+
+            @Override
+            public void onInfoFail(String id, Exception e) {
+                failed.put(id, e);
+            }
+        });
+
+        assertEquals(3, found.size());
+        assertEquals(mFiles.get(19), found.get("19"));
+        assertEquals(404, ((RequestFailException) failed.get("4")).getCode());
+    }
+
+    /**
+     * Test that every item of a batch delete is reported, deleted or failed
+     */
+    @Test
+    public void deleteItems_mixedItems_eachReported() throws Exception {
+        CFolder folder = new CFolder(null);
+        folder.setId("folder");
+        doNothing().when(mApi).deleteFile(mFiles.get(0));
+        doThrow(new RequestFailException("Not found", 404)).when(mApi).deleteFile(mFiles.get(1));
+        doNothing().when(mApi).deleteFolder(folder);
+        final List<Object> deleted = new CopyOnWriteArrayList<>();
+        final Map<Object, Exception> failed = new ConcurrentHashMap<>();
+
+        mApi.deleteItems(Arrays.asList(mFiles.get(0), mFiles.get(1), folder, "unknown"),
+                new BaseApi.OnBatchListener() {
+                    @Override
+                    public void onItemDone(Object item, Object result) {
+                        deleted.add(item);
+                    }
+
+                    @Override
+                    public void onItemFail(Object item, Exception e) {
+                        failed.put(item, e);
+                    }
+                });
+
+        assertEquals(2, deleted.size());
+        assertTrue(deleted.contains(folder));
+        assertEquals(404, ((RequestFailException) failed.get(mFiles.get(1))).getCode());
+        assertTrue(failed.containsKey("unknown"));
+    }
+
+}
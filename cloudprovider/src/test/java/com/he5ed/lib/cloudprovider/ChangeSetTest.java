@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.models.ChangeSet;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeSetTest {
+
+    /**
+     * Test that the parent keys are returned in the same order as the changed items
+     */
+    @Test
+    public void getParentKeys_changedItems_sameOrder() {
+        ChangeSet changes = new ChangeSet();
+        changes.putChanged("a", "item a", "root");
+        changes.putChanged("b", "item b");
+        changes.putChanged("c", "item c", "folder");
+        // moved item keep its position but take the new parent
+        changes.putChanged("a", "item a moved", "folder");
+
+        assertEquals(Arrays.<Object>asList("item a moved", "item b", "item c"), changes.getChanged());
+        assertEquals(Arrays.asList("folder", null, "folder"), changes.getParentKeys());
+    }
+
+    /**
+     * Test that the parent key of an item deleted later in the change set is dropped
+     */
+    @Test
+    public void putDeleted_changedItem_parentKeyRemoved() {
+        ChangeSet changes = new ChangeSet();
+        changes.putChanged("a", "item a", "root");
+        changes.putChanged("b", "item b", "root");
+        changes.putDeleted("a");
+
+        assertEquals(Arrays.<Object>asList("item b"), changes.getChanged());
+        assertEquals(Arrays.asList("root"), changes.getParentKeys());
+        assertEquals(Arrays.asList("a"), changes.getDeleted());
+    }
+
+}
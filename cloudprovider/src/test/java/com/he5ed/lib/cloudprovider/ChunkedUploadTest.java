@@ -0,0 +1,570 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.he5ed.lib.cloudprovider.apis.ChunkedUpload;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ChunkedUploadTest {
+
+    private static final byte[] CONTENT = "0123456789abcdef012".getBytes();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ExecutorService mExecutor;
+    private ByteArrayOutputStream mReceived;
+    private long mStartTotal;
+    private int mChunkCount;
+    private int mFailures;
+    private int mCommitLimit;
+    private int mFailFrom;
+    private List<String> mSessions;
+    private Set<String> mLostSessions;
+    private boolean mChunkLost;
+    private long mNow;
+
+    @Before
+    public void setup() {
+        mReceived = new ByteArrayOutputStream();
+        mStartTotal = 0;
+        mChunkCount = 0;
+        mFailures = 0;
+        mCommitLimit = Integer.MAX_VALUE;
+        mFailFrom = Integer.MAX_VALUE;
+        mSessions = new ArrayList<>();
+        mLostSessions = new HashSet<>();
+        mChunkLost = false;
+        mNow = 0;
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void teardown() {
+        mExecutor.shutdownNow();
+    }
+
+    private Context newContext(SharedPreferences prefs) {
+        Context context = mock(Context.class);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(prefs);
+        return context;
+    }
+
+    private File newFile(byte[] content) throws Exception {
+        File file = mFolder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(content);
+        output.close();
+        return file;
+    }
+
+    private ChunkedUpload newUpload() {
+        return newUpload(mock(Context.class));
+    }
+
+    /**
+     * Fake upload session with a chunk size of 4 that append the chunks it commits
+     */
+    private ChunkedUpload newUpload(Context context) {
+        return new ChunkedUpload(context, "account", "target") {
+            @Override
+            protected String startSession(long total) throws RequestFailException {
+                mStartTotal = total;
+                setChunkSize(4);
+                mReceived.reset();
+                mSessions.add("session" + mSessions.size());
+                return mSessions.get(mSessions.size() - 1);
+            }
+
+            @Override
+            protected long resumeSession(String sessionId, long offset) throws RequestFailException {
+                if (mLostSessions.contains(sessionId)) return SESSION_LOST;
+                return mReceived.size();
+            }
+
+            @Override
+            protected long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                       long total) throws RequestFailException {
+                mChunkCount++;
+                if (mChunkLost) return SESSION_LOST;
+                if (mFailures > 0 || offset >= mFailFrom) {
+                    mFailures--;
+                    throw new RequestFailException("Connection dropped");
+                }
+                assertEquals(mReceived.size(), offset);
+                int committed = Math.min(length, mCommitLimit);
+                mReceived.write(data, 0, committed);
+                return offset + committed;
+            }
+
+            @Override
+            protected CFile finishSession(String sessionId, long total) throws RequestFailException {
+                CFile file = new CFile(null);
+                file.setSize(total);
+                return file;
+            }
+
+            @Override
+            protected long now() {
+                return mNow;
+            }
+        };
+    }
+
+    /**
+     * Test that a stream of known length is uploaded in chunks
+     */
+    @Test
+    public void uploadStream_knownLength_uploadedInChunks() throws Exception {
+        CFile file = newUpload().upload(new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        assertEquals(CONTENT.length, mStartTotal);
+        assertEquals(5, mChunkCount);
+        assertEquals(CONTENT.length, file.getSize());
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a stream of unknown length is uploaded until the end of the stream
+     */
+    @Test
+    public void uploadStream_unknownLength_uploadedToTheEnd() throws Exception {
+        CFile file = newUpload().upload(new ByteArrayInputStream(CONTENT), -1);
+
+        assertEquals(-1, mStartTotal);
+        assertEquals(CONTENT.length, file.getSize());
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a stream of unknown length ending on a chunk boundary is finished
+     */
+    @Test
+    public void uploadStream_unknownLengthOnBoundary_finished() throws Exception {
+        byte[] content = Arrays.copyOf(CONTENT, 16);
+        CFile file = newUpload().upload(new ByteArrayInputStream(content), -1);
+
+        assertEquals(4, mChunkCount);
+        assertEquals(16, file.getSize());
+        assertArrayEquals(content, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a failed chunk is sent again from memory
+     */
+    @Test
+    public void uploadStream_chunkFailed_retried() throws Exception {
+        mFailures = CloudProvider.UPLOAD_RETRY_COUNT;
+        newUpload().upload(new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that the part of a chunk not committed by the server is sent again
+     */
+    @Test
+    public void uploadStream_partialCommit_remainderSent() throws Exception {
+        mCommitLimit = 3;
+        newUpload().upload(new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a parallel chunk answered with a committed offset short of its end is checked
+     * again and sent again, instead of being counted as committed
+     */
+    @Test
+    public void uploadFileParallel_chunkNotCommitted_sentAgain() throws Exception {
+        // chunks committed in any order, keyed by offset
+        final Map<Long, byte[]> parts = new TreeMap<>();
+        final int[] sent = new int[1];
+        ChunkedUpload upload = new ChunkedUpload(newContext(new MemoryPreferences()), "account",
+                "target") {
+            @Override
+            protected String startSession(long total) throws RequestFailException {
+                setChunkSize(4);
+                return "session";
+            }
+
+            @Override
+            protected long resumeSession(String sessionId, long offset) throws RequestFailException {
+                synchronized (parts) {
+                    long committed = 0;
+                    while (parts.containsKey(committed)) committed += parts.get(committed).length;
+                    return committed;
+                }
+            }
+
+            @Override
+            protected long uploadChunk(String sessionId, long offset, byte[] data, int length,
+                                       long total) throws RequestFailException {
+                synchronized (parts) {
+                    // first send of the second chunk is rejected, e.g. 416, and answered with
+                    // the committed offset
+                    if (offset == 4 && sent[0]++ == 0) return resumeSession(sessionId, offset);
+                    parts.put(offset, Arrays.copyOf(data, length));
+                    return offset + length;
+                }
+            }
+
+            @Override
+            protected CFile finishSession(String sessionId, long total) throws RequestFailException {
+                CFile file = new CFile(null);
+                file.setSize(total);
+                return file;
+            }
+        }.parallel(mExecutor, 2);
+
+        upload.upload(newFile(CONTENT));
+
+        assertEquals(2, sent[0]);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        for (byte[] part : parts.values()) received.write(part);
+        assertArrayEquals(CONTENT, received.toByteArray());
+    }
+
+    /**
+     * Test that a parallel upload still completes while every executor thread is busy
+     */
+    @Test(timeout = 10000)
+    public void uploadFileParallel_executorBusy_uploaded() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // released by teardown
+                    }
+                }
+            });
+        }
+
+        try {
+            newUpload(newContext(new MemoryPreferences())).parallel(mExecutor, 2)
+                    .upload(newFile(CONTENT));
+        } finally {
+            release.countDown();
+        }
+
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a failed file upload leaves its session and committed offset saved
+     */
+    @Test
+    public void uploadFile_failed_sessionSaved() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        File file = newFile(CONTENT);
+        failAfterTwoChunks(prefs, file);
+
+        assertEquals(1, prefs.getAll().size());
+        String state = (String) prefs.getAll().values().iterator().next();
+        assertTrue(state.contains("session0"));
+        assertTrue(state.contains("\"offset\":8"));
+    }
+
+    /**
+     * Test that an upload created after a restart resumes the saved session from its committed
+     * offset and forget the session once finished
+     */
+    @Test
+    public void uploadFile_restarted_resumedFromSavedSession() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        File file = newFile(CONTENT);
+        failAfterTwoChunks(prefs, file);
+        mChunkCount = 0;
+
+        CFile uploaded = newUpload(newContext(prefs)).upload(file);
+
+        assertEquals(CONTENT.length, uploaded.getSize());
+        assertEquals(Collections.singletonList("session0"), mSessions);
+        // 8 bytes committed before, 3 chunks left
+        assertEquals(3, mChunkCount);
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+        assertTrue(prefs.getAll().isEmpty());
+    }
+
+    /**
+     * Test that a saved session lost on the cloud server is replaced by a new one
+     */
+    @Test
+    public void uploadFile_savedSessionLost_newSessionStarted() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        File file = newFile(CONTENT);
+        failAfterTwoChunks(prefs, file);
+        mLostSessions.add("session0");
+
+        newUpload(newContext(prefs)).upload(file);
+
+        assertEquals(Arrays.asList("session0", "session1"), mSessions);
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that a session lost while uploading is started over only once
+     */
+    @Test
+    public void uploadFile_sessionLostTwice_failed() throws Exception {
+        mChunkLost = true;
+        try {
+            newUpload(newContext(new MemoryPreferences())).upload(newFile(CONTENT));
+            fail("Upload should have failed");
+        } catch (RequestFailException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList("session0", "session1"), mSessions);
+    }
+
+    /**
+     * Test that failed chunks are resumed within the retry budget
+     */
+    @Test
+    public void uploadFile_failuresWithinBudget_uploaded() throws Exception {
+        mFailures = CloudProvider.UPLOAD_RETRY_COUNT;
+        newUpload(newContext(new MemoryPreferences())).upload(newFile(CONTENT));
+
+        assertEquals(1, mSessions.size());
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+    }
+
+    /**
+     * Test that the upload gives up once the retry budget is spent
+     */
+    @Test(expected = RequestFailException.class)
+    public void uploadFile_failuresOverBudget_failed() throws Exception {
+        mFailures = CloudProvider.UPLOAD_RETRY_COUNT + 1;
+        newUpload(newContext(new MemoryPreferences())).upload(newFile(CONTENT));
+    }
+
+    /**
+     * Test that sessions saved longer ago than the maximum age are pruned, not resumed
+     */
+    @Test
+    public void uploadFile_savedSessionTooOld_pruned() throws Exception {
+        MemoryPreferences prefs = new MemoryPreferences();
+        prefs.edit().putString("abandoned", "{}").apply();
+        File file = newFile(CONTENT);
+        failAfterTwoChunks(prefs, file);
+
+        mNow = CloudProvider.UPLOAD_SESSION_MAX_AGE + 1;
+        newUpload(newContext(prefs)).upload(file);
+
+        assertEquals(Arrays.asList("session0", "session1"), mSessions);
+        assertArrayEquals(CONTENT, mReceived.toByteArray());
+        assertTrue(prefs.getAll().isEmpty());
+    }
+
+    /**
+     * Upload the file until the third chunk fails for good
+     */
+    private void failAfterTwoChunks(SharedPreferences prefs, File file) throws Exception {
+        mFailFrom = 8;
+        try {
+            newUpload(newContext(prefs)).upload(file);
+            fail("Upload should have failed");
+        } catch (RequestFailException e) {
+            // expected
+        }
+        mFailFrom = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Test that a stream shorter than the announced length fails the upload
+     */
+    @Test(expected = RequestFailException.class)
+    public void uploadStream_shortStream_failed() throws Exception {
+        newUpload().upload(new ByteArrayInputStream(CONTENT), CONTENT.length + 1);
+    }
+
+    /**
+     * In memory preferences that hold the saved sessions
+     */
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class MemoryEditor implements Editor {
+
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private final Set<String> mRemoved = new HashSet<>();
+            private boolean mClear;
+
+            private Editor put(String key, Object value) {
+                if (value == null) return remove(key);
+                mChanges.put(key, value);
+                mRemoved.remove(key);
+                return this;
+            }
+
+            @Override
+            public Editor putString(String key, String value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                return put(key, values);
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                return put(key, value);
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mChanges.remove(key);
+                mRemoved.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (mClear) mValues.clear();
+                    for (String key : mRemoved) mValues.remove(key);
+                    mValues.putAll(mChanges);
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.apis.CloudDriveApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.reflect.Whitebox.setInternalState;
+
+public class CloudDriveApiTest {
+
+    private static final String NODES_PATH = "/drive/v1/nodes";
+
+    @Rule
+    public MockCloudServer mServer = new MockCloudServer();
+
+    private CloudDriveApi mApi;
+
+    @Before
+    public void setup() throws Exception {
+        mApi = mServer.prepare(new CloudDriveApi(mServer.getContext(), mServer.getAccount()));
+        setInternalState(mApi, "mMetadataUrl", "https://cdws.us-east-1.amazonaws.com/drive/v1/");
+    }
+
+    private static List<String> ids(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add("node" + i);
+        }
+        return ids;
+    }
+
+    private static HttpUrl url(RecordedRequest request) {
+        return HttpUrl.parse("http://localhost" + request.getPath());
+    }
+
+    /**
+     * Get the ids of a filtered nodes request
+     */
+    private static List<String> filterIds(RecordedRequest request) {
+        List<String> ids = new ArrayList<>();
+        for (String filter : url(request).queryParameter("filters").split(" OR ")) {
+            // id:"<id>"
+            ids.add(filter.substring(4, filter.length() - 1));
+        }
+        return ids;
+    }
+
+    private static JSONObject node(String id) throws Exception {
+        return new JSONObject()
+                .put("id", id)
+                .put("name", id + ".txt")
+                .put("kind", id.startsWith("folder") ? "FOLDER" : "FILE")
+                .put("created_at", "2016-01-01T00:00:00+0000")
+                .put("modified_at", "2016-01-01T00:00:00+0000");
+    }
+
+    /**
+     * Nodes endpoint where the given ids are missing from the search index and the ids
+     * starting with "missing" do not exist at all
+     */
+    private void nodes(final String... notIndexed) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    String path = url(request).encodedPath();
+                    if (path.equals(NODES_PATH)) {
+                        JSONArray data = new JSONArray();
+                        for (String id : filterIds(request)) {
+                            if (id.startsWith("missing")) continue;
+                            if (Arrays.asList(notIndexed).contains(id)) continue;
+                            data.put(node(id));
+                        }
+                        return new MockResponse().setBody(new JSONObject()
+                                .put("count", data.length())
+                                .put("data", data)
+                                .toString());
+                    }
+
+                    String id = url(request).pathSegments().get(3);
+                    if (id.startsWith("missing")) return new MockResponse().setResponseCode(404);
+                    return new MockResponse().setBody(node(id).toString());
+                } catch (Exception e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+    }
+
+    /**
+     * Listener recording the outcome of every id
+     */
+    private static class InfoResults implements BaseApi.OnInfoListener<CFile> {
+
+        final Map<String, CFile> found = new HashMap<>();
+        final Map<String, Exception> failed = new HashMap<>();
+
+        @Override
+        public synchronized void onInfo(String id, CFile item) {
+            found.put(id, item);
+        }
+
+        @Override
+        public synchronized void onInfoFail(String id, Exception e) {
+            failed.put(id, e);
+        }
+    }
+
+    /**
+     * Test that the ids are filtered 50 per nodes request
+     */
+    @Test
+    public void getFilesInfo_manyIds_split() throws Exception {
+        nodes();
+        InfoResults results = new InfoResults();
+        mApi.getFilesInfo(ids(120), results);
+
+        assertEquals(120, results.found.size());
+        assertEquals("node119.txt", results.found.get("node119").getName());
+        assertTrue(results.failed.isEmpty());
+
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals(ids(50), filterIds(requests.get(0)));
+        assertEquals(ids(100).subList(50, 100), filterIds(requests.get(1)));
+        assertEquals(ids(120).subList(100, 120), filterIds(requests.get(2)));
+    }
+
+    /**
+     * Test that the nodes left out by the filtered request are requested by id and only the
+     * nodes that do not exist are reported not found
+     */
+    @Test
+    public void getFilesInfo_notIndexed_requestedById() throws Exception {
+        nodes("node1", "node3");
+        InfoResults results = new InfoResults();
+        mApi.getFilesInfo(Arrays.asList("node0", "node1", "node2", "node3", "missing4",
+                "folder5"), results);
+
+        assertEquals(4, results.found.size());
+        assertEquals("node1.txt", results.found.get("node1").getName());
+        assertEquals("node3.txt", results.found.get("node3").getName());
+        assertEquals(2, results.failed.size());
+        assertEquals(404, ((RequestFailException) results.failed.get("missing4")).getCode());
+        // a folder asked as a file is not found
+        assertEquals(404, ((RequestFailException) results.failed.get("folder5")).getCode());
+
+        List<String> paths = new ArrayList<>();
+        for (RecordedRequest request : mServer.getRequests()) {
+            paths.add(url(request).encodedPath());
+        }
+        assertEquals(Arrays.asList(NODES_PATH, NODES_PATH + "/node1", NODES_PATH + "/node3",
+                NODES_PATH + "/missing4", NODES_PATH + "/folder5"), paths);
+    }
+
+    /**
+     * Test that the ids are quoted in the filter
+     */
+    @Test
+    public void getFilesInfo_filterSyntax_quoted() throws Exception {
+        nodes();
+        InfoResults results = new InfoResults();
+        mApi.getFilesInfo(Arrays.asList("a-b:c", "d e"), results);
+
+        assertEquals(2, results.found.size());
+        assertEquals("id:\"a-b:c\" OR id:\"d e\"",
+                url(mServer.getRequests().get(0)).queryParameter("filters"));
+    }
+}
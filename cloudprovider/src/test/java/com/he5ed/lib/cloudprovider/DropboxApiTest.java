@@ -0,0 +1,369 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.apis.DropboxApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import okio.ByteString;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DropboxApiTest {
+
+    @Rule
+    public MockCloudServer mServer = new MockCloudServer();
+
+    private DropboxApi mApi;
+    private long mPollInterval;
+    private long mPollMaxInterval;
+
+    @Before
+    public void setup() throws Exception {
+        mApi = mServer.prepare(new DropboxApi(mServer.getContext(), mServer.getAccount()));
+        mPollInterval = CloudProvider.BATCH_POLL_INTERVAL;
+        mPollMaxInterval = CloudProvider.BATCH_POLL_MAX_INTERVAL;
+        CloudProvider.BATCH_POLL_INTERVAL = 50;
+        CloudProvider.BATCH_POLL_MAX_INTERVAL = 200;
+    }
+
+    @After
+    public void teardown() throws Exception {
+        CloudProvider.BATCH_POLL_INTERVAL = mPollInterval;
+        CloudProvider.BATCH_POLL_MAX_INTERVAL = mPollMaxInterval;
+    }
+
+    private static List<CFile> files(int count) {
+        List<CFile> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CFile file = new CFile(null);
+            file.setId("id:" + i);
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static CFile file(String name) {
+        CFile file = new CFile(null);
+        file.setId("id:" + name);
+        file.setName(name);
+        file.setPath("/" + name);
+        return file;
+    }
+
+    private static String read(File file) throws Exception {
+        return Okio.buffer(Okio.source(file)).readUtf8();
+    }
+
+    /**
+     * Thumbnail batch endpoint answering in the order of the request, the thumbnail of a file
+     * is its id and the files whose id ends with one of the given digits have no thumbnail
+     */
+    private void thumbnailBatch(final String failedDigits) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    JSONArray entries = new JSONObject(request.getBody().clone().readUtf8())
+                            .getJSONArray("entries");
+                    JSONArray results = new JSONArray();
+                    for (int i = 0; i < entries.length(); i++) {
+                        String path = entries.getJSONObject(i).getString("path");
+                        if (failedDigits.indexOf(path.charAt(path.length() - 1)) >= 0) {
+                            results.put(new JSONObject()
+                                    .put(".tag", "failure")
+                                    .put("failure", new JSONObject().put(".tag", "unsupported_extension")));
+                        } else {
+                            results.put(new JSONObject()
+                                    .put(".tag", "success")
+                                    .put("thumbnail", ByteString.encodeUtf8(path).base64()));
+                        }
+                    }
+                    return new MockResponse()
+                            .setBody(new JSONObject().put("entries", results).toString());
+                } catch (Exception e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+    }
+
+    /**
+     * Test that the thumbnails of a batch are matched to the files by position
+     */
+    @Test
+    public void getThumbnails_batch_matchedByPosition() throws Exception {
+        thumbnailBatch("");
+        List<CFile> files = files(3);
+        Map<String, File> thumbnails = mApi.getThumbnails(files);
+
+        assertEquals(3, thumbnails.size());
+        for (CFile file : files) {
+            assertEquals(file.getId(), read(thumbnails.get(file.getId())));
+        }
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("/2/files/get_thumbnail_batch", requests.get(0).getPath());
+    }
+
+    /**
+     * Test that the failed entries of a batch are left out without shifting the others
+     */
+    @Test
+    public void getThumbnails_failedEntries_skipped() throws Exception {
+        thumbnailBatch("13");
+        List<CFile> files = files(5);
+        Map<String, File> thumbnails = mApi.getThumbnails(files);
+
+        assertEquals(3, thumbnails.size());
+        assertFalse(thumbnails.containsKey("id:1"));
+        assertFalse(thumbnails.containsKey("id:3"));
+        assertEquals("id:2", read(thumbnails.get("id:2")));
+        assertEquals("id:4", read(thumbnails.get("id:4")));
+    }
+
+    /**
+     * Test that the files are requested 25 per batch
+     */
+    @Test
+    public void getThumbnails_manyFiles_splitInBatches() throws Exception {
+        thumbnailBatch("");
+        Map<String, File> thumbnails = mApi.getThumbnails(files(30));
+
+        assertEquals(30, thumbnails.size());
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        JSONArray first = new JSONObject(requests.get(0).getBody().readUtf8())
+                .getJSONArray("entries");
+        JSONArray second = new JSONObject(requests.get(1).getBody().readUtf8())
+                .getJSONArray("entries");
+        assertEquals(25, first.length());
+        assertEquals(5, second.length());
+        assertEquals("id:25", second.getJSONObject(0).getString("path"));
+    }
+
+    /**
+     * Test that the thumbnails already cached are not requested again
+     */
+    @Test
+    public void getThumbnails_cached_notRequested() throws Exception {
+        thumbnailBatch("");
+        List<CFile> files = files(4);
+        mApi.getThumbnails(files.subList(0, 2));
+        Map<String, File> thumbnails = mApi.getThumbnails(files);
+
+        assertEquals(4, thumbnails.size());
+        assertTrue(thumbnails.get("id:0").exists());
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        JSONArray entries = new JSONObject(requests.get(1).getBody().readUtf8())
+                .getJSONArray("entries");
+        assertEquals(2, entries.length());
+        assertEquals("id:2", entries.getJSONObject(0).getString("path"));
+    }
+
+    /**
+     * Answer the requests with the given json bodies in order and record when each request
+     * was answered
+     */
+    private List<Long> respond(String... bodies) {
+        final Queue<String> queue = new LinkedList<>();
+        for (String body : bodies) queue.add(body);
+        final List<Long> times = new ArrayList<>();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                synchronized (times) {
+                    times.add(System.nanoTime() / 1000000);
+                }
+                String body = queue.poll();
+                return body != null ?
+                        new MockResponse().setBody(body) : new MockResponse().setResponseCode(500);
+            }
+        });
+        return times;
+    }
+
+    private static String complete(JSONObject... entries) throws Exception {
+        JSONArray array = new JSONArray();
+        for (JSONObject entry : entries) array.put(entry);
+        return new JSONObject().put(".tag", "complete").put("entries", array).toString();
+    }
+
+    private static JSONObject success(CFile file) throws Exception {
+        return new JSONObject()
+                .put(".tag", "success")
+                .put("metadata", new JSONObject().put(".tag", "file").put("id", file.getId()));
+    }
+
+    private static JSONObject notFound() throws Exception {
+        return new JSONObject()
+                .put(".tag", "failure")
+                .put("failure", new JSONObject()
+                        .put(".tag", "path_lookup")
+                        .put("path_lookup", new JSONObject().put(".tag", "not_found")));
+    }
+
+    /**
+     * Listener recording the outcome of every item by id
+     */
+    private static class BatchResults implements BaseApi.OnBatchListener {
+
+        final Map<String, Object> done = new HashMap<>();
+        final Map<String, Exception> failed = new HashMap<>();
+
+        @Override
+        public synchronized void onItemDone(Object item, Object result) {
+            done.put(((CFile) item).getId(), result);
+        }
+
+        @Override
+        public synchronized void onItemFail(Object item, Exception e) {
+            failed.put(((CFile) item).getId(), e);
+        }
+    }
+
+    /**
+     * Test that a batch job run in the background is checked until complete, less and less
+     * often, and its results are matched to the items by position
+     */
+    @Test
+    public void deleteItems_asyncJob_polledWithBackoff() throws Exception {
+        CFile a = file("a");
+        CFile b = file("b");
+        CFile c = file("c");
+        String inProgress = new JSONObject().put(".tag", "in_progress").toString();
+        List<Long> times = respond(
+                new JSONObject().put(".tag", "async_job_id").put("async_job_id", "job1").toString(),
+                inProgress, inProgress, inProgress,
+                complete(success(a), notFound(), success(c)));
+        BatchResults results = new BatchResults();
+        mApi.deleteItems(Arrays.asList(a, b, c), results);
+
+        assertEquals(2, results.done.size());
+        assertTrue(results.done.containsKey("id:a"));
+        assertTrue(results.done.containsKey("id:c"));
+        assertNull(results.done.get("id:a"));
+        assertEquals(1, results.failed.size());
+        assertEquals("path_lookup/not_found", results.failed.get("id:b").getMessage());
+
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(5, requests.size());
+        assertEquals("/2/files/delete_batch", requests.get(0).getPath());
+        JSONArray entries = new JSONObject(requests.get(0).getBody().readUtf8())
+                .getJSONArray("entries");
+        assertEquals("/b", entries.getJSONObject(1).getString("path"));
+        for (int i = 1; i < 5; i++) {
+            assertEquals("/2/files/delete_batch/check", requests.get(i).getPath());
+            assertEquals("job1", new JSONObject(requests.get(i).getBody().readUtf8())
+                    .getString("async_job_id"));
+        }
+        // 50, 100, 200 then capped at 200 milliseconds
+        long[] intervals = {50, 100, 200, 200};
+        for (int i = 0; i < intervals.length; i++) {
+            long interval = times.get(i + 1) - times.get(i);
+            assertTrue("check " + i + " after " + interval + " ms", interval >= intervals[i]);
+        }
+    }
+
+    /**
+     * Test that a failed batch job fails the whole batch with the reason
+     */
+    @Test
+    public void deleteItems_jobFailed_thrown() throws Exception {
+        respond(new JSONObject().put(".tag", "async_job_id").put("async_job_id", "job1").toString(),
+                new JSONObject().put(".tag", "failed").put("failed",
+                        new JSONObject().put(".tag", "too_many_write_operations")).toString());
+        BatchResults results = new BatchResults();
+        try {
+            mApi.deleteItems(Arrays.asList(file("a"), file("b")), results);
+            fail("failed batch job must throw");
+        } catch (RequestFailException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("too_many_write_operations"));
+        }
+        assertTrue(results.done.isEmpty());
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    /**
+     * Test that a batch job complete at once is not checked and the moved items are built
+     * from the results matched by position
+     */
+    @Test
+    public void moveItems_completeAtOnce_matchedByPosition() throws Exception {
+        CFile a = file("a");
+        CFile b = file("b");
+        CFile c = file("c");
+        respond(complete(notFound(), moved("b"), moved("c")));
+        CFolder folder = new CFolder(null);
+        folder.setId("id:folder");
+        folder.setPath("/folder");
+        BatchResults results = new BatchResults();
+        mApi.moveItems(Arrays.asList(a, b, c), folder, results);
+
+        assertEquals("path_lookup/not_found", results.failed.get("id:a").getMessage());
+        assertEquals("/folder/b", ((CFile) results.done.get("id:b")).getPath());
+        assertEquals("/folder/c", ((CFile) results.done.get("id:c")).getPath());
+
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(1, requests.size());
+        assertEquals("/2/files/move_batch_v2", requests.get(0).getPath());
+        JSONObject entry = new JSONObject(requests.get(0).getBody().readUtf8())
+                .getJSONArray("entries").getJSONObject(2);
+        assertEquals("/c", entry.getString("from_path"));
+        assertEquals("/folder/c", entry.getString("to_path"));
+    }
+
+    private static JSONObject moved(String name) throws Exception {
+        return new JSONObject()
+                .put(".tag", "success")
+                .put("success", new JSONObject()
+                        .put(".tag", "file")
+                        .put("id", "id:" + name)
+                        .put("name", name)
+                        .put("path_lower", "/folder/" + name)
+                        .put("created_at", "2016-01-01T00:00:00Z")
+                        .put("client_modified", "2016-01-01T00:00:00Z"));
+    }
+}
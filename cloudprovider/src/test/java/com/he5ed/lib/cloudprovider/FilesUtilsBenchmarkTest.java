@@ -0,0 +1,379 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import android.util.Log;
+
+import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and I/O call count of the file copy paths before and after the switch from the
+ * 1 KB buffer loop, only run with -Dbenchmark=true. The file size defaults to 1 GB and can be
+ * set with -Dbenchmark.size in bytes.
+ * <p>
+ * The counts are calls made on the file streams and channels, not system calls. A stream read
+ * or write is about one system call, a channel transfer may take several inside the JDK.
+ */
+public class FilesUtilsBenchmarkTest {
+
+    private static final String TAG = "FilesUtilsBenchmarkTest";
+    private static final int LEGACY_BUFFER_SIZE = 1024;
+
+    private File mSource;
+    private File mDest;
+    private long mSize;
+
+    @Before
+    public void setup() throws IOException {
+        assumeTrue(Boolean.getBoolean("benchmark"));
+
+        mSize = Long.getLong("benchmark.size", 1024L * 1024 * 1024);
+        mSource = File.createTempFile("benchmark", ".src");
+        mDest = File.createTempFile("benchmark", ".dst");
+
+        // random content so nothing is served from sparse blocks
+        byte[] block = new byte[1024 * 1024];
+        new Random(0).nextBytes(block);
+        RandomAccessFile file = new RandomAccessFile(mSource, "rw");
+        try {
+            for (long written = 0; written < mSize; written += block.length) {
+                file.write(block, 0, (int) Math.min(block.length, mSize - written));
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (mSource != null) mSource.delete();
+        if (mDest != null) mDest.delete();
+    }
+
+    /**
+     * Compare the former 1 KB buffer loop with the Okio segment copy on plain streams
+     */
+    @Test
+    public void copyStream_okioSegments_fewerCalls() throws IOException {
+        CountingInputStream in = new CountingInputStream(new FileInputStream(mSource));
+        CountingOutputStream out = new CountingOutputStream(new FileOutputStream(mDest));
+        long start = System.nanoTime();
+        legacyCopy(in, out);
+        String before = report("1 KB buffer", start, in.mCalls, out.mCalls);
+        assertEquals(mSize, mDest.length());
+        long legacyCalls = in.mCalls + out.mCalls;
+
+        in = new CountingInputStream(new FileInputStream(mSource));
+        out = new CountingOutputStream(new FileOutputStream(mDest));
+        start = System.nanoTime();
+        FilesUtils.copyFile(in, out);
+        String after = report("Okio segments", start, in.mCalls, out.mCalls);
+        assertEquals(mSize, mDest.length());
+
+        assertTrue(before + ", " + after, in.mCalls + out.mCalls < legacyCalls);
+    }
+
+    /**
+     * Compare the former 1 KB buffer loop with the file channel transfer used for file streams
+     */
+    @Test
+    public void copyFile_fileChannel_fewerCalls() throws IOException {
+        CountingFileInputStream in = new CountingFileInputStream(mSource);
+        CountingFileOutputStream out = new CountingFileOutputStream(mDest);
+        long start = System.nanoTime();
+        legacyCopy(in, out);
+        String before = report("1 KB buffer", start, in.calls(), out.calls());
+        assertEquals(mSize, mDest.length());
+        long legacyCalls = in.calls() + out.calls();
+
+        in = new CountingFileInputStream(mSource);
+        out = new CountingFileOutputStream(mDest);
+        start = System.nanoTime();
+        FilesUtils.copyFile(in, out);
+        String after = report("File channel", start, in.calls(), out.calls());
+        assertEquals(mSize, mDest.length());
+
+        assertTrue(before + ", " + after, in.calls() + out.calls() < legacyCalls);
+    }
+
+    private static void legacyCopy(InputStream source, OutputStream dest) throws IOException {
+        try {
+            byte[] buf = new byte[LEGACY_BUFFER_SIZE];
+            int len;
+            while ((len = source.read(buf, 0, buf.length)) > 0) {
+                dest.write(buf, 0, len);
+            }
+        } finally {
+            source.close();
+            dest.close();
+        }
+    }
+
+    private String report(String name, long start, long reads, long writes) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        String result = String.format("%s: %.1f MB/s, %d reads, %d writes", name,
+                mSize / seconds / (1024 * 1024), reads, writes);
+        Log.i(TAG, result);
+        return result;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long mCalls;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            mCalls++;
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            mCalls++;
+            return in.read(b, off, len);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long mCalls;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mCalls++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mCalls++;
+            out.write(b, off, len);
+        }
+    }
+
+    private static class CountingFileInputStream extends FileInputStream {
+        CountingChannel mChannel;
+        long mCalls;
+
+        CountingFileInputStream(File file) throws IOException {
+            super(file);
+        }
+
+        long calls() {
+            return mCalls + (mChannel != null ? mChannel.mCalls : 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            mCalls++;
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            mCalls++;
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public synchronized FileChannel getChannel() {
+            if (mChannel == null) mChannel = new CountingChannel(super.getChannel());
+            return mChannel;
+        }
+    }
+
+    private static class CountingFileOutputStream extends FileOutputStream {
+        CountingChannel mChannel;
+        long mCalls;
+
+        CountingFileOutputStream(File file) throws IOException {
+            super(file);
+        }
+
+        long calls() {
+            return mCalls + (mChannel != null ? mChannel.mCalls : 0);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mCalls++;
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mCalls++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized FileChannel getChannel() {
+            if (mChannel == null) mChannel = new CountingChannel(super.getChannel());
+            return mChannel;
+        }
+    }
+
+    /**
+     * File channel counting the reads, writes and transfers, a transfer between two counting
+     * channels is handed the underlying channels so it stays a direct file transfer
+     */
+    private static class CountingChannel extends FileChannel {
+        final FileChannel mChannel;
+        long mCalls;
+
+        CountingChannel(FileChannel channel) {
+            mChannel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            mCalls++;
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            mCalls++;
+            return mChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            mCalls++;
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            mCalls++;
+            return mChannel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            mCalls++;
+            return mChannel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            mCalls++;
+            return mChannel.write(src, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            mCalls++;
+            if (target instanceof CountingChannel) {
+                ((CountingChannel) target).mCalls++;
+                target = ((CountingChannel) target).mChannel;
+            }
+            return mChannel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            mCalls++;
+            if (src instanceof CountingChannel) {
+                ((CountingChannel) src).mCalls++;
+                src = ((CountingChannel) src).mChannel;
+            }
+            return mChannel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            mChannel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            mChannel.force(metaData);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mChannel.close();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.utils.FilesUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FilesUtilsTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File newFile(String content) throws Exception {
+        File file = mFolder.newFile();
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(content.getBytes());
+        output.close();
+        return file;
+    }
+
+    private static byte[] read(File file) throws Exception {
+        byte[] content = new byte[(int) file.length()];
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            input.readFully(content);
+        } finally {
+            input.close();
+        }
+        return content;
+    }
+
+    /**
+     * Test that file streams are copied from their current positions, after what was already
+     * read and written
+     */
+    @Test
+    public void copyFile_fileStreamsInUse_copiedFromPositions() throws Exception {
+        File dest = mFolder.newFile();
+        InputStream source = new FileInputStream(newFile("skip-content"));
+        OutputStream output = new FileOutputStream(dest);
+        source.read(new byte[5]);
+        output.write("head-".getBytes());
+
+        FilesUtils.copyFile(source, output);
+
+        assertArrayEquals("head-content".getBytes(), read(dest));
+    }
+
+    /**
+     * Test that a file stream opened for append is copied after the existing content
+     */
+    @Test
+    public void copyFile_appendStream_appended() throws Exception {
+        File dest = newFile("head-");
+
+        FilesUtils.copyFile(new FileInputStream(newFile("content")),
+                new FileOutputStream(dest, true));
+
+        assertArrayEquals("head-content".getBytes(), read(dest));
+    }
+
+    /**
+     * Test that other streams are copied whole
+     */
+    @Test
+    public void copyFile_plainStreams_copied() throws Exception {
+        File dest = mFolder.newFile();
+
+        FilesUtils.copyFile(new ByteArrayInputStream("content".getBytes()),
+                new FileOutputStream(dest));
+
+        assertArrayEquals("content".getBytes(), read(dest));
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheTest {
+
+    private long mNow;
+    private int mLoadCount;
+    private MetadataCache mCache;
+
+    @Before
+    public void setup() {
+        mNow = 0;
+        mLoadCount = 0;
+        // run revalidation inline so the result is visible right after the call
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        mCache = new MetadataCache(2, 1000, 5000, executor) {
+            @Override
+            protected long now() {
+                return mNow;
+            }
+        };
+    }
+
+    private MetadataCache.Loader<String> loader(final String value) {
+        return new MetadataCache.Loader<String>() {
+            @Override
+            public String load() throws RequestFailException {
+                mLoadCount++;
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Test that a fresh entry is served without loading
+     */
+    @Test
+    public void get_freshEntry_served() throws Exception {
+        assertEquals("a", mCache.get("key", loader("a")));
+        mNow = 999;
+        assertEquals("a", mCache.get("key", loader("b")));
+        assertEquals(1, mLoadCount);
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(1, mCache.getMissCount());
+    }
+
+    /**
+     * Test that an expired entry is served stale while being revalidated
+     */
+    @Test
+    public void get_staleEntry_servedAndRevalidated() throws Exception {
+        mCache.get("key", loader("a"));
+        mNow = 2000;
+        assertEquals("a", mCache.get("key", loader("b")));
+        assertEquals("b", mCache.get("key", loader("c")));
+        assertEquals(2, mLoadCount);
+    }
+
+    /**
+     * Test that an entry older than the stale time to live is loaded again
+     */
+    @Test
+    public void get_tooOldEntry_reloaded() throws Exception {
+        mCache.get("key", loader("a"));
+        mNow = 5000;
+        assertEquals("b", mCache.get("key", loader("b")));
+        assertEquals(2, mLoadCount);
+    }
+
+    /**
+     * Test that the least recently used entry is evicted once full
+     */
+    @Test
+    public void put_full_evictLeastRecentlyUsed() throws Exception {
+        mCache.put("a", "a");
+        mCache.put("b", "b");
+        mCache.get("a", loader("x"));
+        mCache.put("c", "c");
+        assertEquals(2, mCache.size());
+        assertEquals("a", mCache.get("a", loader("x")));
+        assertEquals("y", mCache.get("b", loader("y")));
+    }
+
+    /**
+     * Test that invalidating an item drops the item and all listings
+     */
+    @Test
+    public void invalidateItem_dropItemAndListings() throws Exception {
+        mCache.put(MetadataCache.fileKey("1"), "file");
+        mCache.put(MetadataCache.listKey("2"), null);
+        mCache.invalidateItem("1");
+        assertEquals(0, mCache.size());
+        assertNull(mCache.get(MetadataCache.fileKey("1"), loader(null)));
+        assertEquals(1, mLoadCount);
+    }
+
+    /**
+     * Test that a load finishing after its entry was invalidated is not cached
+     */
+    @Test
+    public void get_invalidatedWhileLoading_notCached() throws Exception {
+        final String key = MetadataCache.listKey("1");
+        assertEquals("a", mCache.get(key, new MetadataCache.Loader<String>() {
+            @Override
+            public String load() throws RequestFailException {
+                mLoadCount++;
+                // a mutation of the folder meanwhile
+                mCache.invalidateItem(null);
+                return "a";
+            }
+        }));
+        assertEquals(0, mCache.size());
+        assertEquals("b", mCache.get(key, loader("b")));
+        assertEquals(2, mLoadCount);
+    }
+
+    /**
+     * Test that a revalidation finishing after the cache was cleared is not cached
+     */
+    @Test
+    public void get_clearedWhileRevalidating_notCached() throws Exception {
+        mCache.get("key", loader("a"));
+        mNow = 2000;
+        assertEquals("a", mCache.get("key", new MetadataCache.Loader<String>() {
+            @Override
+            public String load() throws RequestFailException {
+                mCache.clear();
+                return "b";
+            }
+        }));
+        assertNull(mCache.peek("key"));
+    }
+
+    /**
+     * Test that a cached listing is returned as a copy the caller may modify
+     */
+    @Test
+    public void get_cachedList_copyReturned() throws Exception {
+        List<Object> list = new ArrayList<>();
+        list.add("item");
+        mCache.put(MetadataCache.listKey("1"), list);
+        list.clear();
+
+        List<Object> cached = mCache.get(MetadataCache.listKey("1"), null);
+        cached.clear();
+        assertEquals(1, mCache.<List<Object>>get(MetadataCache.listKey("1"), null).size());
+    }
+
+    /**
+     * Test that an entry is reported cached until it is too old to be served stale
+     */
+    @Test
+    public void contains_staleEntry_trueUntilTooOld() throws Exception {
+        mCache.put("key", "a");
+        mNow = 4999;
+        assertTrue(mCache.contains("key"));
+        mNow = 5000;
+        assertFalse(mCache.contains("key"));
+    }
+
+    /**
+     * Test that a listing loaded page by page is not cached once the listings are invalidated
+     */
+    @Test
+    public void putLoaded_invalidatedMeanwhile_notCached() throws Exception {
+        MetadataCache.Load load = mCache.startLoad(MetadataCache.listKey("1"));
+        mCache.invalidateItem("2");
+        mCache.putLoaded(load, "listing");
+        mCache.endLoad(load);
+        assertFalse(mCache.contains(MetadataCache.listKey("1")));
+    }
+
+    /**
+     * Test that a loaded value is handed to the store along with being cached
+     */
+    @Test
+    public void get_store_loadedValueStored() throws Exception {
+        final List<String> stored = new ArrayList<>();
+        mCache.get("key", loader("a"), new MetadataCache.Store<String>() {
+            @Override
+            public void store(String value) {
+                stored.add(value);
+            }
+        });
+        assertEquals(Collections.singletonList("a"), stored);
+    }
+
+    /**
+     * Test that a load finishing after its entry was invalidated is not stored either, e.g. in
+     * the metadata index where it would bring back a deleted item
+     */
+    @Test
+    public void get_invalidatedWhileLoading_notStored() throws Exception {
+        final List<Object> stored = new ArrayList<>();
+        MetadataCache.Store<Object> store = new MetadataCache.Store<Object>() {
+            @Override
+            public void store(Object value) {
+                stored.add(value);
+            }
+        };
+        mCache.get(MetadataCache.listKey("1"), new MetadataCache.Loader<String>() {
+            @Override
+            public String load() throws RequestFailException {
+                mCache.invalidateItem("2");
+                return "listing";
+            }
+        }, store);
+
+        MetadataCache.Load load = mCache.startLoad(MetadataCache.listKey("1"));
+        mCache.invalidateItem("2");
+        mCache.putLoaded(load, "listing", store);
+        mCache.endLoad(load);
+
+        assertTrue(stored.isEmpty());
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import android.accounts.Account;
+import android.content.Context;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.providers.MetadataIndex;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.reflect.Whitebox.setInternalState;
+
+/**
+ * Mock server standing in for every host of the cloud services. The requests of the cloud API
+ * instances are sent to the mock server with their path unchanged.
+ */
+public class MockCloudServer extends ExternalResource {
+
+    private final TemporaryFolder mFolder = new TemporaryFolder();
+    private final List<RecordedRequest> mRequests = new ArrayList<>();
+    private MockWebServer mServer;
+    private OkHttpClient mHttpClient;
+    private Interceptor mRedirect;
+    private Context mContext;
+
+    @Override
+    protected void before() throws Throwable {
+        mFolder.create();
+        mServer = new MockWebServer();
+        mServer.start();
+
+        mContext = mock(Context.class);
+        when(mContext.getFilesDir()).thenReturn(mFolder.newFolder("files"));
+        if (CloudProvider.CACHE_DIR == null) CloudProvider.CACHE_DIR = mFolder.newFolder("cache");
+        // content provider is not available
+        MetadataIndex.ENABLE_INDEX = false;
+
+        CloudProvider cloudProvider = CloudProvider.getInstance(mContext);
+        cloudProvider.getThumbnailCache().clear();
+        mHttpClient = cloudProvider.getHttpClient();
+        mRedirect = new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Request request = chain.request();
+                HttpUrl url = request.httpUrl().newBuilder()
+                        .scheme("http")
+                        .host(mServer.getHostName())
+                        .port(mServer.getPort())
+                        .build();
+                return chain.proceed(request.newBuilder().url(url).build());
+            }
+        };
+        mHttpClient.interceptors().add(mRedirect);
+    }
+
+    @Override
+    protected void after() {
+        mHttpClient.interceptors().remove(mRedirect);
+        MetadataIndex.ENABLE_INDEX = true;
+        try {
+            mServer.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mFolder.delete();
+    }
+
+    /**
+     * Build a cloud API instance with an access token, as if prepared
+     *
+     * @param api the cloud API instance
+     * @return the same cloud API instance
+     */
+    public <T extends BaseApi> T prepare(T api) {
+        setInternalState(api, "mAccessToken", "token");
+        return api;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    public Account getAccount() {
+        return new Account("user@example.com", "com.he5ed.lib.cloudprovider.test");
+    }
+
+    /**
+     * Answer the requests with the dispatcher, the requests are recorded in the order they
+     * are answered
+     *
+     * @param dispatcher to answer the requests
+     */
+    public void setDispatcher(final Dispatcher dispatcher) {
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request)
+                    throws InterruptedException {
+                synchronized (mRequests) {
+                    mRequests.add(request);
+                }
+                return dispatcher.dispatch(request);
+            }
+        });
+    }
+
+    /**
+     * Get the requests answered so far
+     *
+     * @return List of RecordedRequest
+     */
+    public List<RecordedRequest> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    /**
+     * Get the url of a path on the mock server, e.g. for a pre-authenticated download url
+     *
+     * @param path on the server
+     * @return url
+     */
+    public String url(String path) {
+        return mServer.url(path).toString();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.apis.OneDriveApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OneDriveApiTest {
+
+    @Rule
+    public MockCloudServer mServer = new MockCloudServer();
+
+    private OneDriveApi mApi;
+
+    @Before
+    public void setup() throws Exception {
+        mApi = mServer.prepare(new OneDriveApi(mServer.getContext(), mServer.getAccount()));
+    }
+
+    private static List<CFile> files(int count) {
+        List<CFile> files = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            CFile file = new CFile(null);
+            file.setId(String.valueOf(i));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static String read(File file) throws Exception {
+        return Okio.buffer(Okio.source(file)).readUtf8();
+    }
+
+    /**
+     * Get the requests of a json batch
+     */
+    private static JSONArray batchRequests(RecordedRequest request) throws Exception {
+        return new JSONObject(request.getBody().clone().readUtf8()).getJSONArray("requests");
+    }
+
+    /**
+     * Json batch answered in reverse order, each request is answered by the given handler
+     */
+    private abstract class BatchDispatcher extends Dispatcher {
+
+        abstract JSONObject respond(JSONObject request) throws Exception;
+
+        MockResponse other(RecordedRequest request) {
+            return new MockResponse().setResponseCode(404);
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            if (!request.getPath().equals("/v1.0/$batch")) return other(request);
+            try {
+                JSONArray requests = batchRequests(request);
+                JSONArray responses = new JSONArray();
+                for (int i = requests.length() - 1; i >= 0; i--) {
+                    JSONObject response = respond(requests.getJSONObject(i));
+                    responses.put(response.put("id", requests.getJSONObject(i).getString("id")));
+                }
+                return new MockResponse()
+                        .setBody(new JSONObject().put("responses", responses).toString());
+            } catch (Exception e) {
+                return new MockResponse().setResponseCode(500);
+            }
+        }
+    }
+
+    /**
+     * Thumbnail lookup where the thumbnail of a file is its id, the files whose id ends with
+     * one of the given digits have no thumbnail set
+     */
+    private void thumbnails(final String failedDigits) {
+        mServer.setDispatcher(new BatchDispatcher() {
+            @Override
+            JSONObject respond(JSONObject request) throws Exception {
+                // /drive/items/{id}/thumbnails?$select=medium
+                String id = request.getString("url").split("/")[3];
+                JSONArray sets = new JSONArray();
+                if (failedDigits.indexOf(id.charAt(id.length() - 1)) < 0) {
+                    sets.put(new JSONObject().put("medium",
+                            new JSONObject().put("url", mServer.url("/thumbnail/" + id))));
+                }
+                return new JSONObject()
+                        .put("status", 200)
+                        .put("body", new JSONObject().put("value", sets));
+            }
+
+            @Override
+            MockResponse other(RecordedRequest request) {
+                if (!request.getPath().startsWith("/thumbnail/")) return super.other(request);
+                return new MockResponse().setBody(request.getPath().substring(11));
+            }
+        });
+    }
+
+    /**
+     * Test that the thumbnail urls are looked up 20 per json batch and the answers are
+     * matched to the files by id
+     */
+    @Test
+    public void getThumbnails_noUrl_lookedUpInBatches() throws Exception {
+        thumbnails("");
+        Map<String, File> thumbnails = mApi.getThumbnails(files(25));
+
+        assertEquals(25, thumbnails.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(String.valueOf(i), read(thumbnails.get(String.valueOf(i))));
+        }
+        List<Integer> batchSizes = new ArrayList<>();
+        for (RecordedRequest request : mServer.getRequests()) {
+            if (request.getPath().equals("/v1.0/$batch")) {
+                batchSizes.add(batchRequests(request).length());
+            }
+        }
+        assertEquals(2, batchSizes.size());
+        assertEquals(20, (int) batchSizes.get(0));
+        assertEquals(5, (int) batchSizes.get(1));
+    }
+
+    /**
+     * Test that the files without thumbnail are left out and the files with a thumbnail url
+     * from the listing are not looked up
+     */
+    @Test
+    public void getThumbnails_someWithoutThumbnail_leftOut() throws Exception {
+        thumbnails("13");
+        List<CFile> files = files(5);
+        files.get(0).setThumbnailUrl(mServer.url("/thumbnail/listed"));
+        Map<String, File> thumbnails = mApi.getThumbnails(files);
+
+        assertEquals(3, thumbnails.size());
+        assertEquals("listed", read(thumbnails.get("0")));
+        assertFalse(thumbnails.containsKey("1"));
+        assertFalse(thumbnails.containsKey("3"));
+        assertEquals("4", read(thumbnails.get("4")));
+        RecordedRequest batch = mServer.getRequests().get(0);
+        assertEquals("/v1.0/$batch", batch.getPath());
+        JSONArray requests = batchRequests(batch);
+        assertEquals(4, requests.length());
+        assertEquals("/drive/items/1/thumbnails?$select=medium",
+                requests.getJSONObject(0).getString("url"));
+    }
+
+    /**
+     * Listener recording the outcome of every item by id
+     */
+    private static class BatchResults implements BaseApi.OnBatchListener {
+
+        final Map<String, Object> done = new HashMap<>();
+        final Map<String, Exception> failed = new HashMap<>();
+
+        @Override
+        public synchronized void onItemDone(Object item, Object result) {
+            done.put(((CFile) item).getId(), result);
+        }
+
+        @Override
+        public synchronized void onItemFail(Object item, Exception e) {
+            failed.put(((CFile) item).getId(), e);
+        }
+    }
+
+    /**
+     * Item requests of a json batch answered by the given handler, the items whose id ends
+     * with one of the given digits are not found
+     */
+    private abstract class ItemDispatcher extends BatchDispatcher {
+
+        private final String mMissingDigits;
+
+        ItemDispatcher(String missingDigits) {
+            mMissingDigits = missingDigits;
+        }
+
+        abstract JSONObject respond(String id, JSONObject request) throws Exception;
+
+        @Override
+        JSONObject respond(JSONObject request) throws Exception {
+            // /drive/items/{id}
+            String id = request.getString("url").split("/")[3];
+            if (mMissingDigits.indexOf(id.charAt(id.length() - 1)) >= 0) {
+                return new JSONObject()
+                        .put("status", 404)
+                        .put("body", new JSONObject().put("error",
+                                new JSONObject().put("message", "Item not found " + id)));
+            }
+            return respond(id, request);
+        }
+    }
+
+    /**
+     * Test that the deletions are sent 20 per json batch and the answers coming in any order
+     * are matched to the items by id
+     */
+    @Test
+    public void deleteItems_outOfOrder_matchedById() throws Exception {
+        mServer.setDispatcher(new ItemDispatcher("7") {
+            @Override
+            JSONObject respond(String id, JSONObject request) throws Exception {
+                return new JSONObject().put("status", 204);
+            }
+        });
+        BatchResults results = new BatchResults();
+        mApi.deleteItems(files(25), results);
+
+        assertEquals(23, results.done.size());
+        assertTrue(results.done.containsKey("0"));
+        assertNull(results.done.get("0"));
+        assertEquals(2, results.failed.size());
+        assertEquals("Item not found 7", results.failed.get("7").getMessage());
+        assertEquals(404, ((RequestFailException) results.failed.get("17")).getCode());
+
+        List<RecordedRequest> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        JSONArray first = batchRequests(requests.get(0));
+        assertEquals(20, first.length());
+        assertEquals("DELETE", first.getJSONObject(0).getString("method"));
+        assertEquals("/drive/items/0", first.getJSONObject(0).getString("url"));
+        assertEquals(5, batchRequests(requests.get(1)).length());
+    }
+
+    /**
+     * Test that the moved items are built from the answers matched by id
+     */
+    @Test
+    public void moveItems_outOfOrder_matchedById() throws Exception {
+        mServer.setDispatcher(new ItemDispatcher("1") {
+            @Override
+            JSONObject respond(String id, JSONObject request) throws Exception {
+                String parent = request.getJSONObject("body")
+                        .getJSONObject("parentReference").getString("id");
+                return new JSONObject()
+                        .put("status", 200)
+                        .put("body", new JSONObject()
+                                .put("id", id)
+                                .put("name", parent + "-" + id)
+                                .put("createdDateTime", "2016-01-01T00:00:00.000Z")
+                                .put("lastModifiedDateTime", "2016-01-01T00:00:00.000Z"));
+            }
+        });
+        CFolder folder = new CFolder(null);
+        folder.setId("folder");
+        BatchResults results = new BatchResults();
+        mApi.moveItems(files(4), folder, results);
+
+        assertEquals(3, results.done.size());
+        assertEquals("folder-0", ((CFile) results.done.get("0")).getName());
+        assertEquals("folder-2", ((CFile) results.done.get("2")).getName());
+        assertEquals("folder-3", ((CFile) results.done.get("3")).getName());
+        assertEquals("Item not found 1", results.failed.get("1").getMessage());
+
+        JSONObject request = batchRequests(mServer.getRequests().get(0)).getJSONObject(2);
+        assertEquals("PATCH", request.getString("method"));
+        assertEquals("/drive/items/2", request.getString("url"));
+    }
+}
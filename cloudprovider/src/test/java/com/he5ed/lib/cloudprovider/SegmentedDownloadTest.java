@@ -0,0 +1,298 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.SegmentedDownload;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedDownloadTest {
+
+    // smallest segment size allowed
+    private static final int SEGMENT = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockWebServer mServer;
+    private RangeDispatcher mDispatcher;
+    private OkHttpClient mHttpClient;
+    private ExecutorService mExecutor;
+    private File mFile;
+
+    @Before
+    public void setup() throws Exception {
+        mDispatcher = new RangeDispatcher(content(4 * SEGMENT - 100, 1), "\"v1\"");
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDispatcher);
+        mServer.start();
+        mHttpClient = new OkHttpClient();
+        // dropped connections must reach the download, not be retried by the client
+        mHttpClient.setRetryOnConnectionFailure(false);
+        mExecutor = Executors.newFixedThreadPool(2);
+        mFile = new File(mFolder.getRoot(), "download.bin");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        mExecutor.shutdownNow();
+        mServer.shutdown();
+    }
+
+    private static byte[] content(int length, long seed) {
+        byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private SegmentedDownload newDownload() {
+        Request request = new Request.Builder().url(mServer.url("/file")).build();
+        return new SegmentedDownload(mHttpClient, request, mFile).segmentSize(SEGMENT);
+    }
+
+    private static byte[] read(File file) throws Exception {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) input.length()];
+            input.readFully(content);
+            return content;
+        } finally {
+            input.close();
+        }
+    }
+
+    private File partFile() {
+        return new File(mFile.getPath() + ".part");
+    }
+
+    private File stateFile() {
+        return new File(mFile.getPath() + ".part.state");
+    }
+
+    /**
+     * Download that fails on the third segment and leaves the first two behind
+     */
+    private void failThirdSegment() throws Exception {
+        mDispatcher.failStarts.add((long) 2 * SEGMENT);
+        try {
+            newDownload().download();
+            fail("Download should have failed");
+        } catch (RequestFailException e) {
+            // expected
+        }
+        mDispatcher.failStarts.clear();
+        mDispatcher.starts.clear();
+        mDispatcher.ifRanges.clear();
+    }
+
+    /**
+     * Test that a server supporting ranges is downloaded one segment per request
+     */
+    @Test
+    public void download_rangesSupported_downloadedInSegments() throws Exception {
+        File file = newDownload().parallel(mExecutor, 2).download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        List<Long> starts = new ArrayList<>(mDispatcher.starts);
+        Collections.sort(starts);
+        assertEquals(Arrays.asList(0L, (long) SEGMENT, 2L * SEGMENT, 3L * SEGMENT), starts);
+        assertFalse(partFile().exists());
+        assertFalse(stateFile().exists());
+    }
+
+    /**
+     * Test that a server ignoring ranges has the whole file taken from the first response
+     */
+    @Test
+    public void download_rangesNotSupported_wholeFileTaken() throws Exception {
+        mDispatcher.ranges = false;
+        File file = newDownload().download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    /**
+     * Test that a failed download keeps its segments and only the missing ones are requested
+     * when resumed
+     */
+    @Test
+    public void download_segmentFailed_resumedFromSidecar() throws Exception {
+        failThirdSegment();
+        assertTrue(partFile().exists());
+        assertTrue(stateFile().exists());
+
+        File file = newDownload().download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        assertEquals(Arrays.asList(2L * SEGMENT, 3L * SEGMENT), mDispatcher.starts);
+        // resumed segments must come from the same version
+        assertEquals(Arrays.asList("\"v1\"", "\"v1\""), mDispatcher.ifRanges);
+    }
+
+    /**
+     * Test that a file changed since the partial download is downloaded again in full
+     */
+    @Test
+    public void download_changedBeforeResume_startedOver() throws Exception {
+        failThirdSegment();
+        mDispatcher.content = content(3 * SEGMENT, 2);
+        mDispatcher.etag = "\"v2\"";
+
+        File file = newDownload().download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        assertFalse(stateFile().exists());
+    }
+
+    /**
+     * Test that a file changed while its segments are downloaded fails the download and drops
+     * the partial content
+     */
+    @Test
+    public void download_changedDuringDownload_partialDiscarded() throws Exception {
+        mDispatcher.changeAfter = 1;
+        try {
+            newDownload().download();
+            fail("Download should have failed");
+        } catch (RequestFailException e) {
+            assertEquals(200, e.getCode());
+        }
+
+        assertFalse(partFile().exists());
+        assertFalse(stateFile().exists());
+        assertFalse(mFile.exists());
+    }
+
+    /**
+     * Test that a file that shrank below the resumed segment is downloaded again
+     */
+    @Test
+    public void download_fileShrank_startedOver() throws Exception {
+        failThirdSegment();
+        // same version according to the validator but shorter, e.g. truncated in place
+        mDispatcher.content = content(100, 3);
+
+        File file = newDownload().download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        assertEquals(Arrays.asList(2L * SEGMENT, 0L), mDispatcher.starts);
+    }
+
+    /**
+     * Test that a segment whose connection dropped is requested again
+     */
+    @Test
+    public void download_connectionDropped_segmentRetried() throws Exception {
+        mDispatcher.dropStarts.add((long) SEGMENT);
+
+        File file = newDownload().download();
+
+        assertArrayEquals(mDispatcher.content, read(file));
+        assertEquals(Arrays.asList(0L, (long) SEGMENT, (long) SEGMENT, 2L * SEGMENT, 3L * SEGMENT),
+                mDispatcher.starts);
+    }
+
+    /**
+     * Serve the content with single range requests, If-Range and failures on demand
+     */
+    private static class RangeDispatcher extends Dispatcher {
+
+        volatile byte[] content;
+        volatile String etag;
+        volatile boolean ranges = true;
+        // requests served before the content changes, 0 never change
+        volatile int changeAfter;
+        final Set<Long> failStarts = Collections.synchronizedSet(new HashSet<Long>());
+        final Set<Long> dropStarts = Collections.synchronizedSet(new HashSet<Long>());
+        final List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+        final List<String> ifRanges = Collections.synchronizedList(new ArrayList<String>());
+        private int mServed;
+
+        RangeDispatcher(byte[] content, String etag) {
+            this.content = content;
+            this.etag = etag;
+        }
+
+        @Override
+        public synchronized MockResponse dispatch(RecordedRequest request) {
+            if (changeAfter > 0 && mServed++ == changeAfter) etag = "\"changed\"";
+
+            String range = request.getHeader("Range");
+            String ifRange = request.getHeader("If-Range");
+            if (ifRange != null) ifRanges.add(ifRange);
+            if (!ranges || range == null || (ifRange != null && !ifRange.equals(etag)))
+                return whole();
+
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            long start = Long.parseLong(bounds[0]);
+            starts.add(start);
+            if (dropStarts.remove(start))
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            if (failStarts.contains(start)) return new MockResponse().setResponseCode(500);
+            if (start >= content.length)
+                return new MockResponse().setResponseCode(416)
+                        .setHeader("Content-Range", "bytes */" + content.length);
+
+            long end = Math.min(Long.parseLong(bounds[1]), content.length - 1);
+            Buffer body = new Buffer().write(content, (int) start, (int) (end - start + 1));
+            return new MockResponse().setResponseCode(206)
+                    .setHeader("ETag", etag)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length)
+                    .setBody(body);
+        }
+
+        private MockResponse whole() {
+            return new MockResponse().setResponseCode(200)
+                    .setHeader("ETag", etag)
+                    .setBody(new Buffer().write(content));
+        }
+    }
+
+}
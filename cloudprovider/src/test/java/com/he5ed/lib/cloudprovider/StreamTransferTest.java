@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.apis.StreamTransfer;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class StreamTransferTest {
+
+    /**
+     * Cloud file as built from the metadata of the cloud service
+     */
+    private static CFile cloudFile(String name, long size) {
+        Map<String, Object> map = new HashMap<>();
+        map.put(CFile.ID, name);
+        map.put(CFile.NAME, name);
+        map.put(CFile.DATE_FORMAT, "yyyy-MM-dd'T'HH:mm:ssZ");
+        // dates are parsed even though TextUtils is stubbed in unit tests
+        map.put(CFile.CREATED, "2016-01-01T00:00:00+0000");
+        map.put(CFile.MODIFIED, "2016-01-01T00:00:00+0000");
+        map.put(CFile.SIZE, size);
+        return new CFile(map);
+    }
+
+    /**
+     * Test that the size in the metadata is read into the file
+     */
+    @Test
+    public void cloudFile_sizeInMap_sizeRead() {
+        assertEquals(10, cloudFile("size.bin", 10L).getSize());
+    }
+
+    /**
+     * Test that a file of known size is streamed to the destination with its length, so the
+     * destination does not stage it on disk
+     */
+    @Test
+    public void copy_knownSize_notStaged() throws Exception {
+        CFile file = cloudFile("copy.bin", 10L);
+        CFile copied = cloudFile("copy.bin", 10L);
+        BaseApi source = mock(BaseApi.class);
+        when(source.openStream(file)).thenReturn(new ByteArrayInputStream(new byte[10]));
+        // the default stream upload stages the content and upload the staged file
+        BaseApi destination = mock(BaseApi.class, CALLS_REAL_METHODS);
+        doReturn(copied).when(destination)
+                .uploadFile(any(InputStream.class), eq(10L), eq("copy.bin"), any(CFolder.class));
+
+        CFile result = new StreamTransfer(source, destination).buffer(0).copy(file, null);
+
+        assertEquals(copied, result);
+        verify(destination).uploadFile(any(InputStream.class), eq(10L), anyString(),
+                any(CFolder.class));
+        verify(destination, never()).uploadFile(any(File.class), any(CFolder.class));
+        verify(destination, never()).uploadFile(any(InputStream.class), eq(-1L), anyString(),
+                any(CFolder.class));
+    }
+
+}
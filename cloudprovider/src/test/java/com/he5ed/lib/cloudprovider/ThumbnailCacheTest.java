@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.utils.MetadataCache;
+import com.he5ed.lib.cloudprovider.utils.ThumbnailCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private long mNow;
+    private int mLoadCount;
+    private File mDirectory;
+    private ThumbnailCache mCache;
+
+    @Before
+    public void setup() throws IOException {
+        mNow = 1000000;
+        mLoadCount = 0;
+        mDirectory = new File(mFolder.getRoot(), "thumbnails");
+        mCache = newCache();
+    }
+
+    private ThumbnailCache newCache() {
+        // room for two thumbnails of 4 bytes
+        return new ThumbnailCache(mDirectory, 0, 10) {
+            @Override
+            protected long now() {
+                return mNow += 1000;
+            }
+        };
+    }
+
+    private MetadataCache.Loader<File> loader(final String name) {
+        return new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                mLoadCount++;
+                try {
+                    File file = mFolder.newFile(name + mLoadCount + ".jpg");
+                    FileOutputStream output = new FileOutputStream(file);
+                    output.write(new byte[4]);
+                    output.close();
+                    return file;
+                } catch (IOException e) {
+                    throw new RequestFailException(e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Test that a cached thumbnail is served from disk without loading
+     */
+    @Test
+    public void getFile_cached_loadedOnce() throws Exception {
+        File first = mCache.getFile("a", loader("a"));
+        File second = mCache.getFile("a", loader("a"));
+
+        assertEquals(1, mLoadCount);
+        assertEquals(first, second);
+        assertEquals(mDirectory, first.getParentFile());
+        assertEquals(1, mCache.getDiskHitCount());
+        assertEquals(1, mCache.getDiskMissCount());
+        // downloaded file is moved into the cache
+        assertFalse(new File(mFolder.getRoot(), "a1.jpg").exists());
+    }
+
+    /**
+     * Test that the least recently used thumbnail is deleted once full
+     */
+    @Test
+    public void getFile_full_evictLeastRecentlyUsed() throws Exception {
+        File a = mCache.getFile("a", loader("a"));
+        File b = mCache.getFile("b", loader("b"));
+        mCache.getFile("a", loader("a"));
+        mCache.getFile("c", loader("c"));
+
+        assertEquals(3, mLoadCount);
+        assertEquals(8, mCache.getDiskSize());
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+    }
+
+    /**
+     * Test that the recency of the thumbnails survives a restart
+     */
+    @Test
+    public void getFile_restart_recencyKept() throws Exception {
+        File a = mCache.getFile("a", loader("a"));
+        File b = mCache.getFile("b", loader("b"));
+        mCache.getFile("a", loader("a"));
+
+        ThumbnailCache cache = newCache();
+        assertEquals(8, cache.getDiskSize());
+        cache.getFile("c", loader("c"));
+
+        assertEquals(3, mLoadCount);
+        assertTrue(a.exists());
+        assertFalse(b.exists());
+    }
+
+    /**
+     * Test that a thumbnail too large to cache does not stay where the loader put it and is
+     * deleted on the next run
+     */
+    @Test
+    public void getFile_tooLarge_movedToTemporaryFile() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, 0, 0);
+        File file = cache.getFile("a", loader("a"));
+
+        assertFalse(new File(mFolder.getRoot(), "a1.jpg").exists());
+        assertTrue(file.exists());
+        assertEquals(new File(mDirectory, "tmp"), file.getParentFile());
+        assertEquals(0, cache.getDiskSize());
+
+        new ThumbnailCache(mDirectory, 0, 0).getDiskSize();
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Test that a thumbnail too large to cache is deleted once decoded
+     */
+    @Test
+    public void getBitmap_tooLarge_deletedAfterDecode() throws Exception {
+        final ThumbnailCache cache = new ThumbnailCache(mDirectory, 0, 0);
+        final File[] loaded = new File[1];
+        cache.getBitmap("a", new MetadataCache.Loader<File>() {
+            @Override
+            public File load() throws RequestFailException {
+                return loaded[0] = cache.getFile("a", loader("a"));
+            }
+        });
+
+        assertEquals(1, mLoadCount);
+        assertFalse(loaded[0].exists());
+        assertFalse(new File(mFolder.getRoot(), "a1.jpg").exists());
+    }
+
+    /**
+     * Test that a new revision of the file changes the key
+     */
+    @Test
+    public void key_newRevision_changed() {
+        CFile file = new CFile(null);
+        file.setId("id");
+        file.setEtag("1");
+        String key = ThumbnailCache.key(null, file);
+
+        file.setEtag("2");
+        assertNotEquals(key, ThumbnailCache.key(null, file));
+    }
+
+}
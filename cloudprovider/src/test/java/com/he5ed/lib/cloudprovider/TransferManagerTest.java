@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 HE5ED.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.he5ed.lib.cloudprovider;
+
+import com.he5ed.lib.cloudprovider.apis.ApiTask;
+import com.he5ed.lib.cloudprovider.apis.BaseApi;
+import com.he5ed.lib.cloudprovider.exceptions.RequestFailException;
+import com.he5ed.lib.cloudprovider.models.CFile;
+import com.he5ed.lib.cloudprovider.models.CFolder;
+import com.he5ed.lib.cloudprovider.transfers.Transfer;
+import com.he5ed.lib.cloudprovider.transfers.TransferManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TransferManagerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private int mMaxTransfers;
+    private int mMaxPerAccount;
+    private TransferManager mManager;
+    private List<String> mStarted;
+    private CountDownLatch mRelease;
+
+    @Before
+    public void setup() {
+        mMaxTransfers = CloudProvider.MAX_TRANSFERS;
+        mMaxPerAccount = CloudProvider.MAX_TRANSFERS_PER_ACCOUNT;
+        mManager = new TransferManager();
+        mStarted = new CopyOnWriteArrayList<>();
+        mRelease = new CountDownLatch(1);
+        mManager.addListener(new TransferManager.OnTransferListener() {
+            @Override
+            public void onTransferStateChanged(Transfer transfer) {
+                if (transfer.getType() == Transfer.TYPE_DOWNLOAD
+                        && transfer.getState() == Transfer.STATE_RUNNING)
+                    mStarted.add(transfer.getRemoteFile().getName());
+            }
+
+            @Override
+            public void onTransferProgress(Transfer transfer, long bytes, long total) {
+            }
+        });
+    }
+
+    @After
+    public void teardown() {
+        mRelease.countDown();
+        CloudProvider.MAX_TRANSFERS = mMaxTransfers;
+        CloudProvider.MAX_TRANSFERS_PER_ACCOUNT = mMaxPerAccount;
+    }
+
+    /**
+     * Cloud API which download content only once released
+     */
+    private BaseApi blockingApi(final byte[] content) throws Exception {
+        BaseApi api = mock(BaseApi.class);
+        when(api.downloadFile(any(CFile.class), anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                mRelease.await(5, TimeUnit.SECONDS);
+                return writeDownload((String) invocation.getArguments()[1], content);
+            }
+        });
+        return api;
+    }
+
+    private File writeDownload(String filename, byte[] content) throws Exception {
+        File file = new File(mFolder.getRoot(), filename);
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(content);
+        output.close();
+        ApiTask.reportProgress(content.length);
+        return file;
+    }
+
+    /**
+     * Cloud API which download until the task is cancelled
+     */
+    private static BaseApi endlessApi() throws Exception {
+        BaseApi api = mock(BaseApi.class);
+        when(api.downloadFile(any(CFile.class), anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                try {
+                    while (true) {
+                        ApiTask.reportProgress(1);
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RequestFailException("Interrupted");
+                }
+            }
+        });
+        return api;
+    }
+
+    private static CFile cloudFile(String name, long size) {
+        CFile file = new CFile(null);
+        file.setName(name);
+        file.setSize(size);
+        return file;
+    }
+
+    private static void await(Transfer transfer, int state) throws InterruptedException {
+        for (int i = 0; i < 500 && transfer.getState() != state; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, transfer.getState());
+    }
+
+    /**
+     * Test that queued transfers start by priority, then in the order queued
+     */
+    @Test
+    public void schedule_priority_higherFirst() throws Exception {
+        CloudProvider.MAX_TRANSFERS = 1;
+        BaseApi api = blockingApi(new byte[10]);
+        Transfer first = mManager.download(api, cloudFile("first", 10),
+                mFolder.newFile(), Transfer.PRIORITY_LOW);
+        Transfer low = mManager.download(api, cloudFile("low", 10),
+                mFolder.newFile(), Transfer.PRIORITY_LOW);
+        Transfer high = mManager.download(api, cloudFile("high", 10),
+                mFolder.newFile(), Transfer.PRIORITY_HIGH);
+        assertEquals(Transfer.STATE_QUEUED, high.getState());
+
+        mRelease.countDown();
+        await(first, Transfer.STATE_COMPLETED);
+        await(high, Transfer.STATE_COMPLETED);
+        await(low, Transfer.STATE_COMPLETED);
+        assertEquals(Arrays.asList("first", "high", "low"), mStarted);
+    }
+
+    /**
+     * Test that transfers of an account are capped while other accounts go on
+     */
+    @Test
+    public void schedule_accountLimit_otherAccountRuns() throws Exception {
+        CloudProvider.MAX_TRANSFERS_PER_ACCOUNT = 1;
+        BaseApi api = blockingApi(new byte[10]);
+        BaseApi other = blockingApi(new byte[10]);
+        Transfer first = mManager.download(api, cloudFile("first", 10),
+                mFolder.newFile(), Transfer.PRIORITY_NORMAL);
+        Transfer second = mManager.download(api, cloudFile("second", 10),
+                mFolder.newFile(), Transfer.PRIORITY_NORMAL);
+        Transfer third = mManager.download(other, cloudFile("third", 10),
+                mFolder.newFile(), Transfer.PRIORITY_NORMAL);
+
+        assertEquals(Transfer.STATE_RUNNING, first.getState());
+        assertEquals(Transfer.STATE_QUEUED, second.getState());
+        assertEquals(Transfer.STATE_RUNNING, third.getState());
+
+        mRelease.countDown();
+        await(second, Transfer.STATE_COMPLETED);
+    }
+
+    /**
+     * Test that a cancelled download stops and remove the partial file
+     */
+    @Test
+    public void cancel_runningDownload_stopped() throws Exception {
+        BaseApi api = endlessApi();
+        File destination = new File(mFolder.getRoot(), "endless");
+        CFile file = cloudFile("endless", -1);
+        Transfer transfer = mManager.download(api, file, destination, Transfer.PRIORITY_NORMAL);
+        for (int i = 0; i < 500 && transfer.getBytesTransferred() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        transfer.cancel();
+        await(transfer, Transfer.STATE_CANCELLED);
+        assertFalse(destination.exists());
+        assertTrue(mManager.getTransfers().isEmpty());
+        verify(api).discardDownload(eq(file), anyString());
+    }
+
+    /**
+     * Test that a paused download keeps its partial file and is resumed under the same name
+     */
+    @Test
+    public void resume_pausedDownload_sameDownloadName() throws Exception {
+        final List<String> names = new CopyOnWriteArrayList<>();
+        final byte[] content = new byte[10];
+        BaseApi api = mock(BaseApi.class);
+        when(api.downloadFile(any(CFile.class), anyString())).thenAnswer(new Answer<File>() {
+            @Override
+            public File answer(InvocationOnMock invocation) throws Throwable {
+                String filename = (String) invocation.getArguments()[1];
+                names.add(filename);
+                if (names.size() == 1) {
+                    // first run is paused half way
+                    ApiTask.reportProgress(5);
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e) {
+                        throw new RequestFailException("Interrupted");
+                    }
+                }
+                return writeDownload(filename, content);
+            }
+        });
+        File destination = new File(mFolder.getRoot(), "resumed");
+        Transfer transfer = mManager.download(api, cloudFile("resumed", 10), destination,
+                Transfer.PRIORITY_NORMAL);
+        for (int i = 0; i < 500 && transfer.getBytesTransferred() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        transfer.pause();
+        await(transfer, Transfer.STATE_PAUSED);
+        verify(api, never()).discardDownload(any(CFile.class), anyString());
+
+        transfer.resume();
+        await(transfer, Transfer.STATE_COMPLETED);
+        assertEquals(2, names.size());
+        assertEquals(names.get(0), names.get(1));
+        assertTrue(destination.exists());
+        assertEquals(10, transfer.getBytesTransferred());
+    }
+
+    /**
+     * Test that an upload reports its progress and result
+     */
+    @Test
+    public void upload_file_completedWithProgress() throws Exception {
+        File file = mFolder.newFile("upload.bin");
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(new byte[1000]);
+        output.close();
+
+        final CFile uploaded = cloudFile("upload.bin", 1000);
+        final List<Long> progress = Collections.synchronizedList(new ArrayList<Long>());
+        mManager.addListener(new TransferManager.OnTransferListener() {
+            @Override
+            public void onTransferStateChanged(Transfer transfer) {
+            }
+
+            @Override
+            public void onTransferProgress(Transfer transfer, long bytes, long total) {
+                progress.add(bytes);
+            }
+        });
+        BaseApi api = mock(BaseApi.class);
+        when(api.uploadFile(any(File.class), any(CFolder.class)))
+                .thenAnswer(new Answer<CFile>() {
+                    @Override
+                    public CFile answer(InvocationOnMock invocation) throws Throwable {
+                        // part of the content reported, the rest complete with the upload
+                        ApiTask.reportProgress(400);
+                        return uploaded;
+                    }
+                });
+
+        Transfer transfer = mManager.upload(api, file, null, Transfer.PRIORITY_NORMAL);
+        await(transfer, Transfer.STATE_COMPLETED);
+        assertEquals(uploaded, transfer.getRemoteFile());
+        assertEquals(1000, transfer.getBytesTransferred());
+        assertEquals(Long.valueOf(1000), progress.get(progress.size() - 1));
+    }
+
+}